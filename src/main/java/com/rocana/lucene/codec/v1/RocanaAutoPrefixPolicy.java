@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+
+/**
+ * Picks which fields {@link RocanaBlockTreeTermsWriter} writes auto-prefix
+ * terms for, and how many terms each auto-prefix term covers.
+ *
+ * Auto-prefix terms are extra terms in the terms dictionary, each matching
+ * every term that starts with some prefix. {@link org.apache.lucene.index.Terms#intersect}
+ * uses them for range and prefix queries, so a range over a timestamp field
+ * visits a few hundred prefix terms instead of every distinct timestamp in
+ * the range. They're invisible everywhere else. The cost is index size: each
+ * auto-prefix term has its own postings, so the field's docs are written
+ * again for every level of prefixes.
+ *
+ * That's only worth paying for fields that are range queried, which is why
+ * this is per field. Auto-prefix terms can only be written for
+ * {@link IndexOptions#DOCS} fields; asking for them on any other field fails
+ * the flush with an {@code IllegalStateException}, the same as Lucene.
+ *
+ * Implementations must be thread-safe: fields may be written concurrently.
+ */
+public abstract class RocanaAutoPrefixPolicy {
+
+  /** The auto-prefix settings for one field. */
+  public static final class Settings {
+    public final int minItemsInAutoPrefix;
+    public final int maxItemsInAutoPrefix;
+
+    /** @throws IllegalArgumentException if the settings are invalid,
+     *  see {@link RocanaBlockTreeTermsWriter#validateAutoPrefixSettings(int, int)} */
+    public Settings(int minItemsInAutoPrefix, int maxItemsInAutoPrefix) {
+      if (minItemsInAutoPrefix == 0) {
+        throw new IllegalArgumentException("minItemsInAutoPrefix must be at least 2; to disable auto-prefix terms for a field, return null");
+      }
+      RocanaBlockTreeTermsWriter.validateAutoPrefixSettings(minItemsInAutoPrefix, maxItemsInAutoPrefix);
+      this.minItemsInAutoPrefix = minItemsInAutoPrefix;
+      this.maxItemsInAutoPrefix = maxItemsInAutoPrefix;
+    }
+
+    @Override
+    public String toString() {
+      return minItemsInAutoPrefix + "-" + maxItemsInAutoPrefix;
+    }
+  }
+
+  /** The settings of Lucene's {@code AutoPrefixPostingsFormat}. */
+  public static final Settings DEFAULT_SETTINGS = new Settings(25, 48);
+
+  /**
+   * Returns the auto-prefix settings to write the field with, or null to
+   * write no auto-prefix terms for it.
+   *
+   * This is called for every field in the segment before any is written
+   * (see {@link #anyAutoPrefixTerms(Iterable)}), and again as each field is
+   * written, so it must not depend on the field's terms.
+   */
+  public abstract Settings getSettings(FieldInfo fieldInfo);
+
+  /**
+   * Returns true if any indexed field may get auto-prefix terms. The terms
+   * dictionary records this once per segment, since it changes how the
+   * entries of non-leaf blocks are encoded for every field.
+   */
+  public boolean anyAutoPrefixTerms(Iterable<FieldInfo> fieldInfos) {
+    for (FieldInfo fieldInfo : fieldInfos) {
+      if (fieldInfo.getIndexOptions() != IndexOptions.NONE && getSettings(fieldInfo) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final RocanaAutoPrefixPolicy DISABLED = new RocanaAutoPrefixPolicy() {
+    @Override
+    public Settings getSettings(FieldInfo fieldInfo) {
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "disabled";
+    }
+  };
+
+  /** Writes no auto-prefix terms, like Lucene's default postings format. */
+  public static RocanaAutoPrefixPolicy disabled() {
+    return DISABLED;
+  }
+
+  /**
+   * Uses the same settings for every field, like Lucene's
+   * {@code AutoPrefixPostingsFormat}, so every field must be
+   * {@link IndexOptions#DOCS}. If {@code minItemsInAutoPrefix} is 0, this is
+   * {@link #disabled()}.
+   */
+  public static RocanaAutoPrefixPolicy fixed(int minItemsInAutoPrefix, int maxItemsInAutoPrefix) {
+    if (minItemsInAutoPrefix == 0) {
+      RocanaBlockTreeTermsWriter.validateAutoPrefixSettings(minItemsInAutoPrefix, maxItemsInAutoPrefix);
+      return disabled();
+    }
+    final Settings settings = new Settings(minItemsInAutoPrefix, maxItemsInAutoPrefix);
+    return new RocanaAutoPrefixPolicy() {
+      @Override
+      public Settings getSettings(FieldInfo fieldInfo) {
+        return settings;
+      }
+
+      @Override
+      public String toString() {
+        return "fixed(" + settings + ")";
+      }
+    };
+  }
+
+  /**
+   * Writes auto-prefix terms for the fields in {@code settingsByField} only,
+   * with their configured settings.
+   */
+  public static RocanaAutoPrefixPolicy perField(Map<String,Settings> settingsByField) {
+    final Map<String,Settings> rules = new HashMap<>(settingsByField);
+    for (Map.Entry<String,Settings> entry : rules.entrySet()) {
+      if (entry.getValue() == null) {
+        throw new IllegalArgumentException("null auto-prefix settings for field: " + entry.getKey());
+      }
+    }
+    return new RocanaAutoPrefixPolicy() {
+      @Override
+      public Settings getSettings(FieldInfo fieldInfo) {
+        return rules.get(fieldInfo.name);
+      }
+
+      @Override
+      public String toString() {
+        return "perField(" + rules + ")";
+      }
+    };
+  }
+}
@@ -21,27 +21,36 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.codecs.FieldsProducer;
 import org.apache.lucene.codecs.PostingsReaderBase;
-import org.apache.lucene.codecs.blocktree.BlockTreeTermsWriter;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Decompressor;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.SegmentReadState;
 import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.PrefixQuery;  // javadocs
 import org.apache.lucene.search.TermRangeQuery;  // javadocs
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.Accountables;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CloseableThreadLocal;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.fst.ByteSequenceOutputs;
 import org.apache.lucene.util.fst.Outputs;
 
@@ -60,6 +69,34 @@ import org.apache.lucene.util.fst.Outputs;
  *     we're trying to open a Rocana Search Searcher, which may happen during
  *     a rebalance, and we'd rather eliminate that penalty altogether or at
  *     least delay it until the rebalance finishes.
+ *   - Reads the per-field {@link RocanaStats} that {@link RocanaBlockTreeTermsWriter}
+ *     stores in the field summary since {@link #VERSION_BLOCK_STATS}.
+ *   - Reads the per-field block sizes stored since {@link #VERSION_BLOCK_SIZES}.
+ *   - Since {@link #VERSION_FIXED_LENGTH_SUFFIXES}, leaf blocks may have fixed
+ *     length suffixes, which the terms enums binary search.
+ *   - Since {@link #VERSION_COMPRESSED_SUFFIXES}, a block's suffixes may be
+ *     LZ4-compressed, which the terms enum frames decompress on load.
+ *   - When opened for merging (IndexWriter opens the segments it merges
+ *     with a {@link IOContext.Context#MERGE} context), the fields' terms
+ *     index FSTs aren't loaded until a seek needs them. Merges only next()
+ *     through the terms from the root block, so they never do.
+ *   - When a {@link RocanaTermsIndexMemoryManager} is installed, the fields'
+ *     terms indexes are loaded on first use too, and the manager may evict
+ *     them to keep all readers' terms indexes within its budget.
+ *   - Keeps the fields in a {@link RocanaFieldTable}, by field number, rather
+ *     than in a TreeMap by name.
+ *   - When a {@link RocanaTermsIndexLoadGovernor} is installed, loads the
+ *     terms indexes only once it lets us.
+ *   - Reads the per-field details into one array, and the fields read their
+ *     root code, min/max terms and block stats from it, rather than each
+ *     having arrays of their own.
+ *   - When a {@link RocanaTermsWarmer} is installed, the terms enums record
+ *     the terms they seek to with it, and once opened, other than for
+ *     merging, we have it warm the recent ones in the background.
+ *   - Keeps a clone of the terms dict file per thread, which the thread's
+ *     terms enums share, see {@link #termsInput()}.
+ *   - When {@link RocanaTermsReadAhead} is installed, terms enums that next()
+ *     through the terms dict read ahead of the blocks they load.
  *   - Use the other forked classes, like {@link RocanaFieldReader}.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
@@ -89,7 +126,7 @@ import org.apache.lucene.util.fst.Outputs;
  *  much memory the terms index uses.</p>
  *
  *  <p>If auto-prefix terms were indexed (see
- *  {@link BlockTreeTermsWriter}), then the {@link Terms#intersect}
+ *  {@link RocanaBlockTreeTermsWriter}), then the {@link Terms#intersect}
  *  implementation here will make use of these terms only if the
  *  automaton has a binary sink state, i.e. an accept state
  *  which has a transition to itself accepting all byte values.
@@ -106,7 +143,7 @@ import org.apache.lucene.util.fst.Outputs;
  *  option to see summary statistics on the blocks in the
  *  dictionary.
  *
- *  See {@link BlockTreeTermsWriter}.
+ *  See {@link RocanaBlockTreeTermsWriter}.
  *
  * @lucene.experimental
  */
@@ -136,8 +173,28 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
    *  this field did write any auto-prefix terms. */
   public static final int VERSION_AUTO_PREFIX_TERMS_COND = 2;
 
+  /** Block stats: we record each field's {@link RocanaStats} at write time,
+   *  see {@link RocanaBlockTreeTermsWriter}. */
+  public static final int VERSION_BLOCK_STATS = 3;
+
+  /** Block sizes: we record the block sizes {@link RocanaTermBlockSizePolicy}
+   *  picked for each field. */
+  public static final int VERSION_BLOCK_SIZES = 4;
+
+  /** Fixed length suffixes: leaf blocks whose suffixes all have the same
+   *  length store it once, and their suffix blob's length takes a second
+   *  flag bit for this. */
+  public static final int VERSION_FIXED_LENGTH_SUFFIXES = 5;
+
+  /** Compressed suffixes: a block's suffix blob may be LZ4-compressed, and
+   *  its length takes a third flag bit for this. */
+  public static final int VERSION_COMPRESSED_SUFFIXES = 6;
+
   /** Current terms format. */
-  public static final int VERSION_CURRENT = VERSION_AUTO_PREFIX_TERMS_COND;
+  public static final int VERSION_CURRENT = VERSION_COMPRESSED_SUFFIXES;
+
+  /** Decompresses blocks' suffixes; it keeps no state, so it's shared. */
+  static final Decompressor SUFFIX_DECOMPRESSOR = CompressionMode.FAST.newDecompressor();
 
   /** Extension of terms index file */
   static final String TERMS_INDEX_EXTENSION = "tip";
@@ -146,13 +203,54 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
   // Open input to the main terms dict file (_X.tib)
   final IndexInput termsIn;
 
+  // Each thread's clone of termsIn, shared by all the terms enums it uses:
+  private final CloseableThreadLocal<IndexInput> termsInputs = new CloseableThreadLocal<IndexInput>() {
+    @Override
+    protected IndexInput initialValue() {
+      return termsIn.clone();
+    }
+  };
+
+  // Open input to the terms index file (_X.tip) when we load the fields'
+  // terms indexes on first use, see RocanaFieldReader#getIndex; else null:
+  private IndexInput indexIn;
+
+  // Null if no manager was installed when we were opened:
+  final RocanaTermsIndexMemoryManager memoryManager;
+
+  // Null if no governor was installed when we were opened:
+  final RocanaTermsIndexLoadGovernor loadGovernor;
+
+  // Null if no warmer was installed when we were opened:
+  final RocanaTermsWarmer warmer;
+
+  // Whether our enums record their first seek with the warmer: not if
+  // there's none, or we were opened for merging:
+  final boolean recordsSeeks;
+
+  // Which index we're a segment of, for the warmer; see RocanaTermsWarmer#record:
+  final int indexKey;
+
+  // Null unless read-ahead was installed when we were opened:
+  final RocanaTermsReadAhead readAhead;
+
+  // Background work on our files, warming and reading ahead, holds the read
+  // lock, and close() takes the write lock, so it waits for any in flight:
+  private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+  // Guarded by closeLock:
+  private boolean closed;
+
   //private static final boolean DEBUG = BlockTreeTermsWriter.DEBUG;
 
   // Reads the terms dict entries, to gather state to
   // produce DocsEnum on demand
   final PostingsReaderBase postingsReader;
 
-  private final TreeMap<String,RocanaFieldReader> fields = new TreeMap<>();
+  private final RocanaFieldTable<RocanaFieldReader> fields;
+
+  // The per-field details of the terms dict, which the fields read their
+  // variable length metadata from, see RocanaFieldReader#rootCode:
+  private final byte[] metadata;
 
   /** File offset where the directory starts in the terms file. */
   private long dirOffset;
@@ -170,9 +268,17 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
   public RocanaBlockTreeTermsReader(PostingsReaderBase postingsReader, SegmentReadState state) throws IOException {
     boolean success = false;
     IndexInput indexIn = null;
+    long governedBytes = -1;
 
     this.postingsReader = postingsReader;
     this.segment = state.segmentInfo.name;
+    this.memoryManager = RocanaTermsIndexMemoryManager.getInstalled();
+    this.loadGovernor = RocanaTermsIndexLoadGovernor.getInstalled();
+    this.warmer = RocanaTermsWarmer.getInstalled();
+    this.recordsSeeks = warmer != null && state.context.context != IOContext.Context.MERGE;
+    this.indexKey = System.identityHashCode(state.segmentInfo.dir);
+    this.readAhead = RocanaTermsReadAhead.getInstalled();
+    this.fields = new RocanaFieldTable<>(state.fieldInfos);
 
     String termsName = IndexFileNames.segmentFileName(segment, state.segmentSuffix, TERMS_EXTENSION);
     try {
@@ -201,6 +307,13 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
       String indexName = IndexFileNames.segmentFileName(segment, state.segmentSuffix, TERMS_INDEX_EXTENSION);
       indexIn = state.directory.openInput(indexName, state.context);
       CodecUtil.checkIndexHeader(indexIn, TERMS_INDEX_CODEC_NAME, version, version, state.segmentInfo.getId(), state.segmentSuffix);
+      if (state.context.context == IOContext.Context.MERGE) {
+        // Most likely opened only to be merged, which needs no terms index:
+        this.indexIn = indexIn;
+      } else if (memoryManager != null) {
+        // The manager may evict the fields' terms indexes, so they must be able to load them again:
+        this.indexIn = indexIn;
+      }
 
       // IMPORTANT: comment out this one line to prevent checksumming the entire file.
       //            This is the reason we have a custom Lucene codec and forked Lucene classes.
@@ -219,37 +332,61 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
       seekDir(termsIn, dirOffset);
       seekDir(indexIn, indexDirOffset);
 
-      final int numFields = termsIn.readVInt();
+      // The per-field details, up to the trailer, are the fields' metadata
+      // arena: their root codes, min/max terms and block stats are read from
+      // it when needed, rather than copied into arrays of their own:
+      final long metadataLength = termsIn.length() - CodecUtil.footerLength() - 8 - termsIn.getFilePointer();
+      if (metadataLength < 0 || metadataLength > ArrayUtil.MAX_ARRAY_LENGTH) {
+        throw new CorruptIndexException("invalid fields metadata length: " + metadataLength, termsIn);
+      }
+      metadata = new byte[(int) metadataLength];
+      termsIn.readBytes(metadata, 0, metadata.length);
+      final ByteArrayDataInput in = new ByteArrayDataInput(metadata);
+
+      final int numFields = in.readVInt();
       if (numFields < 0) {
         throw new CorruptIndexException("invalid numFields: " + numFields, termsIn);
       }
 
+      if (this.indexIn == null && loadGovernor != null) {
+        // The fields load their terms indexes as we create them:
+        loadGovernor.acquire(indexIn.length(), false);
+        governedBytes = indexIn.length();
+      }
+
       for (int i = 0; i < numFields; ++i) {
-        final int field = termsIn.readVInt();
-        final long numTerms = termsIn.readVLong();
+        final int field = in.readVInt();
+        final long numTerms = in.readVLong();
         if (numTerms <= 0) {
           throw new CorruptIndexException("Illegal numTerms for field number: " + field, termsIn);
         }
-        final int numBytes = termsIn.readVInt();
+        final int rootCodeOffset = in.getPosition();
+        final int numBytes = in.readVInt();
         if (numBytes < 0) {
           throw new CorruptIndexException("invalid rootCode for field number: " + field + ", numBytes=" + numBytes, termsIn);
         }
-        final BytesRef rootCode = new BytesRef(new byte[numBytes]);
-        termsIn.readBytes(rootCode.bytes, 0, numBytes);
-        rootCode.length = numBytes;
+        in.skipBytes(numBytes);
         final FieldInfo fieldInfo = state.fieldInfos.fieldInfo(field);
         if (fieldInfo == null) {
           throw new CorruptIndexException("invalid field number: " + field, termsIn);
         }
-        final long sumTotalTermFreq = fieldInfo.getIndexOptions() == IndexOptions.DOCS ? -1 : termsIn.readVLong();
-        final long sumDocFreq = termsIn.readVLong();
-        final int docCount = termsIn.readVInt();
-        final int longsSize = termsIn.readVInt();
+        final long sumTotalTermFreq = fieldInfo.getIndexOptions() == IndexOptions.DOCS ? -1 : in.readVLong();
+        final long sumDocFreq = in.readVLong();
+        final int docCount = in.readVInt();
+        final int longsSize = in.readVInt();
         if (longsSize < 0) {
           throw new CorruptIndexException("invalid longsSize for field: " + fieldInfo.name + ", longsSize=" + longsSize, termsIn);
         }
-        BytesRef minTerm = readBytesRef(termsIn);
-        BytesRef maxTerm = readBytesRef(termsIn);
+        final int minTermOffset = skipBytesRef(in, termsIn);
+        final int maxTermOffset = skipBytesRef(in, termsIn);
+        // -1 for older index that didn't store block stats:
+        final int blockStatsOffset = version >= VERSION_BLOCK_STATS ? skipBytesRef(in, termsIn) : -1;
+        // Zero for older index that didn't store block sizes:
+        final int minItemsInBlock = version >= VERSION_BLOCK_SIZES ? in.readVInt() : 0;
+        final int maxItemsInBlock = version >= VERSION_BLOCK_SIZES ? in.readVInt() : 0;
+        if (in.getPosition() > metadata.length) {
+          throw new CorruptIndexException("fields metadata overflow for field: " + fieldInfo.name, termsIn);
+        }
         if (docCount < 0 || docCount > state.segmentInfo.maxDoc()) { // #docs with field must be <= #docs
           throw new CorruptIndexException("invalid docCount: " + docCount + " maxDoc: " + state.segmentInfo.maxDoc(), termsIn);
         }
@@ -260,30 +397,138 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
           throw new CorruptIndexException("invalid sumTotalTermFreq: " + sumTotalTermFreq + " sumDocFreq: " + sumDocFreq, termsIn);
         }
         final long indexStartFP = indexIn.readVLong();
-        RocanaFieldReader previous = fields.put(fieldInfo.name,
-                                          new RocanaFieldReader(this, fieldInfo, numTerms, rootCode, sumTotalTermFreq, sumDocFreq, docCount,
-                                                          indexStartFP, longsSize, indexIn, minTerm, maxTerm));
+        RocanaFieldReader previous = fields.put(fieldInfo,
+                                          new RocanaFieldReader(this, fieldInfo, numTerms, metadata, rootCodeOffset, sumTotalTermFreq, sumDocFreq, docCount,
+                                                          indexStartFP, longsSize, indexIn, minTermOffset, maxTermOffset, blockStatsOffset,
+                                                          minItemsInBlock, maxItemsInBlock));
         if (previous != null) {
           throw new CorruptIndexException("duplicate field: " + fieldInfo.name, termsIn);
         }
       }
+      if (in.getPosition() != metadata.length) {
+        throw new CorruptIndexException("fields metadata has " + (metadata.length - in.getPosition()) + " trailing bytes", termsIn);
+      }
 
-      indexIn.close();
+      if (this.indexIn == null) {
+        indexIn.close();
+      } else {
+        estimateIndexBytes(indexIn.length());
+      }
       success = true;
     } finally {
+      if (governedBytes != -1) {
+        loadGovernor.release(governedBytes);
+      }
       if (!success) {
         // this.close() will close in:
         IOUtils.closeWhileHandlingException(indexIn, this);
       }
     }
+
+    if (recordsSeeks) {
+      warmer.warm(this);
+    }
+  }
+
+  /**
+   * Seeks to {@code prefix} in {@code field}, if we have that field, and
+   * reads the first doc of the term found, for {@link RocanaTermsWarmer};
+   * without recording the seek. Returns false, without doing anything, once
+   * we're closed.
+   */
+  boolean warm(String field, BytesRef prefix) throws IOException {
+    if (startBackgroundWork() == false) {
+      return false;
+    }
+    try {
+      final RocanaFieldReader fr = fields.get(field);
+      if (fr != null) {
+        final RocanaSegmentTermsEnum termsEnum = new RocanaSegmentTermsEnum(fr);
+        termsEnum.stopRecordingSeeks();
+        if (termsEnum.seekCeil(prefix) != TermsEnum.SeekStatus.END) {
+          termsEnum.postings(null, PostingsEnum.NONE).nextDoc();
+        }
+      }
+      return true;
+    } finally {
+      endBackgroundWork();
+    }
+  }
+
+  /**
+   * Call before reading our files in the background; if it returns true,
+   * we won't close them until {@link #endBackgroundWork()}, which must be
+   * called then, in a finally. Returns false if we're closing or closed.
+   */
+  boolean startBackgroundWork() {
+    // Never waits, so background work can't hold up close(), even if it
+    // waits on other background work:
+    if (closeLock.readLock().tryLock() == false) {
+      return false;
+    }
+    if (closed) {
+      closeLock.readLock().unlock();
+      return false;
+    }
+    return true;
+  }
+
+  /** Ends background work that {@link #startBackgroundWork()} let start. */
+  void endBackgroundWork() {
+    closeLock.readLock().unlock();
+  }
+
+  /**
+   * Returns the calling thread's clone of the terms dict file. The terms
+   * enums load every block with a seek to it and reads up to its end, never
+   * yielding in between, so all of a thread's enums can share one clone,
+   * and keep its buffer, rather than each cloning the file.
+   */
+  IndexInput termsInput() {
+    return termsInputs.get();
   }
 
-  private static BytesRef readBytesRef(IndexInput in) throws IOException {
-    BytesRef bytes = new BytesRef();
-    bytes.length = in.readVInt();
-    bytes.bytes = new byte[bytes.length];
-    in.readBytes(bytes.bytes, 0, bytes.length);
-    return bytes;
+  /** True if the fields load their terms index on first use, rather than when we're opened. */
+  boolean loadsIndexOnFirstUse() {
+    return indexIn != null;
+  }
+
+  /** Returns a clone of the terms index file, to load a field's terms index from. */
+  synchronized IndexInput cloneIndexInput() {
+    assert indexIn != null;
+    return indexIn.clone();
+  }
+
+  /**
+   * Sets about how many bytes of the terms index file each field's terms
+   * index takes, see {@link RocanaFieldReader#indexBytes}: up to the next
+   * field's, or to the end of the file, which is {@code indexLength} long.
+   */
+  private void estimateIndexBytes(long indexLength) {
+    final List<RocanaFieldReader> byStart = new ArrayList<>(fields.values());
+    Collections.sort(byStart, new Comparator<RocanaFieldReader>() {
+      @Override
+      public int compare(RocanaFieldReader a, RocanaFieldReader b) {
+        return Long.compare(a.indexStartFP, b.indexStartFP);
+      }
+    });
+    long end = indexLength;
+    for (int i = byStart.size() - 1; i >= 0; i--) {
+      final RocanaFieldReader field = byStart.get(i);
+      field.indexBytes = end - field.indexStartFP;
+      end = field.indexStartFP;
+    }
+  }
+
+  /** Skips a length-prefixed byte sequence in the fields metadata, and returns where it started. */
+  private static int skipBytesRef(ByteArrayDataInput in, IndexInput termsIn) throws IOException {
+    final int offset = in.getPosition();
+    final int length = in.readVInt();
+    if (length < 0) {
+      throw new CorruptIndexException("invalid length: " + length, termsIn);
+    }
+    in.skipBytes(length);
+    return offset;
   }
 
   /** Seek {@code input} to the directory offset. */
@@ -301,8 +546,17 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
 
   @Override
   public void close() throws IOException {
+    closeLock.writeLock().lock();
     try {
-      IOUtils.close(termsIn, postingsReader);
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    try {
+      if (memoryManager != null) {
+        memoryManager.released(fields.values());
+      }
+      IOUtils.close(termsInputs, termsIn, indexIn, postingsReader);
     } finally {
       // Clear so refs to terms index is GCable even if
       // app hangs onto us:
@@ -312,7 +566,7 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
 
   @Override
   public Iterator<String> iterator() {
-    return Collections.unmodifiableSet(fields.keySet()).iterator();
+    return fields.iterator();
   }
 
   @Override
@@ -344,7 +598,7 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
 
   @Override
   public long ramBytesUsed() {
-    long sizeInBytes = postingsReader.ramBytesUsed();
+    long sizeInBytes = postingsReader.ramBytesUsed() + fields.ramBytesUsed() + RamUsageEstimator.sizeOf(metadata);
     for(RocanaFieldReader reader : fields.values()) {
       sizeInBytes += reader.ramBytesUsed();
     }
@@ -354,7 +608,9 @@ public final class RocanaBlockTreeTermsReader extends FieldsProducer {
   @Override
   public Collection<Accountable> getChildResources() {
     List<Accountable> resources = new ArrayList<>();
-    resources.addAll(Accountables.namedAccountables("field", fields));
+    for (RocanaFieldReader reader : fields.values()) {
+      resources.add(Accountables.namedAccountable("field '" + reader.fieldInfo.name + "'", reader));
+    }
     resources.add(Accountables.namedAccountable("delegate", postingsReader));
     return Collections.unmodifiableList(resources);
   }
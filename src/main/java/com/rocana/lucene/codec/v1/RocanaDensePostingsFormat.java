@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Postings format for low-cardinality fields (level, source, ...), where a
+ * few terms match most of the documents.
+ *
+ * Terms of {@link org.apache.lucene.index.IndexOptions#DOCS} fields that
+ * match at least {@code minDenseFraction} of the segment's documents are
+ * written as a bitset over all the documents, see {@link RocanaDensePostingsWriter}.
+ * Reading one doesn't decode any blocks, and {@code advance()} is a single
+ * read of the word holding the target, instead of a skip list walk plus a
+ * block decode. All other terms, and all fields with freqs, are written the
+ * same as {@link RocanaLucene50PostingsFormat}.
+ *
+ * Route such fields to this format with {@link RocanaPostingsFormatRouter}.
+ * It's registered in META-INF/services/org.apache.lucene.codecs.PostingsFormat
+ * as {@link #SHORT_NAME}.
+ */
+public final class RocanaDensePostingsFormat extends PostingsFormat {
+
+  /** Name of this postings format, used for SPI lookups. */
+  public static final String SHORT_NAME = RocanaDensePostingsFormat.class.getSimpleName();
+
+  /**
+   * At a quarter of the documents a bitset costs 4 bits per document in the
+   * term, about what the packed blocks cost for gaps that size.
+   */
+  public static final double DEFAULT_MIN_DENSE_FRACTION = 0.25;
+
+  private final double minDenseFraction;
+
+  /** Creates the format with {@link #DEFAULT_MIN_DENSE_FRACTION}. Readers
+   *  (through SPI) use this, the fraction only matters when writing. */
+  public RocanaDensePostingsFormat() {
+    this(DEFAULT_MIN_DENSE_FRACTION);
+  }
+
+  /**
+   * @param minDenseFraction terms matching at least this fraction of the
+   *        segment's documents (and at least a full block of them) are
+   *        written as bitsets.
+   */
+  public RocanaDensePostingsFormat(double minDenseFraction) {
+    super(SHORT_NAME);
+    if (minDenseFraction > 0 == false || minDenseFraction > 1) {
+      throw new IllegalArgumentException("minDenseFraction must be > 0 and <= 1; got " + minDenseFraction);
+    }
+    this.minDenseFraction = minDenseFraction;
+  }
+
+  @Override
+  public String toString() {
+    return getName() + "(blocksize=" + RocanaLucene50PostingsFormat.BLOCK_SIZE + ",minDenseFraction=" + minDenseFraction + ")";
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    RocanaDensePostingsWriter postingsWriter = new RocanaDensePostingsWriter(state, minDenseFraction);
+
+    boolean success = false;
+    try {
+      FieldsConsumer ret = new RocanaBlockTreeTermsWriter(state,
+                                                          postingsWriter,
+                                                          RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE,
+                                                          RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsWriter);
+      }
+    }
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    RocanaDensePostingsReader postingsReader = new RocanaDensePostingsReader(state);
+    boolean success = false;
+    try {
+      FieldsProducer ret = new RocanaBlockTreeTermsReader(postingsReader, state);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsReader);
+      }
+    }
+  }
+
+  /**
+   * Term state of this format: a dense term has its own postings, its
+   * bitset, see {@link RocanaWrappingTermState}.
+   */
+  static final class DenseTermState extends RocanaWrappingTermState {
+    /** File pointer of the term's bitset, if the term is dense. */
+    long denseFP = -1;
+
+    @Override
+    public DenseTermState clone() {
+      return (DenseTermState) super.clone();
+    }
+
+    @Override
+    public void copyFrom(TermState _other) {
+      super.copyFrom(_other);
+      denseFP = ((DenseTermState) _other).denseFP;
+    }
+
+    @Override
+    public String toString() {
+      return super.toString() + " denseFP=" + denseFP;
+    }
+  }
+}
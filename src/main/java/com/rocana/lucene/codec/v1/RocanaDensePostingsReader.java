@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Postings reader of {@link RocanaDensePostingsFormat}: reads the bitsets
+ * written by {@link RocanaDensePostingsWriter}, and everything else with
+ * the wrapped {@link RocanaLucene50PostingsReader}, see {@link RocanaWrappingPostingsReader}.
+ *
+ * Like {@link RocanaBlockTreeTermsReader}, opening doesn't checksum the
+ * whole bitset file, it only checks the footer's structure; the full check
+ * is in {@link #checkIntegrity()}.
+ */
+final class RocanaDensePostingsReader extends RocanaWrappingPostingsReader<RocanaDensePostingsFormat.DenseTermState> {
+
+  private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(RocanaDensePostingsReader.class);
+
+  private final IndexInput denseIn;
+  private final int maxDoc;
+  private final int numWords;
+  private final int minDenseDocFreq;
+
+  RocanaDensePostingsReader(SegmentReadState state) throws IOException {
+    super(new RocanaLucene50PostingsReader(state));
+    this.maxDoc = state.segmentInfo.maxDoc();
+    this.numWords = FixedBitSet.bits2words(maxDoc);
+    String denseFileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, RocanaDensePostingsWriter.DENSE_EXTENSION);
+    IndexInput denseIn = null;
+    boolean success = false;
+    try {
+      denseIn = state.directory.openInput(denseFileName, state.context);
+      CodecUtil.checkIndexHeader(denseIn, RocanaDensePostingsWriter.DENSE_CODEC_NAME, RocanaDensePostingsWriter.VERSION_START,
+        RocanaDensePostingsWriter.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+      minDenseDocFreq = denseIn.readVInt();
+      if (minDenseDocFreq < RocanaLucene50PostingsFormat.BLOCK_SIZE) {
+        throw new CorruptIndexException("invalid minDenseDocFreq: " + minDenseDocFreq, denseIn);
+      }
+
+      // Same as RocanaBlockTreeTermsReader: only verify the footer's structure, not the whole file:
+      CodecUtil.retrieveChecksum(denseIn);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(denseIn, postingsReader);
+      }
+    }
+    this.denseIn = denseIn;
+  }
+
+  @Override
+  RocanaDensePostingsFormat.DenseTermState newOwnTermState() {
+    return new RocanaDensePostingsFormat.DenseTermState();
+  }
+
+  @Override
+  boolean hasOwnPostings(FieldInfo fieldInfo, RocanaDensePostingsFormat.DenseTermState state) {
+    return fieldInfo.getIndexOptions() == IndexOptions.DOCS && state.docFreq >= minDenseDocFreq;
+  }
+
+  @Override
+  void decodeOwnTerm(DataInput in, FieldInfo fieldInfo, RocanaDensePostingsFormat.DenseTermState state) throws IOException {
+    state.denseFP = in.readVLong();
+  }
+
+  @Override
+  PostingsEnum ownPostings(FieldInfo fieldInfo, RocanaDensePostingsFormat.DenseTermState state, PostingsEnum reuse, int flags) throws IOException {
+    if (PostingsEnum.featureRequested(flags, DocsAndPositionsEnum.OLD_NULL_SEMANTICS)) {
+      // Positions were not indexed:
+      return null;
+    }
+    DenseDocsEnum docsEnum;
+    if (reuse instanceof DenseDocsEnum && ((DenseDocsEnum) reuse).canReuse(denseIn)) {
+      docsEnum = (DenseDocsEnum) reuse;
+    } else {
+      docsEnum = new DenseDocsEnum();
+    }
+    return docsEnum.reset(state.denseFP, state.docFreq);
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return BASE_RAM_BYTES_USED + postingsReader.ramBytesUsed();
+  }
+
+  @Override
+  public void checkIntegrity() throws IOException {
+    // bitsets
+    CodecUtil.checksumEntireFile(denseIn);
+
+    // regular postings
+    postingsReader.checkIntegrity();
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.close(denseIn, postingsReader);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(minDenseDocFreq=" + minDenseDocFreq + ",postings=" + postingsReader + ")";
+  }
+
+  /**
+   * Docs of a dense term, read straight from its bitset: {@link #advance(int)}
+   * reads the word holding the target, and the words after it until one has
+   * a bit set. The current word is kept, so {@link #nextDoc()} within a word
+   * doesn't read again.
+   */
+  final class DenseDocsEnum extends PostingsEnum {
+    private final IndexInput startDenseIn;
+    private final IndexInput in;
+    private RandomAccessInput words;
+    private int docFreq;
+    private int doc;
+    private int wordIndex;
+    private long word;
+
+    DenseDocsEnum() {
+      this.startDenseIn = denseIn;
+      this.in = denseIn.clone();
+    }
+
+    boolean canReuse(IndexInput denseIn) {
+      return denseIn == startDenseIn;
+    }
+
+    DenseDocsEnum reset(long denseFP, int docFreq) throws IOException {
+      words = in.randomAccessSlice(denseFP, (long) numWords << 3);
+      this.docFreq = docFreq;
+      doc = -1;
+      wordIndex = -1;
+      return this;
+    }
+
+    private long word(int i) throws IOException {
+      if (i != wordIndex) {
+        word = words.readLong((long) i << 3);
+        wordIndex = i;
+      }
+      return word;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      if (target >= maxDoc) {
+        return doc = NO_MORE_DOCS;
+      }
+      int i = target >> 6;
+      // Java shifts longs by the low 6 bits of target:
+      long bits = word(i) >>> target;
+      if (bits != 0) {
+        return doc = target + Long.numberOfTrailingZeros(bits);
+      }
+      while (++i < numWords) {
+        bits = word(i);
+        if (bits != 0) {
+          return doc = (i << 6) + Long.numberOfTrailingZeros(bits);
+        }
+      }
+      return doc = NO_MORE_DOCS;
+    }
+
+    @Override
+    public long cost() {
+      return docFreq;
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return 1;
+    }
+
+    @Override
+    public int nextPosition() throws IOException {
+      return -1;
+    }
+
+    @Override
+    public int startOffset() throws IOException {
+      return -1;
+    }
+
+    @Override
+    public int endOffset() throws IOException {
+      return -1;
+    }
+
+    @Override
+    public BytesRef getPayload() throws IOException {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Postings writer of {@link RocanaDensePostingsFormat}: writes the dense
+ * terms of {@link IndexOptions#DOCS} fields as bitsets, and everything else
+ * with the wrapped {@link RocanaLucene50PostingsWriter}, skipping over the
+ * dense terms as described in {@link RocanaWrappingPostingsWriter}.
+ *
+ * A term is dense if it has at least {@link #minDenseDocFreq} documents.
+ * Since readers know each term's docFreq before decoding its metadata, and
+ * the threshold is in the file's header, dense terms need no flag:
+ *
+ *   .rdb: Header, MinDenseDocFreq, Bitset<sup>NumDenseTerms</sup>, Footer
+ *   Bitset: Word (long) <sup>ceil(MaxDoc/64)</sup>
+ *   dense term metadata (in the terms dictionary): longs all 0, then BitsetFP (vLong)
+ *
+ * Finding out whether a term is dense costs a pass over its postings, which
+ * stops at {@link #minDenseDocFreq}. Other terms then read their postings
+ * again to write them, so flush and merge read at most twice the postings
+ * of the sparse terms.
+ */
+final class RocanaDensePostingsWriter extends RocanaWrappingPostingsWriter {
+
+  static final String DENSE_EXTENSION = "rdb";
+  static final String DENSE_CODEC_NAME = "RocanaDenseBitSets";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  private final int maxDoc;
+  private final int minDenseDocFreq;
+  private IndexOutput denseOut;
+
+  // Allocated on the first dense term:
+  private FixedBitSet bits;
+  private PostingsEnum postingsEnum;
+
+  private boolean denseField;
+
+  RocanaDensePostingsWriter(SegmentWriteState state, double minDenseFraction) throws IOException {
+    super(new RocanaLucene50PostingsWriter(state));
+    this.maxDoc = state.segmentInfo.maxDoc();
+    this.minDenseDocFreq = minDenseDocFreq(minDenseFraction, maxDoc);
+    String denseFileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, DENSE_EXTENSION);
+    boolean success = false;
+    try {
+      denseOut = state.directory.createOutput(denseFileName, state.context);
+      CodecUtil.writeIndexHeader(denseOut, DENSE_CODEC_NAME, VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+      denseOut.writeVInt(minDenseDocFreq);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(denseOut, postingsWriter);
+      }
+    }
+  }
+
+  /**
+   * Terms with fewer documents than a block are written inline by the
+   * regular postings, with no skip list, so they're never dense.
+   */
+  static int minDenseDocFreq(double minDenseFraction, int maxDoc) {
+    return (int) Math.max(RocanaLucene50PostingsFormat.BLOCK_SIZE, Math.ceil(minDenseFraction * maxDoc));
+  }
+
+  @Override
+  public int setField(FieldInfo fieldInfo) {
+    denseField = fieldInfo.getIndexOptions() == IndexOptions.DOCS;
+    return super.setField(fieldInfo);
+  }
+
+  @Override
+  public BlockTermState writeTerm(BytesRef term, TermsEnum termsEnum, FixedBitSet docsSeen) throws IOException {
+    if (denseField == false || isDense(termsEnum) == false) {
+      return postingsWriter.writeTerm(term, termsEnum, docsSeen);
+    }
+
+    if (bits == null) {
+      bits = new FixedBitSet(maxDoc);
+    } else {
+      bits.clear(0, maxDoc);
+    }
+    postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+    int docFreq = 0;
+    for (int doc = postingsEnum.nextDoc(); doc != PostingsEnum.NO_MORE_DOCS; doc = postingsEnum.nextDoc()) {
+      bits.set(doc);
+      docFreq++;
+    }
+    docsSeen.or(bits);
+
+    RocanaDensePostingsFormat.DenseTermState state = new RocanaDensePostingsFormat.DenseTermState();
+    state.ownPostings = true;
+    state.docFreq = docFreq;
+    state.totalTermFreq = -1;
+    state.denseFP = denseOut.getFilePointer();
+    final long[] words = bits.getBits();
+    for (int i = 0; i < words.length; i++) {
+      denseOut.writeLong(words[i]);
+    }
+    return state;
+  }
+
+  /** Returns true if the term has at least {@link #minDenseDocFreq} documents. */
+  private boolean isDense(TermsEnum termsEnum) throws IOException {
+    postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+    int docFreq = 0;
+    while (postingsEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS) {
+      if (++docFreq >= minDenseDocFreq) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  void encodeOwnTerm(long[] longs, DataOutput out, FieldInfo fieldInfo, RocanaWrappingTermState state) throws IOException {
+    Arrays.fill(longs, 0);
+    out.writeVLong(((RocanaDensePostingsFormat.DenseTermState) state).denseFP);
+  }
+
+  @Override
+  public void close() throws IOException {
+    boolean success = false;
+    try {
+      if (denseOut != null) {
+        CodecUtil.writeFooter(denseOut);
+      }
+      success = true;
+    } finally {
+      if (success) {
+        IOUtils.close(denseOut, postingsWriter);
+      } else {
+        IOUtils.closeWhileHandlingException(denseOut, postingsWriter);
+      }
+      denseOut = null;
+    }
+  }
+}
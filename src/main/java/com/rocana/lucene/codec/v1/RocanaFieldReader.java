@@ -43,19 +43,30 @@ import org.apache.lucene.util.fst.FST;
  *   - To use the other forked classes, like {@link RocanaBlockTreeTermsReader}.
  *
  * What changed in the fork?
+ *   - {@link #getStats()} returns the stats recorded at write time, and only
+ *     walks every block for segments written before
+ *     {@link RocanaBlockTreeTermsReader#VERSION_BLOCK_STATS}.
+ *   - {@link #getMin()} and {@link #getMax()} remember the term they had to look
+ *     up when minTerm/maxTerm weren't stored, rather than walking the terms
+ *     again on every call.
+ *   - Holds the block sizes the field was written with, see
+ *     {@link #getMinItemsInBlock()}.
+ *   - Reads its root code, min/max terms and block stats from the parent's
+ *     fields metadata when needed, see {@link #rootCode()}, rather than
+ *     holding them in arrays of its own.
+ *   - When the reader was opened for merging, or with a
+ *     {@link RocanaTermsIndexMemoryManager}, the terms index is loaded by
+ *     {@link #getIndex()} when first needed, rather than in the constructor.
+ *     The manager may evict it, see {@link #evictIndex(FST)}.
+ *   - Loads large terms indexes in pages, see {@link #INDEX_PAGE_BITS}.
+ *   - Loads the terms index on first use once the parent's
+ *     {@link RocanaTermsIndexLoadGovernor} lets it, ahead of readers opening.
  *   - Use the other forked classes.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
  *   - Renamed class to have 'Rocana' in the name.
  *   - Moved to a different package.
  *
- * This is one of the forked classes where no logic changed, but to get
- * the fork to compile we had to fork this class too. That happened with
- * several classes because they had a hard reference to another class we
- * forked. Ideally, our forked classes would extend the original Lucene
- * class and override just the methods we need to change. Unfortunately
- * in most cases that wasn't an option because many Lucene classes are final.
- *
  * To see a full diff of changes in our fork: compare this version to the very first
  * commit in git history. That first commit is the exact file from Lucene with no
  * modifications.
@@ -71,8 +82,17 @@ public final class RocanaFieldReader extends Terms implements Accountable {
   // private final boolean DEBUG = BlockTreeTermsWriter.DEBUG;
 
   private static final long BASE_RAM_BYTES_USED =
-      RamUsageEstimator.shallowSizeOfInstance(RocanaFieldReader.class)
-      + 3 * RamUsageEstimator.shallowSizeOfInstance(BytesRef.class);
+      RamUsageEstimator.shallowSizeOfInstance(RocanaFieldReader.class);
+
+  /**
+   * Terms indexes bigger than 2^INDEX_PAGE_BITS bytes are loaded in pages
+   * of that size, rather than into one array, which for a large index is a
+   * humongous allocation for G1. When many segments open at once, like
+   * after a rebalance, and then soon merge away, those churn through
+   * humongous regions. 256 KB pages are less than half of G1's smallest
+   * region size, so they're regular allocations.
+   */
+  static final int INDEX_PAGE_BITS = 18;
 
   final long numTerms;
   final FieldInfo fieldInfo;
@@ -80,18 +100,39 @@ public final class RocanaFieldReader extends Terms implements Accountable {
   final long sumDocFreq;
   final int docCount;
   final long indexStartFP;
+  // About how many bytes of the terms index file our index takes, for the
+  // load governor; set by the parent once it read all the fields, and only
+  // if we load our index on first use:
+  long indexBytes;
   final long rootBlockFP;
-  final BytesRef rootCode;
-  final BytesRef minTerm;
-  final BytesRef maxTerm;
+  // The parent's fields metadata, and where our length-prefixed root code,
+  // min/max terms and block stats are in it; -1 for those the index didn't store:
+  final byte[] metadata;
+  final int rootCodeOffset;
+  final int minTermOffset;
+  final int maxTermOffset;
+  final int blockStatsOffset;
+  // Looked up and remembered on first use if the index didn't store them.
+  // Volatile since several searches may ask at once; the lookup is idempotent:
+  private volatile BytesRef minTerm;
+  private volatile BytesRef maxTerm;
+  // Zero if the index didn't store them:
+  final int minItemsInBlock;
+  final int maxItemsInBlock;
   final int longsSize;
   final RocanaBlockTreeTermsReader parent;
 
-  final FST<BytesRef> index;
+  // Null until getIndex() loads it, if the reader was opened for merging or
+  // with a memory manager, and again once the manager evicts it:
+  volatile FST<BytesRef> index;
+  // Whether an enum used the index since the memory manager last looked, see
+  // RocanaTermsIndexMemoryManager#used:
+  volatile boolean indexUsed;
   //private boolean DEBUG;
 
-  RocanaFieldReader(RocanaBlockTreeTermsReader parent, FieldInfo fieldInfo, long numTerms, BytesRef rootCode, long sumTotalTermFreq, long sumDocFreq, int docCount,
-              long indexStartFP, int longsSize, IndexInput indexIn, BytesRef minTerm, BytesRef maxTerm) throws IOException {
+  RocanaFieldReader(RocanaBlockTreeTermsReader parent, FieldInfo fieldInfo, long numTerms, byte[] metadata, int rootCodeOffset,
+              long sumTotalTermFreq, long sumDocFreq, int docCount, long indexStartFP, int longsSize, IndexInput indexIn,
+              int minTermOffset, int maxTermOffset, int blockStatsOffset, int minItemsInBlock, int maxItemsInBlock) throws IOException {
     assert numTerms > 0;
     this.fieldInfo = fieldInfo;
     //DEBUG = RocanaBlockTreeTermsReader.DEBUG && fieldInfo.name.equals("id");
@@ -101,21 +142,26 @@ public final class RocanaFieldReader extends Terms implements Accountable {
     this.sumDocFreq = sumDocFreq;
     this.docCount = docCount;
     this.indexStartFP = indexStartFP;
-    this.rootCode = rootCode;
+    this.metadata = metadata;
+    this.rootCodeOffset = rootCodeOffset;
     this.longsSize = longsSize;
-    this.minTerm = minTerm;
-    this.maxTerm = maxTerm;
+    this.minTermOffset = minTermOffset;
+    this.maxTermOffset = maxTermOffset;
+    this.blockStatsOffset = blockStatsOffset;
+    this.minItemsInBlock = minItemsInBlock;
+    this.maxItemsInBlock = maxItemsInBlock;
     // if (DEBUG) {
     //   System.out.println("BTTR: seg=" + segment + " field=" + fieldInfo.name + " rootBlockCode=" + rootCode + " divisor=" + indexDivisor);
     // }
 
+    final BytesRef rootCode = rootCode();
     rootBlockFP = (new ByteArrayDataInput(rootCode.bytes, rootCode.offset, rootCode.length)).readVLong() >>> RocanaBlockTreeTermsReader.OUTPUT_FLAGS_NUM_BITS;
 
-    if (indexIn != null) {
-      final IndexInput clone = indexIn.clone();
+    if (indexIn == null || parent.loadsIndexOnFirstUse()) {
+      index = null;
+    } else {
       //System.out.println("start=" + indexStartFP + " field=" + fieldInfo.name);
-      clone.seek(indexStartFP);
-      index = new FST<>(clone, ByteSequenceOutputs.getSingleton());
+      index = readIndex(indexIn.clone());
 
       /*
         if (false) {
@@ -126,36 +172,167 @@ public final class RocanaFieldReader extends Terms implements Accountable {
         w.close();
         }
       */
-    } else {
+    }
+  }
+
+  /** Reads the terms index from a clone of the terms index file. */
+  private FST<BytesRef> readIndex(IndexInput clone) throws IOException {
+    clone.seek(indexStartFP);
+    return new FST<>(clone, ByteSequenceOutputs.getSingleton(), INDEX_PAGE_BITS);
+  }
+
+  /**
+   * Returns the terms index, loading it first if the reader was opened for
+   * merging or with a memory manager, and no one needed it yet or the
+   * manager evicted it.
+   */
+  FST<BytesRef> getIndex() throws IOException {
+    FST<BytesRef> index = this.index;
+    boolean loaded = false;
+    if (index == null) {
+      synchronized (this) {
+        index = this.index;
+        if (index == null) {
+          if (parent.loadsIndexOnFirstUse() == false) {
+            throw new IllegalStateException("terms index was not loaded");
+          }
+          final RocanaTermsIndexLoadGovernor governor = parent.loadGovernor;
+          if (governor == null) {
+            index = readIndex(parent.cloneIndexInput());
+          } else {
+            // A seek needs it, so a search is waiting:
+            final long bytes = indexBytes;
+            governor.acquire(bytes, true);
+            try {
+              index = readIndex(parent.cloneIndexInput());
+            } finally {
+              governor.release(bytes);
+            }
+          }
+          this.index = index;
+          loaded = true;
+        }
+      }
+    }
+    // Not holding our lock, since the manager evicts while holding its own:
+    if (parent.memoryManager != null) {
+      if (loaded) {
+        parent.memoryManager.loaded(this, index);
+      } else {
+        parent.memoryManager.used(this);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns the terms index if it's loaded, else null. Unlike
+   * {@link #getIndex()} it doesn't load it, but it tells the memory manager
+   * the index is being used all the same.
+   */
+  FST<BytesRef> getLoadedIndex() {
+    final FST<BytesRef> index = this.index;
+    if (index != null && parent.memoryManager != null) {
+      parent.memoryManager.used(this);
+    }
+    return index;
+  }
+
+  /**
+   * Drops the terms index, for {@link RocanaTermsIndexMemoryManager}, unless
+   * it's no longer {@code evicted}: the field may have loaded it again since
+   * the manager picked it. The next {@link #getIndex()} loads it again.
+   * Enums that already have it keep using it.
+   */
+  synchronized void evictIndex(FST<BytesRef> evicted) {
+    assert parent.loadsIndexOnFirstUse();
+    if (index == evicted) {
       index = null;
     }
   }
 
+  /** Returns the length-prefixed bytes at {@code offset} in {@link #metadata}, or null if offset is -1. */
+  private BytesRef metadataAt(int offset) {
+    if (offset == -1) {
+      return null;
+    }
+    final ByteArrayDataInput in = new ByteArrayDataInput(metadata, offset, metadata.length - offset);
+    final int length = in.readVInt();
+    return new BytesRef(metadata, in.getPosition(), length);
+  }
+
+  /** Returns the root block's code, the output of the terms index's empty prefix. */
+  BytesRef rootCode() {
+    return metadataAt(rootCodeOffset);
+  }
+
+  /** Returns the block stats the index stored, or null if it didn't. */
+  BytesRef blockStats() {
+    return metadataAt(blockStatsOffset);
+  }
+
   @Override
   public BytesRef getMin() throws IOException {
-    if (minTerm == null) {
+    if (minTermOffset != -1) {
+      return metadataAt(minTermOffset);
+    }
+    BytesRef min = minTerm;
+    if (min == null) {
       // Older index that didn't store min/maxTerm
-      return super.getMin();
-    } else {
-      return minTerm;
+      min = super.getMin();
+      if (min != null) {
+        min = BytesRef.deepCopyOf(min);
+        minTerm = min;
+      }
     }
+    return min;
   }
 
   @Override
   public BytesRef getMax() throws IOException {
-    if (maxTerm == null) {
+    if (maxTermOffset != -1) {
+      return metadataAt(maxTermOffset);
+    }
+    BytesRef max = maxTerm;
+    if (max == null) {
       // Older index that didn't store min/maxTerm
-      return super.getMax();
-    } else {
-      return maxTerm;
+      max = super.getMax();
+      if (max != null) {
+        max = BytesRef.deepCopyOf(max);
+        maxTerm = max;
+      }
     }
+    return max;
+  }
+
+  /** The minimum number of entries per block this field was written with,
+   *  see {@link RocanaTermBlockSizePolicy}, or 0 if the index didn't store it. */
+  public int getMinItemsInBlock() {
+    return minItemsInBlock;
+  }
+
+  /** The maximum number of entries per block this field was written with,
+   *  see {@link RocanaTermBlockSizePolicy}, or 0 if the index didn't store it. */
+  public int getMaxItemsInBlock() {
+    return maxItemsInBlock;
   }
 
   /** For debugging -- used by CheckIndex too*/
   @Override
   public RocanaStats getStats() throws IOException {
-    // TODO: add auto-prefix terms into stats
-    return new RocanaSegmentTermsEnum(this).computeBlockStats();
+    final BytesRef blockStats = blockStats();
+    if (blockStats == null) {
+      // Older index that didn't store block stats
+      return new RocanaSegmentTermsEnum(this).computeBlockStats();
+    }
+    RocanaStats stats = new RocanaStats(parent.segment, fieldInfo.name);
+    stats.readFrom(new ByteArrayDataInput(blockStats.bytes, blockStats.offset, blockStats.length));
+    stats.minItemsInBlock = minItemsInBlock;
+    stats.maxItemsInBlock = maxItemsInBlock;
+    if (index != null) {
+      stats.indexNumBytes = index.ramBytesUsed();
+    }
+    return stats;
   }
 
   @Override
@@ -214,6 +391,7 @@ public final class RocanaFieldReader extends Terms implements Accountable {
 
   @Override
   public long ramBytesUsed() {
+    // Our metadata is the parent's:
     return BASE_RAM_BYTES_USED + ((index!=null)? index.ramBytesUsed() : 0);
   }
 
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A segment's fields, each with a value, for the readers that used to keep
+ * them in a {@code TreeMap<String,T>}: {@link RocanaBlockTreeTermsReader}
+ * and {@link RocanaPerFieldPostingsFormat.FieldsReader}.
+ *
+ * Looking a field up by name walked the tree, comparing strings, and the
+ * tree took an entry object per field. With thousands of open segments of
+ * hundreds of fields each, both add up. Instead, we find the field's number
+ * with the segment's {@link FieldInfos}, which readers have anyway and which
+ * hashes the name, and keep the values in an array by field number. The
+ * field names are kept in a sorted array, for {@link #iterator()}.
+ *
+ * Looking up a field doesn't allocate. Fill the table in the reader's
+ * constructor; after that it's only read, and safe to share between threads.
+ *
+ * @param <T> the type of the values
+ */
+final class RocanaFieldTable<T> implements Iterable<String> {
+
+  private static final String[] NO_NAMES = new String[0];
+
+  private final FieldInfos fieldInfos;
+  // By field number; null for the fields we have no value for:
+  private Object[] byNumber;
+  // The names of the fields we have a value for, sorted; the first size are used:
+  private String[] names;
+  private int size;
+
+  RocanaFieldTable(FieldInfos fieldInfos) {
+    this.fieldInfos = fieldInfos;
+    int maxNumber = -1;
+    for (FieldInfo fieldInfo : fieldInfos) {
+      maxNumber = Math.max(maxNumber, fieldInfo.number);
+    }
+    byNumber = new Object[maxNumber + 1];
+    names = NO_NAMES;
+  }
+
+  /** The field infos we look fields up with. */
+  FieldInfos getFieldInfos() {
+    return fieldInfos;
+  }
+
+  /**
+   * Sets the value of a field, which must be one of our field infos, and
+   * returns its previous value, or null if it had none.
+   */
+  @SuppressWarnings("unchecked")
+  T put(FieldInfo fieldInfo, T value) {
+    assert fieldInfos.fieldInfo(fieldInfo.number) == fieldInfo : "not one of our fields: " + fieldInfo.name;
+    if (value == null) {
+      throw new IllegalArgumentException("null value for field: " + fieldInfo.name);
+    }
+    final T previous = (T) byNumber[fieldInfo.number];
+    byNumber[fieldInfo.number] = value;
+    if (previous == null) {
+      // Readers have fields in number order, not name order, so insert it where it goes:
+      final int index = -1 - Arrays.binarySearch(names, 0, size, fieldInfo.name);
+      assert index >= 0;
+      names = ArrayUtil.grow(names, size + 1);
+      System.arraycopy(names, index, names, index + 1, size - index);
+      names[index] = fieldInfo.name;
+      size++;
+    }
+    return previous;
+  }
+
+  /** Returns the value of {@code field}, or null if it has none. */
+  @SuppressWarnings("unchecked")
+  T get(String field) {
+    final FieldInfo fieldInfo = fieldInfos.fieldInfo(field);
+    if (fieldInfo == null || fieldInfo.number >= byNumber.length) {
+      return null;
+    }
+    return (T) byNumber[fieldInfo.number];
+  }
+
+  /** Returns the values, in field name order. */
+  List<T> values() {
+    final List<T> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(get(names[i]));
+    }
+    return values;
+  }
+
+  /** The number of fields that have a value. */
+  int size() {
+    return size;
+  }
+
+  /** Iterates over the names of the fields that have a value, in order. */
+  @Override
+  public Iterator<String> iterator() {
+    return Collections.unmodifiableList(Arrays.asList(names).subList(0, size)).iterator();
+  }
+
+  /** Removes all values, so they're GCable even if someone hangs onto us. */
+  void clear() {
+    byNumber = new Object[0];
+    names = NO_NAMES;
+    size = 0;
+  }
+
+  /** The heap our arrays take; not the values, nor the names, which the field infos have too. */
+  long ramBytesUsed() {
+    return RamUsageEstimator.shallowSizeOf(byNumber) + RamUsageEstimator.shallowSizeOf(names);
+  }
+}
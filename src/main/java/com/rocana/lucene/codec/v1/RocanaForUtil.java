@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.packed.PackedInts.Decoder;
+import org.apache.lucene.util.packed.PackedInts.FormatAndBits;
+import org.apache.lucene.util.packed.PackedInts;
+
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.BLOCK_SIZE;
+
+/**
+ * Fork of Lucene's org.apache.lucene.codecs.lucene50.ForUtil
+ * from Lucene's git repository, tag: releases/lucene-solr/5.5.0
+ *
+ * Why we forked:
+ *   - It's package-private, and {@link RocanaLucene50PostingsWriter} needs it.
+ *   - {@link RocanaLucene50PostingsReader} decodes wide blocks faster with it.
+ *   - To support blocks of other sizes than {@link RocanaLucene50PostingsFormat#BLOCK_SIZE}.
+ *
+ * What changed in the fork?
+ *   - {@link #readBlock(IndexInput, byte[], long[], int[])} reads packed
+ *     blocks of at least {@link #MIN_BITS_PER_VALUE_FOR_LONGS} bits per value
+ *     as longs, and decodes them a long at a time.
+ *   - Each instance reads and writes blocks of a given size. Instances for
+ *     other sizes are derived with {@link #withBlockSize(int)}, and share the
+ *     format chosen for each number of bits per value, so the header written
+ *     by {@link #RocanaForUtil(float, DataOutput)} is the same as Lucene's.
+ *   - Use the other forked classes.
+ *   - Removed trailing whitespace.
+ *   - Changed these javadocs.
+ *   - Renamed class to have 'Rocana' in the name.
+ *   - Moved to a different package.
+ *
+ * To see a full diff of changes in our fork: compare this version to
+ * ForUtil.java at the Lucene tag above.
+ *
+ * @see RocanaSearchCodecV1
+ *
+ * Original Lucene documentation:
+ * Encode all values in normal area with fixed bit width,
+ * which is determined by the max value in this block.
+ */
+final class RocanaForUtil {
+
+  /**
+   * Special number of bits per value used whenever all values to encode are equal.
+   */
+  private static final int ALL_VALUES_EQUAL = 0;
+
+  /**
+   * Upper limit of the number of bytes that might be required to stored
+   * <code>BLOCK_SIZE</code> encoded values.
+   */
+  static final int MAX_ENCODED_SIZE = BLOCK_SIZE * 4;
+
+  /**
+   * Packed blocks with at least this many bits per value are decoded from
+   * longs rather than bytes. {@link PackedInts} has a decoder unrolled for
+   * each number of bits per value, for bytes and for longs; the long one
+   * extracts a value with one or two shifts instead of one per byte it
+   * spans. Narrower blocks are about as fast either way, and reading them
+   * as bytes is cheaper.
+   */
+  static final int MIN_BITS_PER_VALUE_FOR_LONGS = 9;
+
+  /**
+   * Upper limit of the number of values that might be decoded in a single call to
+   * {@link #readBlock(IndexInput, byte[], int[])}. Although values after
+   * <code>BLOCK_SIZE</code> are garbage, it is necessary to allocate value buffers
+   * whose size is {@code >= MAX_DATA_SIZE} to avoid {@link ArrayIndexOutOfBoundsException}s.
+   */
+  static final int MAX_DATA_SIZE = maxDataSize(BLOCK_SIZE);
+
+  /**
+   * Like {@link #MAX_DATA_SIZE}, for blocks of <code>blockSize</code> values.
+   */
+  static int maxDataSize(int blockSize) {
+    int maxDataSize = 0;
+    for(int version=PackedInts.VERSION_START;version<=PackedInts.VERSION_CURRENT;version++) {
+      for (PackedInts.Format format : PackedInts.Format.values()) {
+        for (int bpv = 1; bpv <= 32; ++bpv) {
+          if (!format.isSupported(bpv)) {
+            continue;
+          }
+          final PackedInts.Decoder decoder = PackedInts.getDecoder(format, version, bpv);
+          final int iterations = computeIterations(decoder, blockSize);
+          maxDataSize = Math.max(maxDataSize, iterations * decoder.byteValueCount());
+        }
+      }
+    }
+    return maxDataSize;
+  }
+
+  /**
+   * Like {@link #MAX_ENCODED_SIZE}, for blocks of <code>blockSize</code> values.
+   */
+  static int maxEncodedSize(int blockSize) {
+    return blockSize * 4;
+  }
+
+  /**
+   * Compute the number of iterations required to decode <code>blockSize</code>
+   * values with the provided {@link Decoder}.
+   */
+  private static int computeIterations(PackedInts.Decoder decoder, int blockSize) {
+    return (int) Math.ceil((float) blockSize / decoder.byteValueCount());
+  }
+
+  /**
+   * Compute the number of bytes required to encode a block of values that require
+   * <code>bitsPerValue</code> bits per value with format <code>format</code>.
+   */
+  private static int encodedSize(PackedInts.Format format, int packedIntsVersion, int bitsPerValue, int blockSize) {
+    final long byteCount = format.byteCount(packedIntsVersion, blockSize, bitsPerValue);
+    assert byteCount >= 0 && byteCount <= Integer.MAX_VALUE : byteCount;
+    return (int) byteCount;
+  }
+
+  private final int blockSize;
+  private final int maxDataSize;
+  private final int packedIntsVersion;
+  private final PackedInts.Format[] formats;
+  private final int[] bitsPerValues;
+  private final int[] encodedSizes;
+  private final PackedInts.Encoder[] encoders;
+  private final PackedInts.Decoder[] decoders;
+  private final int[] iterations;
+  private final boolean[] decodeLongs;
+  private final int[] longIterations;
+
+  /**
+   * Create a new {@link RocanaForUtil} instance and save state into <code>out</code>.
+   */
+  RocanaForUtil(float acceptableOverheadRatio, DataOutput out) throws IOException {
+    out.writeVInt(PackedInts.VERSION_CURRENT);
+    blockSize = BLOCK_SIZE;
+    maxDataSize = MAX_DATA_SIZE;
+    packedIntsVersion = PackedInts.VERSION_CURRENT;
+    formats = new PackedInts.Format[33];
+    bitsPerValues = new int[33];
+    encodedSizes = new int[33];
+    encoders = new PackedInts.Encoder[33];
+    decoders = new PackedInts.Decoder[33];
+    iterations = new int[33];
+    decodeLongs = new boolean[33];
+    longIterations = new int[33];
+
+    for (int bpv = 1; bpv <= 32; ++bpv) {
+      final FormatAndBits formatAndBits = PackedInts.fastestFormatAndBits(
+          BLOCK_SIZE, bpv, acceptableOverheadRatio);
+      assert formatAndBits.format.isSupported(formatAndBits.bitsPerValue);
+      assert formatAndBits.bitsPerValue <= 32;
+      setFormat(bpv, formatAndBits.format, formatAndBits.bitsPerValue);
+
+      out.writeVInt(formatAndBits.format.getId() << 5 | (formatAndBits.bitsPerValue - 1));
+    }
+  }
+
+  /**
+   * Restore a {@link RocanaForUtil} from a {@link DataInput}.
+   */
+  RocanaForUtil(DataInput in) throws IOException {
+    packedIntsVersion = in.readVInt();
+    PackedInts.checkVersion(packedIntsVersion);
+    blockSize = BLOCK_SIZE;
+    maxDataSize = MAX_DATA_SIZE;
+    formats = new PackedInts.Format[33];
+    bitsPerValues = new int[33];
+    encodedSizes = new int[33];
+    encoders = new PackedInts.Encoder[33];
+    decoders = new PackedInts.Decoder[33];
+    iterations = new int[33];
+    decodeLongs = new boolean[33];
+    longIterations = new int[33];
+
+    for (int bpv = 1; bpv <= 32; ++bpv) {
+      final int code = in.readVInt();
+      final int formatId = code >>> 5;
+      final int bitsPerValue = (code & 31) + 1;
+
+      final PackedInts.Format format = PackedInts.Format.byId(formatId);
+      assert format.isSupported(bitsPerValue);
+      setFormat(bpv, format, bitsPerValue);
+    }
+  }
+
+  private RocanaForUtil(RocanaForUtil other, int blockSize) {
+    this.blockSize = blockSize;
+    maxDataSize = maxDataSize(blockSize);
+    packedIntsVersion = other.packedIntsVersion;
+    formats = new PackedInts.Format[33];
+    bitsPerValues = new int[33];
+    encodedSizes = new int[33];
+    encoders = new PackedInts.Encoder[33];
+    decoders = new PackedInts.Decoder[33];
+    iterations = new int[33];
+    decodeLongs = new boolean[33];
+    longIterations = new int[33];
+
+    for (int bpv = 1; bpv <= 32; ++bpv) {
+      setFormat(bpv, other.formats[bpv], other.bitsPerValues[bpv]);
+    }
+  }
+
+  /**
+   * Returns an instance that reads and writes blocks of <code>blockSize</code>
+   * values, with the same format for each number of bits per value as this one.
+   */
+  RocanaForUtil withBlockSize(int blockSize) {
+    if (blockSize == this.blockSize) {
+      return this;
+    }
+    return new RocanaForUtil(this, blockSize);
+  }
+
+  /**
+   * Whether <code>other</code> packs blocks exactly like this instance, so
+   * blocks it wrote can be read with this one, and the other way around.
+   */
+  boolean sameFormat(RocanaForUtil other) {
+    return blockSize == other.blockSize
+        && packedIntsVersion == other.packedIntsVersion
+        && Arrays.equals(formats, other.formats)
+        && Arrays.equals(bitsPerValues, other.bitsPerValues);
+  }
+
+  /** Number of values in a block. */
+  int blockSize() {
+    return blockSize;
+  }
+
+  /** Like {@link #MAX_DATA_SIZE}, for this instance's block size. */
+  int maxDataSize() {
+    return maxDataSize;
+  }
+
+  /** Like {@link #MAX_ENCODED_SIZE}, for this instance's block size. */
+  int maxEncodedSize() {
+    return maxEncodedSize(blockSize);
+  }
+
+  private void setFormat(int bpv, PackedInts.Format format, int bitsPerValue) {
+    formats[bpv] = format;
+    bitsPerValues[bpv] = bitsPerValue;
+    encodedSizes[bpv] = encodedSize(format, packedIntsVersion, bitsPerValue, blockSize);
+    encoders[bpv] = PackedInts.getEncoder(
+        format, packedIntsVersion, bitsPerValue);
+    decoders[bpv] = PackedInts.getDecoder(
+        format, packedIntsVersion, bitsPerValue);
+    iterations[bpv] = computeIterations(decoders[bpv], blockSize);
+    // The long decoders only decode whole longs, so the block must fill them:
+    decodeLongs[bpv] = format == PackedInts.Format.PACKED && bitsPerValue >= MIN_BITS_PER_VALUE_FOR_LONGS
+      && blockSize % decoders[bpv].longValueCount() == 0;
+    if (decodeLongs[bpv]) {
+      assert encodedSizes[bpv] % 8 == 0 : encodedSizes[bpv];
+      longIterations[bpv] = blockSize / decoders[bpv].longValueCount();
+      assert longIterations[bpv] * decoders[bpv].longBlockCount() == encodedSizes[bpv] / 8;
+    }
+  }
+
+  /**
+   * Write a block of data (<code>For</code> format).
+   *
+   * @param data     the data to write
+   * @param encoded  a buffer to use to encode data
+   * @param out      the destination output
+   * @throws IOException If there is a low-level I/O error
+   */
+  void writeBlock(int[] data, byte[] encoded, IndexOutput out) throws IOException {
+    if (isAllEqual(data)) {
+      out.writeByte((byte) ALL_VALUES_EQUAL);
+      out.writeVInt(data[0]);
+      return;
+    }
+
+    final int numBits = bitsRequired(data);
+    assert numBits > 0 && numBits <= 32 : numBits;
+    final PackedInts.Encoder encoder = encoders[numBits];
+    final int iters = iterations[numBits];
+    assert iters * encoder.byteValueCount() >= blockSize;
+    final int encodedSize = encodedSizes[numBits];
+    assert iters * encoder.byteBlockCount() >= encodedSize;
+
+    out.writeByte((byte) numBits);
+
+    encoder.encode(data, 0, encoded, 0, iters);
+    out.writeBytes(encoded, encodedSize);
+  }
+
+  /**
+   * Read the next block of data (<code>For</code> format).
+   *
+   * @param in            the input to use to read data
+   * @param encoded       a buffer that can be used to store encoded data
+   * @param encodedLongs  a buffer that can be used to store encoded data as
+   *                      longs, of at least <code>maxEncodedSize(blockSize) / 8</code>
+   * @param decoded       where to write decoded data
+   * @throws IOException If there is a low-level I/O error
+   */
+  void readBlock(IndexInput in, byte[] encoded, long[] encodedLongs, int[] decoded) throws IOException {
+    final int numBits = in.readByte();
+    assert numBits <= 32 : numBits;
+
+    if (numBits == ALL_VALUES_EQUAL) {
+      final int value = in.readVInt();
+      Arrays.fill(decoded, 0, blockSize, value);
+      return;
+    }
+
+    final int encodedSize = encodedSizes[numBits];
+    final PackedInts.Decoder decoder = decoders[numBits];
+
+    if (decodeLongs[numBits]) {
+      // Packed blocks are big-endian, like readLong():
+      final int numLongs = encodedSize >>> 3;
+      for (int i = 0; i < numLongs; ++i) {
+        encodedLongs[i] = in.readLong();
+      }
+      decoder.decode(encodedLongs, 0, decoded, 0, longIterations[numBits]);
+      return;
+    }
+
+    in.readBytes(encoded, 0, encodedSize);
+
+    final int iters = iterations[numBits];
+    assert iters * decoder.byteValueCount() >= blockSize;
+
+    decoder.decode(encoded, 0, decoded, 0, iters);
+  }
+
+  /**
+   * Skip the next block of data.
+   *
+   * @param in      the input where to read data
+   * @throws IOException If there is a low-level I/O error
+   */
+  void skipBlock(IndexInput in) throws IOException {
+    final int numBits = in.readByte();
+    if (numBits == ALL_VALUES_EQUAL) {
+      in.readVInt();
+      return;
+    }
+    assert numBits > 0 && numBits <= 32 : numBits;
+    final int encodedSize = encodedSizes[numBits];
+    in.seek(in.getFilePointer() + encodedSize);
+  }
+
+  private boolean isAllEqual(final int[] data) {
+    final int v = data[0];
+    for (int i = 1; i < blockSize; ++i) {
+      if (data[i] != v) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compute the number of bits required to serialize any of the longs in
+   * <code>data</code>.
+   */
+  private int bitsRequired(final int[] data) {
+    long or = 0;
+    for (int i = 0; i < blockSize; ++i) {
+      assert data[i] >= 0;
+      or |= data[i];
+    }
+    return PackedInts.bitsRequired(or);
+  }
+
+}
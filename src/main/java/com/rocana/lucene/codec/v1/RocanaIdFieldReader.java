@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+
+/**
+ * {@link Terms} of a field written by {@link RocanaIdTermsWriter} with a hash
+ * table: the sorted terms dictionary's {@link RocanaFieldReader}, except that
+ * {@link #iterator()} seeks exactly with the hash table, see
+ * {@link RocanaIdTermsEnum}.
+ */
+public final class RocanaIdFieldReader extends Terms implements Accountable {
+
+  private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(RocanaIdFieldReader.class);
+
+  final RocanaIdTermsReader parent;
+  final RocanaFieldReader sortedTerms;
+  final long dataStart;
+  final long tableStart;
+  final long tableLength;
+  final int tableBits;
+  final int offsetBits;
+  final int slotBits;
+
+  RocanaIdFieldReader(RocanaIdTermsReader parent, RocanaFieldReader sortedTerms, long dataStart, long tableStart,
+                      long tableLength, int tableBits, int offsetBits, int slotBits) {
+    this.parent = parent;
+    this.sortedTerms = sortedTerms;
+    this.dataStart = dataStart;
+    this.tableStart = tableStart;
+    this.tableLength = tableLength;
+    this.tableBits = tableBits;
+    this.offsetBits = offsetBits;
+    this.slotBits = slotBits;
+  }
+
+  /** Returns the field's sorted terms dictionary, used for everything but exact seeks. */
+  public RocanaFieldReader getSortedTerms() {
+    return sortedTerms;
+  }
+
+  @Override
+  public TermsEnum iterator() throws IOException {
+    return new RocanaIdTermsEnum(this);
+  }
+
+  @Override
+  public TermsEnum intersect(CompiledAutomaton compiled, BytesRef startTerm) throws IOException {
+    return sortedTerms.intersect(compiled, startTerm);
+  }
+
+  @Override
+  public BytesRef getMin() throws IOException {
+    return sortedTerms.getMin();
+  }
+
+  @Override
+  public BytesRef getMax() throws IOException {
+    return sortedTerms.getMax();
+  }
+
+  @Override
+  public long size() {
+    return sortedTerms.size();
+  }
+
+  @Override
+  public long getSumTotalTermFreq() {
+    return sortedTerms.getSumTotalTermFreq();
+  }
+
+  @Override
+  public long getSumDocFreq() {
+    return sortedTerms.getSumDocFreq();
+  }
+
+  @Override
+  public int getDocCount() {
+    return sortedTerms.getDocCount();
+  }
+
+  @Override
+  public boolean hasFreqs() {
+    return sortedTerms.hasFreqs();
+  }
+
+  @Override
+  public boolean hasOffsets() {
+    return sortedTerms.hasOffsets();
+  }
+
+  @Override
+  public boolean hasPositions() {
+    return sortedTerms.hasPositions();
+  }
+
+  @Override
+  public boolean hasPayloads() {
+    return sortedTerms.hasPayloads();
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    // The sorted terms are accounted for by RocanaBlockTreeTermsReader:
+    return BASE_RAM_BYTES_USED;
+  }
+
+  @Override
+  public Collection<Accountable> getChildResources() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public String toString() {
+    return "IdTerms(hashSlots=" + (1 << tableBits) + ",sorted=" + sortedTerms + ")";
+  }
+}
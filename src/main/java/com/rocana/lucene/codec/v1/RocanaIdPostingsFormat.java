@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Postings format for ID fields (event_id, trace_id, ...), which are only
+ * ever queried by exact match.
+ *
+ * The postings are the same as {@link RocanaLucene50PostingsFormat}'s, and so
+ * is the sorted terms dictionary, which is still there for the rare scans
+ * (prefix and range queries, merging, CheckIndex). On top of that each field
+ * gets a hash table from term to term metadata, see {@link RocanaIdTermsWriter},
+ * so {@link org.apache.lucene.index.TermsEnum#seekExact(org.apache.lucene.util.BytesRef)}
+ * is a hash lookup instead of an FST walk plus a block scan, and a term that
+ * isn't there usually costs one read of the table.
+ *
+ * Since exact lookups skip the sorted dictionary, it's written with big
+ * blocks, which keeps its terms index (on heap) small.
+ *
+ * The price is disk: the hash file repeats each term and its metadata next
+ * to the sorted dictionary, plus a table of at least two slots per term, so
+ * an ID field's terms take about twice the disk they would otherwise (its
+ * postings, and other fields, are unchanged). Nothing of it is on heap; a
+ * reader only keeps the fields' directory. We pay it so a lookup that finds
+ * the term reads one entry and nothing of the sorted dictionary. Storing a
+ * fingerprint and the term's .tim block instead, and checking the term
+ * against that block, would save the disk, but a lookup would then load and
+ * scan a block of up to {@code BLOCK_SIZES.maxItemsInBlock} entries: all of
+ * the seek we're avoiding except the terms index walk, which is already
+ * cheap for these fields. The block tree has no term ordinals to store
+ * instead.
+ *
+ * Route ID fields to this format with {@link RocanaPostingsFormatRouter}.
+ * It's registered in META-INF/services/org.apache.lucene.codecs.PostingsFormat
+ * as {@link #SHORT_NAME}.
+ */
+public final class RocanaIdPostingsFormat extends PostingsFormat {
+
+  /** Name of this postings format, used for SPI lookups. */
+  public static final String SHORT_NAME = RocanaIdPostingsFormat.class.getSimpleName();
+
+  /** Block sizes of the sorted terms dictionary. */
+  public static final RocanaTermBlockSizePolicy.BlockSizes BLOCK_SIZES = RocanaTermBlockSizePolicy.Adaptive.LARGE_FIELD_BLOCK_SIZES;
+
+  public RocanaIdPostingsFormat() {
+    super(SHORT_NAME);
+  }
+
+  @Override
+  public String toString() {
+    return getName() + "(blocksize=" + RocanaLucene50PostingsFormat.BLOCK_SIZE + ",termBlocks=" + BLOCK_SIZES + ")";
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    RocanaLucene50PostingsWriter postingsWriter = new RocanaLucene50PostingsWriter(state);
+
+    boolean success = false;
+    try {
+      FieldsConsumer ret = new RocanaIdTermsWriter(state, postingsWriter,
+        RocanaTermBlockSizePolicy.fixed(BLOCK_SIZES.minItemsInBlock, BLOCK_SIZES.maxItemsInBlock));
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsWriter);
+      }
+    }
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    PostingsReaderBase postingsReader = new RocanaLucene50PostingsReader(state);
+    boolean success = false;
+    try {
+      FieldsProducer ret = new RocanaIdTermsReader(postingsReader, state);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsReader);
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.DirectReader;
+
+/**
+ * {@link TermsEnum} of a {@link RocanaIdFieldReader}.
+ *
+ * {@link #seekExact(BytesRef)} looks the term up in the field's hash table,
+ * which is O(1), and never touches the sorted terms dictionary. Everything
+ * else (next, seekCeil, ...) is done by the sorted dictionary's enum, which
+ * is only created when first needed; if the enum was positioned by the hash
+ * table, it's first positioned on the same term.
+ */
+final class RocanaIdTermsEnum extends TermsEnum {
+
+  private final RocanaIdFieldReader fieldReader;
+  private final long mask;
+  private final int fingerprintBits;
+  private final long offsetMask;
+
+  // Created on first use:
+  private IndexInput in;
+  private LongValues table;
+  private TermsEnum sortedTermsEnum;
+
+  // True if we're on a term found in the hash table, or set with a term state;
+  // false if we're on sortedTermsEnum's term, or not positioned:
+  private boolean hashPositioned;
+  private final BytesRefBuilder term = new BytesRefBuilder();
+  private final BlockTermState state;
+  private final long[] longs;
+  private final BytesRefBuilder scratch = new BytesRefBuilder();
+
+  RocanaIdTermsEnum(RocanaIdFieldReader fieldReader) throws IOException {
+    this.fieldReader = fieldReader;
+    this.mask = (1L << fieldReader.tableBits) - 1;
+    this.fingerprintBits = RocanaIdTermsWriter.fingerprintBits(fieldReader.offsetBits, fieldReader.slotBits);
+    this.offsetMask = (1L << fieldReader.offsetBits) - 1;
+    this.state = fieldReader.parent.postingsReader.newTermState();
+    this.longs = new long[fieldReader.sortedTerms.longsSize];
+  }
+
+  private TermsEnum sortedTermsEnum() throws IOException {
+    if (sortedTermsEnum == null) {
+      sortedTermsEnum = fieldReader.sortedTerms.iterator();
+    }
+    return sortedTermsEnum;
+  }
+
+  @Override
+  public boolean seekExact(BytesRef text) throws IOException {
+    if (in == null) {
+      in = fieldReader.parent.hashIn.clone();
+      table = DirectReader.getInstance(in.randomAccessSlice(fieldReader.tableStart, fieldReader.tableLength), fieldReader.slotBits);
+    }
+    hashPositioned = false;
+
+    final long hash = RocanaIdTermsWriter.hash(text);
+    final long fingerprint = RocanaIdTermsWriter.fingerprint(hash, fingerprintBits);
+    long slot = hash & mask;
+    while (true) {
+      final long value = table.get(slot);
+      if (value == 0) {
+        return false;
+      }
+      if (value >>> fieldReader.offsetBits == fingerprint) {
+        in.seek(fieldReader.dataStart + (value & offsetMask) - 1);
+        if (readTerm(text)) {
+          readTermState();
+          term.copyBytes(text);
+          hashPositioned = true;
+          return true;
+        }
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /** Reads the term of the entry at the current position, and returns true if it's {@code text}. */
+  private boolean readTerm(BytesRef text) throws IOException {
+    final int length = in.readVInt();
+    if (length != text.length) {
+      return false;
+    }
+    scratch.grow(length);
+    in.readBytes(scratch.bytes(), 0, length);
+    scratch.setLength(length);
+    return scratch.get().bytesEquals(text);
+  }
+
+  /** Reads the rest of the entry, the same way {@link RocanaSegmentTermsEnumFrame} decodes the metadata. */
+  private void readTermState() throws IOException {
+    state.docFreq = in.readVInt();
+    if (fieldReader.sortedTerms.fieldInfo.getIndexOptions() == IndexOptions.DOCS) {
+      state.totalTermFreq = -1;
+    } else {
+      state.totalTermFreq = state.docFreq + in.readVLong();
+    }
+    for (int i = 0; i < longs.length; i++) {
+      longs[i] = in.readVLong();
+    }
+    fieldReader.parent.postingsReader.decodeTerm(longs, in, fieldReader.sortedTerms.fieldInfo, state, true);
+  }
+
+  @Override
+  public void seekExact(BytesRef target, TermState otherState) {
+    assert otherState instanceof BlockTermState;
+    state.copyFrom(otherState);
+    term.copyBytes(target);
+    hashPositioned = true;
+  }
+
+  /**
+   * Positions the sorted dictionary's enum where we are. Our term state can't
+   * position it, since the block tree's term states also hold where the term
+   * is in its block, so it seeks.
+   */
+  private TermsEnum unhash() throws IOException {
+    final TermsEnum sortedTermsEnum = sortedTermsEnum();
+    if (hashPositioned) {
+      final boolean found = sortedTermsEnum.seekExact(term.get());
+      assert found : "term in the hash table but not in the terms dictionary: " + term.get();
+      hashPositioned = false;
+    }
+    return sortedTermsEnum;
+  }
+
+  @Override
+  public SeekStatus seekCeil(BytesRef text) throws IOException {
+    hashPositioned = false;
+    return sortedTermsEnum().seekCeil(text);
+  }
+
+  @Override
+  public BytesRef next() throws IOException {
+    return unhash().next();
+  }
+
+  @Override
+  public void seekExact(long ord) throws IOException {
+    hashPositioned = false;
+    sortedTermsEnum().seekExact(ord);
+  }
+
+  @Override
+  public long ord() throws IOException {
+    return unhash().ord();
+  }
+
+  @Override
+  public BytesRef term() throws IOException {
+    return hashPositioned ? term.get() : sortedTermsEnum().term();
+  }
+
+  @Override
+  public int docFreq() throws IOException {
+    return hashPositioned ? state.docFreq : sortedTermsEnum().docFreq();
+  }
+
+  @Override
+  public long totalTermFreq() throws IOException {
+    return hashPositioned ? state.totalTermFreq : sortedTermsEnum().totalTermFreq();
+  }
+
+  @Override
+  public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+    if (hashPositioned) {
+      return fieldReader.parent.postingsReader.postings(fieldReader.sortedTerms.fieldInfo, state, reuse, flags);
+    }
+    return sortedTermsEnum().postings(reuse, flags);
+  }
+
+  @Override
+  public TermState termState() throws IOException {
+    return hashPositioned ? state.clone() : sortedTermsEnum().termState();
+  }
+
+  @Override
+  public String toString() {
+    return "RocanaIdTermsEnum(field=" + fieldReader.sortedTerms.fieldInfo.name + ",hashPositioned=" + hashPositioned + ")";
+  }
+}
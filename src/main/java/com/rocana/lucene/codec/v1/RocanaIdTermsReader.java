@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.DirectWriter;
+
+/**
+ * Reads the terms written by {@link RocanaIdTermsWriter}: the sorted terms
+ * dictionary with {@link RocanaBlockTreeTermsReader}, and the fields' hash
+ * tables, which {@link RocanaIdFieldReader} uses for exact lookups.
+ *
+ * Like {@link RocanaBlockTreeTermsReader}, opening doesn't checksum the
+ * whole hash file, it only checks the footer's structure; the full check
+ * is in {@link #checkIntegrity()}. Only the directory of the fields is read
+ * on open, the entries and tables are read from the file as needed.
+ */
+final class RocanaIdTermsReader extends FieldsProducer {
+
+  private final RocanaBlockTreeTermsReader termsReader;
+  final PostingsReaderBase postingsReader;
+  final IndexInput hashIn;
+  private final Map<String,RocanaIdFieldReader> hashedFields = new HashMap<>();
+
+  RocanaIdTermsReader(PostingsReaderBase postingsReader, SegmentReadState state) throws IOException {
+    this.postingsReader = postingsReader;
+    String hashName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, RocanaIdTermsWriter.HASH_EXTENSION);
+    RocanaBlockTreeTermsReader termsReader = null;
+    IndexInput hashIn = null;
+    boolean success = false;
+    try {
+      termsReader = new RocanaBlockTreeTermsReader(postingsReader, state);
+      hashIn = state.directory.openInput(hashName, state.context);
+      CodecUtil.checkIndexHeader(hashIn, RocanaIdTermsWriter.HASH_CODEC_NAME, RocanaIdTermsWriter.VERSION_START,
+        RocanaIdTermsWriter.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+
+      // Same as RocanaBlockTreeTermsReader: only verify the footer's structure, not the whole file:
+      CodecUtil.retrieveChecksum(hashIn);
+
+      hashIn.seek(hashIn.length() - CodecUtil.footerLength() - 8);
+      hashIn.seek(hashIn.readLong());
+      final int numFields = hashIn.readVInt();
+      if (numFields < 0) {
+        throw new CorruptIndexException("invalid numFields: " + numFields, hashIn);
+      }
+      for (int i = 0; i < numFields; i++) {
+        final int field = hashIn.readVInt();
+        final FieldInfo fieldInfo = state.fieldInfos.fieldInfo(field);
+        if (fieldInfo == null) {
+          throw new CorruptIndexException("invalid field number: " + field, hashIn);
+        }
+        final long numTerms = hashIn.readVLong();
+        final long dataStart = hashIn.readVLong();
+        final long tableStart = hashIn.readVLong();
+        final long tableLength = hashIn.readVLong();
+        final int tableBits = hashIn.readVInt();
+        final int offsetBits = hashIn.readVInt();
+        final int slotBits = hashIn.readVInt();
+        if (tableBits < 1 || tableBits > 30 || offsetBits < 1 || offsetBits >= slotBits
+            || slotBits != DirectWriter.bitsRequired((1L << slotBits) - 1)) {
+          throw new CorruptIndexException("invalid hash table for field: " + fieldInfo.name + ", tableBits=" + tableBits
+            + ", offsetBits=" + offsetBits + ", slotBits=" + slotBits, hashIn);
+        }
+        final RocanaFieldReader sortedTerms = (RocanaFieldReader) termsReader.terms(fieldInfo.name);
+        if (sortedTerms == null || sortedTerms.size() != numTerms) {
+          throw new CorruptIndexException("hash table for field: " + fieldInfo.name + " has " + numTerms
+            + " terms, but the terms dictionary has " + (sortedTerms == null ? 0 : sortedTerms.size()), hashIn);
+        }
+        RocanaIdFieldReader previous = hashedFields.put(fieldInfo.name,
+          new RocanaIdFieldReader(this, sortedTerms, dataStart, tableStart, tableLength, tableBits, offsetBits, slotBits));
+        if (previous != null) {
+          throw new CorruptIndexException("duplicate field: " + fieldInfo.name, hashIn);
+        }
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(hashIn, termsReader);
+      }
+    }
+    this.termsReader = termsReader;
+    this.hashIn = hashIn;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return termsReader.iterator();
+  }
+
+  @Override
+  public Terms terms(String field) throws IOException {
+    Terms terms = hashedFields.get(field);
+    // Fields with too many terms for a hash table only have the sorted dictionary:
+    return terms != null ? terms : termsReader.terms(field);
+  }
+
+  @Override
+  public int size() {
+    return termsReader.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      IOUtils.close(hashIn, termsReader);
+    } finally {
+      hashedFields.clear();
+    }
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long sizeInBytes = termsReader.ramBytesUsed();
+    for (RocanaIdFieldReader reader : hashedFields.values()) {
+      sizeInBytes += reader.ramBytesUsed();
+    }
+    return sizeInBytes;
+  }
+
+  @Override
+  public Collection<Accountable> getChildResources() {
+    List<Accountable> resources = new ArrayList<>();
+    resources.addAll(Accountables.namedAccountables("hashed field", hashedFields));
+    resources.add(Accountables.namedAccountable("terms", termsReader));
+    return Collections.unmodifiableList(resources);
+  }
+
+  @Override
+  public void checkIntegrity() throws IOException {
+    // hash tables
+    CodecUtil.checksumEntireFile(hashIn);
+
+    // terms dictionary and postings
+    termsReader.checkIntegrity();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(hashedFields=" + hashedFields.size() + ",terms=" + termsReader + ")";
+  }
+}
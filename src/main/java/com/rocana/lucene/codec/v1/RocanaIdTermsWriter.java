@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.packed.DirectWriter;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
+
+/**
+ * Writes the terms of {@link RocanaIdPostingsFormat}: a normal sorted terms
+ * dictionary, with {@link RocanaBlockTreeTermsWriter}, plus a hash table per
+ * field from term to term metadata, in a separate file.
+ *
+ * The hash file holds, for each field:
+ *   - the field's entries, one per term, in term order: the term's length and
+ *     bytes, docFreq, totalTermFreq (unless the field is docs-only), and the
+ *     postings metadata, the same way the block tree writes it for the first
+ *     term of a block;
+ *   - an open-addressed hash table, with linear probing, written with
+ *     {@link DirectWriter}. It has a power of 2 number of slots, at least
+ *     twice the number of terms. An empty slot is 0, else it holds the term's
+ *     entry offset plus 1 in its low bits, and the top bits of the term's hash
+ *     in the rest, so most probes that hit another term don't read its entry.
+ *
+ * and at the end a directory of the fields (number, term count, where their
+ * entries and table are, and the table's bit widths), then a pointer to the
+ * directory and the footer.
+ *
+ * Entries repeat what the sorted dictionary has, so a lookup never reads
+ * it; see {@link RocanaIdPostingsFormat} for what that costs on disk.
+ *
+ * Hashes are {@link StringHelper#murmurhash3_x86_32(BytesRef, int)} with
+ * {@link #HASH_SEED}. Fields with more than {@link #MAX_HASHED_TERMS} terms
+ * get no table; reads use the sorted dictionary for them.
+ *
+ * Entries are written while the block tree pulls each term's postings, by
+ * wrapping the postings writer, so the fields' postings are only read once.
+ * The block tree writes fields one after another for this, never concurrently.
+ */
+final class RocanaIdTermsWriter extends FieldsConsumer {
+
+  static final String HASH_EXTENSION = "rid";
+  static final String HASH_CODEC_NAME = "RocanaIdTermsHash";
+
+  public static final int VERSION_START = 0;
+  public static final int VERSION_CURRENT = VERSION_START;
+
+  /** Seed for the term hashes; changing it breaks existing indexes. */
+  static final int HASH_SEED = 0x5ca1ab1e;
+
+  /** Fields with more terms than this get no hash table, since it'd need more than 2^30 slots. */
+  static final long MAX_HASHED_TERMS = 1L << 29;
+
+  /** Least number of hash bits kept in each slot next to the entry offset. */
+  static final int MIN_FINGERPRINT_BITS = 8;
+
+  private final RocanaBlockTreeTermsWriter termsWriter;
+  private final RocanaLucene50PostingsWriter postingsWriter;
+  private final IndexOutput hashOut;
+  private final List<HashedField> hashedFields = new ArrayList<>();
+
+  // The field being written, or null:
+  private FieldInfo fieldInfo;
+  private long[] longs;
+  private long dataStart;
+  private PackedLongValues.Builder entryOffsets;
+  private PackedLongValues.Builder hashes;
+
+  // Set by setField, started when it gets its first term:
+  private FieldInfo nextFieldInfo;
+  private int nextLongsSize;
+
+  // Buffers the postings metadata, which we write after its longs:
+  private final RAMOutputStream bytesWriter = new RAMOutputStream();
+
+  private boolean closed;
+
+  /** Metadata of one field's hash table. */
+  private static final class HashedField {
+    final int fieldNumber;
+    final long numTerms;
+    final long dataStart;
+    final long tableStart;
+    final long tableLength;
+    final int tableBits;
+    final int offsetBits;
+    final int slotBits;
+
+    HashedField(int fieldNumber, long numTerms, long dataStart, long tableStart, long tableLength,
+                int tableBits, int offsetBits, int slotBits) {
+      this.fieldNumber = fieldNumber;
+      this.numTerms = numTerms;
+      this.dataStart = dataStart;
+      this.tableStart = tableStart;
+      this.tableLength = tableLength;
+      this.tableBits = tableBits;
+      this.offsetBits = offsetBits;
+      this.slotBits = slotBits;
+    }
+  }
+
+  RocanaIdTermsWriter(SegmentWriteState state, RocanaLucene50PostingsWriter postingsWriter,
+                      RocanaTermBlockSizePolicy blockSizePolicy) throws IOException {
+    this.postingsWriter = postingsWriter;
+    String hashName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, HASH_EXTENSION);
+    IndexOutput hashOut = null;
+    RocanaBlockTreeTermsWriter termsWriter = null;
+    boolean success = false;
+    try {
+      hashOut = state.directory.createOutput(hashName, state.context);
+      CodecUtil.writeIndexHeader(hashOut, HASH_CODEC_NAME, VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+      termsWriter = new RocanaBlockTreeTermsWriter(state, new HashingPostingsWriter(), blockSizePolicy, 0, 0, null);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(hashOut);
+      }
+    }
+    this.hashOut = hashOut;
+    this.termsWriter = termsWriter;
+  }
+
+  @Override
+  public void write(Fields fields) throws IOException {
+    termsWriter.write(fields);
+    finishField();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    boolean success = false;
+    try {
+      final long dirStart = hashOut.getFilePointer();
+      hashOut.writeVInt(hashedFields.size());
+      for (HashedField field : hashedFields) {
+        hashOut.writeVInt(field.fieldNumber);
+        hashOut.writeVLong(field.numTerms);
+        hashOut.writeVLong(field.dataStart);
+        hashOut.writeVLong(field.tableStart);
+        hashOut.writeVLong(field.tableLength);
+        hashOut.writeVInt(field.tableBits);
+        hashOut.writeVInt(field.offsetBits);
+        hashOut.writeVInt(field.slotBits);
+      }
+      hashOut.writeLong(dirStart);
+      CodecUtil.writeFooter(hashOut);
+      success = true;
+    } finally {
+      if (success) {
+        IOUtils.close(hashOut, termsWriter);
+      } else {
+        IOUtils.closeWhileHandlingException(hashOut, termsWriter);
+      }
+    }
+  }
+
+  private void addEntry(BytesRef term, BlockTermState state) throws IOException {
+    if (nextFieldInfo != null) {
+      finishField();
+      fieldInfo = nextFieldInfo;
+      longs = new long[nextLongsSize];
+      dataStart = hashOut.getFilePointer();
+      entryOffsets = PackedLongValues.monotonicBuilder(PackedInts.COMPACT);
+      hashes = PackedLongValues.packedBuilder(PackedInts.COMPACT);
+      nextFieldInfo = null;
+    }
+
+    entryOffsets.add(hashOut.getFilePointer() - dataStart);
+    hashes.add(hash(term));
+
+    hashOut.writeVInt(term.length);
+    hashOut.writeBytes(term.bytes, term.offset, term.length);
+    hashOut.writeVInt(state.docFreq);
+    if (fieldInfo.getIndexOptions() != IndexOptions.DOCS) {
+      hashOut.writeVLong(state.totalTermFreq - state.docFreq);
+    }
+    postingsWriter.encodeTermAbsolute(longs, bytesWriter, fieldInfo, state);
+    for (long l : longs) {
+      hashOut.writeVLong(l);
+    }
+    bytesWriter.writeTo(hashOut);
+    bytesWriter.reset();
+  }
+
+  /** Writes the hash table of the field being written, if any. */
+  private void finishField() throws IOException {
+    if (fieldInfo == null) {
+      return;
+    }
+    final PackedLongValues entryOffsets = this.entryOffsets.build();
+    final PackedLongValues hashes = this.hashes.build();
+    final long numTerms = entryOffsets.size();
+    final int fieldNumber = fieldInfo.number;
+    fieldInfo = null;
+    this.entryOffsets = null;
+    this.hashes = null;
+    if (numTerms > MAX_HASHED_TERMS) {
+      return;
+    }
+
+    final int tableBits = 64 - Long.numberOfLeadingZeros(2 * numTerms - 1);
+    final int tableSize = 1 << tableBits;
+    final int mask = tableSize - 1;
+
+    // Each slot of the table we build in memory holds the term's ord plus 1:
+    final PackedInts.Mutable ords = PackedInts.getMutable(tableSize, PackedInts.bitsRequired(numTerms), PackedInts.COMPACT);
+    for (int ord = 0; ord < numTerms; ord++) {
+      int slot = (int) hashes.get(ord) & mask;
+      while (ords.get(slot) != 0) {
+        slot = (slot + 1) & mask;
+      }
+      ords.set(slot, ord + 1);
+    }
+
+    final int offsetBits = PackedInts.bitsRequired(entryOffsets.get(numTerms - 1) + 1);
+    final int slotBits = DirectWriter.bitsRequired((1L << (offsetBits + MIN_FINGERPRINT_BITS)) - 1);
+    final int fingerprintBits = fingerprintBits(offsetBits, slotBits);
+
+    final long tableStart = hashOut.getFilePointer();
+    final DirectWriter table = DirectWriter.getInstance(hashOut, tableSize, slotBits);
+    for (int slot = 0; slot < tableSize; slot++) {
+      final long ordPlusOne = ords.get(slot);
+      if (ordPlusOne == 0) {
+        table.add(0);
+      } else {
+        final long ord = ordPlusOne - 1;
+        table.add((fingerprint(hashes.get(ord), fingerprintBits) << offsetBits) | (entryOffsets.get(ord) + 1));
+      }
+    }
+    table.finish();
+
+    hashedFields.add(new HashedField(fieldNumber, numTerms, dataStart, tableStart, hashOut.getFilePointer() - tableStart,
+      tableBits, offsetBits, slotBits));
+  }
+
+  /** Returns the term's hash, as an unsigned int. */
+  static long hash(BytesRef term) {
+    return StringHelper.murmurhash3_x86_32(term, HASH_SEED) & 0xFFFFFFFFL;
+  }
+
+  /** Returns how many bits of the hash a slot keeps. */
+  static int fingerprintBits(int offsetBits, int slotBits) {
+    return Math.min(slotBits - offsetBits, 32);
+  }
+
+  /** Returns the top {@code fingerprintBits} bits of the hash. */
+  static long fingerprint(long hash, int fingerprintBits) {
+    return hash >>> (32 - fingerprintBits);
+  }
+
+  /**
+   * Hands the block tree's calls to our postings writer, and adds an entry
+   * for every term it writes.
+   */
+  private final class HashingPostingsWriter extends PostingsWriterBase {
+
+    @Override
+    public void init(IndexOutput termsOut, SegmentWriteState state) throws IOException {
+      postingsWriter.init(termsOut, state);
+    }
+
+    @Override
+    public int setField(FieldInfo fieldInfo) {
+      nextFieldInfo = fieldInfo;
+      nextLongsSize = postingsWriter.setField(fieldInfo);
+      return nextLongsSize;
+    }
+
+    @Override
+    public BlockTermState writeTerm(BytesRef term, TermsEnum termsEnum, FixedBitSet docsSeen) throws IOException {
+      BlockTermState state = postingsWriter.writeTerm(term, termsEnum, docsSeen);
+      if (state != null) {
+        addEntry(term, state);
+      }
+      return state;
+    }
+
+    @Override
+    public void encodeTerm(long[] longs, DataOutput out, FieldInfo fieldInfo, BlockTermState state, boolean absolute) throws IOException {
+      postingsWriter.encodeTerm(longs, out, fieldInfo, state, absolute);
+    }
+
+    @Override
+    public void close() throws IOException {
+      postingsWriter.close();
+    }
+  }
+}
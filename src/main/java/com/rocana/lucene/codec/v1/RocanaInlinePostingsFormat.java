@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Postings format for fields with many rare terms (hostnames, error codes,
+ * ...), which "pulses" short postings lists into the terms dictionary.
+ *
+ * Terms with at most {@code maxInlineDocFreq} documents, in fields without
+ * positions, have their docs and freqs stored in the term's metadata in the
+ * .tim file, see {@link RocanaInlinePostingsWriter}. Reading them costs no
+ * seek into the .doc file, which on HDFS is a separate read. Lucene's format
+ * already does this for terms with a single document; this extends it to a
+ * few. All other terms are written the same as {@link RocanaLucene50PostingsFormat}.
+ *
+ * The cost is a bigger terms dictionary, so a seek that scans a block reads
+ * a little more; {@code maxInlineDocFreq} is capped at
+ * {@link RocanaLucene50PostingsFormat#BLOCK_SIZE} so every inlined list is
+ * shorter than one packed block.
+ *
+ * Route such fields to this format with {@link RocanaPostingsFormatRouter}.
+ * It's registered in META-INF/services/org.apache.lucene.codecs.PostingsFormat
+ * as {@link #SHORT_NAME}.
+ */
+public final class RocanaInlinePostingsFormat extends PostingsFormat {
+
+  /** Name of this postings format, used for SPI lookups. */
+  public static final String SHORT_NAME = RocanaInlinePostingsFormat.class.getSimpleName();
+
+  /** Default maximum number of documents of an inlined term. */
+  public static final int DEFAULT_MAX_INLINE_DOC_FREQ = 16;
+
+  private final int maxInlineDocFreq;
+
+  /** Creates the format with {@link #DEFAULT_MAX_INLINE_DOC_FREQ}. Readers
+   *  (through SPI) use this, the limit only matters when writing. */
+  public RocanaInlinePostingsFormat() {
+    this(DEFAULT_MAX_INLINE_DOC_FREQ);
+  }
+
+  /**
+   * @param maxInlineDocFreq terms with at most this many documents, in
+   *        fields without positions, are stored in the terms dictionary.
+   */
+  public RocanaInlinePostingsFormat(int maxInlineDocFreq) {
+    super(SHORT_NAME);
+    if (maxInlineDocFreq < 1 || maxInlineDocFreq > RocanaLucene50PostingsFormat.BLOCK_SIZE) {
+      throw new IllegalArgumentException("maxInlineDocFreq must be between 1 and " + RocanaLucene50PostingsFormat.BLOCK_SIZE
+        + "; got " + maxInlineDocFreq);
+    }
+    this.maxInlineDocFreq = maxInlineDocFreq;
+  }
+
+  @Override
+  public String toString() {
+    return getName() + "(blocksize=" + RocanaLucene50PostingsFormat.BLOCK_SIZE + ",maxInlineDocFreq=" + maxInlineDocFreq + ")";
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    RocanaInlinePostingsWriter postingsWriter = new RocanaInlinePostingsWriter(new RocanaLucene50PostingsWriter(state), maxInlineDocFreq);
+
+    boolean success = false;
+    try {
+      FieldsConsumer ret = new RocanaBlockTreeTermsWriter(state,
+                                                          postingsWriter,
+                                                          RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE,
+                                                          RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsWriter);
+      }
+    }
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    RocanaInlinePostingsReader postingsReader = new RocanaInlinePostingsReader(state);
+    boolean success = false;
+    try {
+      FieldsProducer ret = new RocanaBlockTreeTermsReader(postingsReader, state);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsReader);
+      }
+    }
+  }
+
+  /**
+   * Term state of this format: an inlined term has its own postings, its
+   * docs and freqs, see {@link RocanaWrappingTermState}.
+   */
+  static final class InlineTermState extends RocanaWrappingTermState {
+    /** The inlined docs and freqs, the first docFreq of each. */
+    int[] docs = new int[0];
+    int[] freqs = new int[0];
+
+    @Override
+    public InlineTermState clone() {
+      InlineTermState other = (InlineTermState) super.clone();
+      other.docs = docs.clone();
+      other.freqs = freqs.clone();
+      return other;
+    }
+
+    @Override
+    public void copyFrom(TermState _other) {
+      super.copyFrom(_other);
+      InlineTermState other = (InlineTermState) _other;
+      docs = Arrays.copyOf(other.docs, other.docs.length);
+      freqs = Arrays.copyOf(other.freqs, other.freqs.length);
+    }
+  }
+}
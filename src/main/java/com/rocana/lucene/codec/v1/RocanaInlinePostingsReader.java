@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Postings reader of {@link RocanaInlinePostingsFormat}: decodes the postings
+ * written into the terms dictionary by {@link RocanaInlinePostingsWriter},
+ * and reads everything else with the wrapped {@link RocanaLucene50PostingsReader},
+ * see {@link RocanaWrappingPostingsReader}.
+ *
+ * Inlined postings are decoded along with the rest of the term's metadata,
+ * so {@link #postings} on an inlined term does no I/O at all.
+ */
+final class RocanaInlinePostingsReader extends RocanaWrappingPostingsReader<RocanaInlinePostingsFormat.InlineTermState> {
+
+  private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(RocanaInlinePostingsReader.class);
+
+  private int maxInlineDocFreq;
+
+  RocanaInlinePostingsReader(SegmentReadState state) throws IOException {
+    super(new RocanaLucene50PostingsReader(state));
+  }
+
+  @Override
+  public void init(IndexInput termsIn, SegmentReadState state) throws IOException {
+    super.init(termsIn, state);
+    CodecUtil.checkIndexHeader(termsIn, RocanaInlinePostingsWriter.INLINE_CODEC_NAME, RocanaInlinePostingsWriter.VERSION_START,
+      RocanaInlinePostingsWriter.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+    maxInlineDocFreq = termsIn.readVInt();
+    if (maxInlineDocFreq < 1 || maxInlineDocFreq > RocanaLucene50PostingsFormat.BLOCK_SIZE) {
+      throw new CorruptIndexException("invalid maxInlineDocFreq: " + maxInlineDocFreq, termsIn);
+    }
+  }
+
+  @Override
+  RocanaInlinePostingsFormat.InlineTermState newOwnTermState() {
+    return new RocanaInlinePostingsFormat.InlineTermState();
+  }
+
+  @Override
+  boolean hasOwnPostings(FieldInfo fieldInfo, RocanaInlinePostingsFormat.InlineTermState state) {
+    return RocanaInlinePostingsWriter.isInlineField(fieldInfo) && state.docFreq <= maxInlineDocFreq;
+  }
+
+  @Override
+  void decodeOwnTerm(DataInput in, FieldInfo fieldInfo, RocanaInlinePostingsFormat.InlineTermState state) throws IOException {
+    if (state.docs.length < state.docFreq) {
+      state.docs = new int[ArrayUtil.oversize(state.docFreq, RamUsageEstimator.NUM_BYTES_INT)];
+      state.freqs = new int[state.docs.length];
+    }
+    final boolean readFreqs = fieldInfo.getIndexOptions() == IndexOptions.DOCS_AND_FREQS;
+    int doc = 0;
+    for (int i = 0; i < state.docFreq; i++) {
+      final int code = in.readVInt();
+      if (readFreqs == false) {
+        doc += code;
+        state.freqs[i] = 1;
+      } else {
+        doc += code >>> 1;
+        state.freqs[i] = (code & 1) != 0 ? 1 : in.readVInt();
+      }
+      state.docs[i] = doc;
+    }
+  }
+
+  @Override
+  PostingsEnum ownPostings(FieldInfo fieldInfo, RocanaInlinePostingsFormat.InlineTermState state, PostingsEnum reuse, int flags) throws IOException {
+    if (PostingsEnum.featureRequested(flags, DocsAndPositionsEnum.OLD_NULL_SEMANTICS)) {
+      // Positions were not indexed:
+      return null;
+    }
+    InlineDocsEnum docsEnum;
+    if (reuse instanceof InlineDocsEnum) {
+      docsEnum = (InlineDocsEnum) reuse;
+    } else {
+      docsEnum = new InlineDocsEnum();
+    }
+    return docsEnum.reset(state.docs, state.freqs, state.docFreq);
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return BASE_RAM_BYTES_USED + postingsReader.ramBytesUsed();
+  }
+
+  @Override
+  public void checkIntegrity() throws IOException {
+    // inlined postings are checked with the terms dictionary
+    postingsReader.checkIntegrity();
+  }
+
+  @Override
+  public void close() throws IOException {
+    postingsReader.close();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(maxInlineDocFreq=" + maxInlineDocFreq + ",postings=" + postingsReader + ")";
+  }
+
+  /**
+   * Docs and freqs of an inlined term. They're copied from the term state,
+   * because the terms enum decodes the next term's metadata into the same
+   * state.
+   */
+  static final class InlineDocsEnum extends PostingsEnum {
+    private int[] docs = new int[0];
+    private int[] freqs = new int[0];
+    private int docFreq;
+    private int upto;
+    private int doc;
+
+    InlineDocsEnum reset(int[] docs, int[] freqs, int docFreq) {
+      if (this.docs.length < docFreq) {
+        this.docs = new int[ArrayUtil.oversize(docFreq, RamUsageEstimator.NUM_BYTES_INT)];
+        this.freqs = new int[this.docs.length];
+      }
+      System.arraycopy(docs, 0, this.docs, 0, docFreq);
+      System.arraycopy(freqs, 0, this.freqs, 0, docFreq);
+      this.docFreq = docFreq;
+      upto = -1;
+      doc = -1;
+      return this;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      if (++upto < docFreq) {
+        return doc = docs[upto];
+      }
+      return doc = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      // At most BLOCK_SIZE docs, so a linear scan is fine:
+      while (++upto < docFreq) {
+        if (docs[upto] >= target) {
+          return doc = docs[upto];
+        }
+      }
+      return doc = NO_MORE_DOCS;
+    }
+
+    @Override
+    public long cost() {
+      return docFreq;
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return freqs[upto];
+    }
+
+    @Override
+    public int nextPosition() throws IOException {
+      return -1;
+    }
+
+    @Override
+    public int startOffset() throws IOException {
+      return -1;
+    }
+
+    @Override
+    public int endOffset() throws IOException {
+      return -1;
+    }
+
+    @Override
+    public BytesRef getPayload() throws IOException {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Postings writer of {@link RocanaInlinePostingsFormat}: writes the short
+ * postings lists of fields without positions into the terms dictionary, and
+ * everything else with the wrapped postings writer, skipping over the
+ * inlined terms as described in {@link RocanaWrappingPostingsWriter}.
+ *
+ * A term is inlined if its field is indexed with {@link IndexOptions#DOCS}
+ * or {@link IndexOptions#DOCS_AND_FREQS}, and it has at most
+ * {@link #maxInlineDocFreq} documents. Readers know each term's docFreq
+ * before decoding its metadata, and the limit is in the terms dictionary's
+ * header, so inlined terms need no flag:
+ *
+ *   header (in the terms dictionary, after the wrapped writer's): Header, MaxInlineDocFreq
+ *   inlined term metadata: longs all 0, then DocDelta<sup>DocFreq</sup> (DOCS) or
+ *                          &lt;DocDelta, Freq?&gt;<sup>DocFreq</sup> (DOCS_AND_FREQS)
+ *
+ * DocDelta is the vInt gap from the document before, or from 0 for the first
+ * one. With freqs, like Lucene's .doc file, DocDelta is shifted left by one,
+ * and its low bit is set when the freq is 1; other freqs follow as a vInt.
+ *
+ * Collecting a term's docs stops after {@link #maxInlineDocFreq}; longer
+ * terms then read their postings again to write them.
+ */
+final class RocanaInlinePostingsWriter extends RocanaWrappingPostingsWriter {
+
+  static final String INLINE_CODEC_NAME = "RocanaInlinePostings";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  private final int maxInlineDocFreq;
+  private final int[] docs;
+  private final int[] freqs;
+  private PostingsEnum postingsEnum;
+
+  private boolean inlineField;
+  private boolean writeFreqs;
+
+  RocanaInlinePostingsWriter(PostingsWriterBase postingsWriter, int maxInlineDocFreq) {
+    super(postingsWriter);
+    this.maxInlineDocFreq = maxInlineDocFreq;
+    this.docs = new int[maxInlineDocFreq];
+    this.freqs = new int[maxInlineDocFreq];
+  }
+
+  /** Returns true if short postings lists of {@code fieldInfo} are inlined. */
+  static boolean isInlineField(FieldInfo fieldInfo) {
+    return fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0;
+  }
+
+  @Override
+  public void init(IndexOutput termsOut, SegmentWriteState state) throws IOException {
+    super.init(termsOut, state);
+    CodecUtil.writeIndexHeader(termsOut, INLINE_CODEC_NAME, VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+    termsOut.writeVInt(maxInlineDocFreq);
+  }
+
+  @Override
+  public int setField(FieldInfo fieldInfo) {
+    inlineField = isInlineField(fieldInfo);
+    writeFreqs = fieldInfo.getIndexOptions() == IndexOptions.DOCS_AND_FREQS;
+    return super.setField(fieldInfo);
+  }
+
+  @Override
+  public BlockTermState writeTerm(BytesRef term, TermsEnum termsEnum, FixedBitSet docsSeen) throws IOException {
+    if (inlineField == false) {
+      return postingsWriter.writeTerm(term, termsEnum, docsSeen);
+    }
+
+    postingsEnum = termsEnum.postings(postingsEnum, writeFreqs ? PostingsEnum.FREQS : PostingsEnum.NONE);
+    int docFreq = 0;
+    long totalTermFreq = 0;
+    for (int doc = postingsEnum.nextDoc(); doc != PostingsEnum.NO_MORE_DOCS; doc = postingsEnum.nextDoc()) {
+      if (docFreq == maxInlineDocFreq) {
+        return postingsWriter.writeTerm(term, termsEnum, docsSeen);
+      }
+      docs[docFreq] = doc;
+      freqs[docFreq] = writeFreqs ? postingsEnum.freq() : 1;
+      totalTermFreq += freqs[docFreq];
+      docFreq++;
+    }
+    if (docFreq == 0) {
+      return null;
+    }
+
+    RocanaInlinePostingsFormat.InlineTermState state = new RocanaInlinePostingsFormat.InlineTermState();
+    state.ownPostings = true;
+    state.docFreq = docFreq;
+    state.totalTermFreq = writeFreqs ? totalTermFreq : -1;
+    state.docs = Arrays.copyOf(docs, docFreq);
+    state.freqs = Arrays.copyOf(freqs, docFreq);
+    for (int i = 0; i < docFreq; i++) {
+      docsSeen.set(docs[i]);
+    }
+    return state;
+  }
+
+  @Override
+  void encodeOwnTerm(long[] longs, DataOutput out, FieldInfo fieldInfo, RocanaWrappingTermState _state) throws IOException {
+    RocanaInlinePostingsFormat.InlineTermState state = (RocanaInlinePostingsFormat.InlineTermState) _state;
+    Arrays.fill(longs, 0);
+    int lastDoc = 0;
+    for (int i = 0; i < state.docFreq; i++) {
+      final int docDelta = state.docs[i] - lastDoc;
+      lastDoc = state.docs[i];
+      if (writeFreqs == false) {
+        out.writeVInt(docDelta);
+      } else if (state.freqs[i] == 1) {
+        out.writeVInt((docDelta << 1) | 1);
+      } else {
+        out.writeVInt(docDelta << 1);
+        out.writeVInt(state.freqs[i]);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    postingsWriter.close();
+  }
+}
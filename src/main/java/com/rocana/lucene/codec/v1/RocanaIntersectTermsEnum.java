@@ -43,6 +43,10 @@ import org.apache.lucene.util.fst.Outputs;
  *   - To use other forked classes, like {@link RocanaFieldReader}.
  *
  * What changed in the fork?
+ *   - Gets the terms index from {@link RocanaFieldReader#getIndex()}, which
+ *     loads it first if the reader was opened for merging.
+ *   - Doesn't clone the terms dict; its frames load blocks from the calling
+ *     thread's clone, which it shares with the thread's other terms enums.
  *   - Use the other forked classes.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
@@ -78,7 +82,9 @@ final class RocanaIntersectTermsEnum extends TermsEnum {
 
   //static boolean DEBUG = BlockTreeTermsWriter.DEBUG;
 
-  final IndexInput in;
+  // The calling thread's clone of the terms dict, as of the last block we
+  // loaded, see RocanaBlockTreeTermsReader#termsInput():
+  IndexInput in;
   final static Outputs<BytesRef> fstOutputs = ByteSequenceOutputs.getSingleton();
 
   RocanaIntersectTermsEnumFrame[] stack;
@@ -94,6 +100,7 @@ final class RocanaIntersectTermsEnum extends TermsEnum {
 
   private final BytesRef term = new BytesRef();
 
+  private final FST<BytesRef> index;
   private final FST.BytesReader fstReader;
 
   private final boolean allowAutoPrefixTerms;
@@ -122,7 +129,6 @@ final class RocanaIntersectTermsEnum extends TermsEnum {
     this.automaton = automaton;
     this.commonSuffix = commonSuffix;
 
-    in = fr.parent.termsIn.clone();
     stack = new RocanaIntersectTermsEnumFrame[5];
     for(int idx=0;idx<stack.length;idx++) {
       stack[idx] = new RocanaIntersectTermsEnumFrame(this, idx);
@@ -131,11 +137,8 @@ final class RocanaIntersectTermsEnum extends TermsEnum {
       arcs[arcIdx] = new FST.Arc<>();
     }
 
-    if (fr.index == null) {
-      fstReader = null;
-    } else {
-      fstReader = fr.index.getBytesReader();
-    }
+    index = fr.getIndex();
+    fstReader = index.getBytesReader();
 
     // TODO: if the automaton is "smallish" we really
     // should use the terms index to seek at least to
@@ -144,7 +147,7 @@ final class RocanaIntersectTermsEnum extends TermsEnum {
     // Else the seek cost of loading the frames will be
     // too costly.
 
-    final FST.Arc<BytesRef> arc = fr.index.getFirstArc(arcs[0]);
+    final FST.Arc<BytesRef> arc = index.getFirstArc(arcs[0]);
     // Empty string prefix must have an output in the index!
     assert arc.isFinal();
 
@@ -155,7 +158,7 @@ final class RocanaIntersectTermsEnum extends TermsEnum {
     f.setState(runAutomaton.getInitialState());
     f.arc = arc;
     f.outputPrefix = arc.output;
-    f.load(fr.rootCode);
+    f.load(fr.rootCode());
 
     // for assert:
     assert setSavedStartTerm(startTerm);
@@ -227,7 +230,7 @@ final class RocanaIntersectTermsEnum extends TermsEnum {
       // TODO: we could be more efficient for the next()
       // case by using current arc as starting point,
       // passed to findTargetArc
-      arc = fr.index.findTargetArc(target, arc, getArc(1+idx), fstReader);
+      arc = index.findTargetArc(target, arc, getArc(1+idx), fstReader);
       assert arc != null;
       output = fstOutputs.add(output, arc.output);
       idx++;
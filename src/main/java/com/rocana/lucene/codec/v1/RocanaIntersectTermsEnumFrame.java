@@ -35,19 +35,18 @@ import org.apache.lucene.util.fst.FST;
  *   - To use other forked classes, like {@link RocanaIntersectTermsEnum}.
  *
  * What changed in the fork?
+ *   - Reads leaf blocks with fixed length suffixes, see
+ *     {@link RocanaBlockTreeTermsReader#VERSION_FIXED_LENGTH_SUFFIXES}.
+ *   - Decompresses LZ4-compressed suffixes, see
+ *     {@link RocanaBlockTreeTermsReader#VERSION_COMPRESSED_SUFFIXES}.
+ *   - Loads each block from the calling thread's clone of the terms dict,
+ *     see {@link RocanaBlockTreeTermsReader#termsInput()}.
  *   - Use the other forked classes.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
  *   - Renamed class to have 'Rocana' in the name.
  *   - Moved to a different package.
  *
- * This is one of the forked classes where no logic changed, but to get
- * the fork to compile we had to fork this class too. That happened with
- * several classes because they had a hard reference to another class we
- * forked. Ideally, our forked classes would extend the original Lucene
- * class and override just the methods we need to change. Unfortunately
- * in most cases that wasn't an option because many Lucene classes are final.
- *
  * To see a full diff of changes in our fork: compare this version to the very first
  * commit in git history. That first commit is the exact file from Lucene with no
  * modifications.
@@ -74,6 +73,11 @@ final class RocanaIntersectTermsEnumFrame {
 
   byte[] suffixBytes = new byte[128];
   final ByteArrayDataInput suffixesReader = new ByteArrayDataInput();
+  // Wraps suffixBytes for decompressing into it:
+  private final BytesRef suffixBytesRef = new BytesRef();
+  // Bytes the suffixes take in the terms dictionary, less than
+  // suffixesReader.length() if they're compressed:
+  int storedSuffixBytes;
 
   byte[] statBytes = new byte[64];
   final ByteArrayDataInput statsReader = new ByteArrayDataInput();
@@ -97,6 +101,10 @@ final class RocanaIntersectTermsEnumFrame {
   // True if all entries are terms
   boolean isLeafBlock;
 
+  // Length of every suffix in this leaf block, or -1 if each
+  // suffix is written with its length:
+  int fixedSuffixLength;
+
   int numFollowFloorBlocks;
   int nextFloorLabel;
 
@@ -106,6 +114,10 @@ final class RocanaIntersectTermsEnumFrame {
 
   final boolean versionAutoPrefix;
 
+  final boolean versionFixedLengthSuffixes;
+
+  final boolean versionCompressedSuffixes;
+
   FST.Arc<BytesRef> arc;
 
   final BlockTermState termState;
@@ -144,6 +156,8 @@ final class RocanaIntersectTermsEnumFrame {
     this.termState.totalTermFreq = -1;
     this.longs = new long[ite.fr.longsSize];
     this.versionAutoPrefix = ite.fr.parent.anyAutoPrefixTerms;
+    this.versionFixedLengthSuffixes = ite.fr.parent.version >= RocanaBlockTreeTermsReader.VERSION_FIXED_LENGTH_SUFFIXES;
+    this.versionCompressedSuffixes = ite.fr.parent.version >= RocanaBlockTreeTermsReader.VERSION_COMPRESSED_SUFFIXES;
   }
 
   void loadNextFloorBlock() throws IOException {
@@ -208,6 +222,8 @@ final class RocanaIntersectTermsEnumFrame {
       }
     }
 
+    // Every block load seeks, so we can use whichever thread's clone we're on:
+    ite.in = ite.fr.parent.termsInput();
     ite.in.seek(fp);
     int code = ite.in.readVInt();
     entCount = code >>> 1;
@@ -217,12 +233,38 @@ final class RocanaIntersectTermsEnumFrame {
     // term suffixes:
     code = ite.in.readVInt();
     isLeafBlock = (code & 1) != 0;
-    int numBytes = code >>> 1;
-    if (suffixBytes.length < numBytes) {
-      suffixBytes = new byte[ArrayUtil.oversize(numBytes, 1)];
+    final boolean hasFixedLengthSuffixes;
+    final boolean hasCompressedSuffixes;
+    int numBytes;
+    if (versionCompressedSuffixes) {
+      hasCompressedSuffixes = (code & 4) != 0;
+      hasFixedLengthSuffixes = (code & 2) != 0;
+      numBytes = code >>> 3;
+    } else if (versionFixedLengthSuffixes) {
+      hasCompressedSuffixes = false;
+      hasFixedLengthSuffixes = (code & 2) != 0;
+      numBytes = code >>> 2;
+    } else {
+      hasCompressedSuffixes = false;
+      hasFixedLengthSuffixes = false;
+      numBytes = code >>> 1;
+    }
+    if (hasCompressedSuffixes) {
+      final long suffixesFP = ite.in.getFilePointer();
+      suffixBytesRef.bytes = suffixBytes;
+      RocanaBlockTreeTermsReader.SUFFIX_DECOMPRESSOR.decompress(ite.in, numBytes, 0, numBytes, suffixBytesRef);
+      // The decompressor grows the array if it's too small:
+      suffixBytes = suffixBytesRef.bytes;
+      storedSuffixBytes = (int) (ite.in.getFilePointer() - suffixesFP);
+    } else {
+      if (suffixBytes.length < numBytes) {
+        suffixBytes = new byte[ArrayUtil.oversize(numBytes, 1)];
+      }
+      ite.in.readBytes(suffixBytes, 0, numBytes);
+      storedSuffixBytes = numBytes;
     }
-    ite.in.readBytes(suffixBytes, 0, numBytes);
     suffixesReader.reset(suffixBytes, 0, numBytes);
+    fixedSuffixLength = hasFixedLengthSuffixes ? suffixesReader.readVInt() : -1;
 
     // stats
     numBytes = ite.in.readVInt();
@@ -270,7 +312,7 @@ final class RocanaIntersectTermsEnumFrame {
   public void nextLeaf() {
     assert nextEnt != -1 && nextEnt < entCount: "nextEnt=" + nextEnt + " entCount=" + entCount + " fp=" + fp;
     nextEnt++;
-    suffix = suffixesReader.readVInt();
+    suffix = fixedSuffixLength != -1 ? fixedSuffixLength : suffixesReader.readVInt();
     startBytePos = suffixesReader.getPosition();
     suffixesReader.skipBytes(suffix);
   }
@@ -19,6 +19,7 @@ package com.rocana.lucene.codec.v1;
 
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import org.apache.lucene.codecs.BlockTermState;
 import org.apache.lucene.codecs.CodecUtil;
@@ -28,9 +29,7 @@ import org.apache.lucene.codecs.MultiLevelSkipListWriter;
 import org.apache.lucene.codecs.PostingsFormat;
 import org.apache.lucene.codecs.PostingsReaderBase;
 import org.apache.lucene.codecs.PostingsWriterBase;
-import org.apache.lucene.codecs.blocktree.BlockTreeTermsWriter;
-import org.apache.lucene.codecs.lucene50.Lucene50PostingsReader;
-import org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.SegmentReadState;
@@ -50,7 +49,26 @@ import org.apache.lucene.util.packed.PackedInts;
  *
  * What changed in the fork?
  *   - {@link #fieldsProducer(SegmentReadState)} returns a fork: {@link RocanaBlockTreeTermsReader}
- *     rather than the normal Lucene class.
+ *     rather than the normal Lucene class, on top of another fork:
+ *     {@link RocanaLucene50PostingsReader}, which decodes wide blocks faster.
+ *   - {@link #fieldsConsumer(SegmentWriteState)} returns a fork: {@link RocanaBlockTreeTermsWriter},
+ *     which also stores each field's block stats, on top of another fork:
+ *     {@link RocanaLucene50PostingsWriter}.
+ *   - Picks the term block sizes per field with a {@link RocanaTermBlockSizePolicy}, see
+ *     {@link #RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy, Executor)}.
+ *   - Optionally encodes the postings of the fields concurrently, see
+ *     {@link #RocanaLucene50PostingsFormat(int, int, Executor)}.
+ *   - Optionally writes auto-prefix terms for some fields, picked with a
+ *     {@link RocanaAutoPrefixPolicy}, see
+ *     {@link #RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy, RocanaAutoPrefixPolicy, Executor)}.
+ *   - Optionally packs the postings of some fields in blocks of another size
+ *     than {@link #BLOCK_SIZE}, picked with a {@link RocanaPostingsBlockSizePolicy}, see
+ *     {@link #RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy, RocanaAutoPrefixPolicy, RocanaPostingsBlockSizePolicy, Executor)}.
+ *     The PostingsHeader then lists those fields, see below.
+ *   - Merges copy the encoded postings of terms that only one of the merged
+ *     segments has, rather than decoding and re-encoding them, see
+ *     {@link RocanaPostingsCopier}. Those terms keep the doc IDs their
+ *     segment gave them, plus a DocIDBase in their metadata, see below.
  *   - Used a custom 'short name' rather than "Lucene50". We add our own short name so
  *     Lucene can write it to the Lucene indexes, then lookup our postings format
  *     dynamically. If we didn't do this Lucene would read it's own postings format
@@ -144,18 +162,19 @@ import org.apache.lucene.util.packed.PackedInts;
  * field along with per-term statistics (such as docfreq)
  * and pointers to the frequencies, positions, payload and
  * skip data in the .doc, .pos, and .pay files.
- * See {@link BlockTreeTermsWriter} for more details on the format.
+ * See {@link RocanaBlockTreeTermsWriter} for more details on the format.
  *
  * <p>NOTE: The term dictionary can plug into different postings implementations:
  * the postings writer/reader are actually responsible for encoding
  * and decoding the PostingsHeader and TermMetadata sections described here:
  *
  * <ul>
- *   <li>PostingsHeader --&gt; Header, PackedBlockSize</li>
- *   <li>TermMetadata --&gt; (DocFPDelta|SingletonDocID), PosFPDelta?, PosVIntBlockFPDelta?, PayFPDelta?,
+ *   <li>PostingsHeader --&gt; Header, PackedBlockSize, FieldBlockSizes?</li>
+ *   <li>FieldBlockSizes --&gt; FieldCount, &lt;FieldNumber, FieldBlockSize&gt;<sup>FieldCount</sup></li>
+ *   <li>TermMetadata --&gt; (DocFPDelta|SingletonDocID), DocIDBase?, PosFPDelta?, PosVIntBlockFPDelta?, PayFPDelta?,
  *                            SkipFPDelta?</li>
  *   <li>Header, --&gt; {@link CodecUtil#writeIndexHeader IndexHeader}</li>
- *   <li>PackedBlockSize, SingletonDocID --&gt; {@link DataOutput#writeVInt VInt}</li>
+ *   <li>PackedBlockSize, SingletonDocID, FieldCount, FieldNumber, FieldBlockSize, DocIDBase --&gt; {@link DataOutput#writeVInt VInt}</li>
  *   <li>DocFPDelta, PosFPDelta, PayFPDelta, PosVIntBlockFPDelta, SkipFPDelta --&gt; {@link DataOutput#writeVLong VLong}</li>
  *   <li>Footer --&gt; {@link CodecUtil#writeFooter CodecFooter}</li>
  * </ul>
@@ -168,6 +187,10 @@ import org.apache.lucene.util.packed.PackedInts;
  *        of integers hence smaller indexes. Larger block size result in more efficient bulk i/o hence
  *        better acceleration. This value should always be a multiple of 64, currently fixed as 128 as
  *        a tradeoff. It is also the skip interval used to accelerate {@link org.apache.lucene.index.PostingsEnum#advance(int)}.
+ *    <li>FieldBlockSizes lists the fields whose packed blocks have another size than PackedBlockSize,
+ *        by field number, in increasing order. Everything said here about PackedBlockSize then holds
+ *        for FieldBlockSize instead. It is only written, with Header version 1, when there are such
+ *        fields; otherwise the header is exactly Lucene's.</li>
  *    <li>DocFPDelta determines the position of this term's TermFreqs within the .doc file.
  *        In particular, it is the difference of file offset between this term's
  *        data and previous term's data (or zero, for the first term in the block).On disk it is
@@ -191,6 +214,10 @@ import org.apache.lucene.util.packed.PackedInts;
  *    <li>SingletonDocID is an optimization when a term only appears in one document. In this case, instead
  *        of writing a file pointer to the .doc file (DocFPDelta), and then a VIntBlock at that location, the
  *        single document ID is written to the term dictionary.</li>
+ *    <li>DocIDBase is added to every document ID of the term's TermFreqs and SkipData. Only segments
+ *        written by a merge have it, with Header version 2, and only for the fields whose
+ *        {@link FieldInfo} has the {@link #DOC_ID_BASES_KEY} attribute, for terms that aren't
+ *        singletons. It lets a merge copy a term's postings from another segment as they are.</li>
  * </ul>
  * </dd>
  * </dl>
@@ -200,7 +227,7 @@ import org.apache.lucene.util.packed.PackedInts;
  * <dd>
  * <b>Term Index</b>
  * <p>The .tip file contains an index into the term dictionary, so that it can be
- * accessed randomly.  See {@link BlockTreeTermsWriter} for more details on the format.
+ * accessed randomly.  See {@link RocanaBlockTreeTermsWriter} for more details on the format.
  * </dd>
  * </dl>
  *
@@ -434,10 +461,29 @@ public final class RocanaLucene50PostingsFormat extends PostingsFormat {
 
   // Increment version to change it
   final static int VERSION_START = 0;
-  final static int VERSION_CURRENT = VERSION_START;
+  // The terms header lists the fields with other packed block sizes:
+  final static int VERSION_BLOCK_SIZES = 1;
+  // Written by merges: terms of fields with the DOC_ID_BASES_KEY attribute have a doc ID base:
+  final static int VERSION_DOC_ID_BASES = 2;
+  final static int VERSION_CURRENT = VERSION_DOC_ID_BASES;
 
-  private final int minTermBlockSize;
-  private final int maxTermBlockSize;
+  /**
+   * {@link FieldInfo} attribute a merge sets to {@code "true"} on the fields
+   * it may copy postings into, see {@link RocanaPostingsCopier}.
+   */
+  static final String DOC_ID_BASES_KEY = RocanaLucene50PostingsFormat.class.getSimpleName() + ".docIDBases";
+
+  /** Whether terms of the field have a doc ID base, in a segment of the given terms header version. */
+  static boolean hasDocIDBases(FieldInfo fieldInfo, int termsVersion) {
+    return termsVersion >= VERSION_DOC_ID_BASES && "true".equals(fieldInfo.getAttribute(DOC_ID_BASES_KEY));
+  }
+
+  private final RocanaTermBlockSizePolicy blockSizePolicy;
+  private final RocanaAutoPrefixPolicy autoPrefixPolicy;
+  private final RocanaPostingsBlockSizePolicy postingsBlockSizePolicy;
+
+  // Null means we write the fields one after another:
+  private final Executor fieldWriteExecutor;
 
   /**
    * Fixed packed block size, number of integers encoded in
@@ -449,35 +495,87 @@ public final class RocanaLucene50PostingsFormat extends PostingsFormat {
   /** Creates {@code RocanaLucene50PostingsFormat} with default
    *  settings. */
   public RocanaLucene50PostingsFormat() {
-    this(BlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, BlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
+    this(RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
   }
 
   /** Creates {@code RocanaLucene50PostingsFormat} with custom
    *  values for {@code minBlockSize} and {@code
    *  maxBlockSize} passed to block terms dictionary.
-   *  @see BlockTreeTermsWriter#BlockTreeTermsWriter(SegmentWriteState,PostingsWriterBase,int,int) */
+   *  @see RocanaBlockTreeTermsWriter#RocanaBlockTreeTermsWriter(SegmentWriteState,PostingsWriterBase,int,int) */
   public RocanaLucene50PostingsFormat(int minTermBlockSize, int maxTermBlockSize) {
+    this(minTermBlockSize, maxTermBlockSize, null);
+  }
+
+  /** Creates {@code RocanaLucene50PostingsFormat} that encodes the
+   *  postings of the fields it writes concurrently, on {@code
+   *  fieldWriteExecutor}. The files are the same as without it.
+   *  @see RocanaBlockTreeTermsWriter#RocanaBlockTreeTermsWriter(SegmentWriteState,PostingsWriterBase,int,int,int,int,Executor) */
+  public RocanaLucene50PostingsFormat(int minTermBlockSize, int maxTermBlockSize, Executor fieldWriteExecutor) {
+    this(RocanaTermBlockSizePolicy.fixed(minTermBlockSize, maxTermBlockSize), fieldWriteExecutor);
+  }
+
+  /** Creates {@code RocanaLucene50PostingsFormat} that asks {@code
+   *  blockSizePolicy} for the block sizes of each field it writes,
+   *  for example {@link RocanaTermBlockSizePolicy#adaptive()}.
+   *  @param fieldWriteExecutor see {@link #RocanaLucene50PostingsFormat(int, int, Executor)},
+   *         or null to write the fields one after another.
+   *  @see RocanaBlockTreeTermsWriter#RocanaBlockTreeTermsWriter(SegmentWriteState,PostingsWriterBase,RocanaTermBlockSizePolicy,int,int,Executor) */
+  public RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy blockSizePolicy, Executor fieldWriteExecutor) {
+    this(blockSizePolicy, RocanaAutoPrefixPolicy.disabled(), fieldWriteExecutor);
+  }
+
+  /** Creates {@code RocanaLucene50PostingsFormat} that also asks {@code
+   *  autoPrefixPolicy} which fields get auto-prefix terms, for example
+   *  {@link RocanaAutoPrefixPolicy#perField(java.util.Map)} with the
+   *  timestamp fields. Any {@code RocanaLucene50PostingsFormat} reads
+   *  them, so this only matters when writing.
+   *  @see RocanaBlockTreeTermsWriter#RocanaBlockTreeTermsWriter(SegmentWriteState,PostingsWriterBase,RocanaTermBlockSizePolicy,RocanaAutoPrefixPolicy,Executor) */
+  public RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy blockSizePolicy, RocanaAutoPrefixPolicy autoPrefixPolicy,
+                                      Executor fieldWriteExecutor) {
+    this(blockSizePolicy, autoPrefixPolicy, RocanaPostingsBlockSizePolicy.defaultPolicy(), fieldWriteExecutor);
+  }
+
+  /** Creates {@code RocanaLucene50PostingsFormat} that also asks {@code
+   *  postingsBlockSizePolicy} how many postings to pack in each block of
+   *  each field, for example {@link RocanaPostingsBlockSizePolicy#perField(java.util.Map)}
+   *  with larger blocks for fields whose postings are mostly read in full.
+   *  Any {@code RocanaLucene50PostingsFormat} reads them, so this only
+   *  matters when writing.
+   *  @see RocanaLucene50PostingsWriter#RocanaLucene50PostingsWriter(SegmentWriteState, RocanaPostingsBlockSizePolicy) */
+  public RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy blockSizePolicy, RocanaAutoPrefixPolicy autoPrefixPolicy,
+                                      RocanaPostingsBlockSizePolicy postingsBlockSizePolicy, Executor fieldWriteExecutor) {
     super(SHORT_NAME);
-    BlockTreeTermsWriter.validateSettings(minTermBlockSize, maxTermBlockSize);
-    this.minTermBlockSize = minTermBlockSize;
-    this.maxTermBlockSize = maxTermBlockSize;
+    if (blockSizePolicy == null) {
+      throw new IllegalArgumentException("blockSizePolicy must not be null");
+    }
+    if (autoPrefixPolicy == null) {
+      throw new IllegalArgumentException("autoPrefixPolicy must not be null");
+    }
+    if (postingsBlockSizePolicy == null) {
+      throw new IllegalArgumentException("postingsBlockSizePolicy must not be null");
+    }
+    this.blockSizePolicy = blockSizePolicy;
+    this.autoPrefixPolicy = autoPrefixPolicy;
+    this.postingsBlockSizePolicy = postingsBlockSizePolicy;
+    this.fieldWriteExecutor = fieldWriteExecutor;
   }
 
   @Override
   public String toString() {
-    return getName() + "(blocksize=" + BLOCK_SIZE + ")";
+    return getName() + "(blocksize=" + postingsBlockSizePolicy + ",autoPrefix=" + autoPrefixPolicy + ")";
   }
 
   @Override
   public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
-    PostingsWriterBase postingsWriter = new Lucene50PostingsWriter(state);
+    PostingsWriterBase postingsWriter = new RocanaLucene50PostingsWriter(state, postingsBlockSizePolicy);
 
     boolean success = false;
     try {
-      FieldsConsumer ret = new BlockTreeTermsWriter(state,
-                                                    postingsWriter,
-                                                    minTermBlockSize,
-                                                    maxTermBlockSize);
+      FieldsConsumer ret = new RocanaBlockTreeTermsWriter(state,
+                                                          postingsWriter,
+                                                          blockSizePolicy,
+                                                          autoPrefixPolicy,
+                                                          fieldWriteExecutor);
       success = true;
       return ret;
     } finally {
@@ -489,7 +587,7 @@ public final class RocanaLucene50PostingsFormat extends PostingsFormat {
 
   @Override
   public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
-    PostingsReaderBase postingsReader = new Lucene50PostingsReader(state);
+    PostingsReaderBase postingsReader = new RocanaLucene50PostingsReader(state);
     boolean success = false;
     try {
       FieldsProducer ret = new RocanaBlockTreeTermsReader(postingsReader, state);
@@ -511,6 +609,8 @@ public final class RocanaLucene50PostingsFormat extends PostingsFormat {
     // docid when there is a single pulsed posting, otherwise -1
     // freq is always implicitly totalTermFreq in this case.
     int singletonDocID = -1;
+    // added to all other docids, when the postings were copied from another segment:
+    int docIDBase = 0;
 
     @Override
     public IntBlockTermState clone() {
@@ -529,11 +629,12 @@ public final class RocanaLucene50PostingsFormat extends PostingsFormat {
       lastPosBlockOffset = other.lastPosBlockOffset;
       skipOffset = other.skipOffset;
       singletonDocID = other.singletonDocID;
+      docIDBase = other.docIDBase;
     }
 
     @Override
     public String toString() {
-      return super.toString() + " docStartFP=" + docStartFP + " posStartFP=" + posStartFP + " payStartFP=" + payStartFP + " lastPosBlockOffset=" + lastPosBlockOffset + " singletonDocID=" + singletonDocID;
+      return super.toString() + " docStartFP=" + docStartFP + " posStartFP=" + posStartFP + " payStartFP=" + payStartFP + " lastPosBlockOffset=" + lastPosBlockOffset + " singletonDocID=" + singletonDocID + " docIDBase=" + docIDBase;
     }
   }
 }
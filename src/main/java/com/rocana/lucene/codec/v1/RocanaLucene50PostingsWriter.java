@@ -0,0 +1,822 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.BLOCK_SIZE;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.DOC_CODEC;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.MAX_SKIP_LEVELS;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.PAY_CODEC;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.POS_CODEC;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.TERMS_CODEC;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.VERSION_BLOCK_SIZES;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.VERSION_DOC_ID_BASES;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.VERSION_START;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.IntBlockTermState;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.PushPostingsWriterBase;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Fork of Lucene's {@link org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter}
+ * from Lucene's git repository, tag: releases/lucene-solr/5.5.0
+ *
+ * Why we forked:
+ *   - {@link RocanaBlockTreeTermsWriter} can encode the postings of several
+ *     fields at once, each into its own heap buffers, and then append them
+ *     to this writer's files. That needs a few hooks the original doesn't have.
+ *
+ * What changed in the fork?
+ *   - Added {@link #newFieldWriter}, which creates a writer for one field's
+ *     postings that writes into the outputs it's given, sharing our
+ *     {@link RocanaForUtil}.
+ *   - Added {@link #appendPostings}, to append such a field's postings to our
+ *     files, and {@link #writeTermState}/{@link #readTermState} to pass the
+ *     field's term states along, moved to point into our files. The skip data
+ *     and the rest of the term state are relative to the term's start, so
+ *     the appended bytes are exactly what we'd have written ourselves.
+ *   - Added {@link #encodeTermAbsolute}, so {@link RocanaIdTermsWriter} can
+ *     store each term's metadata in its hash table too.
+ *   - Packs each field's postings in blocks of the size its
+ *     {@link RocanaPostingsBlockSizePolicy} picks, and lists the fields
+ *     with another size than {@link RocanaLucene50PostingsFormat#BLOCK_SIZE}
+ *     in the terms header. Without such fields the files are the same as
+ *     Lucene's.
+ *   - Added {@link #copyTerm}, so merges can copy a term's postings from
+ *     another segment without decoding them, see {@link RocanaPostingsCopier}.
+ *     Such terms have a doc ID base in their metadata.
+ *   - Use the other forked classes.
+ *   - Removed trailing whitespace.
+ *   - Changed these javadocs.
+ *   - Renamed class to have 'Rocana' in the name.
+ *   - Moved to a different package.
+ *
+ * To see a full diff of changes in our fork: compare this version to
+ * Lucene50PostingsWriter.java at the Lucene tag above.
+ *
+ * @see RocanaSearchCodecV1
+ *
+ * Original Lucene documentation:
+ * Concrete class that writes docId(maybe frq,pos,offset,payloads) list
+ * with postings format.
+ *
+ * Postings list for each term will be stored separately.
+ *
+ * @see RocanaLucene50SkipWriter for details about skipping setting and postings layout.
+ * @lucene.experimental
+ */
+public final class RocanaLucene50PostingsWriter extends PushPostingsWriterBase {
+
+  IndexOutput docOut;
+  IndexOutput posOut;
+  IndexOutput payOut;
+
+  final static IntBlockTermState emptyState = new IntBlockTermState();
+  IntBlockTermState lastState;
+
+  // Holds starting file pointers for current term:
+  private long docStartFP;
+  private long posStartFP;
+  private long payStartFP;
+
+  final int[] docDeltaBuffer;
+  final int[] freqBuffer;
+  private int docBufferUpto;
+
+  final int[] posDeltaBuffer;
+  final int[] payloadLengthBuffer;
+  final int[] offsetStartDeltaBuffer;
+  final int[] offsetLengthBuffer;
+  private int posBufferUpto;
+
+  private byte[] payloadBytes;
+  private int payloadByteUpto;
+
+  private int lastBlockDocID;
+  private long lastBlockPosFP;
+  private long lastBlockPayFP;
+  private int lastBlockPosBufferUpto;
+  private int lastBlockPayloadByteUpto;
+
+  private int lastDocID;
+  private int lastPosition;
+  private int lastStartOffset;
+  private int docCount;
+
+  final byte[] encoded;
+
+  // Block size of each field that doesn't use BLOCK_SIZE, by field number:
+  private final Map<Integer,Integer> fieldBlockSizes;
+  // Writes blocks of BLOCK_SIZE; the others are derived from it:
+  private final RocanaForUtil defaultForUtil;
+  private final int maxDoc;
+
+  // Version of the terms header init() wrote, or -1 before that:
+  private int termsVersion = -1;
+
+  // For the current field:
+  private boolean writeDocIDBases;
+  private int blockSize;
+  private RocanaForUtil forUtil;
+  private RocanaLucene50SkipWriter skipWriter;
+
+  /** Creates a postings writer */
+  public RocanaLucene50PostingsWriter(SegmentWriteState state) throws IOException {
+    this(state, RocanaPostingsBlockSizePolicy.defaultPolicy());
+  }
+
+  /**
+   * Creates a postings writer that packs the postings of each field in
+   * blocks of the size {@code blockSizePolicy} picks for it.
+   */
+  public RocanaLucene50PostingsWriter(SegmentWriteState state, RocanaPostingsBlockSizePolicy blockSizePolicy) throws IOException {
+    final float acceptableOverheadRatio = PackedInts.COMPACT;
+    maxDoc = state.segmentInfo.maxDoc();
+    fieldBlockSizes = fieldBlockSizes(state.fieldInfos, blockSizePolicy);
+    int maxBlockSize = BLOCK_SIZE;
+    for (int fieldBlockSize : fieldBlockSizes.values()) {
+      maxBlockSize = Math.max(maxBlockSize, fieldBlockSize);
+    }
+    final int maxDataSize = RocanaForUtil.maxDataSize(maxBlockSize);
+
+    String docFileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, RocanaLucene50PostingsFormat.DOC_EXTENSION);
+    docOut = state.directory.createOutput(docFileName, state.context);
+    IndexOutput posOut = null;
+    IndexOutput payOut = null;
+    boolean success = false;
+    try {
+      // The doc, pos and pay files are the same in every version:
+      CodecUtil.writeIndexHeader(docOut, DOC_CODEC, VERSION_START,
+                                   state.segmentInfo.getId(), state.segmentSuffix);
+      defaultForUtil = new RocanaForUtil(acceptableOverheadRatio, docOut);
+      if (state.fieldInfos.hasProx()) {
+        posDeltaBuffer = new int[maxDataSize];
+        String posFileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, RocanaLucene50PostingsFormat.POS_EXTENSION);
+        posOut = state.directory.createOutput(posFileName, state.context);
+        CodecUtil.writeIndexHeader(posOut, POS_CODEC, VERSION_START,
+                                     state.segmentInfo.getId(), state.segmentSuffix);
+
+        if (state.fieldInfos.hasPayloads()) {
+          payloadBytes = new byte[128];
+          payloadLengthBuffer = new int[maxDataSize];
+        } else {
+          payloadBytes = null;
+          payloadLengthBuffer = null;
+        }
+
+        if (state.fieldInfos.hasOffsets()) {
+          offsetStartDeltaBuffer = new int[maxDataSize];
+          offsetLengthBuffer = new int[maxDataSize];
+        } else {
+          offsetStartDeltaBuffer = null;
+          offsetLengthBuffer = null;
+        }
+
+        if (state.fieldInfos.hasPayloads() || state.fieldInfos.hasOffsets()) {
+          String payFileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, RocanaLucene50PostingsFormat.PAY_EXTENSION);
+          payOut = state.directory.createOutput(payFileName, state.context);
+          CodecUtil.writeIndexHeader(payOut, PAY_CODEC, VERSION_START,
+                                       state.segmentInfo.getId(), state.segmentSuffix);
+        }
+      } else {
+        posDeltaBuffer = null;
+        payloadLengthBuffer = null;
+        offsetStartDeltaBuffer = null;
+        offsetLengthBuffer = null;
+        payloadBytes = null;
+      }
+      this.payOut = payOut;
+      this.posOut = posOut;
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(docOut, posOut, payOut);
+      }
+    }
+
+    docDeltaBuffer = new int[maxDataSize];
+    freqBuffer = new int[maxDataSize];
+
+    // TODO: should we try skipping every 2/4 blocks...?
+    blockSize = BLOCK_SIZE;
+    forUtil = defaultForUtil;
+    skipWriter = newSkipWriter();
+
+    encoded = new byte[RocanaForUtil.maxEncodedSize(maxBlockSize)];
+  }
+
+  /** Creates a writer for one field's postings, see {@link #newFieldWriter}. */
+  private RocanaLucene50PostingsWriter(RocanaForUtil defaultForUtil, Map<Integer,Integer> fieldBlockSizes, int maxDoc, int termsVersion,
+                                       FieldInfo fieldInfo, IndexOutput docOut, IndexOutput posOut, IndexOutput payOut) {
+    this.defaultForUtil = defaultForUtil;
+    this.fieldBlockSizes = fieldBlockSizes;
+    this.maxDoc = maxDoc;
+    this.termsVersion = termsVersion;
+    this.docOut = docOut;
+    this.posOut = posOut;
+    this.payOut = payOut;
+    blockSize = blockSize(fieldInfo);
+    forUtil = defaultForUtil.withBlockSize(blockSize);
+    final int maxDataSize = forUtil.maxDataSize();
+
+    IndexOptions indexOptions = fieldInfo.getIndexOptions();
+    if (indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+      posDeltaBuffer = new int[maxDataSize];
+      if (fieldInfo.hasPayloads()) {
+        payloadBytes = new byte[128];
+        payloadLengthBuffer = new int[maxDataSize];
+      } else {
+        payloadBytes = null;
+        payloadLengthBuffer = null;
+      }
+      if (indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0) {
+        offsetStartDeltaBuffer = new int[maxDataSize];
+        offsetLengthBuffer = new int[maxDataSize];
+      } else {
+        offsetStartDeltaBuffer = null;
+        offsetLengthBuffer = null;
+      }
+    } else {
+      posDeltaBuffer = null;
+      payloadLengthBuffer = null;
+      offsetStartDeltaBuffer = null;
+      offsetLengthBuffer = null;
+      payloadBytes = null;
+    }
+
+    docDeltaBuffer = new int[maxDataSize];
+    freqBuffer = new int[maxDataSize];
+    skipWriter = newSkipWriter();
+    encoded = new byte[forUtil.maxEncodedSize()];
+  }
+
+  /**
+   * Asks the policy for the block size of each indexed field, and returns
+   * those that aren't {@link RocanaLucene50PostingsFormat#BLOCK_SIZE}.
+   */
+  private static Map<Integer,Integer> fieldBlockSizes(FieldInfos fieldInfos, RocanaPostingsBlockSizePolicy blockSizePolicy) {
+    // Sorted, to write them in order:
+    final Map<Integer,Integer> fieldBlockSizes = new TreeMap<>();
+    for (FieldInfo fieldInfo : fieldInfos) {
+      if (fieldInfo.getIndexOptions() == IndexOptions.NONE) {
+        continue;
+      }
+      final int fieldBlockSize = blockSizePolicy.getBlockSize(fieldInfo);
+      RocanaPostingsBlockSizePolicy.validateBlockSize(fieldBlockSize);
+      if (fieldBlockSize != BLOCK_SIZE) {
+        fieldBlockSizes.put(fieldInfo.number, fieldBlockSize);
+      }
+    }
+    return fieldBlockSizes;
+  }
+
+  private int blockSize(FieldInfo fieldInfo) {
+    final Integer fieldBlockSize = fieldBlockSizes.get(fieldInfo.number);
+    return fieldBlockSize == null ? BLOCK_SIZE : fieldBlockSize;
+  }
+
+  private RocanaLucene50SkipWriter newSkipWriter() {
+    return new RocanaLucene50SkipWriter(MAX_SKIP_LEVELS,
+                                        blockSize,
+                                        maxDoc,
+                                        docOut,
+                                        posOut,
+                                        payOut);
+  }
+
+  /**
+   * Creates a writer for the postings of a single field, which writes
+   * them to the given outputs, starting at their current file pointer,
+   * exactly as this writer would write them to its own files.
+   *
+   * The outputs get no header or footer: the caller closes them, and
+   * must not call {@link #close()} on the returned writer. Once done,
+   * pass the outputs to {@link #appendPostings}.
+   *
+   * The returned writer may be used on another thread than this one.
+   *
+   * @param posOut output for positions, or null if the field has none.
+   * @param payOut output for payloads and offsets, or null if the field has neither.
+   */
+  RocanaLucene50PostingsWriter newFieldWriter(FieldInfo fieldInfo, IndexOutput docOut, IndexOutput posOut, IndexOutput payOut) {
+    RocanaLucene50PostingsWriter fieldWriter = new RocanaLucene50PostingsWriter(defaultForUtil, fieldBlockSizes, maxDoc, termsVersion,
+                                                                                  fieldInfo, docOut, posOut, payOut);
+    fieldWriter.setField(fieldInfo);
+    assert fieldWriter.writePositions == (posOut != null);
+    assert (fieldWriter.writePayloads || fieldWriter.writeOffsets) == (payOut != null);
+    return fieldWriter;
+  }
+
+  /**
+   * Appends the postings a field writer from {@link #newFieldWriter}
+   * wrote to heap buffers to our files. Call {@link #setField} first.
+   *
+   * @return where the appended postings start in our doc, pos and pay
+   *         files, to pass to {@link #readTermState}.
+   */
+  long[] appendPostings(RAMOutputStream docBuffer, RAMOutputStream posBuffer, RAMOutputStream payBuffer) throws IOException {
+    final long[] bases = new long[3];
+    bases[0] = docOut.getFilePointer();
+    docBuffer.writeTo(docOut);
+    if (posBuffer != null) {
+      bases[1] = posOut.getFilePointer();
+      posBuffer.writeTo(posOut);
+    }
+    if (payBuffer != null) {
+      bases[2] = payOut.getFilePointer();
+      payBuffer.writeTo(payOut);
+    }
+    return bases;
+  }
+
+  /** Writes a term state returned by a field writer from {@link #newFieldWriter}. */
+  static void writeTermState(DataOutput out, BlockTermState _state) throws IOException {
+    IntBlockTermState state = (IntBlockTermState) _state;
+    out.writeVInt(state.docFreq);
+    out.writeZLong(state.totalTermFreq);
+    out.writeVLong(state.docStartFP);
+    out.writeVLong(state.posStartFP);
+    out.writeVLong(state.payStartFP);
+    out.writeZLong(state.skipOffset);
+    out.writeZLong(state.lastPosBlockOffset);
+    out.writeZInt(state.singletonDocID);
+    out.writeVInt(state.docIDBase);
+  }
+
+  /**
+   * Reads a term state written by {@link #writeTermState}, moving its
+   * file pointers to where {@link #appendPostings} put the postings.
+   * Skip data and the other offsets are relative to the term's start,
+   * so they stay as they are.
+   */
+  static BlockTermState readTermState(DataInput in, long[] bases) throws IOException {
+    IntBlockTermState state = new IntBlockTermState();
+    state.docFreq = in.readVInt();
+    state.totalTermFreq = in.readZLong();
+    state.docStartFP = bases[0] + in.readVLong();
+    state.posStartFP = bases[1] + in.readVLong();
+    state.payStartFP = bases[2] + in.readVLong();
+    state.skipOffset = in.readZLong();
+    state.lastPosBlockOffset = in.readZLong();
+    state.singletonDocID = in.readZInt();
+    state.docIDBase = in.readVInt();
+    return state;
+  }
+
+  /**
+   * Whether {@link #copyTerm} can copy the field's postings from a segment
+   * that packed them with {@code sourceForUtil}: only if we're writing a
+   * merged segment, and pack the field's blocks the same way.
+   */
+  boolean canCopyPostings(FieldInfo fieldInfo, RocanaForUtil sourceForUtil) {
+    assert termsVersion != -1 : "call init first";
+    return termsVersion >= VERSION_DOC_ID_BASES && defaultForUtil.withBlockSize(blockSize(fieldInfo)).sameFormat(sourceForUtil);
+  }
+
+  /**
+   * Appends a term's postings, as another segment stored them, to our
+   * files, and returns the term's state in our files. The postings are
+   * copied as they are: we add {@code docBase} to the term's doc ID base
+   * instead. Call {@link #setField} first, for a field with doc ID bases,
+   * which {@link #canCopyPostings} allowed.
+   *
+   * @param source the term's state in the other segment.
+   * @param next the state of the next term in the other segment's files,
+   *        where the term's postings end.
+   * @param posIn the other segment's positions, or null if the field has none.
+   * @param payIn the other segment's payloads and offsets, or null if the field has neither.
+   */
+  BlockTermState copyTerm(IntBlockTermState source, IntBlockTermState next, int docBase,
+                          IndexInput docIn, IndexInput posIn, IndexInput payIn) throws IOException {
+    assert writeDocIDBases;
+    final IntBlockTermState state = newTermState();
+    state.docFreq = source.docFreq;
+    state.totalTermFreq = source.totalTermFreq;
+    state.docStartFP = docOut.getFilePointer();
+    copyBytes(docIn, docOut, source.docStartFP, next.docStartFP);
+    if (writePositions) {
+      state.posStartFP = posOut.getFilePointer();
+      copyBytes(posIn, posOut, source.posStartFP, next.posStartFP);
+      if (writePayloads || writeOffsets) {
+        state.payStartFP = payOut.getFilePointer();
+        copyBytes(payIn, payOut, source.payStartFP, next.payStartFP);
+      }
+    }
+    // Relative to the term's start:
+    state.skipOffset = source.skipOffset;
+    state.lastPosBlockOffset = source.lastPosBlockOffset;
+    if (source.singletonDocID != -1) {
+      assert source.docIDBase == 0;
+      state.singletonDocID = source.singletonDocID + docBase;
+    } else {
+      state.docIDBase = source.docIDBase + docBase;
+    }
+    return state;
+  }
+
+  private static void copyBytes(IndexInput in, IndexOutput out, long startFP, long endFP) throws IOException {
+    assert startFP <= endFP : startFP + " > " + endFP;
+    in.seek(startFP);
+    out.copyBytes(in, endFP - startFP);
+  }
+
+  @Override
+  public IntBlockTermState newTermState() {
+    return new IntBlockTermState();
+  }
+
+  @Override
+  public void init(IndexOutput termsOut, SegmentWriteState state) throws IOException {
+    init(termsOut, state, false);
+  }
+
+  /**
+   * Same as {@link #init(IndexOutput, SegmentWriteState)}, but if
+   * {@code copyPostings}, {@link #copyTerm} may copy postings into the
+   * segment, so we write the version that allows doc ID bases.
+   */
+  void init(IndexOutput termsOut, SegmentWriteState state, boolean copyPostings) throws IOException {
+    if (copyPostings) {
+      termsVersion = VERSION_DOC_ID_BASES;
+    } else if (fieldBlockSizes.isEmpty()) {
+      // Same as Lucene's:
+      termsVersion = VERSION_START;
+      CodecUtil.writeIndexHeader(termsOut, TERMS_CODEC, termsVersion, state.segmentInfo.getId(), state.segmentSuffix);
+      termsOut.writeVInt(BLOCK_SIZE);
+      return;
+    } else {
+      termsVersion = VERSION_BLOCK_SIZES;
+    }
+    CodecUtil.writeIndexHeader(termsOut, TERMS_CODEC, termsVersion, state.segmentInfo.getId(), state.segmentSuffix);
+    termsOut.writeVInt(BLOCK_SIZE);
+    termsOut.writeVInt(fieldBlockSizes.size());
+    for (Map.Entry<Integer,Integer> entry : fieldBlockSizes.entrySet()) {
+      termsOut.writeVInt(entry.getKey());
+      termsOut.writeVInt(entry.getValue());
+    }
+  }
+
+  @Override
+  public int setField(FieldInfo fieldInfo) {
+    super.setField(fieldInfo);
+    final int fieldBlockSize = blockSize(fieldInfo);
+    if (fieldBlockSize != blockSize) {
+      blockSize = fieldBlockSize;
+      forUtil = defaultForUtil.withBlockSize(blockSize);
+      skipWriter = newSkipWriter();
+    }
+    skipWriter.setField(writePositions, writeOffsets, writePayloads);
+    writeDocIDBases = RocanaLucene50PostingsFormat.hasDocIDBases(fieldInfo, termsVersion);
+    lastState = emptyState;
+    if (writePositions) {
+      if (writePayloads || writeOffsets) {
+        return 3;  // doc + pos + pay FP
+      } else {
+        return 2;  // doc + pos FP
+      }
+    } else {
+      return 1;    // doc FP
+    }
+  }
+
+  @Override
+  public void startTerm() {
+    docStartFP = docOut.getFilePointer();
+    if (writePositions) {
+      posStartFP = posOut.getFilePointer();
+      if (writePayloads || writeOffsets) {
+        payStartFP = payOut.getFilePointer();
+      }
+    }
+    lastDocID = 0;
+    lastBlockDocID = -1;
+    skipWriter.resetSkip();
+  }
+
+  @Override
+  public void startDoc(int docID, int termDocFreq) throws IOException {
+    // Have collected a block of docs, and get a new doc.
+    // Should write skip data as well as postings list for
+    // current block.
+    if (lastBlockDocID != -1 && docBufferUpto == 0) {
+      skipWriter.bufferSkip(lastBlockDocID, docCount, lastBlockPosFP, lastBlockPayFP, lastBlockPosBufferUpto, lastBlockPayloadByteUpto);
+    }
+
+    final int docDelta = docID - lastDocID;
+
+    if (docID < 0 || (docCount > 0 && docDelta <= 0)) {
+      throw new CorruptIndexException("docs out of order (" + docID + " <= " + lastDocID + " )", docOut);
+    }
+
+    docDeltaBuffer[docBufferUpto] = docDelta;
+    if (writeFreqs) {
+      freqBuffer[docBufferUpto] = termDocFreq;
+    }
+
+    docBufferUpto++;
+    docCount++;
+
+    if (docBufferUpto == blockSize) {
+      forUtil.writeBlock(docDeltaBuffer, encoded, docOut);
+      if (writeFreqs) {
+        forUtil.writeBlock(freqBuffer, encoded, docOut);
+      }
+      // NOTE: don't set docBufferUpto back to 0 here;
+      // finishDoc will do so (because it needs to see that
+      // the block was filled so it can save skip data)
+    }
+
+
+    lastDocID = docID;
+    lastPosition = 0;
+    lastStartOffset = 0;
+  }
+
+  @Override
+  public void addPosition(int position, BytesRef payload, int startOffset, int endOffset) throws IOException {
+    if (position > IndexWriter.MAX_POSITION) {
+      throw new CorruptIndexException("position=" + position + " is too large (> IndexWriter.MAX_POSITION=" + IndexWriter.MAX_POSITION + ")", docOut);
+    }
+    if (position < 0) {
+      throw new CorruptIndexException("position=" + position + " is < 0", docOut);
+    }
+    posDeltaBuffer[posBufferUpto] = position - lastPosition;
+    if (writePayloads) {
+      if (payload == null || payload.length == 0) {
+        // no payload
+        payloadLengthBuffer[posBufferUpto] = 0;
+      } else {
+        payloadLengthBuffer[posBufferUpto] = payload.length;
+        if (payloadByteUpto + payload.length > payloadBytes.length) {
+          payloadBytes = ArrayUtil.grow(payloadBytes, payloadByteUpto + payload.length);
+        }
+        System.arraycopy(payload.bytes, payload.offset, payloadBytes, payloadByteUpto, payload.length);
+        payloadByteUpto += payload.length;
+      }
+    }
+
+    if (writeOffsets) {
+      assert startOffset >= lastStartOffset;
+      assert endOffset >= startOffset;
+      offsetStartDeltaBuffer[posBufferUpto] = startOffset - lastStartOffset;
+      offsetLengthBuffer[posBufferUpto] = endOffset - startOffset;
+      lastStartOffset = startOffset;
+    }
+
+    posBufferUpto++;
+    lastPosition = position;
+    if (posBufferUpto == blockSize) {
+      forUtil.writeBlock(posDeltaBuffer, encoded, posOut);
+
+      if (writePayloads) {
+        forUtil.writeBlock(payloadLengthBuffer, encoded, payOut);
+        payOut.writeVInt(payloadByteUpto);
+        payOut.writeBytes(payloadBytes, 0, payloadByteUpto);
+        payloadByteUpto = 0;
+      }
+      if (writeOffsets) {
+        forUtil.writeBlock(offsetStartDeltaBuffer, encoded, payOut);
+        forUtil.writeBlock(offsetLengthBuffer, encoded, payOut);
+      }
+      posBufferUpto = 0;
+    }
+  }
+
+  @Override
+  public void finishDoc() throws IOException {
+    // Since we don't know df for current term, we had to buffer
+    // those skip data for each block, and when a new doc comes,
+    // write them to skip file.
+    if (docBufferUpto == blockSize) {
+      lastBlockDocID = lastDocID;
+      if (posOut != null) {
+        if (payOut != null) {
+          lastBlockPayFP = payOut.getFilePointer();
+        }
+        lastBlockPosFP = posOut.getFilePointer();
+        lastBlockPosBufferUpto = posBufferUpto;
+        lastBlockPayloadByteUpto = payloadByteUpto;
+      }
+      docBufferUpto = 0;
+    }
+  }
+
+  /** Called when we are done adding docs to this term */
+  @Override
+  public void finishTerm(BlockTermState _state) throws IOException {
+    IntBlockTermState state = (IntBlockTermState) _state;
+    assert state.docFreq > 0;
+
+    // TODO: wasteful we are counting this (counting # docs
+    // for this term) in two places?
+    assert state.docFreq == docCount: state.docFreq + " vs " + docCount;
+
+    // docFreq == 1, don't write the single docid/freq to a separate file along with a pointer to it.
+    final int singletonDocID;
+    if (state.docFreq == 1) {
+      // pulse the singleton docid into the term dictionary, freq is implicitly totalTermFreq
+      singletonDocID = docDeltaBuffer[0];
+    } else {
+      singletonDocID = -1;
+      // vInt encode the remaining doc deltas and freqs:
+      for(int i=0;i<docBufferUpto;i++) {
+        final int docDelta = docDeltaBuffer[i];
+        final int freq = freqBuffer[i];
+        if (!writeFreqs) {
+          docOut.writeVInt(docDelta);
+        } else if (freqBuffer[i] == 1) {
+          docOut.writeVInt((docDelta<<1)|1);
+        } else {
+          docOut.writeVInt(docDelta<<1);
+          docOut.writeVInt(freq);
+        }
+      }
+    }
+
+    final long lastPosBlockOffset;
+
+    if (writePositions) {
+      // totalTermFreq is just total number of positions(or payloads, or offsets)
+      // associated with current term.
+      assert state.totalTermFreq != -1;
+      if (state.totalTermFreq > blockSize) {
+        // record file offset for last pos in last block
+        lastPosBlockOffset = posOut.getFilePointer() - posStartFP;
+      } else {
+        lastPosBlockOffset = -1;
+      }
+      if (posBufferUpto > 0) {
+        // TODO: should we send offsets/payloads to
+        // .pay...?  seems wasteful (have to store extra
+        // vLong for low (< BLOCK_SIZE) DF terms = vast vast
+        // majority)
+
+        // vInt encode the remaining positions/payloads/offsets:
+        int lastPayloadLength = -1;  // force first payload length to be written
+        int lastOffsetLength = -1;   // force first offset length to be written
+        int payloadBytesReadUpto = 0;
+        for(int i=0;i<posBufferUpto;i++) {
+          final int posDelta = posDeltaBuffer[i];
+          if (writePayloads) {
+            final int payloadLength = payloadLengthBuffer[i];
+            if (payloadLength != lastPayloadLength) {
+              lastPayloadLength = payloadLength;
+              posOut.writeVInt((posDelta<<1)|1);
+              posOut.writeVInt(payloadLength);
+            } else {
+              posOut.writeVInt(posDelta<<1);
+            }
+
+            if (payloadLength != 0) {
+              posOut.writeBytes(payloadBytes, payloadBytesReadUpto, payloadLength);
+              payloadBytesReadUpto += payloadLength;
+            }
+          } else {
+            posOut.writeVInt(posDelta);
+          }
+
+          if (writeOffsets) {
+            int delta = offsetStartDeltaBuffer[i];
+            int length = offsetLengthBuffer[i];
+            if (length == lastOffsetLength) {
+              posOut.writeVInt(delta << 1);
+            } else {
+              posOut.writeVInt(delta << 1 | 1);
+              posOut.writeVInt(length);
+              lastOffsetLength = length;
+            }
+          }
+        }
+
+        if (writePayloads) {
+          assert payloadBytesReadUpto == payloadByteUpto;
+          payloadByteUpto = 0;
+        }
+      }
+    } else {
+      lastPosBlockOffset = -1;
+    }
+
+    long skipOffset;
+    if (docCount > blockSize) {
+      skipOffset = skipWriter.writeSkip(docOut) - docStartFP;
+    } else {
+      skipOffset = -1;
+    }
+
+    state.docStartFP = docStartFP;
+    state.posStartFP = posStartFP;
+    state.payStartFP = payStartFP;
+    state.singletonDocID = singletonDocID;
+    state.skipOffset = skipOffset;
+    state.lastPosBlockOffset = lastPosBlockOffset;
+    docBufferUpto = 0;
+    posBufferUpto = 0;
+    lastDocID = 0;
+    docCount = 0;
+  }
+
+  @Override
+  public void encodeTerm(long[] longs, DataOutput out, FieldInfo fieldInfo, BlockTermState _state, boolean absolute) throws IOException {
+    IntBlockTermState state = (IntBlockTermState)_state;
+    if (absolute) {
+      lastState = emptyState;
+    }
+    longs[0] = state.docStartFP - lastState.docStartFP;
+    if (writePositions) {
+      longs[1] = state.posStartFP - lastState.posStartFP;
+      if (writePayloads || writeOffsets) {
+        longs[2] = state.payStartFP - lastState.payStartFP;
+      }
+    }
+    if (state.singletonDocID != -1) {
+      out.writeVInt(state.singletonDocID);
+    } else if (writeDocIDBases) {
+      out.writeVInt(state.docIDBase);
+    } else {
+      assert state.docIDBase == 0;
+    }
+    if (writePositions) {
+      if (state.lastPosBlockOffset != -1) {
+        out.writeVLong(state.lastPosBlockOffset);
+      }
+    }
+    if (state.skipOffset != -1) {
+      out.writeVLong(state.skipOffset);
+    }
+    lastState = state;
+  }
+
+  /**
+   * Same as {@link #encodeTerm} with {@code absolute} set, except the next
+   * {@link #encodeTerm} call still encodes relative to the term before this
+   * one, so a second terms dictionary can encode a term between the block
+   * tree's calls.
+   */
+  void encodeTermAbsolute(long[] longs, DataOutput out, FieldInfo fieldInfo, BlockTermState state) throws IOException {
+    final IntBlockTermState savedLastState = lastState;
+    encodeTerm(longs, out, fieldInfo, state, true);
+    lastState = savedLastState;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // TODO: add a finish() at least to PushBase? DV too...?
+    boolean success = false;
+    try {
+      if (docOut != null) {
+        CodecUtil.writeFooter(docOut);
+      }
+      if (posOut != null) {
+        CodecUtil.writeFooter(posOut);
+      }
+      if (payOut != null) {
+        CodecUtil.writeFooter(payOut);
+      }
+      success = true;
+    } finally {
+      if (success) {
+        IOUtils.close(docOut, posOut, payOut);
+      } else {
+        IOUtils.closeWhileHandlingException(docOut, posOut, payOut);
+      }
+      docOut = posOut = payOut = null;
+    }
+  }
+}
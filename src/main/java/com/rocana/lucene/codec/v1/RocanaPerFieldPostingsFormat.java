@@ -21,16 +21,20 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader; // javadocs
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.FieldsConsumer;
@@ -38,9 +42,11 @@ import org.apache.lucene.codecs.FieldsProducer;
 import org.apache.lucene.codecs.PostingsFormat;
 import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
 import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.FilterLeafReader.FilterFields;
 import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.MergeState;
 import org.apache.lucene.index.SegmentReadState;
 import org.apache.lucene.index.SegmentWriteState;
 import org.apache.lucene.index.Terms;
@@ -65,6 +71,13 @@ import org.apache.lucene.util.RamUsageEstimator;
  *   - Instead of looking up the Lucene postings format via SPI using the "Lucene50"
  *     short name, when we see that short name we instead return Rocana's fork of the
  *     Lucene postings format.
+ *   - Optionally writes the field groups (one per postings format instance)
+ *     concurrently on an {@link Executor}, see
+ *     {@link #RocanaPerFieldPostingsFormat(Executor)}.
+ *   - Merges pass the merge's state on to {@link RocanaBlockTreeTermsWriter},
+ *     so it can copy postings from the merged segments.
+ *   - The reader keeps each field's producer in a {@link RocanaFieldTable},
+ *     by field number, rather than in a TreeMap by name.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
  *   - Renamed class to have 'Rocana' in the name.
@@ -106,9 +119,33 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
   // intentionally use the non-forked class name so we don't change the on-disk format
   public static final String PER_FIELD_SUFFIX_KEY = PerFieldPostingsFormat.class.getSimpleName() + ".suffix";
 
-  /** Sole constructor. */
+  // Null means we write the field groups one after another:
+  private final Executor writeExecutor;
+
+  /** Default constructor, writes one field group at a time. */
   public RocanaPerFieldPostingsFormat() {
+    this(null);
+  }
+
+  /**
+   * Creates a postings format that writes the groups of fields
+   * using different postings formats concurrently, on
+   * {@code writeExecutor}, during flush and merge. The groups'
+   * files are all created on the calling thread, before any group
+   * starts writing, as IndexWriter expects of merges.
+   *
+   * Each group still writes its own files, so the output is the
+   * same as when writing one group at a time. The calling thread
+   * runs any group the executor hasn't started yet, so a busy (or
+   * shared) executor can only slow writing down, never deadlock it.
+   * If the executor rejects a group, the calling thread runs it.
+   *
+   * @param writeExecutor executor to write the field groups on, or
+   *        null to write them one after another.
+   */
+  public RocanaPerFieldPostingsFormat(Executor writeExecutor) {
     super(PER_FIELD_NAME);
+    this.writeExecutor = writeExecutor;
   }
 
   /** Group of fields written by one PostingsFormat */
@@ -147,10 +184,25 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
 
     @Override
     public void write(Fields fields) throws IOException {
+      write(fields, null);
+    }
+
+    @Override
+    public void merge(MergeState mergeState) throws IOException {
+      write(RocanaPostingsCopier.mergedFields(mergeState), mergeState);
+    }
+
+    /**
+     * Writes each group's fields with its format's consumer. When merging,
+     * consumers that can copy postings from the merged segments get the
+     * {@code mergeState}, see {@link RocanaPostingsCopier}.
+     */
+    private void write(Fields fields, final MergeState mergeState) throws IOException {
 
       // Maps a PostingsFormat instance to the suffix it
-      // should use
-      Map<PostingsFormat,FieldsGroup> formatToGroups = new HashMap<>();
+      // should use; in order of the group's first field, so
+      // groups are always opened in the same order:
+      Map<PostingsFormat,FieldsGroup> formatToGroups = new LinkedHashMap<>();
 
       // Holds last suffix of each PostingFormat name
       Map<String,Integer> suffixes = new HashMap<>();
@@ -210,6 +262,8 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
       }
 
       // Second pass: write postings
+      boolean concurrent = writeExecutor != null && formatToGroups.size() > 1;
+      List<FutureTask<Void>> tasks = new ArrayList<>();
       boolean success = false;
       try {
         for(Map.Entry<PostingsFormat,FieldsGroup> ent : formatToGroups.entrySet()) {
@@ -217,16 +271,29 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
           final FieldsGroup group = ent.getValue();
 
           // Exposes only the fields from this group:
-          Fields maskedFields = new FilterFields(fields) {
+          final Fields maskedFields = new FilterFields(fields) {
               @Override
               public Iterator<String> iterator() {
                 return group.fields.iterator();
               }
             };
 
-          FieldsConsumer consumer = format.fieldsConsumer(group.state);
+          final FieldsConsumer consumer = format.fieldsConsumer(group.state);
           toClose.add(consumer);
-          consumer.write(maskedFields);
+          if (concurrent) {
+            tasks.add(new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  writeGroup(consumer, maskedFields, mergeState);
+                  return null;
+                }
+              }));
+          } else {
+            writeGroup(consumer, maskedFields, mergeState);
+          }
+        }
+        if (concurrent) {
+          writeConcurrently(tasks);
         }
         success = true;
       } finally {
@@ -236,6 +303,56 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
       }
     }
 
+    private void writeGroup(FieldsConsumer consumer, Fields fields, MergeState mergeState) throws IOException {
+      if (mergeState != null && consumer instanceof RocanaBlockTreeTermsWriter) {
+        ((RocanaBlockTreeTermsWriter) consumer).write(fields, mergeState);
+      } else {
+        consumer.write(fields);
+      }
+    }
+
+    /** Runs all tasks and waits for all of them to finish, even if some fail,
+     *  so no group is still writing when the caller closes the consumers. */
+    private void writeConcurrently(List<FutureTask<Void>> tasks) throws IOException {
+      for (FutureTask<Void> task : tasks) {
+        try {
+          writeExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+          // run() below picks it up
+        }
+      }
+
+      // Help out: run() is a no-op for tasks an executor thread already started
+      for (FutureTask<Void> task : tasks) {
+        task.run();
+      }
+
+      Throwable th = null;
+      boolean interrupted = false;
+      for (FutureTask<Void> task : tasks) {
+        while (true) {
+          try {
+            task.get();
+            break;
+          } catch (InterruptedException e) {
+            // Keep waiting: we must not close files a group is still writing to
+            interrupted = true;
+          } catch (ExecutionException e) {
+            if (th == null) {
+              th = e.getCause();
+            } else {
+              th.addSuppressed(e.getCause());
+            }
+            break;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      IOUtils.reThrow(th);
+    }
+
     @Override
     public void close() throws IOException {
       IOUtils.close(toClose);
@@ -247,7 +364,7 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
 
     private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(FieldsReader.class);
 
-    private final Map<String,FieldsProducer> fields = new TreeMap<>();
+    private final RocanaFieldTable<FieldsProducer> fields;
     private final Map<String,FieldsProducer> formats = new HashMap<>();
     private final String segment;
 
@@ -262,10 +379,12 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
       }
 
       // Then rebuild fields:
-      for(Map.Entry<String,FieldsProducer> ent : other.fields.entrySet()) {
-        FieldsProducer producer = oldToNew.get(ent.getValue());
+      final FieldInfos fieldInfos = other.fields.getFieldInfos();
+      fields = new RocanaFieldTable<>(fieldInfos);
+      for (String field : other.fields) {
+        FieldsProducer producer = oldToNew.get(other.fields.get(field));
         assert producer != null;
-        fields.put(ent.getKey(), producer);
+        fields.put(fieldInfos.fieldInfo(field), producer);
       }
 
       segment = other.segment;
@@ -273,6 +392,7 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
 
     public FieldsReader(final SegmentReadState readState) throws IOException {
 
+      fields = new RocanaFieldTable<>(readState.fieldInfos);
       // Read _X.per and init each format:
       boolean success = false;
       try {
@@ -292,7 +412,7 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
               if (!formats.containsKey(segmentSuffix)) {
                 formats.put(segmentSuffix, format.fieldsProducer(new SegmentReadState(readState, segmentSuffix)));
               }
-              fields.put(fieldName, formats.get(segmentSuffix));
+              fields.put(fi, formats.get(segmentSuffix));
             }
           }
         }
@@ -342,7 +462,7 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
 
     @Override
     public Iterator<String> iterator() {
-      return Collections.unmodifiableSet(fields.keySet()).iterator();
+      return fields.iterator();
     }
 
     @Override
@@ -364,7 +484,7 @@ public abstract class RocanaPerFieldPostingsFormat extends PostingsFormat {
     @Override
     public long ramBytesUsed() {
       long ramBytesUsed = BASE_RAM_BYTES_USED;
-      ramBytesUsed += fields.size() * 2L * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+      ramBytesUsed += fields.ramBytesUsed();
       ramBytesUsed += formats.size() * 2L * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
       for(Map.Entry<String,FieldsProducer> entry: formats.entrySet()) {
         ramBytesUsed += entry.getValue().ramBytesUsed();
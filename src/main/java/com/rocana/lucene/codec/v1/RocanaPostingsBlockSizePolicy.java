@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.FieldInfo;
+
+/**
+ * Picks the number of postings {@link RocanaLucene50PostingsWriter} packs
+ * into each block of a field: doc deltas, freqs, positions, payload lengths
+ * and offsets all go in blocks of that many values, and there's a skip
+ * point every block.
+ *
+ * Larger blocks compress a little better and decode long postings lists
+ * with fewer block switches, but skipping is coarser, and a term needs at
+ * least a whole block of docs before any of them are packed. Smaller blocks
+ * skip more precisely, so {@code advance} reads less past its target.
+ *
+ * Every field gets {@link RocanaLucene50PostingsFormat#BLOCK_SIZE} unless
+ * the policy says otherwise. Only the fields with another block size are
+ * recorded in the postings header (see {@link RocanaLucene50PostingsWriter}),
+ * so a segment without any is written exactly as Lucene's format would.
+ *
+ * Implementations must be thread-safe: fields may be written concurrently.
+ */
+public abstract class RocanaPostingsBlockSizePolicy {
+
+  /** Smallest supported block size. */
+  public static final int MIN_BLOCK_SIZE = 32;
+
+  /** Largest supported block size. */
+  public static final int MAX_BLOCK_SIZE = 512;
+
+  /**
+   * Returns the postings block size to write the field with.
+   *
+   * This is called for every field in the segment before any is written,
+   * so it must not depend on the field's terms.
+   */
+  public abstract int getBlockSize(FieldInfo fieldInfo);
+
+  /**
+   * @throws IllegalArgumentException unless {@code blockSize} is a power of
+   *         two between {@link #MIN_BLOCK_SIZE} and {@link #MAX_BLOCK_SIZE}.
+   */
+  public static void validateBlockSize(int blockSize) {
+    if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+      throw new IllegalArgumentException("postings block size must be a power of two between " + MIN_BLOCK_SIZE
+        + " and " + MAX_BLOCK_SIZE + "; got " + blockSize);
+    }
+  }
+
+  private static final RocanaPostingsBlockSizePolicy DEFAULT = new RocanaPostingsBlockSizePolicy() {
+    @Override
+    public int getBlockSize(FieldInfo fieldInfo) {
+      return RocanaLucene50PostingsFormat.BLOCK_SIZE;
+    }
+
+    @Override
+    public String toString() {
+      return "default(" + RocanaLucene50PostingsFormat.BLOCK_SIZE + ")";
+    }
+  };
+
+  /** Uses {@link RocanaLucene50PostingsFormat#BLOCK_SIZE} for every field, like Lucene. */
+  public static RocanaPostingsBlockSizePolicy defaultPolicy() {
+    return DEFAULT;
+  }
+
+  /** Uses the same block size for every field. */
+  public static RocanaPostingsBlockSizePolicy fixed(final int blockSize) {
+    validateBlockSize(blockSize);
+    if (blockSize == RocanaLucene50PostingsFormat.BLOCK_SIZE) {
+      return DEFAULT;
+    }
+    return new RocanaPostingsBlockSizePolicy() {
+      @Override
+      public int getBlockSize(FieldInfo fieldInfo) {
+        return blockSize;
+      }
+
+      @Override
+      public String toString() {
+        return "fixed(" + blockSize + ")";
+      }
+    };
+  }
+
+  /**
+   * Uses the configured block size for the fields in {@code blockSizeByField},
+   * and {@link RocanaLucene50PostingsFormat#BLOCK_SIZE} for all other fields.
+   */
+  public static RocanaPostingsBlockSizePolicy perField(Map<String,Integer> blockSizeByField) {
+    final Map<String,Integer> rules = new HashMap<>(blockSizeByField);
+    for (Map.Entry<String,Integer> entry : rules.entrySet()) {
+      if (entry.getValue() == null) {
+        throw new IllegalArgumentException("null postings block size for field: " + entry.getKey());
+      }
+      validateBlockSize(entry.getValue());
+    }
+    return new RocanaPostingsBlockSizePolicy() {
+      @Override
+      public int getBlockSize(FieldInfo fieldInfo) {
+        Integer blockSize = rules.get(fieldInfo.name);
+        return blockSize == null ? RocanaLucene50PostingsFormat.BLOCK_SIZE : blockSize;
+      }
+
+      @Override
+      public String toString() {
+        return "perField(" + rules + ")";
+      }
+    };
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.IntBlockTermState;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.MappedMultiFields;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderSlice;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Copies the encoded postings of a field's terms from the segments being
+ * merged into the merged segment, for the terms only one of them has.
+ *
+ * Merging normally decodes every term's postings from each segment, and
+ * encodes them again with the merged doc IDs. A term only one segment has
+ * is encoded just like it was, except its doc IDs are shifted by the
+ * segment's doc base. So instead, {@link RocanaLucene50PostingsWriter#copyTerm}
+ * copies its doc, pos and pay bytes as they are, and adds the doc base to
+ * the term's doc ID base, which the reader adds to every doc ID it decodes.
+ * In log data most terms are in only one segment: ids, timestamps, and the
+ * like.
+ *
+ * We can copy from a segment if it has no deletions (so its doc IDs only
+ * shift), it wrote the field with {@link RocanaLucene50PostingsFormat}, and
+ * with the same index options, payloads and packed blocks as the merged
+ * field. We don't copy from a field that may have auto-prefix terms, since
+ * their postings are between those of the other terms, and we need the
+ * next term's postings to know where a term's end. For the same reason we
+ * don't copy the last term of a field.
+ *
+ * One instance copies the terms of one field. Call {@link #copyTerm} for
+ * each term of the merged field, in order.
+ */
+final class RocanaPostingsCopier {
+
+  private final MergeState mergeState;
+  // By segment; null when the segment doesn't have the field:
+  private final TermsEnum[] termsEnums;
+  // Each segment's current term; null when its terms are exhausted:
+  private final BytesRef[] terms;
+  // By segment; null when we can't copy from the segment:
+  private final RocanaFieldReader[] fieldReaders;
+  // By segment, its doc, pos and pay files, cloned when we first copy from it:
+  private final IndexInput[][] inputs;
+  private final boolean[] copiedAny;
+
+  private RocanaPostingsCopier(MergeState mergeState, TermsEnum[] termsEnums, RocanaFieldReader[] fieldReaders) throws IOException {
+    this.mergeState = mergeState;
+    this.termsEnums = termsEnums;
+    this.fieldReaders = fieldReaders;
+    terms = new BytesRef[termsEnums.length];
+    for (int i = 0; i < termsEnums.length; i++) {
+      if (termsEnums[i] != null) {
+        terms[i] = termsEnums[i].next();
+      }
+    }
+    inputs = new IndexInput[termsEnums.length][];
+    copiedAny = new boolean[termsEnums.length];
+  }
+
+  /**
+   * Returns the merged fields, like {@link org.apache.lucene.codecs.FieldsConsumer#merge}
+   * passes them to {@link org.apache.lucene.codecs.FieldsConsumer#write}.
+   */
+  static Fields mergedFields(MergeState mergeState) throws IOException {
+    final List<Fields> fields = new ArrayList<>();
+    final List<ReaderSlice> slices = new ArrayList<>();
+
+    int docBase = 0;
+    for (int readerIndex = 0; readerIndex < mergeState.fieldsProducers.length; readerIndex++) {
+      final FieldsProducer f = mergeState.fieldsProducers[readerIndex];
+      final int maxDoc = mergeState.maxDocs[readerIndex];
+      f.checkIntegrity();
+      slices.add(new ReaderSlice(docBase, maxDoc, readerIndex));
+      fields.add(f);
+      docBase += maxDoc;
+    }
+
+    return new MappedMultiFields(mergeState, new MultiFields(fields.toArray(Fields.EMPTY_ARRAY),
+                                                             slices.toArray(ReaderSlice.EMPTY_ARRAY)));
+  }
+
+  /**
+   * Returns a copier for the merged field, or null if we can't copy the
+   * postings of any segment. Otherwise, marks the field so the postings
+   * writer writes its terms' doc ID bases; call this before
+   * {@link RocanaLucene50PostingsWriter#setField}.
+   */
+  static RocanaPostingsCopier create(MergeState mergeState, FieldInfo fieldInfo, RocanaLucene50PostingsWriter postingsWriter) throws IOException {
+    final int numSegments = mergeState.fieldsProducers.length;
+    final TermsEnum[] termsEnums = new TermsEnum[numSegments];
+    final RocanaFieldReader[] fieldReaders = new RocanaFieldReader[numSegments];
+    boolean any = false;
+    for (int i = 0; i < numSegments; i++) {
+      final Terms terms = mergeState.fieldsProducers[i] == null ? null : mergeState.fieldsProducers[i].terms(fieldInfo.name);
+      if (terms == null) {
+        continue;
+      }
+      termsEnums[i] = terms.iterator();
+      if (canCopy(mergeState, i, terms, fieldInfo, postingsWriter)) {
+        fieldReaders[i] = (RocanaFieldReader) terms;
+        any = true;
+      }
+    }
+    if (any == false) {
+      return null;
+    }
+    fieldInfo.putAttribute(RocanaLucene50PostingsFormat.DOC_ID_BASES_KEY, "true");
+    return new RocanaPostingsCopier(mergeState, termsEnums, fieldReaders);
+  }
+
+  private static boolean canCopy(MergeState mergeState, int segment, Terms terms, FieldInfo fieldInfo,
+                                 RocanaLucene50PostingsWriter postingsWriter) {
+    if (mergeState.docMaps[segment].hasDeletions() || terms instanceof RocanaFieldReader == false) {
+      return false;
+    }
+    final RocanaFieldReader fieldReader = (RocanaFieldReader) terms;
+    if (fieldReader.parent.postingsReader instanceof RocanaLucene50PostingsReader == false) {
+      return false;
+    }
+    final FieldInfo sourceFieldInfo = fieldReader.fieldInfo;
+    if (sourceFieldInfo.getIndexOptions() != fieldInfo.getIndexOptions() || sourceFieldInfo.hasPayloads() != fieldInfo.hasPayloads()) {
+      return false;
+    }
+    // Only DOCS fields may have auto-prefix terms:
+    if (fieldReader.parent.anyAutoPrefixTerms && fieldInfo.getIndexOptions() == IndexOptions.DOCS) {
+      return false;
+    }
+    final RocanaLucene50PostingsReader postingsReader = (RocanaLucene50PostingsReader) fieldReader.parent.postingsReader;
+    return postingsWriter.canCopyPostings(fieldInfo, postingsReader.forUtil(sourceFieldInfo));
+  }
+
+  /**
+   * Moves on to the merged field's next term, and copies its postings with
+   * {@code postingsWriter} if we can. Returns the term's state, or null if
+   * the caller must write the term's postings.
+   */
+  BlockTermState copyTerm(BytesRef term, RocanaLucene50PostingsWriter postingsWriter) throws IOException {
+    int segment = -1;
+    int matches = 0;
+    for (int i = 0; i < terms.length; i++) {
+      // Every segment's term is in the merged field, so none is behind:
+      assert terms[i] == null || terms[i].compareTo(term) >= 0 : "segment " + i + " is on " + terms[i] + ", before " + term;
+      if (terms[i] != null && terms[i].equals(term)) {
+        segment = i;
+        matches++;
+      }
+    }
+
+    if (matches != 1 || fieldReaders[segment] == null) {
+      for (int i = 0; i < terms.length; i++) {
+        if (terms[i] != null && terms[i].equals(term)) {
+          terms[i] = termsEnums[i].next();
+        }
+      }
+      return null;
+    }
+
+    final IntBlockTermState state = (IntBlockTermState) termsEnums[segment].termState();
+    terms[segment] = termsEnums[segment].next();
+    if (terms[segment] == null) {
+      // We don't know where the last term's postings end
+      return null;
+    }
+    final IntBlockTermState next = (IntBlockTermState) termsEnums[segment].termState();
+
+    if (inputs[segment] == null) {
+      inputs[segment] = ((RocanaLucene50PostingsReader) fieldReaders[segment].parent.postingsReader).cloneInputs();
+    }
+    final IndexInput[] in = inputs[segment];
+    copiedAny[segment] = true;
+    return postingsWriter.copyTerm(state, next, mergeState.docBase[segment], in[0], in[1], in[2]);
+  }
+
+  /**
+   * Returns the number of docs that have the merged field, given the docs
+   * of the terms the caller wrote. It doesn't know the docs of the terms
+   * we copied, but we know the docs of the segments we copied from: they
+   * have no deletions, so they all have the same docs as in their segment.
+   */
+  int docCount(FixedBitSet docsSeen) {
+    int docCount = docsSeen.cardinality();
+    for (int i = 0; i < copiedAny.length; i++) {
+      if (copiedAny[i] == false) {
+        continue;
+      }
+      final int start = mergeState.docBase[i];
+      final int end = start + mergeState.maxDocs[i];
+      // Replace the docs the caller saw in this segment with all of them:
+      for (int doc = docsSeen.nextSetBit(start); doc < end; doc = doc + 1 < end ? docsSeen.nextSetBit(doc + 1) : end) {
+        docCount--;
+      }
+      docCount += fieldReaders[i].docCount;
+    }
+    return docCount;
+  }
+}
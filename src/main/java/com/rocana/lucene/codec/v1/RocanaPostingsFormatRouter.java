@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.codecs.PostingsFormat;
+
+/**
+ * Decides which postings format {@link RocanaSearchCodecV1} writes each field
+ * with, so each kind of field gets the encoding that suits how it's queried:
+ * ID fields, tiny hot fields, docs-only fields, and so on.
+ *
+ * The default routes by field name: the first pattern that matches the whole
+ * field name wins. To route from a schema instead, override
+ * {@link #getPostingsFormatForField(String)}.
+ *
+ * Routing only matters when writing. The postings format's name is stored
+ * with each field, and readers look the format up by that name through SPI
+ * (see {@link RocanaPerFieldPostingsFormat}), so every format routed to must
+ * be registered in META-INF/services/org.apache.lucene.codecs.PostingsFormat.
+ * Fields written with Lucene's "Lucene50" format are still read with our fork.
+ *
+ * @see RocanaSearchCodecV1#RocanaSearchCodecV1(RocanaPostingsFormatRouter)
+ */
+public class RocanaPostingsFormatRouter {
+
+  private final List<Pattern> patterns = new ArrayList<>();
+  private final List<PostingsFormat> formats = new ArrayList<>();
+
+  /** Routes no field: every field gets the codec's default postings format. */
+  public RocanaPostingsFormatRouter() {
+  }
+
+  /**
+   * Routes fields by name.
+   *
+   * @param formatsByPattern regular expressions, matched against the whole
+   *        field name, to the postings format for the matching fields. The
+   *        map's iteration order decides which pattern wins when several
+   *        match, so pass a {@link java.util.LinkedHashMap} if that matters.
+   */
+  public RocanaPostingsFormatRouter(Map<String,PostingsFormat> formatsByPattern) {
+    for (Map.Entry<String,PostingsFormat> entry : formatsByPattern.entrySet()) {
+      if (entry.getValue() == null) {
+        throw new IllegalArgumentException("null postings format for pattern: " + entry.getKey());
+      }
+      patterns.add(Pattern.compile(entry.getKey()));
+      formats.add(entry.getValue());
+    }
+  }
+
+  /**
+   * Returns the postings format to write {@code field} with, or null to
+   * use the codec's default postings format.
+   *
+   * Called for each field every time a segment is flushed or merged, from
+   * any indexing thread, so implementations must be thread-safe and fast.
+   */
+  public PostingsFormat getPostingsFormatForField(String field) {
+    for (int i = 0; i < patterns.size(); i++) {
+      if (patterns.get(i).matcher(field).matches()) {
+        return formats.get(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A postings format for primary-key style fields, where nearly every
+   * term is unique and lookups are exact.
+   *
+   * @see RocanaIdPostingsFormat
+   */
+  public static PostingsFormat idPostingsFormat() {
+    return new RocanaIdPostingsFormat();
+  }
+
+  /**
+   * A postings format for low-cardinality fields, where a few terms match
+   * most documents: those terms are written as bitsets.
+   *
+   * @see RocanaDensePostingsFormat
+   */
+  public static PostingsFormat densePostingsFormat() {
+    return new RocanaDensePostingsFormat();
+  }
+
+  /**
+   * A postings format for fields with many rare terms, like hostnames or
+   * error codes: terms with at most {@code maxInlineDocFreq} documents are
+   * stored in the terms dictionary, so reading them needs no seek into the
+   * postings file.
+   *
+   * @see RocanaInlinePostingsFormat
+   */
+  public static PostingsFormat inlinePostingsFormat(int maxInlineDocFreq) {
+    return new RocanaInlinePostingsFormat(maxInlineDocFreq);
+  }
+
+  /**
+   * A postings format for fields queried by range, like timestamps: our
+   * forked postings format, plus auto-prefix terms with {@code settings}.
+   * The fields must be indexed with {@link org.apache.lucene.index.IndexOptions#DOCS}.
+   *
+   * It has the same name as the codec's default postings format, so readers
+   * don't need anything: the auto-prefix terms are in the terms dictionary.
+   *
+   * @see RocanaAutoPrefixPolicy
+   */
+  public static PostingsFormat autoPrefixPostingsFormat(RocanaAutoPrefixPolicy.Settings settings) {
+    return new RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy.fixed(RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE,
+                                                                             RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE),
+                                            RocanaAutoPrefixPolicy.fixed(settings.minItemsInAutoPrefix, settings.maxItemsInAutoPrefix),
+                                            null);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("RocanaPostingsFormatRouter(");
+    for (int i = 0; i < patterns.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(patterns.get(i)).append('=').append(formats.get(i));
+    }
+    return sb.append(')').toString();
+  }
+}
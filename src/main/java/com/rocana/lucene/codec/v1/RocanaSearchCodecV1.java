@@ -18,6 +18,8 @@
  */
 package com.rocana.lucene.codec.v1;
 
+import java.util.concurrent.Executor;
+
 import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.codecs.FilterCodec;
@@ -82,6 +84,11 @@ import org.slf4j.LoggerFactory;
  *  - {@link RocanaBlockTreeTermsReader}
  *
  * Other forked classes were only forked to make the code compile.
+ *
+ * When writing, a {@link RocanaPostingsFormatRouter} can send some fields
+ * to other postings formats, see {@link #RocanaSearchCodecV1(RocanaPostingsFormatRouter)},
+ * and an {@link Executor} can write the postings of several fields at
+ * once, see {@link #RocanaSearchCodecV1(RocanaPostingsFormatRouter, Executor)}.
  */
 public class RocanaSearchCodecV1 extends FilterCodec {
 
@@ -97,18 +104,58 @@ public class RocanaSearchCodecV1 extends FilterCodec {
 
   private final RocanaPerFieldPostingsFormat perFieldPostingsFormat;
   private final RocanaLucene50PostingsFormat actualPostingsFormat;
+  private final RocanaPostingsFormatRouter router;
 
   public RocanaSearchCodecV1() {
+    this(new RocanaPostingsFormatRouter());
+  }
+
+  /**
+   * Creates the codec, writing each field with the postings format
+   * {@code router} picks for it. Fields the router doesn't route are
+   * written with our forked postings format, as usual.
+   *
+   * Readers don't need the router: Lucene instantiates this codec through
+   * SPI with the default constructor, and each field's postings format is
+   * looked up by the name stored with the field.
+   */
+  public RocanaSearchCodecV1(RocanaPostingsFormatRouter router) {
+    this(router, null);
+  }
+
+  /**
+   * Creates the codec like {@link #RocanaSearchCodecV1(RocanaPostingsFormatRouter)},
+   * but writing postings on {@code writeExecutor}, on flush and on merge:
+   * the fields routed to different postings formats concurrently, see
+   * {@link RocanaPerFieldPostingsFormat#RocanaPerFieldPostingsFormat(Executor)},
+   * and the fields written with our forked postings format concurrently
+   * too, see {@link RocanaLucene50PostingsFormat#RocanaLucene50PostingsFormat(int, int, Executor)}.
+   * The files written are the same as without it.
+   *
+   * @param writeExecutor runs the concurrent writes, or null to write one
+   *        field at a time
+   */
+  public RocanaSearchCodecV1(final RocanaPostingsFormatRouter router, Executor writeExecutor) {
     super(SHORT_NAME, new Lucene54Codec());
+    if (router == null) {
+      throw new IllegalArgumentException("router must not be null");
+    }
+    this.router = router;
     logger.debug("Instantiated custom codec: {} which wraps codec: {}", getClass(), getWrappedCodec().getClass());
 
     // use SPI so we use the exact instance Lucene instantiated (it only instantiates it once, then caches it)
     actualPostingsFormat = (RocanaLucene50PostingsFormat) PostingsFormat.forName(RocanaLucene50PostingsFormat.SHORT_NAME);
 
-    perFieldPostingsFormat = new RocanaPerFieldPostingsFormat() {
+    // Reading doesn't depend on the executor, so only writes need their own instance:
+    final PostingsFormat writePostingsFormat = writeExecutor == null ? actualPostingsFormat
+        : new RocanaLucene50PostingsFormat(RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE,
+                                           RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE, writeExecutor);
+
+    perFieldPostingsFormat = new RocanaPerFieldPostingsFormat(writeExecutor) {
       @Override
       public PostingsFormat getPostingsFormatForField(String field) {
-        return actualPostingsFormat;
+        PostingsFormat format = router.getPostingsFormatForField(field);
+        return format != null ? format : writePostingsFormat;
       }
     };
   }
@@ -154,4 +201,12 @@ public class RocanaSearchCodecV1 extends FilterCodec {
     return actualPostingsFormat;
   }
 
+  /**
+   * Get the router that picks the postings format of each field
+   * this codec writes.
+   */
+  public RocanaPostingsFormatRouter getRouter() {
+    return router;
+  }
+
 }
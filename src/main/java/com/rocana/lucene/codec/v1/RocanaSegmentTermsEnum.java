@@ -42,18 +42,22 @@ import org.apache.lucene.util.fst.Util;
  *
  * What changed in the fork?
  *   - Use the other forked classes.
+ *   - {@link #computeBlockStats()} also counts the auto-prefix terms it skips,
+ *     and reports the field's block sizes.
+ *   - Doesn't need the field's terms index until the first seek, so merges,
+ *     which only next(), never load it, see {@link RocanaFieldReader#getIndex()}.
+ *     Once it has the index it keeps it, even if the field evicts it.
+ *   - Records the terms it seeks to with the {@link RocanaTermsWarmer}, if
+ *     one was installed when the reader was opened.
+ *   - Loads blocks from the calling thread's clone of the terms dict, which
+ *     it shares with the thread's other terms enums, rather than cloning it.
+ *   - Reads ahead of the blocks it loads to next() into them, when
+ *     {@link RocanaTermsReadAhead} was installed when the reader was opened.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
  *   - Renamed class to have 'Rocana' in the name.
  *   - Moved to a different package.
  *
- * This is one of the forked classes where no logic changed, but to get
- * the fork to compile we had to fork this class too. That happened with
- * several classes because they had a hard reference to another class we
- * forked. Ideally, our forked classes would extend the original Lucene
- * class and override just the methods we need to change. Unfortunately
- * in most cases that wasn't an option because many Lucene classes are final.
- *
  * To see a full diff of changes in our fork: compare this version to the very first
  * commit in git history. That first commit is the exact file from Lucene with no
  * modifications.
@@ -66,7 +70,8 @@ import org.apache.lucene.util.fst.Util;
 
 final class RocanaSegmentTermsEnum extends TermsEnum {
 
-  // Lazy init:
+  // Lazy init; the calling thread's clone of the terms dict, as of the
+  // last block we loaded, see RocanaBlockTreeTermsReader#termsInput():
   IndexInput in;
 
   private RocanaSegmentTermsEnumFrame[] stack;
@@ -75,6 +80,10 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
   boolean termExists;
   final RocanaFieldReader fr;
 
+  // Only set while computeBlockStats() runs, so frames
+  // can record the auto-prefix terms they skip:
+  RocanaStats stats;
+
   private int targetBeforeCurrentLength;
 
   //static boolean DEBUG = BlockTreeTermsWriter.DEBUG;
@@ -89,12 +98,30 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
   private boolean eof;
 
   final BytesRefBuilder term = new BytesRefBuilder();
-  private final FST.BytesReader fstReader;
+  // The field's terms index; null until the first seek if the field reader
+  // hadn't loaded it yet, see loadIndex:
+  private FST<BytesRef> index;
+  private FST.BytesReader fstReader;
 
   @SuppressWarnings({"rawtypes","unchecked"}) private FST.Arc<BytesRef>[] arcs = new FST.Arc[1];
 
+  // Only used if the reader reads ahead, see RocanaTermsReadAhead:
+  // True while in next():
+  private boolean sequential;
+  // How many blocks we loaded in next() since the last seek:
+  private int sequentialLoads;
+  // The window we load blocks from, if any, the one read ahead after it, if
+  // any, and the buffer to read the next one into:
+  private RocanaTermsReadAhead.Window readAheadWindow;
+  private RocanaTermsReadAhead.Window nextReadAheadWindow;
+  private byte[] readAheadBuffer;
+  // Whether to record our next seek with the warmer; only the first one,
+  // see RocanaTermsWarmer#record:
+  private boolean recordSeek;
+
   public RocanaSegmentTermsEnum(RocanaFieldReader fr) throws IOException {
     this.fr = fr;
+    this.recordSeek = fr.parent.recordsSeeks;
 
     // if (DEBUG) {
     //   System.out.println("BTTR.init seg=" + fr.parent.segment);
@@ -104,10 +131,11 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
     // Used to hold seek by TermState, or cached seek
     staticFrame = new RocanaSegmentTermsEnumFrame(this, -1);
 
-    if (fr.index == null) {
+    index = fr.getLoadedIndex();
+    if (index == null) {
       fstReader = null;
     } else {
-      fstReader = fr.index.getBytesReader();
+      fstReader = index.getBytesReader();
     }
 
     // Init w/ root block; don't use index since it may
@@ -118,8 +146,8 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
 
     currentFrame = staticFrame;
     final FST.Arc<BytesRef> arc;
-    if (fr.index != null) {
-      arc = fr.index.getFirstArc(arcs[0]);
+    if (index != null) {
+      arc = index.getFirstArc(arcs[0]);
       // Empty string prefix must have an output in the index!
       assert arc.isFinal();
     } else {
@@ -139,26 +167,78 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
 
   // Not private to avoid synthetic access$NNN methods
   void initIndexInput() {
-    if (this.in == null) {
-      this.in = fr.parent.termsIn.clone();
+    // Every block load seeks, so we can use whichever thread's clone we're on:
+    this.in = fr.parent.termsInput();
+  }
+
+  /** Called as a frame starts loading the block at {@code fp}, after initIndexInput. */
+  void startBlockLoad(long fp) {
+    if (readAheadWindow != null && readAheadWindow.contains(fp) == false) {
+      retireReadAheadWindow();
+      if (readAheadWindow != null && readAheadWindow.contains(fp) == false) {
+        retireReadAheadWindow();
+      }
+    }
+    if (readAheadWindow != null) {
+      in = readAheadWindow.input(fp, in);
+    }
+  }
+
+  /** Drops the window we load blocks from, for the one read ahead after it, if any. */
+  private void retireReadAheadWindow() {
+    readAheadWindow.cancel();
+    final byte[] buffer = readAheadWindow.recycle();
+    if (buffer != null) {
+      readAheadBuffer = buffer;
     }
+    readAheadWindow = nextReadAheadWindow;
+    nextReadAheadWindow = null;
+  }
+
+  /** Called once a frame loaded the block that ends at {@code fpEnd}. */
+  void endBlockLoad(long fpEnd) {
+    if (sequential && ++sequentialLoads >= RocanaTermsReadAhead.MIN_SEQUENTIAL_LOADS) {
+      // The next floor block or sibling is likely next, so we read from
+      // there on, once there's no more than half a window left before it:
+      final RocanaTermsReadAhead.Window last = nextReadAheadWindow != null ? nextReadAheadWindow : readAheadWindow;
+      if (last == null || last.nears(fpEnd)) {
+        final RocanaTermsReadAhead.Window window = fr.parent.readAhead.read(fr.parent, last == null ? fpEnd : Math.max(fpEnd, last.end()), readAheadBuffer);
+        if (window != null) {
+          readAheadBuffer = null;
+          if (readAheadWindow == null) {
+            readAheadWindow = window;
+          } else if (nextReadAheadWindow == null) {
+            nextReadAheadWindow = window;
+          } else {
+            // A block that ends well into the next window; we're done with this one:
+            retireReadAheadWindow();
+            nextReadAheadWindow = window;
+          }
+        }
+      }
+    }
+  }
+
+  /** Keeps us from recording any seek with the warmer, as when it warms with us. */
+  void stopRecordingSeeks() {
+    recordSeek = false;
   }
 
   /** Runs next() through the entire terms dict,
    *  computing aggregate statistics. */
   public RocanaStats computeBlockStats() throws IOException {
 
-    // TODO: add total auto-prefix term count
-
     RocanaStats stats = new RocanaStats(fr.parent.segment, fr.fieldInfo.name);
-    if (fr.index != null) {
-      stats.indexNumBytes = fr.index.ramBytesUsed();
+    stats.minItemsInBlock = fr.minItemsInBlock;
+    stats.maxItemsInBlock = fr.maxItemsInBlock;
+    if (index != null) {
+      stats.indexNumBytes = index.ramBytesUsed();
     }
 
     currentFrame = staticFrame;
     FST.Arc<BytesRef> arc;
-    if (fr.index != null) {
-      arc = fr.index.getFirstArc(arcs[0]);
+    if (index != null) {
+      arc = index.getFirstArc(arcs[0]);
       // Empty string prefix must have an output in the index!
       assert arc.isFinal();
     } else {
@@ -167,10 +247,11 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
 
     // Empty string prefix must have an output in the
     // index!
-    currentFrame = pushFrame(arc, fr.rootCode, 0);
+    currentFrame = pushFrame(arc, fr.rootCode(), 0);
     currentFrame.fpOrig = currentFrame.fp;
     currentFrame.loadBlock();
     validIndexPrefix = 0;
+    this.stats = stats;
 
     stats.startBlock(currentFrame, !currentFrame.isLastInFloor);
 
@@ -215,18 +296,19 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
       }
     }
 
+    this.stats = null;
     stats.finish();
 
     // Put root frame back:
     currentFrame = staticFrame;
-    if (fr.index != null) {
-      arc = fr.index.getFirstArc(arcs[0]);
+    if (index != null) {
+      arc = index.getFirstArc(arcs[0]);
       // Empty string prefix must have an output in the index!
       assert arc.isFinal();
     } else {
       arc = null;
     }
-    currentFrame = pushFrame(arc, fr.rootCode, 0);
+    currentFrame = pushFrame(arc, fr.rootCode(), 0);
     currentFrame.rewind();
     currentFrame.loadBlock();
     validIndexPrefix = 0;
@@ -344,13 +426,32 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
   }
   */
 
+  /**
+   * Gets the terms index from the field reader, which loads it if no one
+   * needed it yet. The frames next() pushed without it have no arcs, so
+   * the seek starts over from the root block.
+   */
+  private void loadIndex() throws IOException {
+    index = fr.getIndex();
+    fstReader = index.getBytesReader();
+    currentFrame = staticFrame;
+    validIndexPrefix = 0;
+  }
+
   @Override
   public boolean seekExact(BytesRef target) throws IOException {
 
-    if (fr.index == null) {
-      throw new IllegalStateException("terms index was not loaded");
+    if (index == null) {
+      loadIndex();
+    }
+
+    if (recordSeek) {
+      recordSeek = false;
+      fr.parent.warmer.record(fr.parent.indexKey, fr.fieldInfo.name, target);
     }
 
+    sequentialLoads = 0;
+
     term.grow(1 + target.length);
 
     assert clearEOF();
@@ -480,7 +581,7 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
     } else {
 
       targetBeforeCurrentLength = -1;
-      arc = fr.index.getFirstArc(arcs[0]);
+      arc = index.getFirstArc(arcs[0]);
 
       // Empty string prefix must have an output (block) in the index!
       assert arc.isFinal();
@@ -508,7 +609,7 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
 
       final int targetLabel = target.bytes[target.offset + targetUpto] & 0xFF;
 
-      final FST.Arc<BytesRef> nextArc = fr.index.findTargetArc(targetLabel, arc, getArc(1+targetUpto), fstReader);
+      final FST.Arc<BytesRef> nextArc = index.findTargetArc(targetLabel, arc, getArc(1+targetUpto), fstReader);
 
       if (nextArc == null) {
 
@@ -604,10 +705,17 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
   @Override
   public SeekStatus seekCeil(BytesRef target) throws IOException {
 
-    if (fr.index == null) {
-      throw new IllegalStateException("terms index was not loaded");
+    if (index == null) {
+      loadIndex();
     }
 
+    if (recordSeek) {
+      recordSeek = false;
+      fr.parent.warmer.record(fr.parent.indexKey, fr.fieldInfo.name, target);
+    }
+
+    sequentialLoads = 0;
+
     term.grow(1 + target.length);
 
     assert clearEOF();
@@ -737,7 +845,7 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
     } else {
 
       targetBeforeCurrentLength = -1;
-      arc = fr.index.getFirstArc(arcs[0]);
+      arc = index.getFirstArc(arcs[0]);
 
       // Empty string prefix must have an output (block) in the index!
       assert arc.isFinal();
@@ -765,7 +873,7 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
 
       final int targetLabel = target.bytes[target.offset + targetUpto] & 0xFF;
 
-      final FST.Arc<BytesRef> nextArc = fr.index.findTargetArc(targetLabel, arc, getArc(1+targetUpto), fstReader);
+      final FST.Arc<BytesRef> nextArc = index.findTargetArc(targetLabel, arc, getArc(1+targetUpto), fstReader);
 
       if (nextArc == null) {
 
@@ -872,13 +980,13 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
         } else {
           out.println("    frame " + (isSeekFrame ? "(seek, loaded)" : "(next, loaded)") + " ord=" + ord + " fp=" + f.fp + (f.isFloor ? (" (fpOrig=" + f.fpOrig + ")") : "") + " prefixLen=" + f.prefix + " prefix=" + prefix + " nextEnt=" + f.nextEnt + (f.nextEnt == -1 ? "" : (" (of " + f.entCount + ")")) + " hasTerms=" + f.hasTerms + " isFloor=" + f.isFloor + " code=" + ((f.fp<< RocanaBlockTreeTermsReader.OUTPUT_FLAGS_NUM_BITS) + (f.hasTerms ? RocanaBlockTreeTermsReader.OUTPUT_FLAG_HAS_TERMS:0) + (f.isFloor ? RocanaBlockTreeTermsReader.OUTPUT_FLAG_IS_FLOOR:0)) + " lastSubFP=" + f.lastSubFP + " isLastInFloor=" + f.isLastInFloor + " mdUpto=" + f.metaDataUpto + " tbOrd=" + f.getTermBlockOrd());
         }
-        if (fr.index != null) {
+        if (index != null) {
           assert !isSeekFrame || f.arc != null: "isSeekFrame=" + isSeekFrame + " f.arc=" + f.arc;
           if (f.prefix > 0 && isSeekFrame && f.arc.label != (term.byteAt(f.prefix-1)&0xFF)) {
             out.println("      broken seek state: arc.label=" + (char) f.arc.label + " vs term byte=" + (char) (term.byteAt(f.prefix-1)&0xFF));
             throw new RuntimeException("seek state is broken");
           }
-          BytesRef output = Util.get(fr.index, prefix);
+          BytesRef output = Util.get(index, prefix);
           if (output == null) {
             out.println("      broken seek state: prefix is not final in index");
             throw new RuntimeException("seek state is broken");
@@ -908,17 +1016,29 @@ final class RocanaSegmentTermsEnum extends TermsEnum {
      decode all metadata up to the current term. */
   @Override
   public BytesRef next() throws IOException {
+    if (fr.parent.readAhead == null) {
+      return nextTerm();
+    }
+    sequential = true;
+    try {
+      return nextTerm();
+    } finally {
+      sequential = false;
+    }
+  }
+
+  private BytesRef nextTerm() throws IOException {
     if (in == null) {
       // Fresh TermsEnum; seek to first term:
       final FST.Arc<BytesRef> arc;
-      if (fr.index != null) {
-        arc = fr.index.getFirstArc(arcs[0]);
+      if (index != null) {
+        arc = index.getFirstArc(arcs[0]);
         // Empty string prefix must have an output in the index!
         assert arc.isFinal();
       } else {
         arc = null;
       }
-      currentFrame = pushFrame(arc, fr.rootCode, 0);
+      currentFrame = pushFrame(arc, fr.rootCode(), 0);
       currentFrame.loadBlock();
     }
 
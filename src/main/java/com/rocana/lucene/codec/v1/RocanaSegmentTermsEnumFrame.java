@@ -36,18 +36,23 @@ import org.apache.lucene.util.fst.FST;
  *
  * What changed in the fork?
  *   - Use the other forked classes.
+ *   - Skipped auto-prefix terms are reported to {@link RocanaStats} while
+ *     {@link RocanaSegmentTermsEnum#computeBlockStats()} runs.
+ *   - Reads leaf blocks with fixed length suffixes, and binary searches them
+ *     in {@link #scanToTermLeaf}, see {@link RocanaBlockTreeTermsReader#VERSION_FIXED_LENGTH_SUFFIXES}.
+ *     Reworded the TODO in {@link #loadBlock} about binary searching to
+ *     cover only the other blocks.
+ *   - Decompresses LZ4-compressed suffixes, see
+ *     {@link RocanaBlockTreeTermsReader#VERSION_COMPRESSED_SUFFIXES}.
+ *   - {@link #setFloorData} copies the floor data from the right place when
+ *     the source doesn't start at offset 0, like the root code does.
+ *   - Tells the enum as it starts and ends loading a block, so it can read
+ *     ahead, see {@link RocanaTermsReadAhead}.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
  *   - Renamed class to have 'Rocana' in the name.
  *   - Moved to a different package.
  *
- * This is one of the forked classes where no logic changed, but to get
- * the fork to compile we had to fork this class too. That happened with
- * several classes because they had a hard reference to another class we
- * forked. Ideally, our forked classes would extend the original Lucene
- * class and override just the methods we need to change. Unfortunately
- * in most cases that wasn't an option because many Lucene classes are final.
- *
  * To see a full diff of changes in our fork: compare this version to the very first
  * commit in git history. That first commit is the exact file from Lucene with no
  * modifications.
@@ -66,6 +71,10 @@ final class RocanaSegmentTermsEnumFrame {
 
   final boolean versionAutoPrefix;
 
+  final boolean versionFixedLengthSuffixes;
+
+  final boolean versionCompressedSuffixes;
+
   //static boolean DEBUG = BlockTreeTermsWriter.DEBUG;
 
   // File pointer where this block was loaded from
@@ -75,6 +84,11 @@ final class RocanaSegmentTermsEnumFrame {
 
   byte[] suffixBytes = new byte[128];
   final ByteArrayDataInput suffixesReader = new ByteArrayDataInput();
+  // Wraps suffixBytes for decompressing into it:
+  private final BytesRef suffixBytesRef = new BytesRef();
+  // Bytes the suffixes take in the terms dictionary, less than
+  // suffixesReader.length() if they're compressed:
+  int storedSuffixBytes;
 
   byte[] statBytes = new byte[64];
   final ByteArrayDataInput statsReader = new ByteArrayDataInput();
@@ -99,6 +113,13 @@ final class RocanaSegmentTermsEnumFrame {
   // True if all entries are terms
   boolean isLeafBlock;
 
+  // Length of every suffix in this leaf block, or -1 if each
+  // suffix is written with its length:
+  int fixedSuffixLength;
+
+  // Where the fixed length suffixes start in suffixBytes:
+  int fixedSuffixesStart;
+
   long lastSubFP;
 
   int nextFloorLabel;
@@ -128,6 +149,8 @@ final class RocanaSegmentTermsEnumFrame {
     this.state.totalTermFreq = -1;
     this.longs = new long[ste.fr.longsSize];
     this.versionAutoPrefix = ste.fr.parent.anyAutoPrefixTerms;
+    this.versionFixedLengthSuffixes = ste.fr.parent.version >= RocanaBlockTreeTermsReader.VERSION_FIXED_LENGTH_SUFFIXES;
+    this.versionCompressedSuffixes = ste.fr.parent.version >= RocanaBlockTreeTermsReader.VERSION_COMPRESSED_SUFFIXES;
   }
 
   public void setFloorData(ByteArrayDataInput in, BytesRef source) {
@@ -135,7 +158,8 @@ final class RocanaSegmentTermsEnumFrame {
     if (numBytes > floorData.length) {
       floorData = new byte[ArrayUtil.oversize(numBytes, 1)];
     }
-    System.arraycopy(source.bytes, source.offset+in.getPosition(), floorData, 0, numBytes);
+    // in's position already includes source.offset:
+    System.arraycopy(source.bytes, in.getPosition(), floorData, 0, numBytes);
     floorDataReader.reset(floorData, 0, numBytes);
     numFollowFloorBlocks = floorDataReader.readVInt();
     nextFloorLabel = floorDataReader.readByte() & 0xff;
@@ -180,6 +204,7 @@ final class RocanaSegmentTermsEnumFrame {
     }
     //System.out.println("blc=" + blockLoadCount);
 
+    ste.startBlockLoad(fp);
     ste.in.seek(fp);
     int code = ste.in.readVInt();
     entCount = code >>> 1;
@@ -188,20 +213,54 @@ final class RocanaSegmentTermsEnumFrame {
 
     assert arc == null || (isLastInFloor || isFloor): "fp=" + fp + " arc=" + arc + " isFloor=" + isFloor + " isLastInFloor=" + isLastInFloor;
 
-    // TODO: if suffixes were stored in random-access
-    // array structure, then we could do binary search
-    // instead of linear scan to find target term; eg
-    // we could have simple array of offsets
+    // TODO: leaf blocks with fixed length suffixes are binary
+    // searched, see binarySearchTermLeaf; if the suffixes of the
+    // other blocks were stored in random-access array structure,
+    // then we could binary search those too, instead of linear
+    // scan to find target term; eg we could have simple array
+    // of offsets
 
     // term suffixes:
     code = ste.in.readVInt();
     isLeafBlock = (code & 1) != 0;
-    int numBytes = code >>> 1;
-    if (suffixBytes.length < numBytes) {
-      suffixBytes = new byte[ArrayUtil.oversize(numBytes, 1)];
+    final boolean hasFixedLengthSuffixes;
+    final boolean hasCompressedSuffixes;
+    int numBytes;
+    if (versionCompressedSuffixes) {
+      hasCompressedSuffixes = (code & 4) != 0;
+      hasFixedLengthSuffixes = (code & 2) != 0;
+      numBytes = code >>> 3;
+    } else if (versionFixedLengthSuffixes) {
+      hasCompressedSuffixes = false;
+      hasFixedLengthSuffixes = (code & 2) != 0;
+      numBytes = code >>> 2;
+    } else {
+      hasCompressedSuffixes = false;
+      hasFixedLengthSuffixes = false;
+      numBytes = code >>> 1;
+    }
+    if (hasCompressedSuffixes) {
+      final long suffixesFP = ste.in.getFilePointer();
+      suffixBytesRef.bytes = suffixBytes;
+      RocanaBlockTreeTermsReader.SUFFIX_DECOMPRESSOR.decompress(ste.in, numBytes, 0, numBytes, suffixBytesRef);
+      // The decompressor grows the array if it's too small:
+      suffixBytes = suffixBytesRef.bytes;
+      storedSuffixBytes = (int) (ste.in.getFilePointer() - suffixesFP);
+    } else {
+      if (suffixBytes.length < numBytes) {
+        suffixBytes = new byte[ArrayUtil.oversize(numBytes, 1)];
+      }
+      ste.in.readBytes(suffixBytes, 0, numBytes);
+      storedSuffixBytes = numBytes;
     }
-    ste.in.readBytes(suffixBytes, 0, numBytes);
     suffixesReader.reset(suffixBytes, 0, numBytes);
+    if (hasFixedLengthSuffixes) {
+      assert isLeafBlock;
+      fixedSuffixLength = suffixesReader.readVInt();
+      fixedSuffixesStart = suffixesReader.getPosition();
+    } else {
+      fixedSuffixLength = -1;
+    }
 
     /*if (DEBUG) {
       if (arc == null) {
@@ -237,6 +296,7 @@ final class RocanaSegmentTermsEnumFrame {
     // Sub-blocks of a single floor block are always
     // written one after another -- tail recurse:
     fpEnd = ste.in.getFilePointer();
+    ste.endBlockLoad(fpEnd);
     // if (DEBUG) {
     //   System.out.println("      fpEnd=" + fpEnd);
     // }
@@ -304,7 +364,7 @@ final class RocanaSegmentTermsEnumFrame {
     //if (DEBUG) System.out.println("  frame.next ord=" + ord + " nextEnt=" + nextEnt + " entCount=" + entCount);
     assert nextEnt != -1 && nextEnt < entCount: "nextEnt=" + nextEnt + " entCount=" + entCount + " fp=" + fp;
     nextEnt++;
-    suffix = suffixesReader.readVInt();
+    suffix = fixedSuffixLength != -1 ? fixedSuffixLength : suffixesReader.readVInt();
     startBytePos = suffixesReader.getPosition();
     ste.term.setLength(prefix + suffix);
     ste.term.grow(ste.term.length());
@@ -379,6 +439,9 @@ final class RocanaSegmentTermsEnumFrame {
           // A prefix term: skip it
           state.termBlockOrd++;
           suffixesReader.readByte();
+          if (ste.stats != null) {
+            ste.stats.autoPrefixTerm(this, ste.term.get());
+          }
           continue;
         }
       }
@@ -604,6 +667,10 @@ final class RocanaSegmentTermsEnumFrame {
 
     assert prefixMatches(target);
 
+    if (fixedSuffixLength != -1) {
+      return binarySearchTermLeaf(target, exactOnly);
+    }
+
     // Loop over each entry (term or sub-block) in this block:
     //nextTerm: while(nextEnt < entCount) {
     nextTerm: while (true) {
@@ -694,6 +761,81 @@ final class RocanaSegmentTermsEnumFrame {
     return SeekStatus.END;
   }
 
+  // Same as scanToTermLeaf, for a leaf block with fixed length
+  // suffixes: binary search the entries we haven't passed yet.
+  // Leaves the frame exactly where the linear scan would.
+  private SeekStatus binarySearchTermLeaf(BytesRef target, boolean exactOnly) {
+    suffix = fixedSuffixLength;
+    final int targetStart = target.offset + prefix;
+    final int targetSuffix = target.length - prefix;
+
+    int lo = nextEnt;
+    int hi = entCount - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int cmp = compareSuffix(fixedSuffixesStart + mid * suffix, target.bytes, targetStart, targetSuffix);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        positionLeaf(mid);
+        fillTerm();
+        return SeekStatus.FOUND;
+      }
+    }
+
+    if (lo < entCount) {
+      // Entry lo is the first one after the target:
+      positionLeaf(lo);
+      fillTerm();
+      return SeekStatus.NOT_FOUND;
+    }
+
+    // All entries are before the target:
+    positionLeaf(entCount - 1);
+    if (exactOnly) {
+      fillTerm();
+    }
+    return SeekStatus.END;
+  }
+
+  // Compares the suffix at suffixPos to the target's suffix, 8 bytes at a time.
+  private int compareSuffix(int suffixPos, byte[] targetBytes, int targetPos, int targetSuffix) {
+    final int limit = Math.min(suffix, targetSuffix);
+    int i = 0;
+    for (; i + 8 <= limit; i += 8) {
+      final long a = readLong(suffixBytes, suffixPos + i);
+      final long b = readLong(targetBytes, targetPos + i);
+      if (a != b) {
+        // Unsigned compare, so bytes compare like (b & 0xFF):
+        return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE) ? -1 : 1;
+      }
+    }
+    for (; i < limit; i++) {
+      final int cmp = (suffixBytes[suffixPos + i] & 0xFF) - (targetBytes[targetPos + i] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return suffix - targetSuffix;
+  }
+
+  // Reads 8 bytes big-endian, so comparing the longs compares the bytes in order:
+  private static long readLong(byte[] bytes, int pos) {
+    return ((bytes[pos] & 0xFFL) << 56) | ((bytes[pos + 1] & 0xFFL) << 48)
+      | ((bytes[pos + 2] & 0xFFL) << 40) | ((bytes[pos + 3] & 0xFFL) << 32)
+      | ((bytes[pos + 4] & 0xFFL) << 24) | ((bytes[pos + 5] & 0xFFL) << 16)
+      | ((bytes[pos + 6] & 0xFFL) << 8) | (bytes[pos + 7] & 0xFFL);
+  }
+
+  // Positions this leaf block on entry ent, like next() would have:
+  private void positionLeaf(int ent) {
+    nextEnt = ent + 1;
+    startBytePos = fixedSuffixesStart + ent * fixedSuffixLength;
+    suffixesReader.setPosition(startBytePos + fixedSuffixLength);
+  }
+
   // Target's prefix matches this block's prefix; we
   // scan the entries check if the suffix matches.
   public SeekStatus scanToTermNonLeaf(BytesRef target, boolean exactOnly) throws IOException {
@@ -18,11 +18,14 @@ package com.rocana.lucene.codec.v1;
 
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Locale;
 
 import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
@@ -36,22 +39,22 @@ import org.apache.lucene.util.IOUtils;
  *
  * What changed in the fork?
  *   - Use the other forked classes.
+ *   - Auto-prefix terms are counted separately from normal terms (count, bytes,
+ *     blocks holding them and a histogram by prefix length), so we can judge
+ *     the space/speed tradeoff of auto-prefix settings on numeric and timestamp
+ *     fields. {@link #totalTermCount} no longer includes auto-prefix terms, so it
+ *     now matches {@link RocanaFieldReader#size()}.
+ *   - {@link RocanaBlockTreeTermsWriter} gathers the same stats while it writes
+ *     the blocks ({@link #writtenBlock}) and stores them with {@link #writeTo},
+ *     so {@link RocanaFieldReader#getStats()} can read them back with
+ *     {@link #readFrom} instead of walking every block.
+ *   - Reports the block sizes the writer used for the field ({@link #minItemsInBlock}
+ *     and {@link #maxItemsInBlock}), next to the blocks they produced.
  *   - Removed trailing whitespace.
  *   - Changed these javadocs.
  *   - Renamed class to have 'Rocana' in the name.
  *   - Moved to a different package.
  *
- * This is one of the forked classes where no logic changed, but to get
- * the fork to compile we had to fork this class too. That happened with
- * several classes because they had a hard reference to another class we
- * forked. Ideally, our forked classes would extend the original Lucene
- * class and override just the methods we need to change.
- *
- * Unfortunately in this particular case, the methods we need to customize
- * reference a private field and, as this class might be on a critical
- * performance path, we don't want to pay the performance price of using
- * reflection to access that private field.
- *
  * To see a full diff of changes in our fork: compare this version to the very first
  * commit in git history. That first commit is the exact file from Lucene with no
  * modifications.
@@ -73,7 +76,23 @@ public class RocanaStats {
   /** Total number of bytes (sum of term lengths) across all terms in the field. */
   public long totalTermBytes;
 
-  // TODO: add total auto-prefix term count
+  /** Total number of auto-prefix terms in the field. These are
+   *  not included in {@link #totalTermCount}. */
+  public long totalAutoPrefixTermCount;
+
+  /** Total number of bytes (sum of term lengths) across all
+   *  auto-prefix terms in the field. */
+  public long totalAutoPrefixTermBytes;
+
+  /** The number of blocks that hold at least one auto-prefix term. */
+  public int autoPrefixBlockCount;
+
+  /** Number of auto-prefix terms at each prefix length. */
+  public int[] autoPrefixTermCountByPrefixLen = new int[10];
+
+  // Auto-prefix terms seen so far in the block loaded at each
+  // frame ord; blocks nest while we walk, so one counter isn't enough:
+  private int[] blockAutoPrefixTermCount = new int[10];
 
   /** The number of normal (non-floor) blocks in the terms file. */
   public int nonFloorBlockCount;
@@ -117,6 +136,14 @@ public class RocanaStats {
    *  plus the other few vInts stored in the frame. */
   public long totalBlockOtherBytes;
 
+  /** The minimum number of entries per block the field was written with,
+   *  see {@link RocanaTermBlockSizePolicy}, or 0 if the index didn't store it. */
+  public int minItemsInBlock;
+
+  /** The maximum number of entries per block the field was written with,
+   *  see {@link RocanaTermBlockSizePolicy}, or 0 if the index didn't store it. */
+  public int maxItemsInBlock;
+
   /** Segment name. */
   public final String segment;
 
@@ -144,14 +171,22 @@ public class RocanaStats {
     }
     blockCountByPrefixLen[frame.prefix]++;
     startBlockCount++;
-    totalBlockSuffixBytes += frame.suffixesReader.length();
+    if (blockAutoPrefixTermCount.length <= frame.ord) {
+      blockAutoPrefixTermCount = ArrayUtil.grow(blockAutoPrefixTermCount, 1+frame.ord);
+    }
+    blockAutoPrefixTermCount[frame.ord] = 0;
+    totalBlockSuffixBytes += frame.storedSuffixBytes;
     totalBlockStatsBytes += frame.statsReader.length();
   }
 
   void endBlock(RocanaSegmentTermsEnumFrame frame) {
     final int termCount = frame.isLeafBlock ? frame.entCount : frame.state.termBlockOrd;
     final int subBlockCount = frame.entCount - termCount;
-    totalTermCount += termCount;
+    // auto-prefix terms are entries too, but they are tallied separately:
+    totalTermCount += termCount - blockAutoPrefixTermCount[frame.ord];
+    if (blockAutoPrefixTermCount[frame.ord] != 0) {
+      autoPrefixBlockCount++;
+    }
     if (termCount != 0 && subBlockCount != 0) {
       mixedBlockCount++;
     } else if (termCount != 0) {
@@ -162,7 +197,7 @@ public class RocanaStats {
       throw new IllegalStateException();
     }
     endBlockCount++;
-    final long otherBytes = frame.fpEnd - frame.fp - frame.suffixesReader.length() - frame.statsReader.length();
+    final long otherBytes = frame.fpEnd - frame.fp - frame.storedSuffixBytes - frame.statsReader.length();
     assert otherBytes > 0 : "otherBytes=" + otherBytes + " frame.fp=" + frame.fp + " frame.fpEnd=" + frame.fpEnd;
     totalBlockOtherBytes += otherBytes;
   }
@@ -171,12 +206,130 @@ public class RocanaStats {
     totalTermBytes += term.length;
   }
 
+  void autoPrefixTerm(RocanaSegmentTermsEnumFrame frame, BytesRef term) {
+    autoPrefixTerm(term);
+    blockAutoPrefixTermCount[frame.ord]++;
+  }
+
+  void autoPrefixTerm(BytesRef term) {
+    totalAutoPrefixTermCount++;
+    totalAutoPrefixTermBytes += term.length;
+    if (autoPrefixTermCountByPrefixLen.length <= term.length) {
+      autoPrefixTermCountByPrefixLen = ArrayUtil.grow(autoPrefixTermCountByPrefixLen, 1+term.length);
+    }
+    autoPrefixTermCountByPrefixLen[term.length]++;
+  }
+
+  /** Records one block as {@link RocanaBlockTreeTermsWriter} writes it; this
+   *  counts the same things as {@link #startBlock} and {@link #endBlock} do
+   *  when walking the blocks. {@code termCount} includes the auto-prefix terms. */
+  void writtenBlock(int prefixLength, boolean isFloor, boolean isFirstFloorBlock, int termCount, int autoPrefixTermCount,
+                    int subBlockCount, long suffixBytes, long statsBytes, long otherBytes) {
+    totalBlockCount++;
+    if (isFloor) {
+      if (isFirstFloorBlock) {
+        floorBlockCount++;
+      }
+      floorSubBlockCount++;
+    } else {
+      nonFloorBlockCount++;
+    }
+
+    if (blockCountByPrefixLen.length <= prefixLength) {
+      blockCountByPrefixLen = ArrayUtil.grow(blockCountByPrefixLen, 1+prefixLength);
+    }
+    blockCountByPrefixLen[prefixLength]++;
+    startBlockCount++;
+    totalBlockSuffixBytes += suffixBytes;
+    totalBlockStatsBytes += statsBytes;
+
+    totalTermCount += termCount - autoPrefixTermCount;
+    if (autoPrefixTermCount != 0) {
+      autoPrefixBlockCount++;
+    }
+    if (termCount != 0 && subBlockCount != 0) {
+      mixedBlockCount++;
+    } else if (termCount != 0) {
+      termsOnlyBlockCount++;
+    } else if (subBlockCount != 0) {
+      subBlocksOnlyBlockCount++;
+    } else {
+      throw new IllegalStateException();
+    }
+    endBlockCount++;
+    assert otherBytes > 0 : "otherBytes=" + otherBytes;
+    totalBlockOtherBytes += otherBytes;
+  }
+
   void finish() {
     assert startBlockCount == endBlockCount: "startBlockCount=" + startBlockCount + " endBlockCount=" + endBlockCount;
     assert totalBlockCount == floorSubBlockCount + nonFloorBlockCount: "floorSubBlockCount=" + floorSubBlockCount + " nonFloorBlockCount=" + nonFloorBlockCount + " totalBlockCount=" + totalBlockCount;
     assert totalBlockCount == mixedBlockCount + termsOnlyBlockCount + subBlocksOnlyBlockCount: "totalBlockCount=" + totalBlockCount + " mixedBlockCount=" + mixedBlockCount + " subBlocksOnlyBlockCount=" + subBlocksOnlyBlockCount + " termsOnlyBlockCount=" + termsOnlyBlockCount;
   }
 
+  /** Writes everything but {@link #indexNumBytes}, which the
+   *  reader gets from the terms index it loads. */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeVLong(totalTermCount);
+    out.writeVLong(totalTermBytes);
+    out.writeVInt(nonFloorBlockCount);
+    out.writeVInt(floorBlockCount);
+    out.writeVInt(floorSubBlockCount);
+    out.writeVInt(mixedBlockCount);
+    out.writeVInt(termsOnlyBlockCount);
+    out.writeVInt(subBlocksOnlyBlockCount);
+    writeCounts(out, blockCountByPrefixLen);
+    out.writeVLong(totalBlockSuffixBytes);
+    out.writeVLong(totalBlockStatsBytes);
+    out.writeVLong(totalBlockOtherBytes);
+    out.writeVLong(totalAutoPrefixTermCount);
+    out.writeVLong(totalAutoPrefixTermBytes);
+    out.writeVInt(autoPrefixBlockCount);
+    writeCounts(out, autoPrefixTermCountByPrefixLen);
+  }
+
+  /** Reads the stats written by {@link #writeTo}. */
+  void readFrom(DataInput in) throws IOException {
+    totalTermCount = in.readVLong();
+    totalTermBytes = in.readVLong();
+    nonFloorBlockCount = in.readVInt();
+    floorBlockCount = in.readVInt();
+    floorSubBlockCount = in.readVInt();
+    mixedBlockCount = in.readVInt();
+    termsOnlyBlockCount = in.readVInt();
+    subBlocksOnlyBlockCount = in.readVInt();
+    totalBlockCount = nonFloorBlockCount + floorSubBlockCount;
+    blockCountByPrefixLen = readCounts(in);
+    totalBlockSuffixBytes = in.readVLong();
+    totalBlockStatsBytes = in.readVLong();
+    totalBlockOtherBytes = in.readVLong();
+    totalAutoPrefixTermCount = in.readVLong();
+    totalAutoPrefixTermBytes = in.readVLong();
+    autoPrefixBlockCount = in.readVInt();
+    autoPrefixTermCountByPrefixLen = readCounts(in);
+  }
+
+  // Trailing zeros are not written:
+  private static void writeCounts(DataOutput out, int[] counts) throws IOException {
+    int length = counts.length;
+    while (length > 0 && counts[length-1] == 0) {
+      length--;
+    }
+    out.writeVInt(length);
+    for(int i=0;i<length;i++) {
+      out.writeVInt(counts[i]);
+    }
+  }
+
+  private static int[] readCounts(DataInput in) throws IOException {
+    final int length = in.readVInt();
+    final int[] counts = new int[Math.max(10, length)];
+    for(int i=0;i<length;i++) {
+      counts[i] = in.readVInt();
+    }
+    return counts;
+  }
+
   @Override
   public String toString() {
     final ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
@@ -215,6 +368,25 @@ public class RocanaStats {
       }
       assert totalBlockCount == total;
     }
+    if (minItemsInBlock != 0) {
+      out.println("    written with " + minItemsInBlock + "-" + maxItemsInBlock + " entries per block");
+    }
+    out.println("  auto-prefix terms:");
+    out.println("    " + totalAutoPrefixTermCount + " auto-prefix terms");
+    out.println("    " + totalAutoPrefixTermBytes + " bytes" + (totalAutoPrefixTermCount != 0 ? " (" + String.format(Locale.ROOT, "%.1f", ((double) totalAutoPrefixTermBytes)/totalAutoPrefixTermCount) + " bytes/auto-prefix-term)" : ""));
+    out.println("    " + autoPrefixBlockCount + " blocks with auto-prefix terms" + (totalBlockCount != 0 ? " (" + String.format(Locale.ROOT, "%.1f", 100.0 * autoPrefixBlockCount/totalBlockCount) + "% of blocks)" : ""));
+    if (totalAutoPrefixTermCount != 0) {
+      out.println("    by prefix length:");
+      long total = 0;
+      for(int prefix=0;prefix<autoPrefixTermCountByPrefixLen.length;prefix++) {
+        final int termCount = autoPrefixTermCountByPrefixLen[prefix];
+        total += termCount;
+        if (termCount != 0) {
+          out.println("      " + String.format(Locale.ROOT, "%2d", prefix) + ": " + termCount);
+        }
+      }
+      assert totalAutoPrefixTermCount == total;
+    }
 
     try {
       return bos.toString(IOUtils.UTF_8);
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Picks how many entries (terms or sub-blocks) go in each terms dictionary
+ * block, per field, when {@link RocanaBlockTreeTermsWriter} writes the field.
+ *
+ * Bigger blocks mean fewer blocks, so a smaller terms index (the .tip file,
+ * which searchers hold on heap), but each seek scans more entries once it
+ * reaches a block. Smaller blocks are the other way around. One setting for
+ * every field is wrong for most of our fields: a 5-value enum field doesn't
+ * care, while a 100M-term ID field's terms index costs real heap.
+ *
+ * The chosen sizes are stored with each field, see
+ * {@link RocanaFieldReader#getMinItemsInBlock()} and {@link RocanaStats#minItemsInBlock}.
+ * Readers don't need them, any sizes can be read.
+ *
+ * Implementations must be thread-safe: fields may be written concurrently.
+ */
+public abstract class RocanaTermBlockSizePolicy {
+
+  /** The block sizes for one field. */
+  public static final class BlockSizes {
+    public final int minItemsInBlock;
+    public final int maxItemsInBlock;
+
+    /** @throws IllegalArgumentException if the sizes are invalid,
+     *  see {@link RocanaBlockTreeTermsWriter#validateSettings(int, int)} */
+    public BlockSizes(int minItemsInBlock, int maxItemsInBlock) {
+      RocanaBlockTreeTermsWriter.validateSettings(minItemsInBlock, maxItemsInBlock);
+      this.minItemsInBlock = minItemsInBlock;
+      this.maxItemsInBlock = maxItemsInBlock;
+    }
+
+    @Override
+    public String toString() {
+      return minItemsInBlock + "-" + maxItemsInBlock;
+    }
+  }
+
+  /** Lucene's default block sizes. */
+  public static final BlockSizes DEFAULT_BLOCK_SIZES =
+    new BlockSizes(RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
+
+  /**
+   * Returns the block sizes to write the field with.
+   *
+   * @param terms the field's terms, which may be iterated, but that's
+   *        an extra pass over the terms.
+   */
+  public abstract BlockSizes getBlockSizes(FieldInfo fieldInfo, Terms terms) throws IOException;
+
+  /**
+   * Returns the block sizes to write the field with, when it's flushed
+   * ({@code mergeState} is null) or merged. Merged terms don't know their
+   * statistics, but the segments in {@code mergeState} do. By default,
+   * {@link #getBlockSizes(FieldInfo, Terms)}.
+   */
+  public BlockSizes getBlockSizes(FieldInfo fieldInfo, Terms terms, MergeState mergeState) throws IOException {
+    return getBlockSizes(fieldInfo, terms);
+  }
+
+  /** Uses the same block sizes for every field, like Lucene does. */
+  public static RocanaTermBlockSizePolicy fixed(int minItemsInBlock, int maxItemsInBlock) {
+    final BlockSizes blockSizes = new BlockSizes(minItemsInBlock, maxItemsInBlock);
+    return new RocanaTermBlockSizePolicy() {
+      @Override
+      public BlockSizes getBlockSizes(FieldInfo fieldInfo, Terms terms) {
+        return blockSizes;
+      }
+
+      @Override
+      public String toString() {
+        return "fixed(" + blockSizes + ")";
+      }
+    };
+  }
+
+  /**
+   * Uses the configured block sizes for the fields in {@code blockSizesByField},
+   * and asks {@code otherFields} for any other field.
+   */
+  public static RocanaTermBlockSizePolicy perField(Map<String,BlockSizes> blockSizesByField, final RocanaTermBlockSizePolicy otherFields) {
+    final Map<String,BlockSizes> rules = new HashMap<>(blockSizesByField);
+    return new RocanaTermBlockSizePolicy() {
+      @Override
+      public BlockSizes getBlockSizes(FieldInfo fieldInfo, Terms terms) throws IOException {
+        return getBlockSizes(fieldInfo, terms, null);
+      }
+
+      @Override
+      public BlockSizes getBlockSizes(FieldInfo fieldInfo, Terms terms, MergeState mergeState) throws IOException {
+        BlockSizes blockSizes = rules.get(fieldInfo.name);
+        return blockSizes != null ? blockSizes : otherFields.getBlockSizes(fieldInfo, terms, mergeState);
+      }
+
+      @Override
+      public String toString() {
+        return "perField(" + rules + ", otherFields=" + otherFields + ")";
+      }
+    };
+  }
+
+  /** Picks block sizes from the field's terms, see {@link Adaptive}. */
+  public static RocanaTermBlockSizePolicy adaptive() {
+    return new Adaptive(Adaptive.LARGE_FIELD_TERMS, Adaptive.LONG_TERM_BYTES);
+  }
+
+  /**
+   * Looks at the field's term count and its first terms, and:
+   *   - uses {@link #LARGE_FIELD_BLOCK_SIZES} for fields with at least
+   *     {@code largeFieldTerms} terms (ID-like fields), which roughly halves
+   *     their terms index;
+   *   - else uses {@link #LONG_TERMS_BLOCK_SIZES} for fields whose terms are
+   *     {@code longTermBytes} bytes or longer on average (URLs, messages),
+   *     since scanning a block costs more the longer its suffixes are;
+   *   - else uses {@link #DEFAULT_BLOCK_SIZES}.
+   *
+   * The term count is {@link Terms#size()} when the terms know it. Merged
+   * terms don't, so at merge it's the sum of the merged segments' term
+   * counts: an upper bound, since terms in several segments count once per
+   * segment. The average term length is that of the first
+   * {@link #TERM_BYTES_SAMPLE} terms. Only flushed terms, which are in
+   * memory, know neither; then we count up to {@code largeFieldTerms} of
+   * them, unless {@link Terms#getSumDocFreq()} says there are fewer.
+   */
+  public static class Adaptive extends RocanaTermBlockSizePolicy {
+
+    /** Fields with at least this many terms get {@link #LARGE_FIELD_BLOCK_SIZES}. */
+    public static final int LARGE_FIELD_TERMS = 1000000;
+
+    /** Fields whose average term has at least this many bytes get {@link #LONG_TERMS_BLOCK_SIZES}. */
+    public static final int LONG_TERM_BYTES = 48;
+
+    public static final BlockSizes LARGE_FIELD_BLOCK_SIZES = new BlockSizes(48, 94);
+
+    public static final BlockSizes LONG_TERMS_BLOCK_SIZES = new BlockSizes(16, 30);
+
+    /** How many of the field's first terms we average the length of, when we know its term count. */
+    public static final int TERM_BYTES_SAMPLE = 1024;
+
+    private final int largeFieldTerms;
+    private final int longTermBytes;
+
+    /** @see RocanaTermBlockSizePolicy#adaptive() for the default thresholds */
+    public Adaptive(int largeFieldTerms, int longTermBytes) {
+      if (largeFieldTerms <= 0) {
+        throw new IllegalArgumentException("largeFieldTerms must be > 0; got " + largeFieldTerms);
+      }
+      if (longTermBytes <= 0) {
+        throw new IllegalArgumentException("longTermBytes must be > 0; got " + longTermBytes);
+      }
+      this.largeFieldTerms = largeFieldTerms;
+      this.longTermBytes = longTermBytes;
+    }
+
+    @Override
+    public BlockSizes getBlockSizes(FieldInfo fieldInfo, Terms terms) throws IOException {
+      return getBlockSizes(fieldInfo, terms, null);
+    }
+
+    @Override
+    public BlockSizes getBlockSizes(FieldInfo fieldInfo, Terms terms, MergeState mergeState) throws IOException {
+      final long termCount = termCount(fieldInfo, terms, mergeState);
+      if (termCount >= largeFieldTerms) {
+        return LARGE_FIELD_BLOCK_SIZES;
+      }
+
+      // Without the term count, we count the terms while we're at it:
+      final long maxTerms = termCount == -1 ? largeFieldTerms : TERM_BYTES_SAMPLE;
+      long seenTerms = 0;
+      long termBytes = 0;
+      TermsEnum termsEnum = terms.iterator();
+      BytesRef term;
+      while (seenTerms < maxTerms && (term = termsEnum.next()) != null) {
+        seenTerms++;
+        termBytes += term.length;
+      }
+
+      if (termCount == -1 && seenTerms >= largeFieldTerms) {
+        return LARGE_FIELD_BLOCK_SIZES;
+      } else if (seenTerms > 0 && termBytes / seenTerms >= longTermBytes) {
+        return LONG_TERMS_BLOCK_SIZES;
+      } else {
+        return DEFAULT_BLOCK_SIZES;
+      }
+    }
+
+    /**
+     * Returns the field's term count or an upper bound of it, or -1 if we
+     * don't know it and the field may be large.
+     */
+    private long termCount(FieldInfo fieldInfo, Terms terms, MergeState mergeState) throws IOException {
+      try {
+        final long size = terms.size();
+        if (size != -1) {
+          return size;
+        }
+      } catch (UnsupportedOperationException e) {
+        // Flushed and merged terms don't know it
+      }
+
+      if (mergeState != null) {
+        long sum = 0;
+        for (FieldsProducer fieldsProducer : mergeState.fieldsProducers) {
+          final Terms segmentTerms = fieldsProducer == null ? null : fieldsProducer.terms(fieldInfo.name);
+          if (segmentTerms == null) {
+            continue;
+          }
+          final long size = segmentTerms.size();
+          if (size == -1) {
+            return -1;
+          }
+          sum += size;
+        }
+        return sum;
+      }
+
+      try {
+        // Each term is in at least one doc:
+        final long sumDocFreq = terms.getSumDocFreq();
+        if (sumDocFreq != -1 && sumDocFreq < largeFieldTerms) {
+          return sumDocFreq;
+        }
+      } catch (UnsupportedOperationException e) {
+        // Flushed terms don't know it
+      }
+      return -1;
+    }
+
+    @Override
+    public String toString() {
+      return "adaptive(largeFieldTerms=" + largeFieldTerms + ", longTermBytes=" + longTermBytes + ")";
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayDeque;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Bounds how many bytes of terms indexes (FSTs) all
+ * {@link RocanaBlockTreeTermsReader}s load at once, node-wide.
+ *
+ * When a rebalance lands, hundreds of segments open at the same time, and
+ * without a bound all their readers read their terms index files at once,
+ * competing for bandwidth and heap. Once a governor is installed with
+ * {@link #install}, readers ask it before loading terms indexes, weighing
+ * each load by the bytes it reads from the terms index file (.tip), and
+ * wait in line while the loads in flight would exceed
+ * {@link #getMaxBytesInFlight()}. A load bigger than that on its own still
+ * runs, once nothing else is in flight.
+ *
+ * Loads go in two lines, each first come, first served:
+ * <ul>
+ *   <li>Urgent: a terms enum needs a field's index to seek, so a search is
+ *       waiting on it. That happens for readers that load their indexes on
+ *       first use, see {@link RocanaTermsIndexMemoryManager}.</li>
+ *   <li>Otherwise: a reader loads all its fields' indexes as it opens.</li>
+ * </ul>
+ * No load in the second line runs while one waits in the first.
+ *
+ * This class is thread-safe.
+ */
+public final class RocanaTermsIndexLoadGovernor {
+
+  private static volatile RocanaTermsIndexLoadGovernor installed;
+
+  private final long maxBytesInFlight;
+
+  // All guarded by this:
+  private final ArrayDeque<Object> urgentLine = new ArrayDeque<>();
+  private final ArrayDeque<Object> line = new ArrayDeque<>();
+  private long bytesInFlight;
+  private long admittedCount;
+  private long waitedCount;
+  private long totalWaitNanos;
+  private long maxWaitNanos;
+
+  /**
+   * @param maxBytesInFlight how many bytes of terms index files all readers
+   *        may be loading at once
+   */
+  public RocanaTermsIndexLoadGovernor(long maxBytesInFlight) {
+    if (maxBytesInFlight <= 0) {
+      throw new IllegalArgumentException("maxBytesInFlight must be > 0; got " + maxBytesInFlight);
+    }
+    this.maxBytesInFlight = maxBytesInFlight;
+  }
+
+  /**
+   * Makes the readers opened from now on load their terms indexes through
+   * {@code governor}. Pass null to stop governing new readers.
+   */
+  public static void install(RocanaTermsIndexLoadGovernor governor) {
+    installed = governor;
+  }
+
+  /** Returns the installed governor, or null if none is. */
+  public static RocanaTermsIndexLoadGovernor getInstalled() {
+    return installed;
+  }
+
+  /**
+   * Waits until a load of {@code bytes} may run, and then counts it as in
+   * flight; the caller must {@link #release} it once done, in a finally.
+   *
+   * @param urgent true if a search is waiting on this load
+   * @throws ThreadInterruptedException if interrupted while waiting
+   */
+  void acquire(long bytes, boolean urgent) {
+    assert bytes >= 0;
+    final long start = System.nanoTime();
+    boolean waited = false;
+    synchronized (this) {
+      final Object ticket = new Object();
+      final ArrayDeque<Object> myLine = urgent ? urgentLine : line;
+      myLine.addLast(ticket);
+      try {
+        while (next() != ticket || (bytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight)) {
+          waited = true;
+          wait();
+        }
+      } catch (InterruptedException e) {
+        myLine.remove(ticket);
+        // We may have been the one the others were waiting behind:
+        notifyAll();
+        throw new ThreadInterruptedException(e);
+      }
+      myLine.removeFirst();
+      bytesInFlight += bytes;
+      admittedCount++;
+      if (waited) {
+        final long waitNanos = System.nanoTime() - start;
+        waitedCount++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+      }
+      // The next one in line may fit too:
+      notifyAll();
+    }
+  }
+
+  /** Ends a load of {@code bytes} that {@link #acquire} let run. */
+  synchronized void release(long bytes) {
+    bytesInFlight -= bytes;
+    assert bytesInFlight >= 0;
+    notifyAll();
+  }
+
+  /** The ticket that runs next: the first urgent one, else the first one. */
+  private Object next() {
+    assert Thread.holdsLock(this);
+    final Object next = urgentLine.peekFirst();
+    return next != null ? next : line.peekFirst();
+  }
+
+  /** Returns how many bytes of terms index files all readers may load at once. */
+  public long getMaxBytesInFlight() {
+    return maxBytesInFlight;
+  }
+
+  /** Returns how many bytes of terms index files are being loaded. */
+  public synchronized long getBytesInFlight() {
+    return bytesInFlight;
+  }
+
+  /** Returns how many loads are waiting in line, urgent or not. */
+  public synchronized int getQueueLength() {
+    return urgentLine.size() + line.size();
+  }
+
+  /** Returns how many loads ran so far, whether they waited or not. */
+  public synchronized long getAdmittedCount() {
+    return admittedCount;
+  }
+
+  /** Returns how many of the loads that ran had to wait. */
+  public synchronized long getWaitedCount() {
+    return waitedCount;
+  }
+
+  /** Returns the total time the loads that ran waited in line, in nanoseconds. */
+  public synchronized long getTotalWaitNanos() {
+    return totalWaitNanos;
+  }
+
+  /** Returns the longest time a load that ran waited in line, in nanoseconds. */
+  public synchronized long getMaxWaitNanos() {
+    return maxWaitNanos;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "RocanaTermsIndexLoadGovernor(maxBytesInFlight=" + maxBytesInFlight + ",bytesInFlight=" + bytesInFlight
+      + ",queued=" + getQueueLength() + ",admitted=" + admittedCount + ",waited=" + waitedCount
+      + ",totalWaitNanos=" + totalWaitNanos + ",maxWaitNanos=" + maxWaitNanos + ")";
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Caps the heap the terms indexes (FSTs) of all open
+ * {@link RocanaBlockTreeTermsReader}s take, node-wide.
+ *
+ * Without it, a reader loads the terms index of every field when it's
+ * opened, and keeps them until it's closed. After a rebalance a node may
+ * open many segments at once, and their terms indexes add up.
+ *
+ * Once a manager is installed with {@link #install}, the readers opened
+ * after that load a field's terms index the first time an enum needs it,
+ * and register its size here. When the registered indexes take more than
+ * {@link #getMaxBytes()}, we evict the least recently used ones; their
+ * fields load them again from the terms index file when next needed. Each
+ * terms enum created on a field counts as a use of its index.
+ *
+ * Uses are on every query's path, so they don't lock: they only set a bit
+ * on the field. Recency is then approximated the CLOCK way: we evict from
+ * the oldest loaded index on, but an index used since we last looked gets
+ * its bit cleared and a second chance at the end of the line instead.
+ *
+ * Enums that are still using an evicted index keep it until they're done,
+ * so the heap they take can briefly exceed the budget. We never evict the
+ * index that was just loaded, even if it alone is over the budget.
+ *
+ * This class is thread-safe.
+ */
+public final class RocanaTermsIndexMemoryManager {
+
+  private static volatile RocanaTermsIndexMemoryManager installed;
+
+  // Guarded by this; in load order, except for second chances, so the
+  // first is the next we look at for eviction:
+  private final LinkedHashMap<RocanaFieldReader,Resident> resident = new LinkedHashMap<>();
+  private long maxBytes;
+  private long residentBytes;
+  private long loadCount;
+  private long evictionCount;
+
+  /** A loaded terms index. */
+  private static final class Resident {
+    final RocanaFieldReader field;
+    final FST<BytesRef> index;
+    final long bytes;
+
+    Resident(RocanaFieldReader field, FST<BytesRef> index) {
+      this.field = field;
+      this.index = index;
+      this.bytes = index.ramBytesUsed();
+    }
+  }
+
+  /**
+   * @param maxBytes how much heap the terms indexes of all managed readers
+   *        may take, in bytes
+   */
+  public RocanaTermsIndexMemoryManager(long maxBytes) {
+    checkMaxBytes(maxBytes);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Makes {@code manager} manage the terms indexes of the readers opened
+   * from now on; readers that are already open aren't affected. Pass null
+   * to stop managing new readers.
+   */
+  public static void install(RocanaTermsIndexMemoryManager manager) {
+    installed = manager;
+  }
+
+  /** Returns the installed manager, or null if none is. */
+  public static RocanaTermsIndexMemoryManager getInstalled() {
+    return installed;
+  }
+
+  private static void checkMaxBytes(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must be >= 0; got " + maxBytes);
+    }
+  }
+
+  /** Returns the budget for the terms indexes of all managed readers, in bytes. */
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Changes the budget, evicting terms indexes right away if they're now over it. */
+  public void setMaxBytes(long maxBytes) {
+    checkMaxBytes(maxBytes);
+    final List<Resident> evicted;
+    synchronized (this) {
+      this.maxBytes = maxBytes;
+      evicted = evictOverBudget(null);
+    }
+    evict(evicted);
+  }
+
+  /** Returns how many bytes the loaded terms indexes take. */
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  /** Returns how many fields have their terms index loaded. */
+  public synchronized int getResidentCount() {
+    return resident.size();
+  }
+
+  /** Returns how many times a field loaded its terms index, including reloads after evictions. */
+  public synchronized long getLoadCount() {
+    return loadCount;
+  }
+
+  /** Returns how many times we evicted a field's terms index. */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Called once {@code field} has loaded {@code index}, its terms index. */
+  void loaded(RocanaFieldReader field, FST<BytesRef> index) {
+    final List<Resident> evicted;
+    synchronized (this) {
+      final Resident previous = resident.remove(field);
+      if (previous != null) {
+        residentBytes -= previous.bytes;
+      }
+      final Resident loaded = new Resident(field, index);
+      resident.put(field, loaded);
+      residentBytes += loaded.bytes;
+      loadCount++;
+      evicted = evictOverBudget(loaded);
+    }
+    evict(evicted);
+  }
+
+  /**
+   * Called when an enum is about to use the terms index of {@code field}.
+   * Doesn't lock, and only writes if the field wasn't marked used already.
+   */
+  void used(RocanaFieldReader field) {
+    if (field.indexUsed == false) {
+      field.indexUsed = true;
+    }
+  }
+
+  /** Called when the reader of {@code fields} is closed. */
+  synchronized void released(Collection<RocanaFieldReader> fields) {
+    for (RocanaFieldReader field : fields) {
+      final Resident removed = resident.remove(field);
+      if (removed != null) {
+        residentBytes -= removed.bytes;
+      }
+    }
+  }
+
+  /**
+   * Removes loaded indexes, but {@code keep}, until the rest fit in the
+   * budget, and returns them: from the first on, giving those used since
+   * we last looked a second chance at the end. The caller must evict them
+   * once it no longer holds our lock, since fields load their terms index
+   * holding their own lock.
+   */
+  private List<Resident> evictOverBudget(Resident keep) {
+    assert Thread.holdsLock(this);
+    if (residentBytes <= maxBytes) {
+      return null;
+    }
+    if (keep != null) {
+      resident.remove(keep.field);
+    }
+    List<Resident> evicted = null;
+    // So we're done even if every index is used again as we go:
+    int secondChances = resident.size();
+    while (residentBytes > maxBytes && resident.isEmpty() == false) {
+      final Resident first = resident.values().iterator().next();
+      resident.remove(first.field);
+      if (secondChances > 0 && first.field.indexUsed) {
+        secondChances--;
+        first.field.indexUsed = false;
+        resident.put(first.field, first);
+        continue;
+      }
+      residentBytes -= first.bytes;
+      evictionCount++;
+      if (evicted == null) {
+        evicted = new ArrayList<>();
+      }
+      evicted.add(first);
+    }
+    if (keep != null) {
+      // Just loaded, so the last we'd look at:
+      resident.put(keep.field, keep);
+    }
+    return evicted;
+  }
+
+  private static void evict(List<Resident> evicted) {
+    if (evicted != null) {
+      for (Resident r : evicted) {
+        r.field.evictIndex(r.index);
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "RocanaTermsIndexMemoryManager(maxBytes=" + maxBytes + ",residentBytes=" + residentBytes
+      + ",resident=" + resident.size() + ",loads=" + loadCount + ",evictions=" + evictionCount + ")";
+  }
+}
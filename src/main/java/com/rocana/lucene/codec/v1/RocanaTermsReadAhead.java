@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the terms dict ahead of terms enums that next() through it, so
+ * full scans (exports, merges, big multi-term query rewrites) overlap the
+ * I/O of a block with decoding the one before, rather than waiting on the
+ * storage at every block.
+ *
+ * Once read-ahead is installed with {@link #install}, the terms enums of
+ * the readers opened after that, once they next() from one block into
+ * another without seeking in between, read the {@code windowBytes} after
+ * the end of the block they loaded on the executor. In the terms dict, a
+ * block is followed by its next floor block or its next sibling, which is
+ * usually what such an enum loads next. The enum then loads the blocks that
+ * start in the window from there, and from the file past the window's end.
+ * Once it has loaded a block that ends past the middle of the window, it
+ * reads the window after it, so that one is read by the time it gets there.
+ * A block of a window the executor hasn't started reading yet by then the
+ * enum reads itself, rather than wait.
+ *
+ * This class is thread-safe.
+ */
+public final class RocanaTermsReadAhead {
+
+  private static final Logger logger = LoggerFactory.getLogger(RocanaTermsReadAhead.class);
+
+  /**
+   * How many blocks in a row an enum loads to next() into them, after its
+   * last seek, before we read ahead of it; so we don't for the few next()
+   * calls that commonly follow a seek.
+   */
+  static final int MIN_SEQUENTIAL_LOADS = 2;
+
+  private static volatile RocanaTermsReadAhead installed;
+
+  private final Executor executor;
+  private final int windowBytes;
+
+  private final AtomicLong readCount = new AtomicLong();
+  private final AtomicLong usedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * @param executor reads the windows
+   * @param windowBytes how many bytes to read after the end of a block;
+   *        the larger, the more of the next block we read ahead, but also
+   *        the more we read that isn't needed
+   */
+  public RocanaTermsReadAhead(Executor executor, int windowBytes) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor must not be null");
+    }
+    if (windowBytes <= 0) {
+      throw new IllegalArgumentException("windowBytes must be > 0; got " + windowBytes);
+    }
+    this.executor = executor;
+    this.windowBytes = windowBytes;
+  }
+
+  /**
+   * Makes the readers opened from now on read ahead with {@code readAhead}.
+   * Pass null to stop.
+   */
+  public static void install(RocanaTermsReadAhead readAhead) {
+    installed = readAhead;
+  }
+
+  /** Returns the installed read-ahead, or null if none is. */
+  public static RocanaTermsReadAhead getInstalled() {
+    return installed;
+  }
+
+  /**
+   * Starts reading the window at {@code start} of {@code reader}'s terms
+   * dict on the executor, into {@code buffer} if it's the right size, and
+   * returns it, or null if the executor rejected it.
+   */
+  Window read(RocanaBlockTreeTermsReader reader, long start, byte[] buffer) {
+    final Window window = new Window(reader, start, buffer != null && buffer.length == windowBytes ? buffer : new byte[windowBytes]);
+    try {
+      executor.execute(window);
+    } catch (RejectedExecutionException e) {
+      rejectedCount.incrementAndGet();
+      return null;
+    }
+    readCount.incrementAndGet();
+    return window;
+  }
+
+  /** Returns how many windows we started reading. */
+  public long getReadCount() {
+    return readCount.get();
+  }
+
+  /** Returns how many block loads read from a window. */
+  public long getUsedCount() {
+    return usedCount.get();
+  }
+
+  /** Returns how many windows we didn't read because the executor rejected them. */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /** Bytes of the terms dict read ahead. */
+  final class Window implements Runnable {
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    private final RocanaBlockTreeTermsReader reader;
+    private final long start;
+    private final byte[] bytes;
+
+    // Guarded by this:
+    private int state = QUEUED;
+    // How many bytes we read; only set once DONE:
+    private int length;
+
+    Window(RocanaBlockTreeTermsReader reader, long start, byte[] bytes) {
+      this.reader = reader;
+      this.start = start;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (state != QUEUED) {
+          return;
+        }
+        state = RUNNING;
+      }
+      int read = 0;
+      try {
+        if (reader.startBackgroundWork()) {
+          try {
+            final IndexInput in = reader.termsInput();
+            final int length = (int) Math.min(bytes.length, in.length() - start);
+            if (length > 0) {
+              in.seek(start);
+              in.readBytes(bytes, 0, length);
+              read = length;
+            }
+          } finally {
+            reader.endBackgroundWork();
+          }
+        }
+      } catch (IOException | AlreadyClosedException e) {
+        // Only reading ahead; the enum will see it too if it's not from closing
+        logger.debug("Failed to read ahead in segment {}", reader.segment, e);
+      } finally {
+        synchronized (this) {
+          length = read;
+          state = DONE;
+          notifyAll();
+        }
+      }
+    }
+
+    /** Returns where the window ends, even if we didn't read up to there. */
+    long end() {
+      return start + bytes.length;
+    }
+
+    /** True if the window has the block at {@code fp}. */
+    boolean contains(long fp) {
+      return fp >= start && fp < end();
+    }
+
+    /** True if a block ending at {@code fpEnd} ends past the middle of the window. */
+    boolean nears(long fpEnd) {
+      return fpEnd - start >= bytes.length / 2;
+    }
+
+    /** Keeps the executor from reading the window, unless it started already. */
+    synchronized void cancel() {
+      if (state == QUEUED) {
+        state = CANCELLED;
+      }
+    }
+
+    /**
+     * Returns the input to load the block at {@code fp} from: one that
+     * reads from this window, and from {@code in} past its end, if the
+     * window has {@code fp}; else {@code in}.
+     */
+    IndexInput input(long fp, IndexInput in) {
+      if (contains(fp) == false) {
+        cancel();
+        return in;
+      }
+      synchronized (this) {
+        if (state == QUEUED || state == CANCELLED) {
+          // Reading it ourselves is quicker than waiting for it to start;
+          // it may still be read by the time we load the blocks after it:
+          return in;
+        }
+        try {
+          while (state == RUNNING) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          throw new ThreadInterruptedException(e);
+        }
+        if (fp >= start + length) {
+          return in;
+        }
+      }
+      usedCount.incrementAndGet();
+      return new WindowInput(in);
+    }
+
+    /** Returns our buffer, to read the next window into, or null if we may still be reading into it. */
+    synchronized byte[] recycle() {
+      return state == DONE || state == CANCELLED ? bytes : null;
+    }
+
+    /** Reads from the window, and from the terms dict past its end. */
+    private final class WindowInput extends IndexInput {
+
+      private final IndexInput in;
+      private final long end;
+      private long pos;
+
+      WindowInput(IndexInput in) {
+        super("WindowInput(" + in + ")");
+        this.in = in;
+        this.end = start + length;
+        this.pos = start;
+      }
+
+      @Override
+      public byte readByte() throws IOException {
+        if (pos < end) {
+          return bytes[(int) (pos++ - start)];
+        }
+        if (in.getFilePointer() != pos) {
+          in.seek(pos);
+        }
+        pos++;
+        return in.readByte();
+      }
+
+      @Override
+      public void readBytes(byte[] b, int offset, int len) throws IOException {
+        if (pos < end) {
+          final int n = (int) Math.min(len, end - pos);
+          System.arraycopy(bytes, (int) (pos - start), b, offset, n);
+          pos += n;
+          offset += n;
+          len -= n;
+        }
+        if (len > 0) {
+          if (in.getFilePointer() != pos) {
+            in.seek(pos);
+          }
+          in.readBytes(b, offset, len);
+          pos += len;
+        }
+      }
+
+      @Override
+      public long getFilePointer() {
+        return pos;
+      }
+
+      @Override
+      public void seek(long pos) throws IOException {
+        if (pos < start || pos > in.length()) {
+          throw new IllegalArgumentException("seek to " + pos + " before the window at " + start + ": " + this);
+        }
+        this.pos = pos;
+      }
+
+      @Override
+      public long length() {
+        return in.length();
+      }
+
+      @Override
+      public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+        // We read at the same offsets as the terms dict:
+        return in.slice(sliceDescription, offset, length);
+      }
+
+      @Override
+      public void close() {
+        // The terms dict is closed by its reader
+      }
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms newly opened {@link RocanaBlockTreeTermsReader}s with the terms
+ * recent queries looked up, so the first searches on a new segment don't
+ * pay for cold caches: walking the terms index, loading the terms block,
+ * and reading the first postings.
+ *
+ * Once a warmer is installed with {@link #install}, the terms enums of the
+ * readers opened after that, other than for merging, record the term of
+ * their first seek, or rather the field and the first {@code prefixLength}
+ * bytes of the term; optionally only a sample of them. A search looks up
+ * each of its terms with an enum of its own, while bulk lookups, like the
+ * IndexWriter applying deletes by ID, seek one enum many times, so this
+ * keeps those from crowding out the terms queries look up. And when such a
+ * reader opens, the warmer seeks to each prefix recorded for its index on
+ * the executor, and reads its first doc; those seeks aren't recorded.
+ *
+ * Recent triples of index, field and prefix are kept in a fixed number of
+ * slots, by hash: a triple takes the slot of the one it collides with, so
+ * the sketch stays bounded, and recording one that is already there doesn't
+ * allocate or lock. An index is told apart by the identity of its
+ * {@link org.apache.lucene.store.Directory}; should two collide, warming a
+ * prefix a segment doesn't have costs just a seek.
+ *
+ * This class is thread-safe.
+ */
+public final class RocanaTermsWarmer {
+
+  private static final Logger logger = LoggerFactory.getLogger(RocanaTermsWarmer.class);
+
+  private static volatile RocanaTermsWarmer installed;
+
+  private static final class Entry {
+    final int indexKey;
+    final String field;
+    final BytesRef prefix;
+
+    Entry(int indexKey, String field, BytesRef prefix) {
+      this.indexKey = indexKey;
+      this.field = field;
+      this.prefix = prefix;
+    }
+  }
+
+  private final Executor executor;
+  private final int prefixLength;
+  private final int sampleEvery;
+  private final AtomicReferenceArray<Entry> slots;
+
+  private final AtomicLong warmedReaderCount = new AtomicLong();
+  private final AtomicLong warmedTermCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * @param executor runs the warming of each new reader
+   * @param numSlots how many (index, field, prefix) triples we keep at most
+   * @param prefixLength how many leading bytes of the terms we keep; enough
+   *        to find the terms block, rather than the exact term
+   */
+  public RocanaTermsWarmer(Executor executor, int numSlots, int prefixLength) {
+    this(executor, numSlots, prefixLength, 1);
+  }
+
+  /**
+   * Like {@link #RocanaTermsWarmer(Executor, int, int)}, but only records
+   * one in {@code sampleEvery} of the seeks, at random.
+   */
+  public RocanaTermsWarmer(Executor executor, int numSlots, int prefixLength, int sampleEvery) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor must not be null");
+    }
+    if (numSlots <= 0) {
+      throw new IllegalArgumentException("numSlots must be > 0; got " + numSlots);
+    }
+    if (prefixLength <= 0) {
+      throw new IllegalArgumentException("prefixLength must be > 0; got " + prefixLength);
+    }
+    if (sampleEvery <= 0) {
+      throw new IllegalArgumentException("sampleEvery must be > 0; got " + sampleEvery);
+    }
+    this.executor = executor;
+    this.prefixLength = prefixLength;
+    this.sampleEvery = sampleEvery;
+    this.slots = new AtomicReferenceArray<>(numSlots);
+  }
+
+  /**
+   * Makes the readers opened from now on record their seeks with
+   * {@code warmer}, and get warmed by it. Pass null to stop.
+   */
+  public static void install(RocanaTermsWarmer warmer) {
+    installed = warmer;
+  }
+
+  /** Returns the installed warmer, or null if none is. */
+  public static RocanaTermsWarmer getInstalled() {
+    return installed;
+  }
+
+  /**
+   * Records that a new terms enum of {@code field}, in the index identified
+   * by {@code indexKey}, seeks to {@code term}.
+   */
+  void record(int indexKey, String field, BytesRef term) {
+    if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+      return;
+    }
+    final int length = Math.min(term.length, prefixLength);
+    final int hash = 31 * (31 * indexKey + field.hashCode()) + StringHelper.murmurhash3_x86_32(term.bytes, term.offset, length, 0);
+    final int slot = (hash & 0x7fffffff) % slots.length();
+    final Entry entry = slots.get(slot);
+    if (entry != null && entry.indexKey == indexKey && entry.field.equals(field) && isPrefix(entry.prefix, term, length)) {
+      return;
+    }
+    slots.set(slot, new Entry(indexKey, field, BytesRef.deepCopyOf(new BytesRef(term.bytes, term.offset, length))));
+  }
+
+  private static boolean isPrefix(BytesRef prefix, BytesRef term, int length) {
+    if (prefix.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (prefix.bytes[prefix.offset + i] != term.bytes[term.offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Warms {@code reader}, which just opened, on the executor. */
+  void warm(final RocanaBlockTreeTermsReader reader) {
+    final List<Entry> entries = new ArrayList<>();
+    for (int i = 0; i < slots.length(); i++) {
+      final Entry entry = slots.get(i);
+      if (entry != null && entry.indexKey == reader.indexKey) {
+        entries.add(entry);
+      }
+    }
+    if (entries.isEmpty()) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (Entry entry : entries) {
+              if (reader.warm(entry.field, entry.prefix) == false) {
+                // Closed already
+                return;
+              }
+              warmedTermCount.incrementAndGet();
+            }
+            warmedReaderCount.incrementAndGet();
+          } catch (IOException | AlreadyClosedException e) {
+            // Only warming; the searches will see it too if it's not from closing
+            logger.debug("Failed to warm segment {}", reader.segment, e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejectedCount.incrementAndGet();
+    }
+  }
+
+  /** Returns how many readers we warmed all the recorded prefixes of. */
+  public long getWarmedReaderCount() {
+    return warmedReaderCount.get();
+  }
+
+  /** Returns how many (index, field, prefix) triples we warmed, over all readers. */
+  public long getWarmedTermCount() {
+    return warmedTermCount.get();
+  }
+
+  /** Returns how many readers we didn't warm because the executor rejected them. */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /** Returns how many (index, field, prefix) triples we have recorded. */
+  public int getRecordedCount() {
+    int count = 0;
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.get(i) != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
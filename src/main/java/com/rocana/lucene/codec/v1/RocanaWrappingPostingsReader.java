@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+
+/**
+ * Base of the postings readers of the terms written by a
+ * {@link RocanaWrappingPostingsWriter}: {@link RocanaDensePostingsReader}
+ * and {@link RocanaInlinePostingsReader}. They read the terms with their
+ * own postings their own way, and the rest with the wrapped, regular,
+ * postings reader, skipping over the others as described there.
+ *
+ * @param <S> the term state, which {@link #newOwnTermState} creates
+ */
+abstract class RocanaWrappingPostingsReader<S extends RocanaWrappingTermState> extends PostingsReaderBase {
+
+  final PostingsReaderBase postingsReader;
+
+  RocanaWrappingPostingsReader(PostingsReaderBase postingsReader) {
+    this.postingsReader = postingsReader;
+  }
+
+  @Override
+  public void init(IndexInput termsIn, SegmentReadState state) throws IOException {
+    postingsReader.init(termsIn, state);
+  }
+
+  /** Returns a new term state, without the regular postings' state. */
+  abstract S newOwnTermState();
+
+  @Override
+  public final BlockTermState newTermState() throws IOException {
+    S state = newOwnTermState();
+    state.postingsState = postingsReader.newTermState();
+    return state;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public final void decodeTerm(long[] longs, DataInput in, FieldInfo fieldInfo, BlockTermState _state, boolean absolute) throws IOException {
+    S state = (S) _state;
+    state.absolutePending |= absolute;
+    state.ownPostings = hasOwnPostings(fieldInfo, state);
+    if (state.ownPostings) {
+      decodeOwnTerm(in, fieldInfo, state);
+    } else {
+      state.postingsState.docFreq = state.docFreq;
+      state.postingsState.totalTermFreq = state.totalTermFreq;
+      postingsReader.decodeTerm(longs, in, fieldInfo, state.postingsState, state.absolutePending);
+      state.absolutePending = false;
+    }
+  }
+
+  /**
+   * Returns true if the term has its own postings; only its docFreq and
+   * totalTermFreq are decoded yet.
+   */
+  abstract boolean hasOwnPostings(FieldInfo fieldInfo, S state);
+
+  /** Reads the metadata of a term with its own postings. */
+  abstract void decodeOwnTerm(DataInput in, FieldInfo fieldInfo, S state) throws IOException;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public final PostingsEnum postings(FieldInfo fieldInfo, BlockTermState _state, PostingsEnum reuse, int flags) throws IOException {
+    S state = (S) _state;
+    if (state.ownPostings == false) {
+      return postingsReader.postings(fieldInfo, state.postingsState, reuse, flags);
+    }
+    return ownPostings(fieldInfo, state, reuse, flags);
+  }
+
+  /** Returns the postings of a term with its own postings. */
+  abstract PostingsEnum ownPostings(FieldInfo fieldInfo, S state, PostingsEnum reuse, int flags) throws IOException;
+
+  @Override
+  public Collection<Accountable> getChildResources() {
+    return Collections.singletonList(Accountables.namedAccountable("postings", postingsReader));
+  }
+}
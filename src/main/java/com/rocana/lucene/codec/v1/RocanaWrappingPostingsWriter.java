@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Base of the postings writers that write some terms their own way, and the
+ * rest with the wrapped, regular, postings writer: {@link RocanaDensePostingsWriter}
+ * and {@link RocanaInlinePostingsWriter}. {@link #writeTerm} returns a
+ * {@link RocanaWrappingTermState} for the terms with their own postings,
+ * which {@link #encodeOwnTerm} then writes into the terms dictionary, and
+ * the regular postings writer's state for the others.
+ *
+ * The regular postings encode their file pointers as deltas from the term
+ * before, so terms with their own postings are skipped over: the next
+ * regular term is encoded against the last regular one, or as absolute if
+ * it's the first regular term of its block. {@link RocanaWrappingPostingsReader}
+ * decodes them the same way.
+ */
+abstract class RocanaWrappingPostingsWriter extends PostingsWriterBase {
+
+  final PostingsWriterBase postingsWriter;
+
+  private boolean absolutePending;
+
+  RocanaWrappingPostingsWriter(PostingsWriterBase postingsWriter) {
+    this.postingsWriter = postingsWriter;
+  }
+
+  @Override
+  public void init(IndexOutput termsOut, SegmentWriteState state) throws IOException {
+    postingsWriter.init(termsOut, state);
+  }
+
+  /** Subclasses that override this must call it. */
+  @Override
+  public int setField(FieldInfo fieldInfo) {
+    absolutePending = false;
+    return postingsWriter.setField(fieldInfo);
+  }
+
+  @Override
+  public final void encodeTerm(long[] longs, DataOutput out, FieldInfo fieldInfo, BlockTermState state, boolean absolute) throws IOException {
+    absolutePending |= absolute;
+    if (state instanceof RocanaWrappingTermState) {
+      encodeOwnTerm(longs, out, fieldInfo, (RocanaWrappingTermState) state);
+    } else {
+      postingsWriter.encodeTerm(longs, out, fieldInfo, state, absolutePending);
+      absolutePending = false;
+    }
+  }
+
+  /** Writes the metadata of a term with its own postings, which {@link #writeTerm} returned. */
+  abstract void encodeOwnTerm(long[] longs, DataOutput out, FieldInfo fieldInfo, RocanaWrappingTermState state) throws IOException;
+}
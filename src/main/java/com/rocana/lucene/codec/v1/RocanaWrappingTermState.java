@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.index.TermState;
+
+/**
+ * Term state of the postings formats that write some terms their own way and
+ * wrap the regular postings for the rest, see {@link RocanaWrappingPostingsWriter}:
+ * either a term with its own postings, or the state of its regular postings.
+ */
+class RocanaWrappingTermState extends BlockTermState {
+  /** True if the term has the format's own postings, rather than regular ones. */
+  boolean ownPostings;
+
+  /** State of the regular postings, on the read side only. */
+  BlockTermState postingsState;
+
+  /**
+   * True if the regular postings' next term must be decoded as absolute,
+   * because this block's first term had its own postings.
+   */
+  boolean absolutePending;
+
+  @Override
+  public RocanaWrappingTermState clone() {
+    RocanaWrappingTermState other = (RocanaWrappingTermState) super.clone();
+    if (postingsState != null) {
+      other.postingsState = (BlockTermState) postingsState.clone();
+    }
+    return other;
+  }
+
+  @Override
+  public void copyFrom(TermState _other) {
+    super.copyFrom(_other);
+    RocanaWrappingTermState other = (RocanaWrappingTermState) _other;
+    ownPostings = other.ownPostings;
+    absolutePending = other.absolutePending;
+    if (other.postingsState == null) {
+      postingsState = null;
+    } else if (postingsState == null) {
+      postingsState = (BlockTermState) other.postingsState.clone();
+    } else {
+      postingsState.copyFrom(other.postingsState);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + " ownPostings=" + ownPostings + " postingsState=" + postingsState;
+  }
+}
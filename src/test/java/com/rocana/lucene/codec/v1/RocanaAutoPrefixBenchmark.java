@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Benchmark for auto-prefix terms on a timestamp field, see
+ * {@link RocanaAutoPrefixPolicy}: indexes the same timestamps with and
+ * without auto-prefix terms, then prints the index sizes and how long
+ * range queries of a few widths take on each.
+ *
+ * Not a test (surefire doesn't pick it up). Run it after {@code mvn test-compile} with:
+ *
+ *   java -cp target/classes:target/test-classes:&lt;test classpath&gt; \
+ *     com.rocana.lucene.codec.v1.RocanaAutoPrefixBenchmark [numDocs] [minItemsInAutoPrefix maxItemsInAutoPrefix]
+ *
+ * The timestamps are one day of events, at random millis, indexed as 8
+ * big-endian bytes in a docs-only field, the way we index event times.
+ */
+public class RocanaAutoPrefixBenchmark {
+
+  private static final long START = 1483228800000L;
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final long[] RANGE_WIDTHS = {1000L, 60 * 1000L, 60 * 60 * 1000L, 6 * 60 * 60 * 1000L};
+  private static final int QUERIES = 200;
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    RocanaAutoPrefixPolicy.Settings settings = args.length > 2
+      ? new RocanaAutoPrefixPolicy.Settings(Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+      : RocanaAutoPrefixPolicy.DEFAULT_SETTINGS;
+
+    Path tmp = Files.createTempDirectory("autoprefixbench");
+    try (Directory plain = FSDirectory.open(tmp.resolve("plain"));
+         Directory autoPrefix = FSDirectory.open(tmp.resolve("autoprefix"))) {
+      System.out.println("numDocs=" + numDocs + " autoPrefix=" + settings);
+      index(plain, new RocanaLucene50PostingsFormat(), numDocs);
+      index(autoPrefix, new RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy.fixed(RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE,
+                                                                                         RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE),
+                                                         RocanaAutoPrefixPolicy.perField(Collections.singletonMap("timestamp", settings)),
+                                                         null),
+            numDocs);
+
+      long plainBytes = sizeInBytes(plain);
+      long autoPrefixBytes = sizeInBytes(autoPrefix);
+      System.out.println(String.format(Locale.ROOT, "index size: plain=%d bytes, autoPrefix=%d bytes (%+.1f%%)",
+                                       plainBytes, autoPrefixBytes, 100.0 * (autoPrefixBytes - plainBytes) / plainBytes));
+
+      try (DirectoryReader plainReader = DirectoryReader.open(plain);
+           DirectoryReader autoPrefixReader = DirectoryReader.open(autoPrefix)) {
+        RocanaStats stats = ((RocanaFieldReader) autoPrefixReader.leaves().get(0).reader().terms("timestamp")).getStats();
+        System.out.println("auto-prefix terms: " + stats.totalAutoPrefixTermCount + " (for " + stats.totalTermCount + " terms)");
+
+        IndexSearcher plainSearcher = new IndexSearcher(plainReader);
+        IndexSearcher autoPrefixSearcher = new IndexSearcher(autoPrefixReader);
+        // Measure the queries, not the query cache:
+        plainSearcher.setQueryCache(null);
+        autoPrefixSearcher.setQueryCache(null);
+        for (long width : RANGE_WIDTHS) {
+          // Warm up both, then measure, with the same ranges:
+          run(plainSearcher, width, 1);
+          run(autoPrefixSearcher, width, 1);
+          double plainMillis = run(plainSearcher, width, 2);
+          double autoPrefixMillis = run(autoPrefixSearcher, width, 2);
+          System.out.println(String.format(Locale.ROOT, "range=%8dms: plain=%.3f ms/query, autoPrefix=%.3f ms/query (%.1fx)",
+                                           width, plainMillis, autoPrefixMillis, plainMillis / autoPrefixMillis));
+        }
+      }
+    } finally {
+      IOUtils.rm(tmp);
+    }
+  }
+
+  private static void index(Directory dir, PostingsFormat format, int numDocs) throws IOException {
+    Random random = new Random(42);
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random));
+    iwc.setCodec(new RocanaSearchCodecV1(new RocanaPostingsFormatRouter(Collections.singletonMap("timestamp", format))));
+    iwc.setRAMBufferSizeMB(256);
+    try (IndexWriter w = new IndexWriter(dir, iwc)) {
+      for (int i = 0; i < numDocs; i++) {
+        Document doc = new Document();
+        doc.add(new StringField("timestamp", TestRocanaAutoPrefixPolicy.timestamp(START + (long) (random.nextDouble() * DAY)), Field.Store.NO));
+        w.addDocument(doc);
+      }
+      w.forceMerge(1);
+    }
+  }
+
+  private static long sizeInBytes(Directory dir) throws IOException {
+    long size = 0;
+    for (String file : dir.listAll()) {
+      size += dir.fileLength(file);
+    }
+    return size;
+  }
+
+  /** Returns the average milliseconds per query. */
+  private static double run(IndexSearcher searcher, long width, int rounds) throws IOException {
+    Random random = new Random(width);
+    long hits = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < QUERIES * rounds; i++) {
+      long lower = START + (long) (random.nextDouble() * (DAY - width));
+      hits += searcher.count(new TermRangeQuery("timestamp", TestRocanaAutoPrefixPolicy.timestamp(lower),
+                                                TestRocanaAutoPrefixPolicy.timestamp(lower + width), true, false));
+    }
+    double millis = (System.nanoTime() - start) / 1000000.0 / (QUERIES * rounds);
+    if (hits < 0) {
+      throw new AssertionError();
+    }
+    return millis;
+  }
+}
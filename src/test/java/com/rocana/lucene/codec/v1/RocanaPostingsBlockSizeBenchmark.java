@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Benchmark for {@link RocanaPostingsBlockSizePolicy}: writes the same
+ * documents with each postings block size, and prints the size of the
+ * postings files, how long reading every posting takes, and how long
+ * advancing through the postings with random gaps takes.
+ *
+ * Not a test (surefire doesn't pick it up). Run it after {@code mvn test-compile} with:
+ *
+ *   java -cp target/classes:target/test-classes:&lt;test classpath&gt; \
+ *     com.rocana.lucene.codec.v1.RocanaPostingsBlockSizeBenchmark [numDocs]
+ *
+ * The documents are the same as in {@link RocanaPostingsDecodeBenchmark}.
+ */
+public class RocanaPostingsBlockSizeBenchmark {
+
+  private static final int[] BLOCK_SIZES = {64, 128, 256, 512};
+  private static final int NUM_TERMS = 20000;
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    System.out.println("numDocs=" + numDocs);
+
+    Path tmp = Files.createTempDirectory("blocksizebench");
+    Directory[] dirs = new Directory[BLOCK_SIZES.length];
+    DirectoryReader[] readers = new DirectoryReader[BLOCK_SIZES.length];
+    try {
+      for (int i = 0; i < BLOCK_SIZES.length; i++) {
+        dirs[i] = FSDirectory.open(tmp.resolve("index" + BLOCK_SIZES[i]));
+        index(dirs[i], numDocs, RocanaPostingsBlockSizePolicy.fixed(BLOCK_SIZES[i]));
+        readers[i] = DirectoryReader.open(dirs[i]);
+      }
+
+      // Warm up, and check they all have the same postings:
+      long expected = run(readers[0], PostingsEnum.FREQS, false, 2);
+      for (int i = 1; i < readers.length; i++) {
+        if (run(readers[i], PostingsEnum.FREQS, false, 2) != expected) {
+          throw new AssertionError("different postings");
+        }
+        run(readers[i], PostingsEnum.FREQS, true, 2);
+      }
+
+      long[] nextDocBest = new long[readers.length];
+      long[] advanceBest = new long[readers.length];
+      Arrays.fill(nextDocBest, Long.MAX_VALUE);
+      Arrays.fill(advanceBest, Long.MAX_VALUE);
+      // Alternate, and keep the best time of each:
+      for (int round = 0; round < 5; round++) {
+        for (int i = 0; i < readers.length; i++) {
+          long start = System.nanoTime();
+          run(readers[i], PostingsEnum.FREQS, false, ROUNDS);
+          nextDocBest[i] = Math.min(nextDocBest[i], System.nanoTime() - start);
+          start = System.nanoTime();
+          run(readers[i], PostingsEnum.NONE, true, ROUNDS);
+          advanceBest[i] = Math.min(advanceBest[i], System.nanoTime() - start);
+        }
+      }
+
+      long postings = expected / 2 * ROUNDS;
+      for (int i = 0; i < readers.length; i++) {
+        System.out.println(String.format(Locale.ROOT, "blockSize=%3d: .doc=%,d bytes, nextDoc=%.2f ns/posting, advance=%.1f ms",
+                                         BLOCK_SIZES[i], docFileSize(dirs[i]), (double) nextDocBest[i] / postings,
+                                         advanceBest[i] / 1000000.0 / ROUNDS));
+      }
+    } finally {
+      IOUtils.close(readers);
+      IOUtils.close(dirs);
+      IOUtils.rm(tmp);
+    }
+  }
+
+  private static void index(Directory dir, int numDocs, RocanaPostingsBlockSizePolicy policy) throws IOException {
+    // Same seed for every index, so they all get the same documents:
+    Random random = new Random(42);
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(new RocanaLucene50PostingsFormat(
+      RocanaTermBlockSizePolicy.fixed(RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE),
+      RocanaAutoPrefixPolicy.disabled(), policy, null)));
+    iwc.setRAMBufferSizeMB(256);
+    FieldType type = new FieldType(StringField.TYPE_NOT_STORED);
+    type.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    type.freeze();
+    try (IndexWriter w = new IndexWriter(dir, iwc)) {
+      for (int i = 0; i < numDocs; i++) {
+        Document doc = new Document();
+        int numTerms = 1 + random.nextInt(8);
+        for (int j = 0; j < numTerms; j++) {
+          // Skewed: term t is picked with a probability of about 1/t:
+          int term = (int) Math.pow(NUM_TERMS, random.nextDouble());
+          doc.add(new Field("token", "t" + term, type));
+        }
+        w.addDocument(doc);
+      }
+      w.forceMerge(1);
+    }
+  }
+
+  private static long docFileSize(Directory dir) throws IOException {
+    long size = 0;
+    for (String file : dir.listAll()) {
+      if (file.endsWith("." + RocanaLucene50PostingsFormat.DOC_EXTENSION)) {
+        size += dir.fileLength(file);
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Reads all postings of every term, either one doc after another, or
+   * advancing by random gaps of about a few blocks, and returns how many
+   * docs it read.
+   */
+  private static long run(DirectoryReader reader, int flags, boolean advance, int rounds) throws IOException {
+    LeafReader leaf = reader.leaves().get(0).reader();
+    Random random = new Random(17);
+    long count = 0;
+    long sum = 0;
+    PostingsEnum postings = null;
+    for (int round = 0; round < rounds; round++) {
+      TermsEnum termsEnum = leaf.terms("token").iterator();
+      while (termsEnum.next() != null) {
+        postings = termsEnum.postings(postings, flags);
+        if (advance) {
+          // Gaps of about 1000 docs: common terms skip a block or so each time
+          for (int doc = postings.advance(random.nextInt(2000)); doc != PostingsEnum.NO_MORE_DOCS;
+               doc = postings.advance(doc + 1 + random.nextInt(2000))) {
+            sum += doc;
+            count++;
+          }
+        } else {
+          for (int doc = postings.nextDoc(); doc != PostingsEnum.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            sum += doc + postings.freq();
+            count++;
+          }
+        }
+      }
+    }
+    // Use the sum, so the loop isn't optimized away:
+    return sum == Long.MIN_VALUE ? -1 : count;
+  }
+}
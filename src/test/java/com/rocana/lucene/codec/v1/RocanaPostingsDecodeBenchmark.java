@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsReader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * Benchmark for {@link RocanaLucene50PostingsReader}: reads every posting of
+ * the same terms dictionary with it and with Lucene's
+ * {@link Lucene50PostingsReader}, and prints how long each takes.
+ *
+ * Not a test (surefire doesn't pick it up). Run it after {@code mvn test-compile} with:
+ *
+ *   java -cp target/classes:target/test-classes:&lt;test classpath&gt; \
+ *     com.rocana.lucene.codec.v1.RocanaPostingsDecodeBenchmark [numDocs]
+ *
+ * Each document has a few terms, picked with a skewed distribution, so the
+ * doc deltas of common terms pack into a few bits, and those of rare terms
+ * into many.
+ */
+public class RocanaPostingsDecodeBenchmark {
+
+  private static final int NUM_TERMS = 20000;
+  private static final int ROUNDS = 10;
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+    Path tmp = Files.createTempDirectory("decodebench");
+    try (Directory dir = FSDirectory.open(tmp.resolve("index"));
+         Directory postingsDir = FSDirectory.open(tmp.resolve("postings"))) {
+      System.out.println("numDocs=" + numDocs);
+      index(dir, numDocs);
+
+      // Write the terms dictionary and postings without a segment suffix, so
+      // both postings readers can open them:
+      try (DirectoryReader r = DirectoryReader.open(dir)) {
+        SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+        SegmentWriteState writeState = new SegmentWriteState(InfoStream.NO_OUTPUT, postingsDir, segmentReader.getSegmentInfo().info,
+          segmentReader.getFieldInfos(), null, IOContext.DEFAULT);
+        try (RocanaBlockTreeTermsWriter termsWriter = new RocanaBlockTreeTermsWriter(writeState, new RocanaLucene50PostingsWriter(writeState),
+          RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE)) {
+          termsWriter.write(segmentReader.fields());
+        }
+
+        SegmentReadState readState = new SegmentReadState(postingsDir, segmentReader.getSegmentInfo().info,
+          segmentReader.getFieldInfos(), IOContext.READ);
+        try (RocanaBlockTreeTermsReader lucene = new RocanaBlockTreeTermsReader(new Lucene50PostingsReader(readState), readState);
+             RocanaBlockTreeTermsReader rocana = new RocanaBlockTreeTermsReader(new RocanaLucene50PostingsReader(readState), readState)) {
+          for (int flags : new int[] {PostingsEnum.NONE, PostingsEnum.FREQS}) {
+            // Warm up both, then measure:
+            long expected = run(lucene, flags, 2);
+            if (run(rocana, flags, 2) != expected) {
+              throw new AssertionError("different postings");
+            }
+            // Alternate, and keep the best time of each:
+            long postings = expected / 2 * ROUNDS;
+            long luceneBest = Long.MAX_VALUE;
+            long rocanaBest = Long.MAX_VALUE;
+            for (int i = 0; i < 5; i++) {
+              long start = System.nanoTime();
+              run(lucene, flags, ROUNDS);
+              luceneBest = Math.min(luceneBest, System.nanoTime() - start);
+              start = System.nanoTime();
+              run(rocana, flags, ROUNDS);
+              rocanaBest = Math.min(rocanaBest, System.nanoTime() - start);
+            }
+            double luceneNanos = (double) luceneBest / postings;
+            double rocanaNanos = (double) rocanaBest / postings;
+            System.out.println(String.format(Locale.ROOT, "%s: Lucene50PostingsReader=%.2f ns/posting, RocanaLucene50PostingsReader=%.2f ns/posting (%.2fx)",
+                                             flags == PostingsEnum.NONE ? "docs " : "freqs", luceneNanos, rocanaNanos, luceneNanos / rocanaNanos));
+          }
+        }
+      }
+    } finally {
+      IOUtils.rm(tmp);
+    }
+  }
+
+  private static void index(Directory dir, int numDocs) throws IOException {
+    Random random = new Random(42);
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    iwc.setRAMBufferSizeMB(256);
+    FieldType type = new FieldType(StringField.TYPE_NOT_STORED);
+    type.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    type.freeze();
+    try (IndexWriter w = new IndexWriter(dir, iwc)) {
+      for (int i = 0; i < numDocs; i++) {
+        Document doc = new Document();
+        int numTerms = 1 + random.nextInt(8);
+        for (int j = 0; j < numTerms; j++) {
+          // Skewed: term t is picked with a probability of about 1/t:
+          int term = (int) Math.pow(NUM_TERMS, random.nextDouble());
+          doc.add(new Field("token", "t" + term, type));
+        }
+        w.addDocument(doc);
+      }
+      w.forceMerge(1);
+    }
+  }
+
+  /** Reads all postings of terms with at least a block of docs, and returns how many there were. */
+  private static long run(RocanaBlockTreeTermsReader reader, int flags, int rounds) throws IOException {
+    long count = 0;
+    long sum = 0;
+    PostingsEnum postings = null;
+    for (int round = 0; round < rounds; round++) {
+      TermsEnum termsEnum = reader.terms("token").iterator();
+      while (termsEnum.next() != null) {
+        if (termsEnum.docFreq() < RocanaLucene50PostingsFormat.BLOCK_SIZE) {
+          continue;
+        }
+        postings = termsEnum.postings(postings, flags);
+        for (int doc = postings.nextDoc(); doc != PostingsEnum.NO_MORE_DOCS; doc = postings.nextDoc()) {
+          sum += doc + postings.freq();
+          count++;
+        }
+      }
+    }
+    // Use the sum, so the loop isn't optimized away:
+    return sum == Long.MIN_VALUE ? -1 : count;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaAutoPrefixPolicy}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaAutoPrefixPolicy extends LuceneTestCase {
+
+  /** Timestamps are indexed as 8 big-endian bytes, so terms sort like the (positive) longs. */
+  static BytesRef timestamp(long millis) {
+    byte[] bytes = new byte[8];
+    for (int i = 0; i < 8; i++) {
+      bytes[i] = (byte) (millis >>> (56 - 8 * i));
+    }
+    return new BytesRef(bytes);
+  }
+
+  /**
+   * Only the configured field gets auto-prefix terms, and the other fields,
+   * including one with positions, are still written and read normally.
+   */
+  public void testOnlyConfiguredFieldsGetAutoPrefixTerms() throws Exception {
+    RocanaAutoPrefixPolicy policy = RocanaAutoPrefixPolicy.perField(
+      Collections.singletonMap("timestamp", new RocanaAutoPrefixPolicy.Settings(2, 3)));
+    PostingsFormat format = new RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy.fixed(25, 48), policy, null);
+
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(format));
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(1000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("timestamp", timestamp(1483228800000L + i * 1000L), Field.Store.NO));
+      doc.add(new StringField("host", "host-" + (i % 100), Field.Store.NO));
+      doc.add(new TextField("message", "message number " + i, Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader reader = r.leaves().get(0).reader();
+    RocanaStats timestampStats = ((RocanaFieldReader) reader.terms("timestamp")).getStats();
+    RocanaStats hostStats = ((RocanaFieldReader) reader.terms("host")).getStats();
+    assertEquals(numDocs, timestampStats.totalTermCount);
+    assertTrue("expected auto-prefix terms", timestampStats.totalAutoPrefixTermCount > 0);
+    assertEquals(100, hostStats.totalTermCount);
+    assertEquals(0, hostStats.totalAutoPrefixTermCount);
+    assertEquals(numDocs, reader.docFreq(new Term("message", "message")));
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Range queries over a field with auto-prefix terms match the same docs
+   * as without them.
+   */
+  public void testRangeQueries() throws Exception {
+    RocanaAutoPrefixPolicy.Settings settings = new RocanaAutoPrefixPolicy.Settings(TestUtil.nextInt(random(), 2, 30), 60);
+    Map<String,PostingsFormat> formatsByPattern = new LinkedHashMap<>();
+    formatsByPattern.put("timestamp", RocanaPostingsFormatRouter.autoPrefixPostingsFormat(settings));
+
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1(new RocanaPostingsFormatRouter(formatsByPattern)));
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(2000);
+    long[] timestamps = new long[numDocs];
+    long start = 1483228800000L;
+    for (int i = 0; i < numDocs; i++) {
+      timestamps[i] = start + TestUtil.nextLong(random(), 0, 86400000L);
+      Document doc = new Document();
+      doc.add(new StringField("timestamp", timestamp(timestamps[i]), Field.Store.NO));
+      doc.add(new StringField("timestamp_plain", timestamp(timestamps[i]), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    // Read with the default codec from SPI:
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader reader = r.leaves().get(0).reader();
+    assertTrue(((RocanaFieldReader) reader.terms("timestamp")).getStats().totalAutoPrefixTermCount > 0);
+    assertEquals(0, ((RocanaFieldReader) reader.terms("timestamp_plain")).getStats().totalAutoPrefixTermCount);
+
+    IndexSearcher searcher = newSearcher(r);
+    int iters = atLeast(50);
+    for (int iter = 0; iter < iters; iter++) {
+      long lower = start + TestUtil.nextLong(random(), -1000, 86400000L);
+      long upper = lower + TestUtil.nextLong(random(), 0, 86400000L / (1 + random().nextInt(100)));
+      boolean includeLower = random().nextBoolean();
+      boolean includeUpper = random().nextBoolean();
+      int expected = 0;
+      for (long timestamp : timestamps) {
+        if ((timestamp > lower || (includeLower && timestamp == lower))
+            && (timestamp < upper || (includeUpper && timestamp == upper))) {
+          expected++;
+        }
+      }
+      assertEquals(expected, searcher.count(new TermRangeQuery("timestamp", timestamp(lower), timestamp(upper), includeLower, includeUpper)));
+      assertEquals(expected, searcher.count(new TermRangeQuery("timestamp_plain", timestamp(lower), timestamp(upper), includeLower, includeUpper)));
+    }
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Like Lucene, auto-prefix terms can't be written for fields with freqs.
+   */
+  public void testRequiresDocsOnlyFields() throws Exception {
+    RocanaAutoPrefixPolicy policy = RocanaAutoPrefixPolicy.perField(
+      Collections.singletonMap("message", RocanaAutoPrefixPolicy.DEFAULT_SETTINGS));
+    PostingsFormat format = new RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy.adaptive(), policy, null);
+
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(format));
+    IndexWriter w = new IndexWriter(dir, iwc);
+    Document doc = new Document();
+    doc.add(new TextField("message", "some message", Field.Store.NO));
+    w.addDocument(doc);
+    try {
+      w.commit();
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("IndexOptions.DOCS"));
+    }
+    w.rollback();
+    dir.close();
+  }
+
+  public void testInvalidSettings() {
+    try {
+      new RocanaAutoPrefixPolicy.Settings(0, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected: use null to disable
+    }
+    try {
+      new RocanaAutoPrefixPolicy.Settings(10, 12);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected: max must be at least 2*(min-1)
+    }
+    try {
+      RocanaAutoPrefixPolicy.perField(Collections.<String,RocanaAutoPrefixPolicy.Settings>singletonMap("timestamp", null));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertSame(RocanaAutoPrefixPolicy.disabled(), RocanaAutoPrefixPolicy.fixed(0, 0));
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterLeafReader.FilterFields;
+import org.apache.lucene.index.FilterLeafReader.FilterTerms;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MockDirectoryWrapper;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.InfoStream;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for encoding fields concurrently with {@link RocanaBlockTreeTermsWriter}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaBlockTreeTermsWriter extends LuceneTestCase {
+
+  private ExecutorService executor;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(TestUtil.nextInt(random(), 1, 3), new NamedThreadFactory("TestRocanaBlockTreeTermsWriter"));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    super.tearDown();
+  }
+
+  /**
+   * Encoding the fields concurrently must write exactly the same
+   * files as writing one field after another.
+   */
+  public void testConcurrentWriteMatchesSerialWrite() throws Exception {
+    FieldType offsetsType = new FieldType(TextField.TYPE_NOT_STORED);
+    offsetsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(2000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      doc.add(new StringField("host", "host-" + (i % 7), Field.Store.NO));
+      // Few distinct terms, so terms have skip data and full position blocks:
+      doc.add(new TextField("message", "service " + (i % 3) + " said " + TestUtil.randomSimpleString(random(), 1, 2) + " service", Field.Store.NO));
+      doc.add(new Field("body", "request " + (i % 5) + " took " + (i % 11) + " ms", offsetsType));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+
+    Directory serialDir = newTargetDirectory();
+    write(segmentReader, segmentReader.fields(), serialDir, false, 0, 0);
+    Directory concurrentDir = newTargetDirectory();
+    write(segmentReader, segmentReader.fields(), concurrentDir, true, 0, 0);
+    assertSameFiles(serialDir, concurrentDir);
+
+    r.close();
+    concurrentDir.close();
+    serialDir.close();
+    dir.close();
+  }
+
+  /**
+   * Same as {@link #testConcurrentWriteMatchesSerialWrite()}, but with auto-prefix terms.
+   */
+  public void testConcurrentWriteMatchesSerialWriteWithAutoPrefixTerms() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 2000; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("timestamp", String.format(Locale.ROOT, "%06d", i * 7), Field.Store.NO));
+      doc.add(new StringField("host", "host-" + (i % 300), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+
+    Directory serialDir = newTargetDirectory();
+    write(segmentReader, segmentReader.fields(), serialDir, false, 2, 3);
+    Directory concurrentDir = newTargetDirectory();
+    write(segmentReader, segmentReader.fields(), concurrentDir, true, 2, 3);
+    assertSameFiles(serialDir, concurrentDir);
+
+    r.close();
+    concurrentDir.close();
+    serialDir.close();
+    dir.close();
+  }
+
+  /**
+   * If one field fails, the write must fail, and only the writer's own
+   * files may have been created: fields are encoded on the heap.
+   */
+  public void testFailingFieldFailsWrite() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 500; i++) {
+      Document doc = new Document();
+      for (String field : new String[] {"a", "b", "c", "d", "e"}) {
+        doc.add(new StringField(field, field + (i % 50), Field.Store.NO));
+      }
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+    final String failingField = String.valueOf("abcde".charAt(random().nextInt(5)));
+    Fields failingFields = new FilterFields(segmentReader.fields()) {
+      @Override
+      public Terms terms(final String field) throws IOException {
+        Terms terms = super.terms(field);
+        if (field.equals(failingField) == false) {
+          return terms;
+        }
+        // Fails on the executor, while encoding the field:
+        return new FilterTerms(terms) {
+          @Override
+          public TermsEnum iterator() throws IOException {
+            throw new IOException("fake failure for field " + field);
+          }
+        };
+      }
+    };
+
+    Directory concurrentDir = newTargetDirectory();
+    try {
+      write(segmentReader, failingFields, concurrentDir, true, 0, 0);
+      fail("expected the write to fail");
+    } catch (IOException e) {
+      assertEquals("fake failure for field " + failingField, e.getMessage());
+    }
+    for (String fileName : concurrentDir.listAll()) {
+      assertFalse("temporary file created: " + fileName, fileName.contains("tmp"));
+    }
+
+    r.close();
+    concurrentDir.close();
+    dir.close();
+  }
+
+  /**
+   * A writer that isn't our fork can't encode fields concurrently.
+   */
+  public void testConcurrentWriteRequiresRocanaPostingsWriter() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    Document doc = new Document();
+    doc.add(new StringField("id", "0", Field.Store.NO));
+    w.addDocument(doc);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+    Directory otherDir = newDirectory();
+    SegmentWriteState state = new SegmentWriteState(InfoStream.NO_OUTPUT, otherDir, segmentReader.getSegmentInfo().info,
+      segmentReader.getFieldInfos(), null, IOContext.DEFAULT);
+    Lucene50PostingsWriter postingsWriter = new Lucene50PostingsWriter(state);
+    try {
+      new RocanaBlockTreeTermsWriter(state, postingsWriter, RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE,
+        RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE, 0, 0, executor);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    } finally {
+      postingsWriter.close();
+    }
+
+    r.close();
+    otherDir.close();
+    dir.close();
+  }
+
+  /** The temporary files are deleted right away, so the directory mustn't pretend a virus scanner keeps them open. */
+  private static Directory newTargetDirectory() {
+    MockDirectoryWrapper dir = newMockDirectory();
+    dir.setEnableVirusScanner(false);
+    return dir;
+  }
+
+  private void write(SegmentReader segmentReader, Fields fields, Directory target, boolean concurrent,
+                     int minItemsInAutoPrefix, int maxItemsInAutoPrefix) throws IOException {
+    SegmentWriteState state = new SegmentWriteState(InfoStream.NO_OUTPUT, target, segmentReader.getSegmentInfo().info,
+      segmentReader.getFieldInfos(), null, IOContext.DEFAULT);
+    RocanaBlockTreeTermsWriter termsWriter = new RocanaBlockTreeTermsWriter(state, new RocanaLucene50PostingsWriter(state),
+      RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE,
+      minItemsInAutoPrefix, maxItemsInAutoPrefix, concurrent ? executor : null);
+    boolean success = false;
+    try {
+      termsWriter.write(fields);
+      success = true;
+    } finally {
+      if (success) {
+        termsWriter.close();
+      } else {
+        IOUtils.closeWhileHandlingException(termsWriter);
+      }
+    }
+  }
+
+  private static void assertSameFiles(Directory expected, Directory actual) throws IOException {
+    String[] expectedFiles = expected.listAll();
+    String[] actualFiles = actual.listAll();
+    Arrays.sort(expectedFiles);
+    Arrays.sort(actualFiles);
+    assertEquals(Arrays.asList(expectedFiles), Arrays.asList(actualFiles));
+    for (String fileName : expectedFiles) {
+      assertEquals("file " + fileName, readAll(expected, fileName), readAll(actual, fileName));
+    }
+  }
+
+  private static String readAll(Directory dir, String fileName) throws IOException {
+    try (IndexInput in = dir.openInput(fileName, IOContext.READONCE)) {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readBytes(bytes, 0, bytes.length);
+      // Arrays.toString gives a readable diff when a file doesn't match:
+      return Arrays.toString(bytes);
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaDensePostingsFormat}.
+ *
+ * Extends {@link RocanaBasePostingsFormatTestCase}, so Lucene's postings
+ * format tests run against the format too.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaDensePostingsFormat extends RocanaBasePostingsFormatTestCase {
+  private final Codec codec = TestUtil.alwaysPostingsFormat(new RocanaDensePostingsFormat(0.001 + random().nextDouble() / 2));
+
+  @Override
+  protected Codec getCodec() {
+    return codec;
+  }
+
+  public void testLookupBySpiName() {
+    PostingsFormat format = PostingsFormat.forName(RocanaDensePostingsFormat.SHORT_NAME);
+    assertTrue(format instanceof RocanaDensePostingsFormat);
+  }
+
+  public void testInvalidFraction() {
+    for (double fraction : new double[] {0, -0.5, 1.5, Double.NaN}) {
+      try {
+        new RocanaDensePostingsFormat(fraction);
+        fail("expected IllegalArgumentException for " + fraction);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Common terms are bitsets, rare terms and fields with freqs aren't, and
+   * all of them have the right docs, also in conjunctions.
+   */
+  public void testDenseTerms() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(new RocanaDensePostingsFormat(0.25)));
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(2000);
+    BitSet info = new BitSet();
+    BitSet host3 = new BitSet();
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      String level = random().nextInt(10) < 7 ? "INFO" : random().nextInt(10) < 9 ? "WARN" : "ERROR";
+      if (level.equals("INFO")) {
+        info.set(i);
+      }
+      if (i % 7 == 3) {
+        host3.set(i);
+      }
+      doc.add(new StringField("level", level, Field.Store.NO));
+      doc.add(new StringField("host", "host-" + (i % 7), Field.Store.NO));
+      doc.add(new TextField("body", "INFO " + level, Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader reader = r.leaves().get(0).reader();
+    TermsEnum termsEnum = reader.terms("level").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("INFO")));
+    PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+    assertTrue(postings instanceof RocanaDensePostingsReader.DenseDocsEnum);
+    assertEquals(info.cardinality(), postings.cost());
+    assertDocs(info, postings);
+
+    // Advance to random targets, including ones on and past set bits:
+    postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+    int doc = -1;
+    while (true) {
+      int target = doc + 1 + random().nextInt(200);
+      int expected = target >= numDocs ? -1 : info.nextSetBit(target);
+      doc = postings.advance(target);
+      assertEquals(expected == -1 ? DocIdSetIterator.NO_MORE_DOCS : expected, doc);
+      if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+        break;
+      }
+      assertEquals(1, postings.freq());
+    }
+
+    assertTrue(termsEnum.seekExact(new BytesRef("ERROR")));
+    assertFalse(termsEnum.postings(null, PostingsEnum.NONE) instanceof RocanaDensePostingsReader.DenseDocsEnum);
+
+    // host terms have 1/7 of the docs:
+    termsEnum = reader.terms("host").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("host-3")));
+    assertFalse(termsEnum.postings(null, PostingsEnum.NONE) instanceof RocanaDensePostingsReader.DenseDocsEnum);
+    assertDocs(host3, termsEnum.postings(null, PostingsEnum.NONE));
+
+    // Fields with freqs are never dense:
+    termsEnum = reader.terms("body").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("info")));
+    assertEquals(numDocs, termsEnum.docFreq());
+    postings = termsEnum.postings(null, PostingsEnum.FREQS);
+    assertFalse(postings instanceof RocanaDensePostingsReader.DenseDocsEnum);
+
+    BitSet both = (BitSet) info.clone();
+    both.and(host3);
+    BooleanQuery.Builder query = new BooleanQuery.Builder();
+    query.add(new TermQuery(new Term("level", "INFO")), BooleanClause.Occur.MUST);
+    query.add(new TermQuery(new Term("host", "host-3")), BooleanClause.Occur.MUST);
+    assertEquals(both.cardinality(), new IndexSearcher(r).count(query.build()));
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Dense and regular terms mixed in the same blocks, in any order, so the
+   * regular terms' deltas skip the dense ones, also when the first term of
+   * a block is dense. Read by scanning, by seeking, and by term state, and
+   * again after merging with deletions.
+   */
+  public void testMixedDenseAndRegularTerms() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(new RocanaDensePostingsFormat(0.02)));
+    iwc.setMaxBufferedDocs(TestUtil.nextInt(random(), 1000, 20000));
+    // Keep doc IDs in order across merges:
+    iwc.setMergePolicy(new LogDocMergePolicy());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(10000);
+    int numTerms = TestUtil.nextInt(random(), 50, 300);
+    List<BitSet> expected = new ArrayList<>();
+    List<List<String>> docTerms = new ArrayList<>();
+    for (int i = 0; i < numDocs; i++) {
+      docTerms.add(new ArrayList<String>());
+    }
+    for (int t = 0; t < numTerms; t++) {
+      BitSet docs = new BitSet();
+      int docFreq = random().nextInt(3) == 0 ? TestUtil.nextInt(random(), numDocs / 40, numDocs) : TestUtil.nextInt(random(), 1, 300);
+      for (int j = 0; j < docFreq; j++) {
+        docs.set(random().nextInt(numDocs));
+      }
+      for (int doc = docs.nextSetBit(0); doc != -1; doc = docs.nextSetBit(doc + 1)) {
+        docTerms.get(doc).add(term(t));
+      }
+      expected.add(docs);
+    }
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+      for (String term : docTerms.get(i)) {
+        doc.add(new StringField("bucket", term, Field.Store.NO));
+      }
+      w.addDocument(doc);
+    }
+    w.commit();
+
+    DirectoryReader r = DirectoryReader.open(w, true);
+    for (int i = 0; i < r.leaves().size(); i++) {
+      assertTerms(r.leaves().get(i).reader(), expected, r.leaves().get(i).docBase);
+    }
+    r.close();
+
+    // Delete some docs, and merge:
+    BitSet deleted = new BitSet();
+    for (int i = 0; i < numDocs / 10; i++) {
+      int id = random().nextInt(numDocs);
+      deleted.set(id);
+      w.deleteDocuments(new Term("id", Integer.toString(id)));
+    }
+    w.forceMerge(1);
+    w.close();
+
+    // Doc IDs after the merge are the old ones minus the deleted docs before them:
+    List<BitSet> merged = new ArrayList<>();
+    for (BitSet docs : expected) {
+      BitSet newDocs = new BitSet();
+      for (int doc = docs.nextSetBit(0); doc != -1; doc = docs.nextSetBit(doc + 1)) {
+        if (deleted.get(doc) == false) {
+          newDocs.set(doc - deleted.get(0, doc).cardinality());
+        }
+      }
+      merged.add(newDocs);
+    }
+    r = DirectoryReader.open(dir);
+    assertEquals(1, r.leaves().size());
+    assertTerms(r.leaves().get(0).reader(), merged, 0);
+    r.close();
+    dir.close();
+  }
+
+  private static String term(int t) {
+    return String.format(Locale.ROOT, "b%04d", t);
+  }
+
+  private void assertTerms(LeafReader reader, List<BitSet> expected, int docBase) throws Exception {
+    List<BitSet> segmentDocs = new ArrayList<>();
+    for (BitSet docs : expected) {
+      segmentDocs.add(docs.get(docBase, docBase + reader.maxDoc()));
+    }
+
+    // Scan:
+    TermsEnum termsEnum = reader.terms("bucket").iterator();
+    PostingsEnum postings = null;
+    List<TermState> states = new ArrayList<>();
+    for (int t = 0; t < segmentDocs.size(); t++) {
+      if (segmentDocs.get(t).isEmpty()) {
+        states.add(null);
+        continue;
+      }
+      assertEquals(new BytesRef(term(t)), termsEnum.next());
+      assertEquals(segmentDocs.get(t).cardinality(), termsEnum.docFreq());
+      postings = termsEnum.postings(postings, PostingsEnum.NONE);
+      assertDocs(segmentDocs.get(t), postings);
+      states.add(termsEnum.termState());
+    }
+    assertNull(termsEnum.next());
+
+    // Seek, in random order:
+    for (int iter = 0; iter < 100; iter++) {
+      int t = random().nextInt(segmentDocs.size());
+      termsEnum = reader.terms("bucket").iterator();
+      if (segmentDocs.get(t).isEmpty()) {
+        assertFalse(termsEnum.seekExact(new BytesRef(term(t))));
+        continue;
+      }
+      if (random().nextBoolean()) {
+        termsEnum.seekExact(new BytesRef(term(t)), states.get(t));
+        assertEquals(segmentDocs.get(t).cardinality(), termsEnum.docFreq());
+        postings = termsEnum.postings(postings, PostingsEnum.NONE);
+        assertDocs(segmentDocs.get(t), postings);
+      }
+      assertTrue(termsEnum.seekExact(new BytesRef(term(t))));
+      postings = termsEnum.postings(postings, PostingsEnum.NONE);
+      assertDocs(segmentDocs.get(t), postings);
+
+      // And scan on from there:
+      BytesRef next = termsEnum.next();
+      for (int u = t + 1; u < segmentDocs.size(); u++) {
+        if (segmentDocs.get(u).isEmpty() == false) {
+          assertEquals(new BytesRef(term(u)), next);
+          assertDocs(segmentDocs.get(u), termsEnum.postings(postings, PostingsEnum.NONE));
+          break;
+        }
+      }
+    }
+  }
+
+  private static void assertDocs(BitSet expected, PostingsEnum postings) throws Exception {
+    for (int doc = expected.nextSetBit(0); doc != -1; doc = expected.nextSetBit(doc + 1)) {
+      assertEquals(doc, postings.nextDoc());
+    }
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+  }
+}
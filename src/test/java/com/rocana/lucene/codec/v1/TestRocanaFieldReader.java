@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MergeInfo;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+
+/**
+ * Unit test for {@link RocanaFieldReader}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaFieldReader extends LuceneTestCase {
+
+  /**
+   * When min/maxTerm weren't stored, getMin()/getMax() look them up
+   * once and then keep returning the same terms.
+   */
+  public void testMinMaxTermsAreRememberedWhenNotStored() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    iwc.setUseCompoundFile(false);
+    TieredMergePolicy mergePolicy = new TieredMergePolicy();
+    mergePolicy.setNoCFSRatio(0.0);
+    iwc.setMergePolicy(mergePolicy);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(500);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+    RocanaFieldReader stored = (RocanaFieldReader) segmentReader.fields().terms("id");
+    assertEquals(new BytesRef("000000"), stored.getMin());
+    assertEquals(new BytesRef(String.format(Locale.ROOT, "%06d", numDocs - 1)), stored.getMax());
+
+    // Same field, as if the index hadn't stored min/maxTerm:
+    String segmentSuffix = stored.fieldInfo.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY)
+      + "_" + stored.fieldInfo.getAttribute(PerFieldPostingsFormat.PER_FIELD_SUFFIX_KEY);
+    String indexName = IndexFileNames.segmentFileName(stored.parent.segment, segmentSuffix, RocanaBlockTreeTermsReader.TERMS_INDEX_EXTENSION);
+    IndexInput indexIn = dir.openInput(indexName, IOContext.READ);
+    RocanaFieldReader notStored = new RocanaFieldReader(stored.parent, stored.fieldInfo, stored.numTerms, stored.metadata, stored.rootCodeOffset,
+      stored.sumTotalTermFreq, stored.sumDocFreq, stored.docCount, stored.indexStartFP, stored.longsSize, indexIn,
+      -1, -1, stored.blockStatsOffset, stored.minItemsInBlock, stored.maxItemsInBlock);
+    indexIn.close();
+
+    BytesRef min = notStored.getMin();
+    BytesRef max = notStored.getMax();
+    assertEquals(stored.getMin(), min);
+    assertEquals(stored.getMax(), max);
+    assertSame(min, notStored.getMin());
+    assertSame(max, notStored.getMax());
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * A reader opened for merging doesn't load the terms index to next()
+   * through the terms, and loads it when an enum first seeks.
+   */
+  public void testIndexIsLoadedOnFirstSeekWhenOpenedForMerging() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(500);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    IOContext mergeContext = new IOContext(new MergeInfo(numDocs, 0, false, 1));
+    SegmentReader reader = new SegmentReader(SegmentInfos.readLatestCommit(dir).info(0), mergeContext);
+    RocanaFieldReader terms = (RocanaFieldReader) reader.fields().terms("id");
+    assertNull(terms.index);
+
+    TermsEnum termsEnum = terms.iterator();
+    for (int i = 0; i < numDocs; i++) {
+      assertEquals(new BytesRef(String.format(Locale.ROOT, "%06d", i)), termsEnum.next());
+    }
+    assertNull(termsEnum.next());
+    assertNull(terms.index);
+
+    // Seeking with the enum that went through all terms:
+    int target = random().nextInt(numDocs);
+    assertTrue(termsEnum.seekExact(new BytesRef(String.format(Locale.ROOT, "%06d", target))));
+    assertNotNull(terms.index);
+    if (target + 1 < numDocs) {
+      assertEquals(new BytesRef(String.format(Locale.ROOT, "%06d", target + 1)), termsEnum.next());
+    }
+    assertEquals(TermsEnum.SeekStatus.END, termsEnum.seekCeil(new BytesRef("a")));
+    assertEquals(TermsEnum.SeekStatus.NOT_FOUND, terms.iterator().seekCeil(new BytesRef("0000005")));
+
+    CompiledAutomaton compiled = new CompiledAutomaton(Automata.makeBinaryInterval(new BytesRef("000010"), true, new BytesRef("000020"), false),
+      null, true, Integer.MAX_VALUE, true);
+    TermsEnum intersect = compiled.getTermsEnum(terms);
+    for (int i = 10; i < 20; i++) {
+      assertEquals(new BytesRef(String.format(Locale.ROOT, "%06d", i)), intersect.next());
+    }
+    assertNull(intersect.next());
+
+    // Other readers do load it up front:
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertNotNull(((RocanaFieldReader) r.leaves().get(0).reader().terms("id")).index);
+
+    r.close();
+    reader.close();
+    dir.close();
+  }
+
+  /**
+   * The fields of a reader all read their root code, min/max terms and block
+   * stats from the reader's one metadata array.
+   */
+  public void testFieldsShareMetadata() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numFields = atLeast(5);
+    int numDocs = atLeast(100);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      for (int f = 0; f < numFields; f++) {
+        doc.add(new StringField("field" + f, String.format(Locale.ROOT, "%d-%06d", f, i), Field.Store.NO));
+      }
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+    byte[] metadata = ((RocanaFieldReader) segmentReader.fields().terms("field0")).metadata;
+    for (int f = 0; f < numFields; f++) {
+      RocanaFieldReader terms = (RocanaFieldReader) segmentReader.fields().terms("field" + f);
+      assertSame(metadata, terms.metadata);
+      assertSame(metadata, terms.rootCode().bytes);
+      assertSame(metadata, terms.blockStats().bytes);
+      assertSame(metadata, terms.getMin().bytes);
+      assertEquals(new BytesRef(String.format(Locale.ROOT, "%d-%06d", f, 0)), terms.getMin());
+      assertEquals(new BytesRef(String.format(Locale.ROOT, "%d-%06d", f, numDocs - 1)), terms.getMax());
+      assertEquals(numDocs, terms.getStats().totalTermCount);
+
+      TermsEnum termsEnum = terms.iterator();
+      assertTrue(termsEnum.seekExact(new BytesRef(String.format(Locale.ROOT, "%d-%06d", f, numDocs / 2))));
+      assertEquals(new BytesRef(String.format(Locale.ROOT, "%d-%06d", f, 0)), terms.iterator().next());
+    }
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * The terms enums a thread uses share its clone of the terms dict, and
+   * still each see their own terms however their block loads interleave.
+   */
+  public void testEnumsShareThreadsTermsInput() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(2000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    final RocanaFieldReader terms = (RocanaFieldReader) r.leaves().get(0).reader().terms("id");
+    final IndexInput mine = terms.parent.termsInput();
+    assertSame(mine, terms.parent.termsInput());
+    final IndexInput[] theirs = new IndexInput[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        theirs[0] = terms.parent.termsInput();
+      }
+    };
+    thread.start();
+    thread.join();
+    assertNotSame(mine, theirs[0]);
+
+    TermsEnum first = terms.iterator();
+    TermsEnum second = terms.iterator();
+    TermsEnum seeking = terms.iterator();
+    CompiledAutomaton compiled = new CompiledAutomaton(Automata.makeBinaryInterval(new BytesRef("000000"), true, new BytesRef("001000"), false),
+      null, true, Integer.MAX_VALUE, true);
+    TermsEnum intersect = compiled.getTermsEnum(terms);
+    assertEquals(new BytesRef("000000"), second.next());
+    for (int i = 0; i < numDocs; i++) {
+      BytesRef expected = new BytesRef(String.format(Locale.ROOT, "%06d", i));
+      assertEquals(expected, first.next());
+      if (i + 1 < numDocs) {
+        assertEquals(new BytesRef(String.format(Locale.ROOT, "%06d", i + 1)), second.next());
+      }
+      int target = random().nextInt(numDocs);
+      assertTrue(seeking.seekExact(new BytesRef(String.format(Locale.ROOT, "%06d", target))));
+      if (i < 1000) {
+        assertEquals(expected, intersect.next());
+      }
+    }
+    assertNull(first.next());
+    assertNull(second.next());
+    assertNull(intersect.next());
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * A terms index bigger than a page, see {@link RocanaFieldReader#INDEX_PAGE_BITS},
+   * finds every term whether it was loaded up front, or on first use by a
+   * reader opened for merging or with a memory manager.
+   */
+  public void testIndexLargerThanAPage() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    // Small blocks, so many index entries:
+    final PostingsFormat smallBlocks = new RocanaLucene50PostingsFormat(2, 3);
+    iwc.setCodec(new RocanaSearchCodecV1(new RocanaPostingsFormatRouter() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        return smallBlocks;
+      }
+    }));
+    iwc.setRAMBufferSizeMB(64);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numTerms = 100000;
+    String[] terms = new String[numTerms];
+    for (int i = 0; i < numTerms; i++) {
+      // Unique, since the multiplier is odd, and spread out:
+      terms[i] = String.format(Locale.ROOT, "%08x", i * 0x9E3779B1);
+      Document doc = new Document();
+      doc.add(new StringField("id", terms[i], Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+    Arrays.sort(terms);
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaFieldReader eager = (RocanaFieldReader) r.leaves().get(0).reader().terms("id");
+    assertNotNull(eager.index);
+    assertTrue(eager.index.ramBytesUsed() > 1 << RocanaFieldReader.INDEX_PAGE_BITS);
+    assertSeeksAll(eager, terms);
+    r.close();
+
+    IOContext mergeContext = new IOContext(new MergeInfo(numTerms, 0, false, 1));
+    SegmentReader merging = new SegmentReader(SegmentInfos.readLatestCommit(dir).info(0), mergeContext);
+    RocanaFieldReader lazy = (RocanaFieldReader) merging.fields().terms("id");
+    assertNull(lazy.index);
+    assertSeeksAll(lazy, terms);
+    assertNotNull(lazy.index);
+    merging.close();
+
+    RocanaTermsIndexMemoryManager.install(new RocanaTermsIndexMemoryManager(Long.MAX_VALUE));
+    try {
+      r = DirectoryReader.open(dir);
+      RocanaFieldReader managed = (RocanaFieldReader) r.leaves().get(0).reader().terms("id");
+      assertNull(managed.index);
+      assertSeeksAll(managed, terms);
+      assertNotNull(managed.index);
+      r.close();
+    } finally {
+      RocanaTermsIndexMemoryManager.install(null);
+    }
+    dir.close();
+  }
+
+  private static void assertSeeksAll(RocanaFieldReader field, String[] sortedTerms) throws Exception {
+    TermsEnum termsEnum = field.iterator();
+    for (int i = 0; i < sortedTerms.length; i++) {
+      BytesRef term = new BytesRef(sortedTerms[i]);
+      assertTrue(termsEnum.seekExact(term));
+      assertEquals(TermsEnum.SeekStatus.FOUND, termsEnum.seekCeil(term));
+      // Just after the term, so the next one:
+      TermsEnum.SeekStatus status = termsEnum.seekCeil(new BytesRef(sortedTerms[i] + "0"));
+      if (i + 1 < sortedTerms.length) {
+        assertEquals(TermsEnum.SeekStatus.NOT_FOUND, status);
+        assertEquals(new BytesRef(sortedTerms[i + 1]), termsEnum.term());
+      } else {
+        assertEquals(TermsEnum.SeekStatus.END, status);
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaFieldTable}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaFieldTable extends LuceneTestCase {
+
+  /** The table must behave like the TreeMap it replaced. */
+  public void testSameAsTreeMap() {
+    int numFields = TestUtil.nextInt(random(), 1, 200);
+    List<FieldInfo> infos = new ArrayList<>();
+    int number = 0;
+    for (int i = 0; i < numFields; i++) {
+      infos.add(newFieldInfo("field" + random().nextInt(1000) + "_" + i, number));
+      // Sparse field numbers now and then:
+      number += random().nextInt(5) == 0 ? TestUtil.nextInt(random(), 2, 10) : 1;
+    }
+    FieldInfos fieldInfos = new FieldInfos(infos.toArray(new FieldInfo[infos.size()]));
+
+    RocanaFieldTable<Integer> table = new RocanaFieldTable<>(fieldInfos);
+    TreeMap<String,Integer> expected = new TreeMap<>();
+    // Some fields have no value, and they come in random order:
+    Collections.shuffle(infos, random());
+    for (FieldInfo info : infos) {
+      if (random().nextInt(4) != 0) {
+        assertNull(table.put(info, info.number));
+        expected.put(info.name, info.number);
+      }
+    }
+
+    assertEquals(expected.size(), table.size());
+    assertEquals(new ArrayList<>(expected.values()), table.values());
+    Iterator<String> it = table.iterator();
+    for (String name : expected.keySet()) {
+      assertEquals(name, it.next());
+    }
+    assertFalse(it.hasNext());
+    for (FieldInfo info : infos) {
+      assertEquals(expected.get(info.name), table.get(info.name));
+    }
+    assertNull(table.get("nope"));
+
+    if (expected.isEmpty() == false) {
+      String name = expected.firstKey();
+      assertEquals(expected.get(name), table.put(fieldInfos.fieldInfo(name), -1));
+      assertEquals(-1, (int) table.get(name));
+      assertEquals(expected.size(), table.size());
+    }
+
+    table.clear();
+    assertEquals(0, table.size());
+    assertFalse(table.iterator().hasNext());
+    for (FieldInfo info : infos) {
+      assertNull(table.get(info.name));
+    }
+  }
+
+  private static FieldInfo newFieldInfo(String name, int number) {
+    return new FieldInfo(name, number, false, false, false, IndexOptions.DOCS, DocValuesType.NONE, -1, new HashMap<String,String>());
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import static com.rocana.lucene.codec.v1.RocanaForUtil.MAX_DATA_SIZE;
+import static com.rocana.lucene.codec.v1.RocanaForUtil.MAX_ENCODED_SIZE;
+import static com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.BLOCK_SIZE;
+
+import java.util.Arrays;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Unit test for {@link RocanaForUtil}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaForUtil extends LuceneTestCase {
+
+  /**
+   * Blocks of every width, packed with each kind of format, read back the
+   * same whether they're decoded from bytes or from longs, and skipped
+   * blocks leave the input in the right place.
+   */
+  public void testReadBlocks() throws Exception {
+    for (float acceptableOverheadRatio : new float[] {PackedInts.COMPACT, PackedInts.DEFAULT, PackedInts.FASTEST}) {
+      Directory dir = newDirectory();
+      int numBlocks = atLeast(500);
+      int[][] blocks = new int[numBlocks][];
+      IndexOutput out = dir.createOutput("test.bin", IOContext.DEFAULT);
+      RocanaForUtil writeForUtil = new RocanaForUtil(acceptableOverheadRatio, out);
+      byte[] encoded = new byte[MAX_ENCODED_SIZE];
+      for (int i = 0; i < numBlocks; i++) {
+        blocks[i] = randomBlock();
+        writeForUtil.writeBlock(Arrays.copyOf(blocks[i], MAX_DATA_SIZE), encoded, out);
+      }
+      long endFP = out.getFilePointer();
+      out.close();
+
+      IndexInput in = dir.openInput("test.bin", IOContext.READONCE);
+      RocanaForUtil readForUtil = new RocanaForUtil(in);
+      long[] encodedLongs = new long[MAX_ENCODED_SIZE / 8];
+      int[] decoded = new int[MAX_DATA_SIZE];
+      for (int i = 0; i < numBlocks; i++) {
+        if (random().nextInt(5) == 0) {
+          readForUtil.skipBlock(in);
+          continue;
+        }
+        readForUtil.readBlock(in, encoded, encodedLongs, decoded);
+        assertArrayEquals(blocks[i], Arrays.copyOf(decoded, BLOCK_SIZE));
+      }
+      assertEquals(endFP, in.getFilePointer());
+      in.close();
+      dir.close();
+    }
+  }
+
+  /**
+   * Instances derived for other block sizes write and read blocks of that
+   * many values, with the formats from the header of the default size.
+   */
+  public void testOtherBlockSizes() throws Exception {
+    for (int blockSize : new int[] {32, 64, 256, 512}) {
+      Directory dir = newDirectory();
+      int numBlocks = atLeast(100);
+      int[][] blocks = new int[numBlocks][];
+      IndexOutput out = dir.createOutput("test.bin", IOContext.DEFAULT);
+      RocanaForUtil writeForUtil = new RocanaForUtil(PackedInts.COMPACT, out).withBlockSize(blockSize);
+      assertEquals(blockSize, writeForUtil.blockSize());
+      byte[] encoded = new byte[writeForUtil.maxEncodedSize()];
+      for (int i = 0; i < numBlocks; i++) {
+        blocks[i] = randomBlock(blockSize);
+        writeForUtil.writeBlock(Arrays.copyOf(blocks[i], writeForUtil.maxDataSize()), encoded, out);
+      }
+      long endFP = out.getFilePointer();
+      out.close();
+
+      IndexInput in = dir.openInput("test.bin", IOContext.READONCE);
+      RocanaForUtil readForUtil = new RocanaForUtil(in).withBlockSize(blockSize);
+      long[] encodedLongs = new long[readForUtil.maxEncodedSize() / 8];
+      int[] decoded = new int[readForUtil.maxDataSize()];
+      for (int i = 0; i < numBlocks; i++) {
+        if (random().nextInt(5) == 0) {
+          readForUtil.skipBlock(in);
+          continue;
+        }
+        readForUtil.readBlock(in, encoded, encodedLongs, decoded);
+        assertArrayEquals(blocks[i], Arrays.copyOf(decoded, blockSize));
+      }
+      assertEquals(endFP, in.getFilePointer());
+      in.close();
+      dir.close();
+    }
+  }
+
+  private static int[] randomBlock() {
+    return randomBlock(BLOCK_SIZE);
+  }
+
+  private static int[] randomBlock(int blockSize) {
+    int[] block = new int[blockSize];
+    if (random().nextInt(10) == 0) {
+      // All values equal:
+      Arrays.fill(block, random().nextInt(Integer.MAX_VALUE));
+      return block;
+    }
+    int bitsPerValue = TestUtil.nextInt(random(), 1, 31);
+    for (int i = 0; i < blockSize; i++) {
+      block[i] = (int) TestUtil.nextLong(random(), 0, PackedInts.maxValue(bitsPerValue));
+    }
+    return block;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.Locale;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaIdPostingsFormat}.
+ *
+ * Extends {@link RocanaBasePostingsFormatTestCase}, so Lucene's postings
+ * format tests run against the format too.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaIdPostingsFormat extends RocanaBasePostingsFormatTestCase {
+  private final Codec codec = TestUtil.alwaysPostingsFormat(new RocanaIdPostingsFormat());
+
+  @Override
+  protected Codec getCodec() {
+    return codec;
+  }
+
+  public void testLookupBySpiName() {
+    PostingsFormat format = PostingsFormat.forName(RocanaIdPostingsFormat.SHORT_NAME);
+    assertTrue(format instanceof RocanaIdPostingsFormat);
+  }
+
+  /**
+   * Every term must be found by its hash, with the right postings, and
+   * terms that aren't there must not be.
+   */
+  public void testSeekExact() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(codec);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("event_id", id(i), Field.Store.NO));
+      // A shared trace ID every 3 docs, so some terms have more than one doc:
+      doc.add(new StringField("trace_id", id(i / 3), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaIdFieldReader terms = (RocanaIdFieldReader) r.leaves().get(0).reader().terms("event_id");
+    assertEquals(numDocs, terms.size());
+    TermsEnum termsEnum = terms.iterator();
+    PostingsEnum postings = null;
+    for (int iter = 0; iter < 1000; iter++) {
+      int i = random().nextInt(numDocs);
+      assertTrue(termsEnum.seekExact(new BytesRef(id(i))));
+      assertEquals(new BytesRef(id(i)), termsEnum.term());
+      assertEquals(1, termsEnum.docFreq());
+      postings = termsEnum.postings(postings, PostingsEnum.NONE);
+      assertEquals(i, postings.nextDoc());
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+
+      assertFalse(termsEnum.seekExact(new BytesRef(id(numDocs + i))));
+      assertFalse(termsEnum.seekExact(new BytesRef(id(i) + "x")));
+      assertFalse(termsEnum.seekExact(new BytesRef(id(i).substring(1))));
+    }
+
+    TermsEnum traceEnum = r.leaves().get(0).reader().terms("trace_id").iterator();
+    assertTrue(traceEnum.seekExact(new BytesRef(id(1))));
+    assertEquals(3, traceEnum.docFreq());
+    postings = traceEnum.postings(null, PostingsEnum.NONE);
+    assertEquals(3, postings.nextDoc());
+    assertEquals(4, postings.nextDoc());
+    assertEquals(5, postings.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Scanning must pick up from a term found by its hash, or set by its term state.
+   */
+  public void testNextAfterSeekExact() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(codec);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 500; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("event_id", id(i), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    TermsEnum termsEnum = r.leaves().get(0).reader().terms("event_id").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef(id(100))));
+    TermState state = termsEnum.termState();
+    assertEquals(new BytesRef(id(101)), termsEnum.next());
+    assertEquals(new BytesRef(id(102)), termsEnum.next());
+
+    TermsEnum otherEnum = r.leaves().get(0).reader().terms("event_id").iterator();
+    otherEnum.seekExact(new BytesRef(id(100)), state);
+    assertEquals(1, otherEnum.docFreq());
+    PostingsEnum postings = otherEnum.postings(null, PostingsEnum.NONE);
+    assertEquals(100, postings.nextDoc());
+    assertEquals(new BytesRef(id(101)), otherEnum.next());
+
+    assertEquals(TermsEnum.SeekStatus.NOT_FOUND, termsEnum.seekCeil(new BytesRef(id(200) + "x")));
+    assertEquals(new BytesRef(id(201)), termsEnum.term());
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Fields with frequencies and positions keep them.
+   */
+  public void testFreqsAndPositions() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(codec);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 300; i++) {
+      Document doc = new Document();
+      doc.add(new TextField("body", "a b a c a", Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    TermsEnum termsEnum = r.leaves().get(0).reader().terms("body").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("a")));
+    assertEquals(300, termsEnum.docFreq());
+    assertEquals(900, termsEnum.totalTermFreq());
+    PostingsEnum postings = termsEnum.postings(null, PostingsEnum.POSITIONS);
+    assertEquals(0, postings.nextDoc());
+    assertEquals(3, postings.freq());
+    assertEquals(0, postings.nextPosition());
+    assertEquals(2, postings.nextPosition());
+    assertEquals(4, postings.nextPosition());
+    assertEquals(299, postings.advance(299));
+
+    r.close();
+    dir.close();
+  }
+
+  private static String id(int i) {
+    return String.format(Locale.ROOT, "evt-%08x", i);
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaInlinePostingsFormat}.
+ *
+ * Extends {@link RocanaBasePostingsFormatTestCase}, so Lucene's postings
+ * format tests run against the format too.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaInlinePostingsFormat extends RocanaBasePostingsFormatTestCase {
+  private final Codec codec = TestUtil.alwaysPostingsFormat(new RocanaInlinePostingsFormat(
+    TestUtil.nextInt(random(), 1, RocanaLucene50PostingsFormat.BLOCK_SIZE)));
+
+  @Override
+  protected Codec getCodec() {
+    return codec;
+  }
+
+  public void testLookupBySpiName() {
+    PostingsFormat format = PostingsFormat.forName(RocanaInlinePostingsFormat.SHORT_NAME);
+    assertTrue(format instanceof RocanaInlinePostingsFormat);
+  }
+
+  public void testInvalidMaxInlineDocFreq() {
+    for (int maxInlineDocFreq : new int[] {0, -1, RocanaLucene50PostingsFormat.BLOCK_SIZE + 1}) {
+      try {
+        new RocanaInlinePostingsFormat(maxInlineDocFreq);
+        fail("expected IllegalArgumentException for " + maxInlineDocFreq);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Short postings lists of fields without positions are inlined, with
+   * their freqs; longer ones, and fields with positions, aren't.
+   */
+  public void testInlineTerms() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(new RocanaInlinePostingsFormat(16)));
+    IndexWriter w = new IndexWriter(dir, iwc);
+    FieldType freqsType = new FieldType(StringField.TYPE_NOT_STORED);
+    freqsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    freqsType.freeze();
+    int numDocs = atLeast(200);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      // host-0 .. host-9 have about numDocs / 10 docs; rare-N has 16 docs:
+      doc.add(new StringField("host", "host-" + (i % 10), Field.Store.NO));
+      doc.add(new StringField("host", "rare-" + (i / 16), Field.Store.NO));
+      // "code" has freqs: i % 3 + 1 of each
+      for (int j = 0; j <= i % 3; j++) {
+        doc.add(new Field("code", "E" + (i / 5), freqsType));
+      }
+      doc.add(new TextField("body", "rare-" + (i / 16), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader reader = r.leaves().get(0).reader();
+    TermsEnum termsEnum = reader.terms("host").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("rare-1")));
+    PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+    assertTrue(postings instanceof RocanaInlinePostingsReader.InlineDocsEnum);
+    assertEquals(16, postings.cost());
+    for (int i = 16; i < 32; i++) {
+      assertEquals(i, postings.nextDoc());
+      assertEquals(1, postings.freq());
+    }
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+
+    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+    assertEquals(20, postings.advance(20));
+    assertEquals(21, postings.nextDoc());
+    assertEquals(31, postings.advance(31));
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.advance(32));
+
+    assertTrue(termsEnum.seekExact(new BytesRef("host-3")));
+    assertFalse(termsEnum.postings(null, PostingsEnum.NONE) instanceof RocanaInlinePostingsReader.InlineDocsEnum);
+
+    termsEnum = reader.terms("code").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("E2")));
+    assertEquals(2 + 3 + 1 + 2 + 3, termsEnum.totalTermFreq());
+    postings = termsEnum.postings(null, PostingsEnum.FREQS);
+    assertTrue(postings instanceof RocanaInlinePostingsReader.InlineDocsEnum);
+    for (int i = 10; i < 15; i++) {
+      assertEquals(i, postings.nextDoc());
+      assertEquals(i % 3 + 1, postings.freq());
+    }
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+
+    // Fields with positions are never inlined:
+    termsEnum = reader.terms("body").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("rare-1")));
+    assertFalse(termsEnum.postings(null, PostingsEnum.POSITIONS) instanceof RocanaInlinePostingsReader.InlineDocsEnum);
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Inlined and regular terms mixed in the same blocks, in any order, so the
+   * regular terms' deltas skip the inlined ones, also when the first term of
+   * a block is inlined. Read by scanning, by seeking, and by term state, and
+   * again after merging with deletions.
+   */
+  public void testMixedInlineAndRegularTerms() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(new RocanaInlinePostingsFormat(TestUtil.nextInt(random(), 2, 32))));
+    iwc.setMaxBufferedDocs(TestUtil.nextInt(random(), 500, 5000));
+    // Keep doc IDs in order across merges:
+    iwc.setMergePolicy(new LogDocMergePolicy());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    FieldType freqsType = new FieldType(StringField.TYPE_NOT_STORED);
+    freqsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    freqsType.freeze();
+    int numDocs = atLeast(5000);
+    int numTerms = TestUtil.nextInt(random(), 50, 300);
+    // term -> doc -> freq
+    List<TreeMap<Integer,Integer>> expected = new ArrayList<>();
+    List<List<String>> docTerms = new ArrayList<>();
+    for (int i = 0; i < numDocs; i++) {
+      docTerms.add(new ArrayList<String>());
+    }
+    for (int t = 0; t < numTerms; t++) {
+      TreeMap<Integer,Integer> docs = new TreeMap<>();
+      int docFreq = random().nextInt(4) == 0 ? TestUtil.nextInt(random(), 40, 1000) : TestUtil.nextInt(random(), 1, 40);
+      for (int j = 0; j < docFreq; j++) {
+        docs.put(random().nextInt(numDocs), TestUtil.nextInt(random(), 1, 3));
+      }
+      for (Integer doc : docs.keySet()) {
+        for (int j = 0; j < docs.get(doc); j++) {
+          docTerms.get(doc).add(term(t));
+        }
+      }
+      expected.add(docs);
+    }
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+      for (String term : docTerms.get(i)) {
+        doc.add(new Field("code", term, freqsType));
+      }
+      w.addDocument(doc);
+    }
+    w.commit();
+
+    DirectoryReader r = DirectoryReader.open(w, true);
+    for (int i = 0; i < r.leaves().size(); i++) {
+      assertTerms(r.leaves().get(i).reader(), expected, r.leaves().get(i).docBase);
+    }
+    r.close();
+
+    // Delete some docs, and merge:
+    BitSet deleted = new BitSet();
+    for (int i = 0; i < numDocs / 10; i++) {
+      int id = random().nextInt(numDocs);
+      deleted.set(id);
+      w.deleteDocuments(new Term("id", Integer.toString(id)));
+    }
+    w.forceMerge(1);
+    w.close();
+
+    // Doc IDs after the merge are the old ones minus the deleted docs before them:
+    int[] newDocIDs = new int[numDocs];
+    for (int doc = 0, newDoc = 0; doc < numDocs; doc++) {
+      newDocIDs[doc] = deleted.get(doc) ? -1 : newDoc++;
+    }
+    List<TreeMap<Integer,Integer>> merged = new ArrayList<>();
+    for (TreeMap<Integer,Integer> docs : expected) {
+      TreeMap<Integer,Integer> newDocs = new TreeMap<>();
+      for (Integer doc : docs.keySet()) {
+        if (newDocIDs[doc] != -1) {
+          newDocs.put(newDocIDs[doc], docs.get(doc));
+        }
+      }
+      merged.add(newDocs);
+    }
+    r = DirectoryReader.open(dir);
+    assertEquals(1, r.leaves().size());
+    assertTerms(r.leaves().get(0).reader(), merged, 0);
+    r.close();
+    dir.close();
+  }
+
+  private static String term(int t) {
+    return String.format(Locale.ROOT, "E%04d", t);
+  }
+
+  private void assertTerms(LeafReader reader, List<TreeMap<Integer,Integer>> expected, int docBase) throws Exception {
+    List<TreeMap<Integer,Integer>> segmentDocs = new ArrayList<>();
+    for (TreeMap<Integer,Integer> docs : expected) {
+      TreeMap<Integer,Integer> docsInSegment = new TreeMap<>();
+      for (Integer doc : docs.subMap(docBase, docBase + reader.maxDoc()).keySet()) {
+        docsInSegment.put(doc - docBase, docs.get(doc));
+      }
+      segmentDocs.add(docsInSegment);
+    }
+
+    // Scan:
+    TermsEnum termsEnum = reader.terms("code").iterator();
+    PostingsEnum postings = null;
+    List<TermState> states = new ArrayList<>();
+    for (int t = 0; t < segmentDocs.size(); t++) {
+      if (segmentDocs.get(t).isEmpty()) {
+        states.add(null);
+        continue;
+      }
+      assertEquals(new BytesRef(term(t)), termsEnum.next());
+      assertEquals(segmentDocs.get(t).size(), termsEnum.docFreq());
+      postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+      assertDocs(segmentDocs.get(t), postings);
+      states.add(termsEnum.termState());
+    }
+    assertNull(termsEnum.next());
+
+    // Seek, in random order:
+    for (int iter = 0; iter < 100; iter++) {
+      int t = random().nextInt(segmentDocs.size());
+      termsEnum = reader.terms("code").iterator();
+      if (segmentDocs.get(t).isEmpty()) {
+        assertFalse(termsEnum.seekExact(new BytesRef(term(t))));
+        continue;
+      }
+      if (random().nextBoolean()) {
+        termsEnum.seekExact(new BytesRef(term(t)), states.get(t));
+        assertEquals(segmentDocs.get(t).size(), termsEnum.docFreq());
+        postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+        assertDocs(segmentDocs.get(t), postings);
+      }
+      assertTrue(termsEnum.seekExact(new BytesRef(term(t))));
+      postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+
+      // Scan on from there before consuming the postings, so the next
+      // term's metadata is decoded into the same term state:
+      BytesRef next = termsEnum.next();
+      assertDocs(segmentDocs.get(t), postings);
+      for (int u = t + 1; u < segmentDocs.size(); u++) {
+        if (segmentDocs.get(u).isEmpty() == false) {
+          assertEquals(new BytesRef(term(u)), next);
+          assertDocs(segmentDocs.get(u), termsEnum.postings(postings, PostingsEnum.FREQS));
+          break;
+        }
+      }
+    }
+  }
+
+  private static void assertDocs(TreeMap<Integer,Integer> expected, PostingsEnum postings) throws Exception {
+    for (Integer doc : expected.keySet()) {
+      assertEquals(doc.intValue(), postings.nextDoc());
+      assertEquals(expected.get(doc).intValue(), postings.freq());
+    }
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+  }
+}
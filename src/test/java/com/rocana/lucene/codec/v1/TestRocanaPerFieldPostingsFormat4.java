@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for writing field groups concurrently with {@link RocanaPerFieldPostingsFormat}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaPerFieldPostingsFormat4 extends LuceneTestCase {
+
+  private static final String[] FIELDS = {"host", "message", "service", "timestamp"};
+
+  private ExecutorService executor;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(TestUtil.nextInt(random(), 1, 3), new NamedThreadFactory("TestRocanaPerFieldPostingsFormat4"));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    super.tearDown();
+  }
+
+  /**
+   * Writing the groups concurrently must give the same index
+   * as writing them one after another.
+   */
+  public void testConcurrentWriteMatchesSerialWrite() throws Exception {
+    long seed = random().nextLong();
+    Directory serialDir = newDirectory();
+    Directory concurrentDir = newDirectory();
+    indexDocs(serialDir, new SeveralFormatsCodec(null, null), seed);
+    indexDocs(concurrentDir, new SeveralFormatsCodec(executor, null), seed);
+
+    assertSameIndex(serialDir, concurrentDir);
+    serialDir.close();
+    concurrentDir.close();
+  }
+
+  /**
+   * The codec writes concurrently when given an executor, on flush and on
+   * merge, and that gives the same index as without one.
+   */
+  public void testCodecWithExecutorMatchesSerialWrite() throws Exception {
+    long seed = random().nextLong();
+    RocanaPostingsFormatRouter router = new RocanaPostingsFormatRouter(
+        Collections.<String,PostingsFormat>singletonMap("message", new RocanaLucene50PostingsFormat(32, 64)));
+    Directory serialDir = newDirectory();
+    Directory concurrentDir = newDirectory();
+    indexDocs(serialDir, new RocanaSearchCodecV1(router, null), seed);
+    indexDocs(concurrentDir, new RocanaSearchCodecV1(router, executor), seed);
+
+    assertSameIndex(serialDir, concurrentDir);
+    serialDir.close();
+    concurrentDir.close();
+  }
+
+  private static void assertSameIndex(Directory serialDir, Directory concurrentDir) throws IOException {
+    DirectoryReader serial = DirectoryReader.open(serialDir);
+    DirectoryReader concurrent = DirectoryReader.open(concurrentDir);
+    assertEquals(serial.maxDoc(), concurrent.maxDoc());
+    Fields serialFields = MultiFields.getFields(serial);
+    Fields concurrentFields = MultiFields.getFields(concurrent);
+    for (String field : FIELDS) {
+      assertSameTerms(serialFields.terms(field), concurrentFields.terms(field));
+    }
+
+    serial.close();
+    concurrent.close();
+  }
+
+  /**
+   * When one group fails the exception reaches the caller, and every
+   * group's files still get closed (the mock directory checks that).
+   */
+  public void testFailingGroupClosesAllConsumers() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new SeveralFormatsCodec(executor, "service"));
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 100; i++) {
+      w.addDocument(newDoc(i));
+    }
+    try {
+      w.commit();
+      fail("expected the failing group's exception");
+    } catch (IOException e) {
+      assertEquals("fake failure writing field group", e.getMessage());
+    }
+    w.rollback();
+    dir.close();
+  }
+
+  private void indexDocs(Directory dir, Codec codec, long seed) throws IOException {
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(codec);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    Random random = new Random(seed);
+    int numDocs = 500 + random.nextInt(500);
+    for (int i = 0; i < numDocs; i++) {
+      w.addDocument(newDoc(random.nextInt(10000)));
+      if (random.nextInt(200) == 0) {
+        w.commit();
+      }
+    }
+    // Merges write the groups too:
+    w.forceMerge(1);
+    w.close();
+  }
+
+  private static Document newDoc(int i) {
+    Document doc = new Document();
+    doc.add(new StringField("host", "host-" + (i % 17), Field.Store.NO));
+    doc.add(new TextField("message", "message number " + i + " from " + (i % 7), Field.Store.NO));
+    doc.add(new StringField("service", "service-" + (i % 5), Field.Store.NO));
+    doc.add(new StringField("timestamp", String.format(Locale.ROOT, "%08d", i), Field.Store.NO));
+    return doc;
+  }
+
+  private static void assertSameTerms(Terms expected, Terms actual) throws IOException {
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.getSumDocFreq(), actual.getSumDocFreq());
+    assertEquals(expected.getSumTotalTermFreq(), actual.getSumTotalTermFreq());
+    TermsEnum expectedEnum = expected.iterator();
+    TermsEnum actualEnum = actual.iterator();
+    BytesRef term;
+    while ((term = expectedEnum.next()) != null) {
+      assertEquals(term, actualEnum.next());
+      assertEquals(expectedEnum.docFreq(), actualEnum.docFreq());
+      assertEquals(expectedEnum.totalTermFreq(), actualEnum.totalTermFreq());
+    }
+    assertNull(actualEnum.next());
+  }
+
+  /** Writes every field with its own postings format instance, so each field is its own group. */
+  private static class SeveralFormatsCodec extends FilterCodec {
+    private final PostingsFormat postingsFormat;
+
+    SeveralFormatsCodec(Executor executor, final String failingField) {
+      super(RocanaSearchCodecV1.SHORT_NAME, new RocanaSearchCodecV1());
+      final PostingsFormat host = new RocanaLucene50PostingsFormat();
+      final PostingsFormat message = new RocanaLucene50PostingsFormat(32, 64);
+      final PostingsFormat service = "service".equals(failingField) ? new FailingPostingsFormat() : new RocanaLucene50PostingsFormat(16, 32);
+      final PostingsFormat other = new RocanaLucene50PostingsFormat(40, 80);
+      postingsFormat = new RocanaPerFieldPostingsFormat(executor) {
+        @Override
+        public PostingsFormat getPostingsFormatForField(String field) {
+          switch (field) {
+            case "host": return host;
+            case "message": return message;
+            case "service": return service;
+            default: return other;
+          }
+        }
+      };
+    }
+
+    @Override
+    public PostingsFormat postingsFormat() {
+      return postingsFormat;
+    }
+  }
+
+  /** Opens its files like a real format, but fails while writing them. */
+  private static class FailingPostingsFormat extends PostingsFormat {
+    private final PostingsFormat delegate = new RocanaLucene50PostingsFormat();
+
+    FailingPostingsFormat() {
+      super(RocanaLucene50PostingsFormat.SHORT_NAME);
+    }
+
+    @Override
+    public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+      final FieldsConsumer in = delegate.fieldsConsumer(state);
+      return new FieldsConsumer() {
+        @Override
+        public void write(Fields fields) throws IOException {
+          throw new IOException("fake failure writing field group");
+        }
+
+        @Override
+        public void close() throws IOException {
+          in.close();
+        }
+      };
+    }
+
+    @Override
+    public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaPostingsBlockSizePolicy}.
+ *
+ * Extends {@link RocanaBasePostingsFormatTestCase}, so Lucene's postings
+ * format tests run with a different postings block size for each field.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaPostingsBlockSizePolicy extends RocanaBasePostingsFormatTestCase {
+  private static final int[] BLOCK_SIZES = {32, 64, 128, 256, 512};
+
+  private final Codec codec = TestUtil.alwaysPostingsFormat(newFormat(new RocanaPostingsBlockSizePolicy() {
+    @Override
+    public int getBlockSize(FieldInfo fieldInfo) {
+      return BLOCK_SIZES[(fieldInfo.name.hashCode() & 0x7fffffff) % BLOCK_SIZES.length];
+    }
+  }));
+
+  @Override
+  protected Codec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Fields packed in smaller and larger blocks have the same postings as
+   * with the default block size, whether they're iterated or advanced.
+   */
+  public void testPerFieldBlockSizes() throws Exception {
+    Map<String,Integer> blockSizes = new HashMap<>();
+    blockSizes.put("small", 32);
+    blockSizes.put("large", 512);
+    RocanaPostingsBlockSizePolicy policy = RocanaPostingsBlockSizePolicy.perField(blockSizes);
+
+    FieldType docsAndFreqs = new FieldType(TextField.TYPE_NOT_STORED);
+    docsAndFreqs.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    docsAndFreqs.freeze();
+    List<Document> docs = new ArrayList<>();
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new Field("small", randomText(), TextField.TYPE_NOT_STORED));
+      doc.add(new Field("large", randomText(), docsAndFreqs));
+      doc.add(new Field("default", randomText(), TextField.TYPE_NOT_STORED));
+      docs.add(doc);
+    }
+
+    // MockAnalyzer picks whether each field gets payloads (random ones, so
+    // they're not compared); use the same one so both indexes agree:
+    Analyzer analyzer = new MockAnalyzer(random());
+    Directory expectedDir = newDirectory();
+    Directory actualDir = newDirectory();
+    index(expectedDir, analyzer, RocanaPostingsBlockSizePolicy.defaultPolicy(), docs);
+    index(actualDir, analyzer, policy, docs);
+
+    DirectoryReader expected = DirectoryReader.open(expectedDir);
+    DirectoryReader actual = DirectoryReader.open(actualDir);
+    for (String field : new String[] {"small", "large", "default"}) {
+      assertSamePostings(getOnlySegmentReader(expected), getOnlySegmentReader(actual), field);
+    }
+    expected.close();
+    actual.close();
+    expectedDir.close();
+    actualDir.close();
+  }
+
+  public void testInvalidBlockSizes() {
+    for (int blockSize : new int[] {0, -128, 16, 48, 100, 1024}) {
+      try {
+        RocanaPostingsBlockSizePolicy.fixed(blockSize);
+        fail("expected IllegalArgumentException for " + blockSize);
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+      try {
+        RocanaPostingsBlockSizePolicy.perField(Collections.singletonMap("field", blockSize));
+        fail("expected IllegalArgumentException for " + blockSize);
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+    }
+    try {
+      RocanaPostingsBlockSizePolicy.perField(Collections.singletonMap("field", (Integer) null));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    try {
+      new RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy.fixed(25, 48), RocanaAutoPrefixPolicy.disabled(), null, null);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  public void testPolicies() {
+    assertSame(RocanaPostingsBlockSizePolicy.defaultPolicy(), RocanaPostingsBlockSizePolicy.fixed(RocanaLucene50PostingsFormat.BLOCK_SIZE));
+    assertEquals("fixed(256)", RocanaPostingsBlockSizePolicy.fixed(256).toString());
+    assertEquals("perField({host=64})", RocanaPostingsBlockSizePolicy.perField(Collections.singletonMap("host", 64)).toString());
+  }
+
+  private static RocanaLucene50PostingsFormat newFormat(RocanaPostingsBlockSizePolicy policy) {
+    return new RocanaLucene50PostingsFormat(RocanaTermBlockSizePolicy.fixed(25, 48), RocanaAutoPrefixPolicy.disabled(), policy, null);
+  }
+
+  /** A few words, so postings are long, some with several positions per doc. */
+  private static String randomText() {
+    StringBuilder text = new StringBuilder();
+    int numWords = TestUtil.nextInt(random(), 1, 10);
+    for (int i = 0; i < numWords; i++) {
+      // Skewed, so some words are in most docs and others in few:
+      text.append("w").append((int) Math.pow(50, random().nextDouble())).append(' ');
+    }
+    return text.toString();
+  }
+
+  private static void index(Directory dir, Analyzer analyzer, RocanaPostingsBlockSizePolicy policy, List<Document> docs) throws Exception {
+    IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(newFormat(policy)));
+    // Keeps the docs in order when merging, so both indexes have the same doc IDs:
+    iwc.setMergePolicy(newLogMergePolicy());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (Document doc : docs) {
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+  }
+
+  private static void assertSamePostings(LeafReader expected, LeafReader actual, String field) throws Exception {
+    TermsEnum expectedTerms = expected.terms(field).iterator();
+    TermsEnum actualTerms = actual.terms(field).iterator();
+    PostingsEnum expectedPostings = null;
+    PostingsEnum actualPostings = null;
+    BytesRef term;
+    while ((term = expectedTerms.next()) != null) {
+      assertEquals(term, actualTerms.next());
+      assertEquals(expectedTerms.docFreq(), actualTerms.docFreq());
+      assertEquals(expectedTerms.totalTermFreq(), actualTerms.totalTermFreq());
+      expectedPostings = expectedTerms.postings(expectedPostings, PostingsEnum.ALL);
+      actualPostings = actualTerms.postings(actualPostings, PostingsEnum.ALL);
+      boolean advance = random().nextBoolean();
+      while (true) {
+        int doc;
+        if (advance && random().nextInt(4) == 0) {
+          // Far enough to skip a few blocks of any size, sometimes:
+          int target = expectedPostings.docID() + 1 + random().nextInt(2000);
+          doc = expectedPostings.advance(target);
+          assertEquals(doc, actualPostings.advance(target));
+        } else {
+          doc = expectedPostings.nextDoc();
+          assertEquals(doc, actualPostings.nextDoc());
+        }
+        if (doc == PostingsEnum.NO_MORE_DOCS) {
+          break;
+        }
+        assertEquals(expectedPostings.freq(), actualPostings.freq());
+        int numPositions = random().nextInt(expectedPostings.freq() + 1);
+        for (int i = 0; i < numPositions; i++) {
+          assertEquals(expectedPostings.nextPosition(), actualPostings.nextPosition());
+          assertEquals(expectedPostings.startOffset(), actualPostings.startOffset());
+        }
+      }
+    }
+    assertNull(actualTerms.next());
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.rocana.lucene.codec.v1.RocanaLucene50PostingsFormat.IntBlockTermState;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaPostingsCopier}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaPostingsCopier extends LuceneTestCase {
+
+  private static final String[] WORDS = {"error", "warn", "info", "disk", "full", "connection", "refused", "timeout"};
+
+  private ExecutorService executor;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(TestUtil.nextInt(random(), 1, 3), new NamedThreadFactory("TestRocanaPostingsCopier"));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    super.tearDown();
+  }
+
+  /**
+   * Merging segments must give the same postings as writing their
+   * documents into one segment, whether or not their terms are copied.
+   */
+  public void testMerge() throws Exception {
+    doTestMerge(false);
+  }
+
+  /** Same as {@link #testMerge()}, with a segment that has deletions. */
+  public void testMergeWithDeletions() throws Exception {
+    doTestMerge(true);
+  }
+
+  private void doTestMerge(boolean deletions) throws Exception {
+    final int numSegments = TestUtil.nextInt(random(), 2, 5);
+    final Codec codec = newCodec();
+    final MockAnalyzer analyzer = new MockAnalyzer(random());
+
+    // Each segment's docs, without the ones we delete:
+    final List<List<Document>> segments = new ArrayList<>();
+    final List<String> deletedIds = new ArrayList<>();
+    final int deleteFrom = deletions ? random().nextInt(numSegments) : -1;
+    int id = 0;
+    for (int s = 0; s < numSegments; s++) {
+      List<Document> docs = new ArrayList<>();
+      // Sometimes more than a postings block, so the copied terms have skip data:
+      int numDocs = random().nextBoolean() ? TestUtil.nextInt(random(), 1, 50) : TestUtil.nextInt(random(), 200, 600);
+      for (int i = 0; i < numDocs; i++) {
+        String docId = Integer.toString(id++);
+        if (s == deleteFrom && random().nextInt(5) == 0) {
+          deletedIds.add(docId);
+        }
+        docs.add(newDocument(s, i, docId));
+      }
+      segments.add(docs);
+    }
+
+    // One segment per list, then merged:
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+    iwc.setCodec(codec);
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (List<Document> docs : segments) {
+      for (Document doc : docs) {
+        w.addDocument(doc);
+      }
+      w.commit();
+    }
+    for (String docId : deletedIds) {
+      w.deleteDocuments(new Term("id", docId));
+    }
+    w.close();
+    iwc = new IndexWriterConfig(analyzer);
+    iwc.setCodec(codec);
+    // Keeps the segments in order, like the docs in the expected index:
+    iwc.setMergePolicy(new LogDocMergePolicy());
+    w = new IndexWriter(dir, iwc);
+    w.forceMerge(1);
+    w.close();
+
+    // The same docs, flushed as one segment:
+    Directory expectedDir = newDirectory();
+    iwc = new IndexWriterConfig(analyzer);
+    iwc.setCodec(codec);
+    iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    iwc.setRAMBufferSizeMB(256);
+    w = new IndexWriter(expectedDir, iwc);
+    for (List<Document> docs : segments) {
+      for (Document doc : docs) {
+        if (deletedIds.contains(doc.get("id")) == false) {
+          w.addDocument(doc);
+        }
+      }
+    }
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    DirectoryReader expected = DirectoryReader.open(expectedDir);
+    assertEquals(1, r.leaves().size());
+    assertEquals(1, expected.leaves().size());
+    LeafReader leaf = r.leaves().get(0).reader();
+    LeafReader expectedLeaf = expected.leaves().get(0).reader();
+    assertEquals(expectedLeaf.maxDoc(), leaf.maxDoc());
+
+    for (String field : new String[] {"id", "host", "body", "level"}) {
+      assertSamePostings(field, expectedLeaf.terms(field), leaf.terms(field));
+    }
+
+    // Hosts are only in one segment, and a copied one that is in more than
+    // one doc has the segment's doc base as its doc ID base:
+    boolean anyCopiedHost = false;
+    TermsEnum termsEnum = leaf.terms("host").iterator();
+    while (termsEnum.next() != null) {
+      IntBlockTermState state = (IntBlockTermState) termsEnum.termState();
+      anyCopiedHost |= state.docIDBase != 0;
+    }
+    boolean anyCopyableHost = false;
+    for (int s = 1; s < numSegments; s++) {
+      // Then host<s>-0 is in more than one doc, and isn't the segment's last host:
+      anyCopyableHost |= s != deleteFrom && segments.get(s).size() >= 4;
+    }
+    if (anyCopyableHost) {
+      assertTrue("no postings were copied", anyCopiedHost);
+    }
+
+    TestUtil.checkIndex(dir);
+    r.close();
+    expected.close();
+    dir.close();
+    expectedDir.close();
+  }
+
+  private Codec newCodec() {
+    if (random().nextBoolean()) {
+      return new RocanaSearchCodecV1();
+    }
+    // Encodes the fields concurrently, when flushing and when merging:
+    return new RocanaSearchCodecV1(new RocanaPostingsFormatRouter(), executor);
+  }
+
+  /**
+   * The {@code i}th doc of segment {@code s}: its host is only in that
+   * segment, its words are in all of them.
+   */
+  private static Document newDocument(int s, int i, String id) {
+    Document doc = new Document();
+    doc.add(new StringField("id", id, Field.Store.YES));
+    FieldType hostType = new FieldType(StringField.TYPE_NOT_STORED);
+    hostType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    doc.add(new Field("host", "host" + s + "-" + (i % 3), hostType));
+    StringBuilder body = new StringBuilder("segment" + s);
+    int numWords = TestUtil.nextInt(random(), 1, 10);
+    for (int j = 0; j < numWords; j++) {
+      body.append(' ').append(random().nextInt(3) == 0 ? "seg" + s + "word" + random().nextInt(20) : WORDS[random().nextInt(WORDS.length)]);
+    }
+    FieldType bodyType = new FieldType(TextField.TYPE_NOT_STORED);
+    bodyType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+    doc.add(new Field("body", body.toString(), bodyType));
+    doc.add(new StringField("level", WORDS[random().nextInt(3)], Field.Store.NO));
+    return doc;
+  }
+
+  private static void assertSamePostings(String field, Terms expectedTerms, Terms terms) throws Exception {
+    assertEquals(field, expectedTerms.size(), terms.size());
+    assertEquals(field, expectedTerms.getDocCount(), terms.getDocCount());
+    assertEquals(field, expectedTerms.getSumDocFreq(), terms.getSumDocFreq());
+    assertEquals(field, expectedTerms.getSumTotalTermFreq(), terms.getSumTotalTermFreq());
+    TermsEnum expectedEnum = expectedTerms.iterator();
+    TermsEnum termsEnum = terms.iterator();
+    PostingsEnum expectedPostings = null;
+    PostingsEnum postings = null;
+    BytesRef term;
+    while ((term = expectedEnum.next()) != null) {
+      assertEquals(term, termsEnum.next());
+      assertEquals(expectedEnum.docFreq(), termsEnum.docFreq());
+      assertEquals(expectedEnum.totalTermFreq(), termsEnum.totalTermFreq());
+
+      expectedPostings = expectedEnum.postings(expectedPostings, PostingsEnum.OFFSETS);
+      postings = termsEnum.postings(postings, PostingsEnum.OFFSETS);
+      for (int doc = expectedPostings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = expectedPostings.nextDoc()) {
+        assertEquals(field + ":" + term.utf8ToString(), doc, postings.nextDoc());
+        assertEquals(expectedPostings.freq(), postings.freq());
+        if (field.equals("body")) {
+          for (int i = 0; i < expectedPostings.freq(); i++) {
+            assertEquals(expectedPostings.nextPosition(), postings.nextPosition());
+            assertEquals(expectedPostings.startOffset(), postings.startOffset());
+            assertEquals(expectedPostings.endOffset(), postings.endOffset());
+          }
+        }
+      }
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+
+      // Skipping must land on the same docs too:
+      expectedPostings = expectedEnum.postings(expectedPostings, PostingsEnum.NONE);
+      postings = termsEnum.postings(postings, PostingsEnum.NONE);
+      int target = random().nextInt(20);
+      while (true) {
+        int doc = expectedPostings.advance(target);
+        assertEquals(field + ":" + term.utf8ToString() + " target=" + target, doc, postings.advance(target));
+        if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+          break;
+        }
+        target = doc + 1 + random().nextInt(200);
+      }
+    }
+    assertNull(termsEnum.next());
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Unit test for {@link RocanaPostingsFormatRouter}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaPostingsFormatRouter extends LuceneTestCase {
+
+  /**
+   * The first pattern matching the whole field name wins, and fields no
+   * pattern matches get the codec's own postings format.
+   */
+  public void testRoutesByPattern() {
+    PostingsFormat idFormat = RocanaPostingsFormatRouter.idPostingsFormat();
+    PostingsFormat lucene50 = new Lucene50PostingsFormat();
+    Map<String,PostingsFormat> formatsByPattern = new LinkedHashMap<>();
+    formatsByPattern.put("id|.*_id", idFormat);
+    formatsByPattern.put(".*_id|level", lucene50);
+    RocanaSearchCodecV1 codec = new RocanaSearchCodecV1(new RocanaPostingsFormatRouter(formatsByPattern));
+    RocanaPerFieldPostingsFormat perField = (RocanaPerFieldPostingsFormat) codec.postingsFormat();
+
+    assertSame(idFormat, perField.getPostingsFormatForField("id"));
+    assertSame(idFormat, perField.getPostingsFormatForField("host_id"));
+    assertSame(lucene50, perField.getPostingsFormatForField("level"));
+    assertSame(codec.getActualPostingsFormat(), perField.getPostingsFormatForField("id2"));
+    assertSame(codec.getActualPostingsFormat(), perField.getPostingsFormatForField("message"));
+  }
+
+  /**
+   * The router can be replaced by a schema lookup.
+   */
+  public void testSchemaHook() {
+    final PostingsFormat idFormat = RocanaPostingsFormatRouter.idPostingsFormat();
+    RocanaSearchCodecV1 codec = new RocanaSearchCodecV1(new RocanaPostingsFormatRouter() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        return field.startsWith("pk.") ? idFormat : null;
+      }
+    });
+    RocanaPerFieldPostingsFormat perField = (RocanaPerFieldPostingsFormat) codec.postingsFormat();
+
+    assertSame(idFormat, perField.getPostingsFormatForField("pk.event"));
+    assertSame(codec.getActualPostingsFormat(), perField.getPostingsFormatForField("event"));
+  }
+
+  /**
+   * Routed fields are readable with the default codec instance from SPI,
+   * including a field written with Lucene's own "Lucene50" format, which we
+   * read with our fork.
+   */
+  public void testRoutedFieldsAreReadable() throws Exception {
+    Map<String,PostingsFormat> formatsByPattern = new LinkedHashMap<>();
+    formatsByPattern.put("id", RocanaPostingsFormatRouter.idPostingsFormat());
+    formatsByPattern.put("level", new Lucene50PostingsFormat());
+
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1(new RocanaPostingsFormatRouter(formatsByPattern)));
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(1000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      doc.add(new StringField("level", "level-" + (i % 5), Field.Store.NO));
+      doc.add(new StringField("host", "host-" + (i % 17), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader reader = r.leaves().get(0).reader();
+    assertEquals(RocanaIdPostingsFormat.SHORT_NAME, reader.getFieldInfos().fieldInfo("id").getAttribute(RocanaPerFieldPostingsFormat.PER_FIELD_FORMAT_KEY));
+    assertEquals("Lucene50", reader.getFieldInfos().fieldInfo("level").getAttribute(RocanaPerFieldPostingsFormat.PER_FIELD_FORMAT_KEY));
+    assertEquals(RocanaLucene50PostingsFormat.SHORT_NAME, reader.getFieldInfos().fieldInfo("host").getAttribute(RocanaPerFieldPostingsFormat.PER_FIELD_FORMAT_KEY));
+
+    RocanaFieldReader id = ((RocanaIdFieldReader) reader.terms("id")).getSortedTerms();
+    RocanaFieldReader level = (RocanaFieldReader) reader.terms("level");
+    RocanaFieldReader host = (RocanaFieldReader) reader.terms("host");
+    assertEquals(RocanaIdPostingsFormat.BLOCK_SIZES.minItemsInBlock, id.getMinItemsInBlock());
+    assertEquals(RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, host.getMinItemsInBlock());
+    // Lucene's writer doesn't store the block sizes:
+    assertEquals(0, level.getMinItemsInBlock());
+
+    assertEquals(numDocs, id.size());
+    assertEquals(1, reader.docFreq(new Term("id", String.format(Locale.ROOT, "%06d", numDocs / 2))));
+    assertEquals(5, level.size());
+    assertEquals((numDocs + 4) / 5, reader.docFreq(new Term("level", "level-0")));
+    assertEquals(17, host.size());
+
+    r.close();
+    dir.close();
+  }
+}
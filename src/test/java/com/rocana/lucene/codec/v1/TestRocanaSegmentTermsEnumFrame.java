@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+
+/**
+ * Unit test for seeking in leaf blocks with fixed length suffixes, and in
+ * blocks with compressed suffixes, see {@link RocanaSegmentTermsEnumFrame}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaSegmentTermsEnumFrame extends LuceneTestCase {
+
+  /**
+   * Seeking to random targets, before, between, on and after the terms, and
+   * of other lengths, must land where a linear scan would.
+   */
+  public void testBinarySearchFixedLengthSuffixes() throws Exception {
+    // UUIDs, hashes and the like:
+    final int width = random().nextBoolean() ? 16 : 1 + random().nextInt(12);
+    NavigableSet<BytesRef> expected = new TreeSet<>();
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(2000);
+    for (int i = 0; i < numDocs; i++) {
+      BytesRef term = randomTerm(width);
+      if (expected.add(term)) {
+        Document doc = new Document();
+        doc.add(new StringField("uuid", term, Field.Store.NO));
+        w.addDocument(doc);
+      }
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaFieldReader terms = (RocanaFieldReader) r.leaves().get(0).reader().terms("uuid");
+    assertEquals(expected.size(), terms.size());
+    List<BytesRef> expectedList = new ArrayList<>(expected);
+
+    // The term's block has fixed length suffixes:
+    RocanaSegmentTermsEnum termsEnum = (RocanaSegmentTermsEnum) terms.iterator();
+    assertTrue(termsEnum.seekExact(expectedList.get(random().nextInt(expectedList.size()))));
+    assertEquals(width - termsEnum.currentFrame.prefix, termsEnum.currentFrame.fixedSuffixLength);
+
+    for (int iter = 0; iter < 2000; iter++) {
+      final BytesRef target;
+      switch (random().nextInt(4)) {
+        case 0:
+          target = expectedList.get(random().nextInt(expectedList.size()));
+          break;
+        case 1:
+          target = randomTerm(width);
+          break;
+        case 2:
+          // Shorter or longer than the terms, sharing a prefix:
+          BytesRef term = expectedList.get(random().nextInt(expectedList.size()));
+          target = new BytesRef(random().nextInt(width + 3));
+          System.arraycopy(term.bytes, term.offset, target.bytes, 0, Math.min(width, target.bytes.length));
+          target.length = target.bytes.length;
+          break;
+        default:
+          target = randomTerm(1 + random().nextInt(width + 2));
+          break;
+      }
+
+      // A new enum now and then, else keep seeking from where we are:
+      if (random().nextInt(10) == 0) {
+        termsEnum = (RocanaSegmentTermsEnum) terms.iterator();
+      }
+      assertEquals("target=" + target, expected.contains(target), termsEnum.seekExact(target));
+
+      BytesRef ceiling = expected.ceiling(target);
+      TermsEnum.SeekStatus status = termsEnum.seekCeil(target);
+      if (ceiling == null) {
+        assertEquals(TermsEnum.SeekStatus.END, status);
+        continue;
+      }
+      assertEquals(ceiling.equals(target) ? TermsEnum.SeekStatus.FOUND : TermsEnum.SeekStatus.NOT_FOUND, status);
+      assertEquals(ceiling, termsEnum.term());
+      assertEquals(1, termsEnum.docFreq());
+
+      // next() must carry on from the term we landed on:
+      BytesRef higher = expected.higher(ceiling);
+      assertEquals(higher, termsEnum.next());
+    }
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Intersecting must see all terms of leaf blocks with fixed length suffixes.
+   */
+  public void testIntersectFixedLengthSuffixes() throws Exception {
+    NavigableSet<BytesRef> expected = new TreeSet<>();
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(2000);
+    for (int i = 0; i < numDocs; i++) {
+      BytesRef term = randomTerm(8);
+      expected.add(term);
+      Document doc = new Document();
+      doc.add(new StringField("hash", term, Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaFieldReader terms = (RocanaFieldReader) r.leaves().get(0).reader().terms("hash");
+    for (int iter = 0; iter < 20; iter++) {
+      BytesRef lower = randomTerm(8);
+      BytesRef upper = randomTerm(8);
+      if (lower.compareTo(upper) > 0) {
+        BytesRef tmp = lower;
+        lower = upper;
+        upper = tmp;
+      }
+      CompiledAutomaton compiled = new CompiledAutomaton(Automata.makeBinaryInterval(lower, true, upper, false),
+        null, true, Integer.MAX_VALUE, true);
+      TermsEnum termsEnum = compiled.getTermsEnum(terms);
+      for (BytesRef term : expected.subSet(lower, true, upper, false)) {
+        assertEquals(term, termsEnum.next());
+      }
+      assertNull(termsEnum.next());
+    }
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Blocks of long, repetitive suffixes are compressed, and seeking,
+   * iterating and intersecting must see the same terms as without.
+   */
+  public void testCompressedSuffixes() throws Exception {
+    NavigableSet<BytesRef> expected = new TreeSet<>();
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      BytesRef term = new BytesRef(randomUrl());
+      expected.add(term);
+      Document doc = new Document();
+      doc.add(new StringField("url", term, Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaFieldReader terms = (RocanaFieldReader) r.leaves().get(0).reader().terms("url");
+    assertEquals(expected.size(), terms.size());
+    List<BytesRef> expectedList = new ArrayList<>(expected);
+
+    RocanaSegmentTermsEnum termsEnum = (RocanaSegmentTermsEnum) terms.iterator();
+    boolean anyCompressed = false;
+    for (BytesRef term : expected) {
+      assertEquals(term, termsEnum.next());
+      anyCompressed |= termsEnum.currentFrame.storedSuffixBytes < termsEnum.currentFrame.suffixesReader.length();
+    }
+    assertNull(termsEnum.next());
+    assertTrue("no block has compressed suffixes", anyCompressed);
+
+    for (int iter = 0; iter < 1000; iter++) {
+      final BytesRef target;
+      if (random().nextBoolean()) {
+        target = expectedList.get(random().nextInt(expectedList.size()));
+      } else {
+        target = new BytesRef(randomUrl());
+      }
+      if (random().nextInt(10) == 0) {
+        termsEnum = (RocanaSegmentTermsEnum) terms.iterator();
+      }
+      assertEquals("target=" + target.utf8ToString(), expected.contains(target), termsEnum.seekExact(target));
+      BytesRef ceiling = expected.ceiling(target);
+      TermsEnum.SeekStatus status = termsEnum.seekCeil(target);
+      if (ceiling == null) {
+        assertEquals(TermsEnum.SeekStatus.END, status);
+        continue;
+      }
+      assertEquals(ceiling, termsEnum.term());
+      assertEquals(expected.higher(ceiling), termsEnum.next());
+    }
+
+    for (int iter = 0; iter < 20; iter++) {
+      BytesRef lower = new BytesRef(randomUrl());
+      BytesRef upper = new BytesRef(randomUrl());
+      if (lower.compareTo(upper) > 0) {
+        BytesRef tmp = lower;
+        lower = upper;
+        upper = tmp;
+      }
+      CompiledAutomaton compiled = new CompiledAutomaton(Automata.makeBinaryInterval(lower, true, upper, false),
+        null, true, Integer.MAX_VALUE, true);
+      TermsEnum intersect = compiled.getTermsEnum(terms);
+      for (BytesRef term : expected.subSet(lower, true, upper, false)) {
+        assertEquals(term, intersect.next());
+      }
+      assertNull(intersect.next());
+    }
+
+    r.close();
+    dir.close();
+  }
+
+  /** URL-like terms: a few hosts, with paths that repeat the same words. */
+  private static String randomUrl() {
+    String[] words = {"api", "v2", "customers", "orders", "search", "status", "images", "thumbnails"};
+    StringBuilder url = new StringBuilder("https://host").append(random().nextInt(3)).append(".example.com");
+    int numWords = 2 + random().nextInt(4);
+    for (int i = 0; i < numWords; i++) {
+      url.append('/').append(words[random().nextInt(words.length)]);
+    }
+    return url.append("?id=").append(random().nextInt(100000)).toString();
+  }
+
+  private static BytesRef randomTerm(int length) {
+    BytesRef term = new BytesRef(length);
+    // Few distinct leading bytes, so there are blocks with long prefixes too:
+    for (int i = 0; i < length; i++) {
+      term.bytes[i] = (byte) (i == 0 ? random().nextInt(4) : random().nextInt(256));
+    }
+    term.length = length;
+    return term;
+  }
+}
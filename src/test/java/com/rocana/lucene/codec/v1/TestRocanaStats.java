@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.Locale;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.autoprefix.AutoPrefixPostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter;
+import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.InfoStream;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaStats}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaStats extends LuceneTestCase {
+
+  /**
+   * Auto-prefix terms must be tallied on their own, and must not
+   * be included in the normal term count.
+   */
+  public void testAutoPrefixTermsAreCountedSeparately() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(new AutoPrefixPostingsFormat(2, 3)));
+    iwc.setUseCompoundFile(false);
+    TieredMergePolicy mergePolicy = new TieredMergePolicy();
+    mergePolicy.setNoCFSRatio(0.0);
+    iwc.setMergePolicy(mergePolicy);
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 2000; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("timestamp", String.format(Locale.ROOT, "%06d", i * 7), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+    FieldInfo fieldInfo = segmentReader.getFieldInfos().fieldInfo("timestamp");
+    String segmentSuffix = fieldInfo.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY)
+      + "_" + fieldInfo.getAttribute(PerFieldPostingsFormat.PER_FIELD_SUFFIX_KEY);
+    SegmentReadState state = new SegmentReadState(dir, segmentReader.getSegmentInfo().info,
+      segmentReader.getFieldInfos(), IOContext.READ, segmentSuffix);
+
+    // The files are in the standard format, so our forked reader can open them:
+    RocanaBlockTreeTermsReader termsReader = new RocanaBlockTreeTermsReader(new RocanaLucene50PostingsReader(state), state);
+    RocanaFieldReader terms = (RocanaFieldReader) termsReader.terms("timestamp");
+    RocanaStats stats = terms.getStats();
+
+    assertEquals(terms.size(), stats.totalTermCount);
+    assertEquals(6 * terms.size(), stats.totalTermBytes);
+    assertTrue("expected auto-prefix terms", stats.totalAutoPrefixTermCount > 0);
+    assertTrue(stats.autoPrefixBlockCount > 0);
+    assertTrue(stats.autoPrefixBlockCount <= stats.totalBlockCount);
+
+    long histogramTotal = 0;
+    long histogramBytes = 0;
+    for (int prefixLen = 0; prefixLen < stats.autoPrefixTermCountByPrefixLen.length; prefixLen++) {
+      histogramTotal += stats.autoPrefixTermCountByPrefixLen[prefixLen];
+      histogramBytes += (long) prefixLen * stats.autoPrefixTermCountByPrefixLen[prefixLen];
+    }
+    assertEquals(stats.totalAutoPrefixTermCount, histogramTotal);
+    assertEquals(stats.totalAutoPrefixTermBytes, histogramBytes);
+    assertTrue(stats.toString().contains(stats.totalAutoPrefixTermCount + " auto-prefix terms"));
+
+    termsReader.close();
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Without auto-prefix terms the new counters stay at zero.
+   */
+  public void testNoAutoPrefixTerms() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 500; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%05d", i), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaFieldReader terms = (RocanaFieldReader) r.leaves().get(0).reader().fields().terms("id");
+    RocanaStats stats = terms.getStats();
+
+    assertEquals(500, stats.totalTermCount);
+    assertEquals(0, stats.totalAutoPrefixTermCount);
+    assertEquals(0, stats.totalAutoPrefixTermBytes);
+    assertEquals(0, stats.autoPrefixBlockCount);
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * The stats stored at write time must be the same as the
+   * stats we get by walking every block.
+   */
+  public void testPersistedStatsMatchBlockWalk() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      // Shared prefixes make floor blocks and sub-blocks, random suffixes vary the block sizes:
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      doc.add(new StringField("host", "host-" + (i % 50) + "-" + TestUtil.randomSimpleString(random(), 1, 6), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    for (String field : new String[] {"id", "host"}) {
+      RocanaFieldReader terms = (RocanaFieldReader) r.leaves().get(0).reader().fields().terms(field);
+      assertNotNull("stats should be stored for field " + field, terms.blockStats());
+      assertSameStats(new RocanaSegmentTermsEnum(terms).computeBlockStats(), terms.getStats());
+    }
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Same as {@link #testPersistedStatsMatchBlockWalk()}, but with auto-prefix terms.
+   */
+  public void testPersistedStatsMatchBlockWalkWithAutoPrefixTerms() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < 2000; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("timestamp", String.format(Locale.ROOT, "%06d", i * 7), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    // Rewrite the field's terms with auto-prefix terms enabled, into a separate directory:
+    DirectoryReader r = DirectoryReader.open(dir);
+    SegmentReader segmentReader = (SegmentReader) r.leaves().get(0).reader();
+    Directory autoPrefixDir = newDirectory();
+    SegmentWriteState writeState = new SegmentWriteState(InfoStream.NO_OUTPUT, autoPrefixDir, segmentReader.getSegmentInfo().info,
+      segmentReader.getFieldInfos(), null, IOContext.DEFAULT);
+    RocanaBlockTreeTermsWriter termsWriter = new RocanaBlockTreeTermsWriter(writeState, new Lucene50PostingsWriter(writeState),
+      RocanaBlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, RocanaBlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE, 2, 3);
+    termsWriter.write(segmentReader.fields());
+    termsWriter.close();
+
+    SegmentReadState readState = new SegmentReadState(autoPrefixDir, segmentReader.getSegmentInfo().info,
+      segmentReader.getFieldInfos(), IOContext.READ);
+    RocanaBlockTreeTermsReader termsReader = new RocanaBlockTreeTermsReader(new RocanaLucene50PostingsReader(readState), readState);
+    RocanaFieldReader terms = (RocanaFieldReader) termsReader.terms("timestamp");
+    RocanaStats stats = terms.getStats();
+    assertTrue("expected auto-prefix terms", stats.totalAutoPrefixTermCount > 0);
+    assertEquals(2000, stats.totalTermCount);
+    assertSameStats(new RocanaSegmentTermsEnum(terms).computeBlockStats(), stats);
+
+    termsReader.close();
+    r.close();
+    autoPrefixDir.close();
+    dir.close();
+  }
+
+  private static void assertSameStats(RocanaStats expected, RocanaStats actual) {
+    assertEquals(expected.indexNumBytes, actual.indexNumBytes);
+    assertEquals(expected.totalTermCount, actual.totalTermCount);
+    assertEquals(expected.totalTermBytes, actual.totalTermBytes);
+    assertEquals(expected.totalAutoPrefixTermCount, actual.totalAutoPrefixTermCount);
+    assertEquals(expected.totalAutoPrefixTermBytes, actual.totalAutoPrefixTermBytes);
+    assertEquals(expected.autoPrefixBlockCount, actual.autoPrefixBlockCount);
+    assertEquals(expected.nonFloorBlockCount, actual.nonFloorBlockCount);
+    assertEquals(expected.floorBlockCount, actual.floorBlockCount);
+    assertEquals(expected.floorSubBlockCount, actual.floorSubBlockCount);
+    assertEquals(expected.mixedBlockCount, actual.mixedBlockCount);
+    assertEquals(expected.termsOnlyBlockCount, actual.termsOnlyBlockCount);
+    assertEquals(expected.subBlocksOnlyBlockCount, actual.subBlocksOnlyBlockCount);
+    assertEquals(expected.totalBlockCount, actual.totalBlockCount);
+    assertEquals(expected.totalBlockSuffixBytes, actual.totalBlockSuffixBytes);
+    assertEquals(expected.totalBlockStatsBytes, actual.totalBlockStatsBytes);
+    assertEquals(expected.totalBlockOtherBytes, actual.totalBlockOtherBytes);
+    // The histograms may differ in trailing zeros, toString() skips those:
+    assertEquals(expected.toString(), actual.toString());
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterLeafReader.FilterTerms;
+import org.apache.lucene.index.FilterLeafReader.FilterTermsEnum;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaTermBlockSizePolicy}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaTermBlockSizePolicy extends LuceneTestCase {
+
+  /**
+   * The adaptive policy must pick block sizes from each field's terms,
+   * and the block sizes must be stored with the field.
+   */
+  public void testAdaptiveBlockSizesAreStored() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriter w = new IndexWriter(dir, newConfig(new RocanaTermBlockSizePolicy.Adaptive(1000, 48)));
+    for (int i = 0; i < 3000; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      doc.add(new StringField("url", "http://www.example.com/some/long/path/to/a/resource?page=" + (i % 200), Field.Store.NO));
+      doc.add(new StringField("level", "level-" + (i % 5), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    Fields fields = r.leaves().get(0).reader().fields();
+    assertBlockSizes(RocanaTermBlockSizePolicy.Adaptive.LARGE_FIELD_BLOCK_SIZES, (RocanaFieldReader) fields.terms("id"));
+    assertBlockSizes(RocanaTermBlockSizePolicy.Adaptive.LONG_TERMS_BLOCK_SIZES, (RocanaFieldReader) fields.terms("url"));
+    assertBlockSizes(RocanaTermBlockSizePolicy.DEFAULT_BLOCK_SIZES, (RocanaFieldReader) fields.terms("level"));
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * When the terms know their count, the adaptive policy must only
+   * read a sample of them, for their average length.
+   */
+  public void testAdaptiveUsesTermCount() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriter w = new IndexWriter(dir, newConfig(RocanaTermBlockSizePolicy.fixed(25, 48)));
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader leaf = r.leaves().get(0).reader();
+    Terms terms = leaf.terms("id");
+    assertEquals(numDocs, terms.size());
+
+    CountingTerms large = new CountingTerms(terms);
+    assertSame(RocanaTermBlockSizePolicy.Adaptive.LARGE_FIELD_BLOCK_SIZES,
+      new RocanaTermBlockSizePolicy.Adaptive(numDocs, 48).getBlockSizes(leaf.getFieldInfos().fieldInfo("id"), large));
+    assertEquals(0, large.nextCount);
+
+    CountingTerms small = new CountingTerms(terms);
+    assertSame(RocanaTermBlockSizePolicy.DEFAULT_BLOCK_SIZES,
+      new RocanaTermBlockSizePolicy.Adaptive(numDocs + 1, 48).getBlockSizes(leaf.getFieldInfos().fieldInfo("id"), small));
+    assertEquals(RocanaTermBlockSizePolicy.Adaptive.TERM_BYTES_SAMPLE, small.nextCount);
+
+    r.close();
+    dir.close();
+  }
+
+  /**
+   * Configured block sizes must win over the fallback policy, and bigger
+   * blocks must mean fewer blocks.
+   */
+  public void testPerFieldBlockSizes() throws Exception {
+    RocanaTermBlockSizePolicy.BlockSizes big = new RocanaTermBlockSizePolicy.BlockSizes(60, 118);
+    Directory dir = newDirectory();
+    IndexWriter w = new IndexWriter(dir, newConfig(RocanaTermBlockSizePolicy.perField(
+      Collections.singletonMap("id", big), RocanaTermBlockSizePolicy.fixed(10, 18))));
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      String id = String.format(Locale.ROOT, "%06d", i);
+      doc.add(new StringField("id", id, Field.Store.NO));
+      doc.add(new StringField("id2", id, Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    Fields fields = r.leaves().get(0).reader().fields();
+    RocanaFieldReader id = (RocanaFieldReader) fields.terms("id");
+    RocanaFieldReader id2 = (RocanaFieldReader) fields.terms("id2");
+    assertBlockSizes(big, id);
+    assertBlockSizes(new RocanaTermBlockSizePolicy.BlockSizes(10, 18), id2);
+    assertTrue(id.getStats().totalBlockCount < id2.getStats().totalBlockCount);
+    r.close();
+    dir.close();
+  }
+
+  public void testInvalidBlockSizes() {
+    try {
+      new RocanaTermBlockSizePolicy.BlockSizes(30, 40);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("2*(minItemsInBlock-1)"));
+    }
+  }
+
+  /** Counts how many terms the enums it returns step through. */
+  private static class CountingTerms extends FilterTerms {
+    int nextCount;
+
+    CountingTerms(Terms in) {
+      super(in);
+    }
+
+    @Override
+    public TermsEnum iterator() throws IOException {
+      return new FilterTermsEnum(in.iterator()) {
+        @Override
+        public BytesRef next() throws IOException {
+          nextCount++;
+          return in.next();
+        }
+      };
+    }
+  }
+
+  private static void assertBlockSizes(RocanaTermBlockSizePolicy.BlockSizes expected, RocanaFieldReader terms) throws Exception {
+    assertEquals(expected.minItemsInBlock, terms.getMinItemsInBlock());
+    assertEquals(expected.maxItemsInBlock, terms.getMaxItemsInBlock());
+
+    RocanaStats stats = terms.getStats();
+    assertEquals(expected.minItemsInBlock, stats.minItemsInBlock);
+    assertEquals(expected.maxItemsInBlock, stats.maxItemsInBlock);
+    assertTrue(stats.toString().contains("written with " + expected + " entries per block"));
+    // The stats from walking the blocks report them too:
+    assertEquals(new RocanaSegmentTermsEnum(terms).computeBlockStats().toString(), stats.toString());
+  }
+
+  private IndexWriterConfig newConfig(RocanaTermBlockSizePolicy blockSizePolicy) {
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(TestUtil.alwaysPostingsFormat(new RocanaLucene50PostingsFormat(blockSizePolicy, null)));
+    return iwc;
+  }
+}
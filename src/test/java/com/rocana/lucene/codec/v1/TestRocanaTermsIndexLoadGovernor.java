@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Unit test for {@link RocanaTermsIndexLoadGovernor}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaTermsIndexLoadGovernor extends LuceneTestCase {
+
+  @Override
+  public void tearDown() throws Exception {
+    RocanaTermsIndexLoadGovernor.install(null);
+    RocanaTermsIndexMemoryManager.install(null);
+    super.tearDown();
+  }
+
+  /** An urgent load that comes later still runs before one that isn't urgent. */
+  public void testUrgentLoadsGoFirst() throws Exception {
+    final RocanaTermsIndexLoadGovernor governor = new RocanaTermsIndexLoadGovernor(100);
+    governor.acquire(80, false);
+
+    final CountDownLatch urgentRan = new CountDownLatch(1);
+    final CountDownLatch releaseUrgent = new CountDownLatch(1);
+    final CountDownLatch otherRan = new CountDownLatch(1);
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        governor.acquire(60, false);
+        otherRan.countDown();
+        governor.release(60);
+      }
+    };
+    other.start();
+    waitForQueueLength(governor, 1);
+    Thread urgent = new Thread() {
+      @Override
+      public void run() {
+        governor.acquire(60, true);
+        urgentRan.countDown();
+        try {
+          releaseUrgent.await();
+        } catch (InterruptedException e) {
+          throw new ThreadInterruptedException(e);
+        }
+        governor.release(60);
+      }
+    };
+    urgent.start();
+    waitForQueueLength(governor, 2);
+
+    governor.release(80);
+    urgentRan.await();
+    // Both don't fit at once:
+    assertEquals(1, governor.getQueueLength());
+    assertEquals(1, otherRan.getCount());
+    assertEquals(60, governor.getBytesInFlight());
+
+    releaseUrgent.countDown();
+    otherRan.await();
+    urgent.join();
+    other.join();
+    assertEquals(0, governor.getBytesInFlight());
+    assertEquals(3, governor.getAdmittedCount());
+    assertEquals(2, governor.getWaitedCount());
+    assertTrue(governor.getTotalWaitNanos() >= governor.getMaxWaitNanos());
+    assertTrue(governor.getMaxWaitNanos() > 0);
+  }
+
+  /** A load bigger than the budget runs once nothing else is in flight. */
+  public void testOversizedLoadRunsAlone() {
+    RocanaTermsIndexLoadGovernor governor = new RocanaTermsIndexLoadGovernor(100);
+    governor.acquire(1000, random().nextBoolean());
+    assertEquals(1000, governor.getBytesInFlight());
+    governor.release(1000);
+    assertEquals(0, governor.getBytesInFlight());
+    assertEquals(0, governor.getWaitedCount());
+  }
+
+  /** An interrupted wait leaves the line, so it doesn't hold up the others. */
+  public void testInterruptedWaitLeavesLine() throws Exception {
+    final RocanaTermsIndexLoadGovernor governor = new RocanaTermsIndexLoadGovernor(100);
+    governor.acquire(100, false);
+    final AtomicReference<Throwable> thrown = new AtomicReference<>();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          governor.acquire(10, false);
+        } catch (Throwable t) {
+          thrown.set(t);
+        }
+      }
+    };
+    waiter.start();
+    waitForQueueLength(governor, 1);
+    waiter.interrupt();
+    waiter.join();
+    assertTrue(thrown.get() instanceof ThreadInterruptedException);
+    assertEquals(0, governor.getQueueLength());
+    governor.release(100);
+
+    governor.acquire(10, false);
+    governor.release(10);
+    assertEquals(0, governor.getBytesInFlight());
+  }
+
+  /** Readers load their terms indexes through the installed governor. */
+  public void testReadersLoadThroughGovernor() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(500);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      doc.add(new StringField("host", "host" + (i % 10), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+
+    // Small enough that the open and the seeks below take turns:
+    RocanaTermsIndexLoadGovernor governor = new RocanaTermsIndexLoadGovernor(1);
+    RocanaTermsIndexLoadGovernor.install(governor);
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertEquals(1, governor.getAdmittedCount());
+    assertEquals(0, governor.getBytesInFlight());
+    assertTrue(r.leaves().get(0).reader().terms("id").iterator().seekExact(new BytesRef("000042")));
+    // Already loaded:
+    assertEquals(1, governor.getAdmittedCount());
+    r.close();
+
+    // Readers that load their terms indexes on first use ask once per field:
+    RocanaTermsIndexMemoryManager.install(new RocanaTermsIndexMemoryManager(Long.MAX_VALUE));
+    r = DirectoryReader.open(dir);
+    assertEquals(1, governor.getAdmittedCount());
+    LeafReader leaf = r.leaves().get(0).reader();
+    assertTrue(leaf.terms("id").iterator().seekExact(new BytesRef("000042")));
+    assertTrue(leaf.terms("id").iterator().seekExact(new BytesRef("000043")));
+    assertTrue(leaf.terms("host").iterator().seekExact(new BytesRef("host3")));
+    assertEquals(3, governor.getAdmittedCount());
+    assertEquals(0, governor.getBytesInFlight());
+    r.close();
+
+    dir.close();
+  }
+
+  private static void waitForQueueLength(RocanaTermsIndexLoadGovernor governor, int length) throws InterruptedException {
+    while (governor.getQueueLength() < length) {
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.Locale;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Unit test for {@link RocanaTermsIndexMemoryManager}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaTermsIndexMemoryManager extends LuceneTestCase {
+
+  private static final int NUM_FIELDS = 4;
+
+  @Override
+  public void tearDown() throws Exception {
+    RocanaTermsIndexMemoryManager.install(null);
+    super.tearDown();
+  }
+
+  /**
+   * With room for one field's terms index, using each field in turn evicts
+   * the previous one, and the evicted fields load theirs again when used.
+   */
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    Directory dir = newDirectory();
+    int numDocs = atLeast(1000);
+    writeIndex(dir, numDocs);
+
+    RocanaTermsIndexMemoryManager manager = new RocanaTermsIndexMemoryManager(Long.MAX_VALUE);
+    RocanaTermsIndexMemoryManager.install(manager);
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader leaf = r.leaves().get(0).reader();
+
+    // Nothing is loaded until a seek needs it:
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      assertNull(fieldReader(leaf, f).index);
+    }
+    assertEquals(0, manager.getResidentBytes());
+
+    long totalBytes = 0;
+    long maxFieldBytes = 0;
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      assertSeeks(leaf, f, numDocs);
+      long bytes = fieldReader(leaf, f).index.ramBytesUsed();
+      totalBytes += bytes;
+      maxFieldBytes = Math.max(maxFieldBytes, bytes);
+    }
+    assertEquals(NUM_FIELDS, manager.getLoadCount());
+    assertEquals(NUM_FIELDS, manager.getResidentCount());
+    assertEquals(totalBytes, manager.getResidentBytes());
+    assertEquals(0, manager.getEvictionCount());
+
+    // Room for any one field's index, but not two:
+    manager.setMaxBytes(maxFieldBytes);
+    assertEquals(1, manager.getResidentCount());
+    assertEquals(NUM_FIELDS - 1, manager.getEvictionCount());
+    assertNotNull(fieldReader(leaf, NUM_FIELDS - 1).index);
+
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      assertSeeks(leaf, f, numDocs);
+      assertNotNull(fieldReader(leaf, f).index);
+      assertEquals(1, manager.getResidentCount());
+      assertTrue(manager.getResidentBytes() <= manager.getMaxBytes());
+    }
+    // Each field evicted the one before, the first one the last one:
+    assertEquals(2 * NUM_FIELDS, manager.getLoadCount());
+    assertEquals(2 * NUM_FIELDS - 1, manager.getEvictionCount());
+
+    // An enum keeps the index it has, even once evicted:
+    TermsEnum termsEnum = fieldReader(leaf, NUM_FIELDS - 1).iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef(term(NUM_FIELDS - 1, 0))));
+    assertSeeks(leaf, 0, numDocs);
+    assertNull(fieldReader(leaf, NUM_FIELDS - 1).index);
+    assertTrue(termsEnum.seekExact(new BytesRef(term(NUM_FIELDS - 1, numDocs - 1))));
+
+    r.close();
+    assertEquals(0, manager.getResidentCount());
+    assertEquals(0, manager.getResidentBytes());
+    dir.close();
+  }
+
+  /** Using a loaded field's index makes it the most recently used one. */
+  public void testUseMovesToMostRecentlyUsed() throws Exception {
+    Directory dir = newDirectory();
+    int numDocs = atLeast(1000);
+    writeIndex(dir, numDocs);
+
+    RocanaTermsIndexMemoryManager manager = new RocanaTermsIndexMemoryManager(Long.MAX_VALUE);
+    RocanaTermsIndexMemoryManager.install(manager);
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader leaf = r.leaves().get(0).reader();
+    assertSeeks(leaf, 0, numDocs);
+    assertSeeks(leaf, 1, numDocs);
+    // Now field 0 is used after field 1:
+    assertSeeks(leaf, 0, numDocs);
+
+    manager.setMaxBytes(manager.getResidentBytes() - 1);
+    assertNotNull(fieldReader(leaf, 0).index);
+    assertNull(fieldReader(leaf, 1).index);
+
+    r.close();
+    dir.close();
+  }
+
+  /** Evicting an index the field has loaded again since leaves the new one. */
+  public void testStaleEvictionKeepsReloadedIndex() throws Exception {
+    Directory dir = newDirectory();
+    int numDocs = atLeast(100);
+    writeIndex(dir, numDocs);
+
+    RocanaTermsIndexMemoryManager manager = new RocanaTermsIndexMemoryManager(Long.MAX_VALUE);
+    RocanaTermsIndexMemoryManager.install(manager);
+    DirectoryReader r = DirectoryReader.open(dir);
+    LeafReader leaf = r.leaves().get(0).reader();
+    assertSeeks(leaf, 0, numDocs);
+    RocanaFieldReader field = fieldReader(leaf, 0);
+    FST<BytesRef> first = field.index;
+    field.evictIndex(first);
+    assertNull(field.index);
+    assertSeeks(leaf, 0, numDocs);
+    FST<BytesRef> reloaded = field.index;
+    assertNotNull(reloaded);
+    assertNotSame(first, reloaded);
+
+    field.evictIndex(first);
+    assertSame(reloaded, field.index);
+    assertEquals(reloaded.ramBytesUsed(), manager.getResidentBytes());
+
+    r.close();
+    dir.close();
+  }
+
+  /** Readers opened before a manager was installed load their indexes up front, as usual. */
+  public void testReadersOpenedWithoutManagerAreNotManaged() throws Exception {
+    Directory dir = newDirectory();
+    writeIndex(dir, atLeast(100));
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaTermsIndexMemoryManager manager = new RocanaTermsIndexMemoryManager(0);
+    RocanaTermsIndexMemoryManager.install(manager);
+    assertSame(manager, RocanaTermsIndexMemoryManager.getInstalled());
+    LeafReader leaf = r.leaves().get(0).reader();
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      assertNotNull(fieldReader(leaf, f).index);
+    }
+    assertEquals(0, manager.getLoadCount());
+
+    r.close();
+    dir.close();
+  }
+
+  public void testNegativeMaxBytes() {
+    try {
+      new RocanaTermsIndexMemoryManager(-1);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  private static void writeIndex(Directory dir, int numDocs) throws Exception {
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      for (int f = 0; f < NUM_FIELDS; f++) {
+        doc.add(new StringField("field" + f, term(f, i), Field.Store.NO));
+      }
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+  }
+
+  private static String term(int field, int doc) {
+    return String.format(Locale.ROOT, "f%d-%06d", field, doc);
+  }
+
+  private static RocanaFieldReader fieldReader(LeafReader leaf, int field) throws Exception {
+    return (RocanaFieldReader) leaf.terms("field" + field);
+  }
+
+  private static void assertSeeks(LeafReader leaf, int field, int numDocs) throws Exception {
+    TermsEnum termsEnum = fieldReader(leaf, field).iterator();
+    // Not the last term, so there is one after it:
+    int doc = random().nextInt(numDocs - 1);
+    assertTrue(termsEnum.seekExact(new BytesRef(term(field, doc))));
+    assertEquals(TermsEnum.SeekStatus.NOT_FOUND, termsEnum.seekCeil(new BytesRef(term(field, doc) + "x")));
+    assertFalse(termsEnum.seekExact(new BytesRef("nope")));
+  }
+}
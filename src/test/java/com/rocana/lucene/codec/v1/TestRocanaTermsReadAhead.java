@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Unit test for {@link RocanaTermsReadAhead}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaTermsReadAhead extends LuceneTestCase {
+
+  /** Holds on to the tasks, so the tests run them when they want. */
+  private static final class QueueingExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    RocanaTermsReadAhead.install(null);
+    super.tearDown();
+  }
+
+  /** Windows that are read by the time the enum needs them serve its block loads. */
+  public void testScanReadsFromWindows() throws Exception {
+    RocanaTermsReadAhead readAhead = new RocanaTermsReadAhead(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        task.run();
+      }
+    }, TestUtil.nextInt(random(), 1, 4096));
+    RocanaTermsReadAhead.install(readAhead);
+
+    Directory dir = newDirectory();
+    int numDocs = indexDocs(dir);
+    // The merge next()s through the terms too:
+    TestUtil.checkIndex(dir);
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    long read = readAhead.getReadCount();
+    assertScan(r, numDocs);
+    assertTrue(readAhead.getReadCount() > read);
+    assertTrue(readAhead.getUsedCount() > 0);
+    r.close();
+    dir.close();
+  }
+
+  /** An enum loads all the blocks in a window from it, rather than reading a window per block. */
+  public void testScanKeepsWindow() throws Exception {
+    RocanaTermsReadAhead readAhead = new RocanaTermsReadAhead(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        task.run();
+      }
+    }, 1 << 16);
+    Directory dir = newDirectory();
+    int numDocs = indexDocs(dir);
+    RocanaTermsReadAhead.install(readAhead);
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertScan(r, numDocs);
+    assertTrue(readAhead.getReadCount() > 0);
+    assertTrue(readAhead.getUsedCount() > readAhead.getReadCount());
+    r.close();
+    dir.close();
+  }
+
+  /** Slices of a window's input read the same bytes as slices of the terms dict. */
+  public void testWindowSlice() throws Exception {
+    RocanaTermsReadAhead readAhead = new RocanaTermsReadAhead(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        task.run();
+      }
+    }, 64);
+    Directory dir = newDirectory();
+    indexDocs(dir);
+    RocanaTermsReadAhead.install(readAhead);
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    RocanaBlockTreeTermsReader reader = ((RocanaFieldReader) r.leaves().get(0).reader().terms("id")).parent;
+    IndexInput in = reader.termsInput();
+    long start = in.length() / 2;
+    IndexInput windowInput = readAhead.read(reader, start, null).input(start, in);
+    assertNotSame(in, windowInput);
+
+    IndexInput expected = in.slice("expected", start, 128);
+    IndexInput actual = windowInput.slice("actual", start, 128);
+    for (int i = 0; i < 128; i++) {
+      assertEquals(expected.readByte(), actual.readByte());
+    }
+    r.close();
+    dir.close();
+  }
+
+  /** Windows that haven't started by the time the enum needs them are skipped. */
+  public void testScanDoesNotWaitForQueuedWindows() throws Exception {
+    Directory dir = newDirectory();
+    int numDocs = indexDocs(dir);
+
+    QueueingExecutor executor = new QueueingExecutor();
+    RocanaTermsReadAhead readAhead = new RocanaTermsReadAhead(executor, 1024);
+    RocanaTermsReadAhead.install(readAhead);
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertScan(r, numDocs);
+    assertTrue(readAhead.getReadCount() > 0);
+    assertEquals(0, readAhead.getUsedCount());
+
+    // Closing the reader before the windows run is fine too:
+    assertScan(r, numDocs);
+    r.close();
+    executor.runAll();
+
+    dir.close();
+  }
+
+  /** Only enums that next() through blocks read ahead. */
+  public void testSeeksDoNotReadAhead() throws Exception {
+    Directory dir = newDirectory();
+    int numDocs = indexDocs(dir);
+
+    QueueingExecutor executor = new QueueingExecutor();
+    RocanaTermsReadAhead readAhead = new RocanaTermsReadAhead(executor, 1024);
+    RocanaTermsReadAhead.install(readAhead);
+    DirectoryReader r = DirectoryReader.open(dir);
+    TermsEnum termsEnum = r.leaves().get(0).reader().terms("id").iterator();
+    for (int i = 0; i < 100; i++) {
+      assertTrue(termsEnum.seekExact(new BytesRef(String.format(Locale.ROOT, "%06d", random().nextInt(numDocs)))));
+    }
+    assertEquals(0, readAhead.getReadCount());
+    r.close();
+    dir.close();
+  }
+
+  /** Scans see the right terms with windows read on other threads. */
+  public void testConcurrentWindows() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    RocanaTermsReadAhead.install(new RocanaTermsReadAhead(executor, TestUtil.nextInt(random(), 1, 4096)));
+    Directory dir = newDirectory();
+    int numDocs = indexDocs(dir);
+    DirectoryReader r = DirectoryReader.open(dir);
+    int numScans = atLeast(3);
+    for (int i = 0; i < numScans; i++) {
+      assertScan(r, numDocs);
+    }
+    r.close();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    dir.close();
+  }
+
+  private static int indexDocs(Directory dir) throws Exception {
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    int numDocs = atLeast(3000);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      w.addDocument(doc);
+    }
+    w.forceMerge(1);
+    w.close();
+    return numDocs;
+  }
+
+  private static void assertScan(DirectoryReader r, int numDocs) throws Exception {
+    TermsEnum termsEnum = r.leaves().get(0).reader().terms("id").iterator();
+    for (int i = 0; i < numDocs; i++) {
+      assertEquals(new BytesRef(String.format(Locale.ROOT, "%06d", i)), termsEnum.next());
+      assertEquals(1, termsEnum.docFreq());
+    }
+    assertNull(termsEnum.next());
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2017 Rocana
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rocana.lucene.codec.v1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Unit test for {@link RocanaTermsWarmer}.
+ *
+ * This test class contains additional Rocana codec tests and is not a fork of
+ * any existing Lucene tests. In other words, these tests are original.
+ */
+public class TestRocanaTermsWarmer extends LuceneTestCase {
+
+  /** Holds on to the warming tasks, so the tests run them when they want. */
+  private static final class QueueingExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    RocanaTermsWarmer.install(null);
+    super.tearDown();
+  }
+
+  public void testRecordKeepsPrefixes() {
+    RocanaTermsWarmer warmer = new RocanaTermsWarmer(new QueueingExecutor(), 1024, 4);
+    warmer.record(0, "id", new BytesRef("000042"));
+    warmer.record(0, "id", new BytesRef("000043"));
+    assertEquals(1, warmer.getRecordedCount());
+    warmer.record(0, "id", new BytesRef("abc"));
+    warmer.record(0, "host", new BytesRef("abc"));
+    warmer.record(1, "host", new BytesRef("abc"));
+    assertTrue(warmer.getRecordedCount() <= 4);
+
+    // Never more than the slots:
+    RocanaTermsWarmer small = new RocanaTermsWarmer(new QueueingExecutor(), 2, 8);
+    for (int i = 0; i < 100; i++) {
+      small.record(0, "id", new BytesRef("term" + i));
+    }
+    assertTrue(small.getRecordedCount() <= 2);
+  }
+
+  /** New readers get warmed with the prefixes the readers before them were searched for. */
+  public void testWarmsNewReaders() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    addDocs(w, 0, atLeast(200));
+    w.commit();
+
+    QueueingExecutor executor = new QueueingExecutor();
+    RocanaTermsWarmer warmer = new RocanaTermsWarmer(executor, 1024, 16);
+    RocanaTermsWarmer.install(warmer);
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    // Nothing recorded yet:
+    assertTrue(executor.tasks.isEmpty());
+    LeafReader leaf = r.leaves().get(0).reader();
+    assertTrue(leaf.terms("id").iterator().seekExact(new BytesRef("000042")));
+    assertEquals(TermsEnum.SeekStatus.FOUND, leaf.terms("id").iterator().seekCeil(new BytesRef("000017")));
+    TermsEnum termsEnum = leaf.terms("host").iterator();
+    assertTrue(termsEnum.seekExact(new BytesRef("host3")));
+    assertEquals(3, warmer.getRecordedCount());
+    // Only an enum's first seek is recorded:
+    assertTrue(termsEnum.seekExact(new BytesRef("host5")));
+    assertEquals(3, warmer.getRecordedCount());
+    // Nor are the warmer's own:
+    assertTrue(((RocanaFieldReader) leaf.terms("id")).parent.warm("id", new BytesRef("000099")));
+    assertEquals(3, warmer.getRecordedCount());
+
+    // A new segment, and the ones merged, are opened for searching:
+    addDocs(w, 1000, atLeast(200));
+    w.commit();
+    DirectoryReader r2 = DirectoryReader.openIfChanged(r);
+    assertNotNull(r2);
+    int newReaders = executor.tasks.size();
+    assertTrue(newReaders >= 1);
+    executor.runAll();
+    assertEquals(newReaders, warmer.getWarmedReaderCount());
+    assertEquals(3 * newReaders, warmer.getWarmedTermCount());
+
+    // Closed before its turn came; nothing to warm:
+    w.forceMerge(1);
+    w.close();
+    DirectoryReader r3 = DirectoryReader.openIfChanged(r2);
+    assertNotNull(r3);
+    assertEquals(1, executor.tasks.size());
+    r3.close();
+    executor.runAll();
+    assertEquals(newReaders, warmer.getWarmedReaderCount());
+
+    r.close();
+    r2.close();
+    dir.close();
+  }
+
+  /** Readers only get warmed with the prefixes recorded for their own index. */
+  public void testWarmsPerIndex() throws Exception {
+    Directory dir = newDirectory();
+    Directory otherDir = newDirectory();
+    for (Directory d : new Directory[] { dir, otherDir }) {
+      IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+      iwc.setCodec(new RocanaSearchCodecV1());
+      IndexWriter w = new IndexWriter(d, iwc);
+      addDocs(w, 0, 10);
+      w.close();
+    }
+
+    QueueingExecutor executor = new QueueingExecutor();
+    RocanaTermsWarmer warmer = new RocanaTermsWarmer(executor, 1024, 16);
+    RocanaTermsWarmer.install(warmer);
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertTrue(r.leaves().get(0).reader().terms("id").iterator().seekExact(new BytesRef("000001")));
+    assertEquals(1, warmer.getRecordedCount());
+
+    DirectoryReader other = DirectoryReader.open(otherDir);
+    assertTrue(executor.tasks.isEmpty());
+    DirectoryReader again = DirectoryReader.open(dir);
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    assertEquals(1, warmer.getWarmedTermCount());
+
+    r.close();
+    other.close();
+    again.close();
+    dir.close();
+    otherDir.close();
+  }
+
+  /** Sampling records only some of the seeks. */
+  public void testSampledRecording() throws Exception {
+    RocanaTermsWarmer all = new RocanaTermsWarmer(new QueueingExecutor(), 1024, 16);
+    RocanaTermsWarmer sampled = new RocanaTermsWarmer(new QueueingExecutor(), 1024, 16, 1 << 20);
+    for (int i = 0; i < 100; i++) {
+      all.record(0, "id", new BytesRef("term" + i));
+      sampled.record(0, "id", new BytesRef("term" + i));
+    }
+    assertTrue(sampled.getRecordedCount() < all.getRecordedCount());
+
+    try {
+      new RocanaTermsWarmer(new QueueingExecutor(), 1024, 16, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  /** Readers still open if the executor won't warm them. */
+  public void testRejectedWarming() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(new RocanaSearchCodecV1());
+    IndexWriter w = new IndexWriter(dir, iwc);
+    addDocs(w, 0, 10);
+    w.close();
+
+    RocanaTermsWarmer warmer = new RocanaTermsWarmer(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        throw new RejectedExecutionException();
+      }
+    }, 16, 16);
+    warmer.record(System.identityHashCode(dir), "id", new BytesRef("000001"));
+    RocanaTermsWarmer.install(warmer);
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertEquals(1, warmer.getRejectedCount());
+    assertEquals(10, r.numDocs());
+    r.close();
+    dir.close();
+  }
+
+  private static void addDocs(IndexWriter w, int start, int count) throws Exception {
+    for (int i = start; i < start + count; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.format(Locale.ROOT, "%06d", i), Field.Store.NO));
+      doc.add(new StringField("host", "host" + (i % 10), Field.Store.NO));
+      w.addDocument(doc);
+    }
+  }
+}